@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map view over encoded map. Offsets of keys and values are indexed on first
+ * access, and each value is decoded when it is requested. Modifications are
+ * kept in separate overlay map, so encoded buffer is never changed. Encoded
+ * buffer should not be reused while the view is alive. Not thread-safe.
+ */
+public class EncodedMap extends AbstractMap<String, Object> {
+	private static final Charset utf8 = Charset.forName("utf-8");
+	private static final Object REMOVED = new Object();
+
+	// map content without type and length bytes
+	private ByteBuffer content;
+	private CustomCodec cc;
+
+	// -1 if not indexed yet
+	private int count = -1;
+	private int[] keyOffsets;
+	private int[] keyLengths;
+	private int[] valueOffsets;
+	private String[] keys;
+	private Object[] values;
+	private boolean[] decoded;
+
+	// put or removed entries, null if not modified
+	private Map<String, Object> overlay;
+	private boolean cleared;
+
+	private Set<Map.Entry<String, Object>> entrySet;
+
+	EncodedMap(ByteBuffer content, CustomCodec cc) {
+		this.content = content;
+		this.cc = cc;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (overlay != null && overlay.containsKey(key)) {
+			Object value = overlay.get(key);
+			return value == REMOVED ? null : value;
+		}
+
+		int i = indexOf(key);
+		return i < 0 ? null : getValue(i);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (overlay != null && overlay.containsKey(key))
+			return overlay.get(key) != REMOVED;
+
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Object old = get(key);
+		getOverlay().put(key, value);
+		return old;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (!containsKey(key))
+			return null;
+
+		Object old = get(key);
+		if (indexOf(key) >= 0)
+			getOverlay().put((String) key, REMOVED);
+		else
+			overlay.remove(key);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		cleared = true;
+		overlay = null;
+	}
+
+	@Override
+	public int size() {
+		index();
+		int size = cleared ? 0 : count;
+		if (overlay == null)
+			return size;
+
+		for (Map.Entry<String, Object> e : overlay.entrySet()) {
+			boolean encoded = indexOf(e.getKey()) >= 0;
+			if (e.getValue() == REMOVED && encoded)
+				size--;
+			else if (e.getValue() != REMOVED && !encoded)
+				size++;
+		}
+		return size;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return EncodedMap.this.size();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	private Map<String, Object> getOverlay() {
+		if (overlay == null)
+			overlay = new HashMap<String, Object>();
+		return overlay;
+	}
+
+	private void index() {
+		if (count >= 0)
+			return;
+
+		int capacity = 16;
+		keyOffsets = new int[capacity];
+		keyLengths = new int[capacity];
+		valueOffsets = new int[capacity];
+
+		ByteBuffer bb = content.duplicate();
+		int n = 0;
+		while (bb.hasRemaining()) {
+			byte type = bb.get();
+			if (type != EncodingRule.STRING_TYPE)
+				throw new TypeMismatchException(EncodingRule.STRING_TYPE, type, bb.position() - 1);
+
+			int keyLength = (int) EncodingRule.decodeRawNumber(bb);
+			int keyOffset = bb.position();
+			bb.position(keyOffset + keyLength);
+
+			if (n == capacity) {
+				capacity *= 2;
+				keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+				keyLengths = Arrays.copyOf(keyLengths, capacity);
+				valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+			}
+
+			keyOffsets[n] = keyOffset;
+			keyLengths[n] = keyLength;
+			valueOffsets[n] = bb.position();
+			n++;
+
+			bb.position(bb.position() + EncodingRule.getObjectLength(bb, cc));
+		}
+
+		keys = new String[n];
+		values = new Object[n];
+		decoded = new boolean[n];
+		count = n;
+	}
+
+	private int indexOf(Object key) {
+		if (cleared || !(key instanceof String))
+			return -1;
+
+		index();
+		String s = (String) key;
+		for (int i = 0; i < count; i++)
+			if (keyEquals(i, s))
+				return i;
+		return -1;
+	}
+
+	private boolean keyEquals(int i, String key) {
+		if (keys[i] != null)
+			return keys[i].equals(key);
+		return EncodingRule.stringEquals(content, keyOffsets[i], keyLengths[i], key);
+	}
+
+	private String getKey(int i) {
+		if (keys[i] == null) {
+			ByteBuffer bb = content.duplicate();
+			bb.position(keyOffsets[i]);
+			bb.limit(keyOffsets[i] + keyLengths[i]);
+			CharBuffer cb = utf8.decode(bb);
+			keys[i] = cb.toString();
+		}
+		return keys[i];
+	}
+
+	private Object getValue(int i) {
+		if (!decoded[i]) {
+			ByteBuffer bb = content.duplicate();
+			bb.position(valueOffsets[i]);
+			values[i] = EncodingRule.decode(bb, cc);
+			decoded[i] = true;
+		}
+		return values[i];
+	}
+
+	private class Entry implements Map.Entry<String, Object> {
+		private String key;
+		private Object value;
+
+		public Entry(String key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object old = this.value;
+			this.value = value;
+			put(key, value);
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return eq(key, e.getKey()) && eq(value, e.getValue());
+		}
+
+		private boolean eq(Object o1, Object o2) {
+			return o1 == null ? o2 == null : o1.equals(o2);
+		}
+
+		@Override
+		public int hashCode() {
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * iterates encoded entries which are not overridden, then overlay entries
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+		private int next;
+		private Iterator<Map.Entry<String, Object>> overlayIterator;
+		private Entry prefetch;
+		private Entry last;
+
+		public EntryIterator() {
+			index();
+			next = cleared ? count : 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (prefetch != null)
+				return true;
+
+			while (next < count) {
+				int i = next++;
+				String key = getKey(i);
+				if (overlay != null && overlay.containsKey(key))
+					continue;
+
+				prefetch = new Entry(key, getValue(i));
+				return true;
+			}
+
+			if (overlay == null)
+				return false;
+
+			if (overlayIterator == null)
+				overlayIterator = new HashMap<String, Object>(overlay).entrySet().iterator();
+
+			while (overlayIterator.hasNext()) {
+				Map.Entry<String, Object> e = overlayIterator.next();
+				if (e.getValue() != REMOVED) {
+					prefetch = new Entry(e.getKey(), e.getValue());
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			last = prefetch;
+			prefetch = null;
+			return last;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+
+			EncodedMap.this.remove(last.getKey());
+			last = null;
+		}
+	}
+}
@@ -591,6 +591,90 @@ public class EncodingRule {
 		return m;
 	}
 
+	public static Map<String, Object> decodeLazyMap(ByteBuffer bb) {
+		return decodeLazyMap(bb, null);
+	}
+
+	/**
+	 * Returns map view which decodes values on demand. Buffer content is not
+	 * copied, so it should not be modified while the map is used. Buffer
+	 * position moves to the end of the map.
+	 */
+	public static Map<String, Object> decodeLazyMap(ByteBuffer bb, CustomCodec cc) {
+		byte type = bb.get();
+		if (type != MAP_TYPE)
+			throw new TypeMismatchException(MAP_TYPE, type, bb.position() - 1);
+
+		int length = (int) decodeRawNumber(bb);
+		ByteBuffer content = bb.slice();
+		content.limit(length);
+		bb.position(bb.position() + length);
+
+		return new EncodedMap(content, cc);
+	}
+
+	public static Object decodeMapValue(ByteBuffer bb, String key) {
+		return decodeMapValue(bb, key, null);
+	}
+
+	/**
+	 * Decode only the value of given key, skipping other values. ByteBuffer's
+	 * position will not move.
+	 * 
+	 * @return the decoded value, or null if key is not found
+	 */
+	public static Object decodeMapValue(ByteBuffer bb, String key, CustomCodec cc) {
+		ByteBuffer buf = bb.duplicate();
+		byte type = buf.get();
+		if (type != MAP_TYPE)
+			throw new TypeMismatchException(MAP_TYPE, type, buf.position() - 1);
+
+		int length = (int) decodeRawNumber(buf);
+		int end = buf.position() + length;
+
+		while (buf.position() < end) {
+			type = buf.get();
+			if (type != STRING_TYPE)
+				throw new TypeMismatchException(STRING_TYPE, type, buf.position() - 1);
+
+			int keyLength = (int) decodeRawNumber(buf);
+			int keyOffset = buf.position();
+			buf.position(keyOffset + keyLength);
+
+			if (stringEquals(buf, keyOffset, keyLength, key))
+				return decode(buf, cc);
+
+			buf.position(buf.position() + getObjectLength(buf, cc));
+		}
+
+		return null;
+	}
+
+	/**
+	 * compare encoded utf-8 bytes with string, without decoding if all bytes
+	 * are ascii
+	 */
+	static boolean stringEquals(ByteBuffer bb, int offset, int length, String s) {
+		// utf-8 length is never less than char count
+		if (length < s.length())
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			byte b = bb.get(offset + i);
+			if (b < 0) {
+				ByteBuffer buf = bb.duplicate();
+				buf.position(offset);
+				buf.limit(offset + length);
+				return utf8.decode(buf).toString().equals(s);
+			}
+
+			if (i >= s.length() || b != s.charAt(i))
+				return false;
+		}
+
+		return length == s.length();
+	}
+
 	public static void encodeArray(ByteBuffer bb, List<?> array) {
 		encodeArray(bb, array, null);
 	}
@@ -455,6 +455,71 @@ public class EncodingRuleTest {
 		assertEquals("navi", decodedServers[1]);
 	}
 
+	@Test
+	public void decodeLazyMap() {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("name", "nchovy");
+		m.put("employee", 8);
+		m.put("\uc774\ub984", "kraken");
+		m.put("null", null);
+
+		ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(m) + EncodingRule.lengthOfBoolean(true));
+		EncodingRule.encode(bb, m);
+		EncodingRule.encodeBoolean(bb, true);
+		bb.flip();
+
+		Map<String, Object> dm = EncodingRule.decodeLazyMap(bb);
+		assertTrue(EncodingRule.decodeBoolean(bb));
+
+		assertEquals(4, dm.size());
+		assertEquals("nchovy", dm.get("name"));
+		assertEquals(8, dm.get("employee"));
+		assertEquals("kraken", dm.get("\uc774\ub984"));
+		assertTrue(dm.containsKey("null"));
+		assertNull(dm.get("nam"));
+		assertFalse(dm.containsKey("names"));
+		assertEquals(m, dm);
+		assertEquals(m, new HashMap<String, Object>(dm));
+
+		// modification is not written to buffer
+		dm.put("_id", 1);
+		dm.put("employee", 9);
+		dm.remove("name");
+		assertEquals(4, dm.size());
+		assertEquals(9, dm.get("employee"));
+		assertFalse(dm.containsKey("name"));
+		assertEquals(1, dm.get("_id"));
+		assertEquals(8, EncodingRule.decodeMapValue((ByteBuffer) bb.flip(), "employee"));
+
+		Map<String, Object> expected = new HashMap<String, Object>(m);
+		expected.put("_id", 1);
+		expected.put("employee", 9);
+		expected.remove("name");
+		assertEquals(expected, dm);
+
+		dm.clear();
+		assertTrue(dm.isEmpty());
+		assertNull(dm.get("employee"));
+	}
+
+	@Test
+	public void decodeMapValue() {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("name", "nchovy");
+		m.put("servers", new Object[] { "soul", "navi" });
+		m.put("since", new Date(1234567890000L));
+
+		ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(m));
+		EncodingRule.encode(bb, m);
+		bb.flip();
+
+		assertEquals("nchovy", EncodingRule.decodeMapValue(bb, "name"));
+		assertEquals(new Date(1234567890000L), EncodingRule.decodeMapValue(bb, "since"));
+		assertEquals(2, ((Object[]) EncodingRule.decodeMapValue(bb, "servers")).length);
+		assertNull(EncodingRule.decodeMapValue(bb, "server"));
+		assertEquals(0, bb.position());
+	}
+
 	@Test
 	public void encodeDecodeBlob() {
 		byte[] blob = new byte[] { 0x42, (byte) 0xDE, (byte) 0xAD, (byte) 0xBE, (byte) 0xEF };
@@ -15,6 +15,8 @@
  */
 package org.krakenapps.confdb;
 
+import java.util.List;
+
 public interface ConfigCollection {
 	String getName();
 
@@ -51,4 +53,18 @@ public interface ConfigCollection {
 	Config remove(Config c, boolean checkConflict, String committer, String log);
 
 	Config remove(ConfigTransaction xact, Config c, boolean ignoreConflict);
+
+	/**
+	 * declare secondary index of field. index is maintained on commit, and
+	 * used by find() and count() for field, in, range and their conjunction
+	 * predicates. type of existing index is replaced.
+	 * 
+	 * @param field
+	 *            the field name or path, e.g. 'owner/loginName'
+	 */
+	void ensureIndex(String field, IndexType type);
+
+	void dropIndex(String field);
+
+	List<IndexEntry> getIndexes();
 }
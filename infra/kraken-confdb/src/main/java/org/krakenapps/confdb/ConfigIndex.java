@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 Future Systems, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.confdb;
+
+import java.util.Set;
+
+/**
+ * Secondary indexes of collection snapshot. Lookup results are candidate doc
+ * ids, and returned sets should not be modified.
+ */
+public interface ConfigIndex {
+	/**
+	 * @param field
+	 *            underscore field path, e.g. 'owner/login_name'
+	 * @return ids of docs which have the field value (null for missing
+	 *         field), or null if the field is not indexed
+	 */
+	Set<Integer> find(String field, Object value);
+
+	/**
+	 * @param from
+	 *            inclusive lower bound, or null for no bound
+	 * @param to
+	 *            inclusive upper bound, or null for no bound
+	 * @return ids of docs which have the field value in range, or null if the
+	 *         field does not have ordered index
+	 */
+	Set<Integer> find(String field, Object from, Object to);
+}
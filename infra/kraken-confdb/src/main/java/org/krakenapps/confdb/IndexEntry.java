@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Future Systems, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.confdb;
+
+/**
+ * secondary index entry of manifest
+ */
+public class IndexEntry {
+	private int colId;
+
+	// underscore field path, e.g. 'owner/login_name'
+	private String field;
+
+	private IndexType type;
+
+	public IndexEntry() {
+	}
+
+	public IndexEntry(int colId, String field, IndexType type) {
+		this.colId = colId;
+		this.field = field;
+		this.type = type;
+	}
+
+	public int getColId() {
+		return colId;
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	public IndexType getType() {
+		return type;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + colId;
+		result = prime * result + ((field == null) ? 0 : field.hashCode());
+		result = prime * result + ((type == null) ? 0 : type.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		IndexEntry other = (IndexEntry) obj;
+		if (colId != other.colId)
+			return false;
+		if (field == null) {
+			if (other.field != null)
+				return false;
+		} else if (!field.equals(other.field))
+			return false;
+		if (type != other.type)
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "col=" + colId + ", field=" + field + ", type=" + type;
+	}
+}
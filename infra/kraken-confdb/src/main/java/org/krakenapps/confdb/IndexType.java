@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Future Systems, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.confdb;
+
+/**
+ * Secondary index type of collection. Hash index answers equality lookups,
+ * and ordered index answers range lookups also.
+ */
+public enum IndexType {
+	Hash(1), Ordered(2);
+
+	private int code;
+
+	private IndexType(int code) {
+		this.code = code;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public static IndexType parse(int code) {
+		return values()[code - 1];
+	}
+}
@@ -35,6 +35,8 @@ public interface Manifest {
 
 	boolean containsDoc(String colName, int docId, long rev);
 
+	List<IndexEntry> getIndexEntries(String colName);
+
 	void add(CollectionEntry e);
 
 	void remove(CollectionEntry e);
@@ -43,6 +45,10 @@ public interface Manifest {
 
 	void remove(ConfigEntry e);
 
+	void add(IndexEntry e);
+
+	void remove(IndexEntry e);
+
 	byte[] serialize();
 	
 	String toString();
@@ -18,8 +18,10 @@ package org.krakenapps.confdb;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.krakenapps.api.PrimitiveConverter;
 
@@ -44,6 +46,18 @@ public class Predicates {
 		return new KeyContains(field, values);
 	}
 
+	/**
+	 * match if field value is comparable with bounds, and in range
+	 * 
+	 * @param from
+	 *            inclusive lower bound, or null for no bound
+	 * @param to
+	 *            inclusive upper bound, or null for no bound
+	 */
+	public static Predicate range(String field, Object from, Object to) {
+		return new KeyRange(field, from, to);
+	}
+
 	public static Predicate and(Predicate... pred) {
 		return new Conjunction(pred);
 	}
@@ -56,6 +70,69 @@ public class Predicates {
 		return new Not(pred);
 	}
 
+	/**
+	 * Find candidate docs using secondary indexes of collection. Candidates
+	 * should be evaluated by the predicate again.
+	 * 
+	 * @return candidate doc ids, or null if indexes cannot answer the
+	 *         predicate
+	 */
+	public static Set<Integer> lookup(Predicate pred, ConfigIndex index) {
+		if (pred instanceof KeyMatch) {
+			// terms without index are evaluated later
+			Set<Integer> result = null;
+			for (Map.Entry<String, Object> term : ((KeyMatch) pred).terms.entrySet()) {
+				String field = PrimitiveConverter.toUnderscoreName(term.getKey());
+				result = intersect(result, index.find(field, term.getValue()));
+			}
+			return result;
+		} else if (pred instanceof KeyContains) {
+			KeyContains p = (KeyContains) pred;
+			Set<Integer> result = new HashSet<Integer>();
+			for (Object value : p.values) {
+				Set<Integer> ids = index.find(p.field, value);
+				if (ids == null)
+					return null;
+				result.addAll(ids);
+			}
+			return result;
+		} else if (pred instanceof KeyRange) {
+			KeyRange p = (KeyRange) pred;
+			return index.find(p.field, p.from, p.to);
+		} else if (pred instanceof Conjunction) {
+			Set<Integer> result = null;
+			for (Predicate p : ((Conjunction) pred).pred)
+				result = intersect(result, lookup(p, index));
+			return result;
+		} else if (pred instanceof Disjunction) {
+			Set<Integer> result = new HashSet<Integer>();
+			for (Predicate p : ((Disjunction) pred).pred) {
+				Set<Integer> ids = lookup(p, index);
+				if (ids == null)
+					return null;
+				result.addAll(ids);
+			}
+			return result;
+		}
+
+		return null;
+	}
+
+	private static Set<Integer> intersect(Set<Integer> s1, Set<Integer> s2) {
+		if (s1 == null)
+			return s2;
+		if (s2 == null)
+			return s1;
+
+		Set<Integer> small = s1.size() < s2.size() ? s1 : s2;
+		Set<Integer> large = small == s1 ? s2 : s1;
+		Set<Integer> result = new HashSet<Integer>();
+		for (Integer id : small)
+			if (large.contains(id))
+				result.add(id);
+		return result;
+	}
+
 	static Object getValue(Config c, String[] keys) {
 		return getValue(c, keys, false);
 	}
@@ -163,11 +240,13 @@ public class Predicates {
 	}
 
 	private static class KeyContains implements Predicate {
+		private String field;
 		private String[] keys;
 		private Collection<? extends Object> values;
 
 		public KeyContains(String key, Collection<? extends Object> values) {
-			this.keys = PrimitiveConverter.toUnderscoreName(key).split("/");
+			this.field = PrimitiveConverter.toUnderscoreName(key);
+			this.keys = field.split("/");
 			this.values = values;
 		}
 
@@ -178,6 +257,40 @@ public class Predicates {
 		}
 	}
 
+	private static class KeyRange implements Predicate {
+		private String field;
+		private String[] keys;
+		private Object from;
+		private Object to;
+
+		public KeyRange(String key, Object from, Object to) {
+			if (from == null && to == null)
+				throw new IllegalArgumentException("range should have lower or upper bound");
+
+			this.field = PrimitiveConverter.toUnderscoreName(key);
+			this.keys = field.split("/");
+			this.from = from;
+			this.to = to;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public boolean eval(Config c) {
+			Object v = getValue(c, keys);
+			if (v == null)
+				return false;
+
+			// values of other type are not comparable
+			if (from != null && (v.getClass() != from.getClass() || ((Comparable<Object>) from).compareTo(v) > 0))
+				return false;
+
+			if (to != null && (v.getClass() != to.getClass() || ((Comparable<Object>) to).compareTo(v) < 0))
+				return false;
+
+			return true;
+		}
+	}
+
 	private static class Conjunction implements Predicate {
 		private Predicate[] pred;
 
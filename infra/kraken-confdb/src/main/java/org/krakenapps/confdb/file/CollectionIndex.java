@@ -0,0 +1,388 @@
+/*
+ * Copyright 2013 Future Systems, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.confdb.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.confdb.ConfigIndex;
+import org.krakenapps.confdb.IndexEntry;
+import org.krakenapps.confdb.IndexType;
+
+/**
+ * In-memory secondary indexes of a collection at specific manifest. Index is
+ * not modified after publish, and next manifest's index shares the field
+ * indexes whose values are not changed. Changed field index shares its
+ * structures with previous index, and copies only the maps and posting sets
+ * which are written.
+ */
+class CollectionIndex implements ConfigIndex {
+	private int manifestId;
+	private List<IndexEntry> entries;
+
+	// underscore field path to field index
+	private Map<String, FieldIndex> fields;
+
+	private CollectionIndex(int manifestId, List<IndexEntry> entries) {
+		this.manifestId = manifestId;
+		this.entries = entries;
+		this.fields = new HashMap<String, FieldIndex>();
+
+		for (IndexEntry e : entries)
+			fields.put(e.getField(), new FieldIndex(e.getField(), e.getType()));
+	}
+
+	private CollectionIndex(int manifestId, List<IndexEntry> entries, Map<String, FieldIndex> fields) {
+		this.manifestId = manifestId;
+		this.entries = entries;
+		this.fields = fields;
+	}
+
+	public int getManifestId() {
+		return manifestId;
+	}
+
+	public List<IndexEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * build index by reading all documents of the snapshot
+	 */
+	public static CollectionIndex build(int manifestId, List<IndexEntry> entries, RevLogReader reader, List<RevLog> snapshot)
+			throws IOException {
+		CollectionIndex index = new CollectionIndex(manifestId, entries);
+		for (RevLog log : snapshot) {
+			byte[] doc = reader.readDoc(log.getDocOffset(), log.getDocLength());
+			for (FieldIndex f : index.fields.values())
+				f.put(log.getDocId(), extract(doc, f.path));
+		}
+
+		for (FieldIndex f : index.fields.values())
+			f.freeze();
+
+		return index;
+	}
+
+	/**
+	 * @param changed
+	 *            doc id to encoded document, or null for removed document
+	 * @return new index for the manifest, this index is not modified
+	 */
+	public CollectionIndex derive(int manifestId, Map<Integer, byte[]> changed) {
+		if (changed.isEmpty())
+			return new CollectionIndex(manifestId, entries, fields);
+
+		Map<String, FieldIndex> m = new HashMap<String, FieldIndex>();
+		for (FieldIndex index : fields.values()) {
+			FieldIndex copy = null;
+			for (Map.Entry<Integer, byte[]> e : changed.entrySet()) {
+				int docId = e.getKey();
+				boolean exists = e.getValue() != null;
+				Object value = exists ? extract(e.getValue(), index.path) : null;
+				if (!index.isChanged(docId, exists, value))
+					continue;
+
+				if (copy == null)
+					copy = index.duplicate();
+
+				copy.remove(docId);
+				if (exists)
+					copy.put(docId, value);
+			}
+
+			if (copy != null)
+				copy.freeze();
+			m.put(index.field, copy != null ? copy : index);
+		}
+
+		return new CollectionIndex(manifestId, entries, m);
+	}
+
+	@Override
+	public Set<Integer> find(String field, Object value) {
+		FieldIndex index = fields.get(field);
+		if (index == null)
+			return null;
+
+		return index.find(value);
+	}
+
+	@Override
+	public Set<Integer> find(String field, Object from, Object to) {
+		FieldIndex index = fields.get(field);
+		if (index == null || index.type != IndexType.Ordered)
+			return null;
+
+		return index.find(from, to);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object extract(byte[] doc, String[] path) {
+		// non-map document never matches field predicates
+		if (doc == null || doc.length == 0 || doc[0] != EncodingRule.MAP_TYPE)
+			return null;
+
+		Object value = EncodingRule.decodeMapValue(ByteBuffer.wrap(doc), path[0]);
+		for (int i = 1; i < path.length; i++) {
+			if (!(value instanceof Map))
+				return null;
+			value = ((Map<String, Object>) value).get(path[i]);
+		}
+		return value;
+	}
+
+	private static class FieldIndex {
+		private String field;
+		private String[] path;
+		private IndexType type;
+
+		// doc id to indexed value, for removal
+		private Map<Integer, Object> values;
+
+		// missing or null value
+		private Set<Integer> nulls;
+
+		private Map<Object, Set<Integer>> hash;
+
+		// values of different classes are not comparable
+		private Map<Class<?>, TreeMap<Object, Set<Integer>>> trees;
+
+		// structures which are copied by this index and can be modified,
+		// others can be shared with previous index
+		private boolean ownValues;
+		private boolean ownNulls;
+		private boolean ownHash;
+		private boolean ownTrees;
+		private Set<Object> owned;
+
+		public FieldIndex(String field, IndexType type) {
+			this.field = field;
+			this.path = field.split("/");
+			this.type = type;
+			this.values = new HashMap<Integer, Object>();
+			this.nulls = new HashSet<Integer>();
+			this.hash = new HashMap<Object, Set<Integer>>();
+			this.trees = new HashMap<Class<?>, TreeMap<Object, Set<Integer>>>();
+			ownValues = ownNulls = ownHash = ownTrees = true;
+			this.owned = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		}
+
+		private FieldIndex(FieldIndex other) {
+			this.field = other.field;
+			this.path = other.path;
+			this.type = other.type;
+			this.values = other.values;
+			this.nulls = other.nulls;
+			this.hash = other.hash;
+			this.trees = other.trees;
+			this.owned = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		}
+
+		/**
+		 * @return index sharing all structures, which are copied at first
+		 *         write
+		 */
+		public FieldIndex duplicate() {
+			return new FieldIndex(this);
+		}
+
+		/**
+		 * drop copy bookkeeping before publish, published index is not
+		 * modified
+		 */
+		public void freeze() {
+			ownValues = ownNulls = ownHash = ownTrees = false;
+			owned.clear();
+		}
+
+		/**
+		 * @return true if put or remove of the document changes this index
+		 */
+		public boolean isChanged(int docId, boolean exists, Object value) {
+			if (!values.containsKey(docId))
+				return exists;
+
+			if (!exists)
+				return true;
+
+			Object old = values.get(docId);
+			return old == null ? value != null : !old.equals(value);
+		}
+
+		public void put(int docId, Object value) {
+			values().put(docId, value);
+			if (value == null) {
+				nulls().add(docId);
+			} else if (type == IndexType.Hash) {
+				ensurePostings(hash(), value).add(docId);
+			} else if (value instanceof Comparable) {
+				ensurePostings(tree(value.getClass(), true), value).add(docId);
+			}
+		}
+
+		public void remove(int docId) {
+			if (!values.containsKey(docId))
+				return;
+
+			Object value = values().remove(docId);
+			if (value == null) {
+				nulls().remove(docId);
+			} else if (type == IndexType.Hash) {
+				removePosting(hash(), value, docId);
+			} else if (value instanceof Comparable) {
+				TreeMap<Object, Set<Integer>> tree = tree(value.getClass(), false);
+				removePosting(tree, value, docId);
+				if (tree.isEmpty())
+					trees.remove(value.getClass());
+			}
+		}
+
+		private Map<Integer, Object> values() {
+			if (!ownValues) {
+				values = new HashMap<Integer, Object>(values);
+				ownValues = true;
+			}
+			return values;
+		}
+
+		private Set<Integer> nulls() {
+			if (!ownNulls) {
+				nulls = new HashSet<Integer>(nulls);
+				ownNulls = true;
+			}
+			return nulls;
+		}
+
+		private Map<Object, Set<Integer>> hash() {
+			if (!ownHash) {
+				hash = new HashMap<Object, Set<Integer>>(hash);
+				ownHash = true;
+			}
+			return hash;
+		}
+
+		/**
+		 * @return writable tree of the value class, trees of other classes
+		 *         are still shared
+		 */
+		private TreeMap<Object, Set<Integer>> tree(Class<?> c, boolean create) {
+			if (!ownTrees) {
+				trees = new HashMap<Class<?>, TreeMap<Object, Set<Integer>>>(trees);
+				ownTrees = true;
+			}
+
+			TreeMap<Object, Set<Integer>> tree = trees.get(c);
+			if (tree == null) {
+				if (!create)
+					return null;
+				tree = new TreeMap<Object, Set<Integer>>();
+				trees.put(c, tree);
+				owned.add(tree);
+			} else if (!owned.contains(tree)) {
+				tree = new TreeMap<Object, Set<Integer>>(tree);
+				trees.put(c, tree);
+				owned.add(tree);
+			}
+			return tree;
+		}
+
+		public Set<Integer> find(Object value) {
+			if (value == null)
+				return Collections.unmodifiableSet(nulls);
+
+			Set<Integer> postings = null;
+			if (type == IndexType.Hash) {
+				postings = hash.get(value);
+			} else {
+				// non-comparable value is not indexed
+				if (!(value instanceof Comparable))
+					return null;
+
+				TreeMap<Object, Set<Integer>> tree = trees.get(value.getClass());
+				if (tree != null)
+					postings = tree.get(value);
+			}
+
+			if (postings == null)
+				return Collections.emptySet();
+			return Collections.unmodifiableSet(postings);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Set<Integer> find(Object from, Object to) {
+			if (from != null && to != null && from.getClass() != to.getClass())
+				return Collections.emptySet();
+
+			Object bound = from != null ? from : to;
+			if (!(bound instanceof Comparable))
+				return null;
+
+			TreeMap<Object, Set<Integer>> tree = trees.get(bound.getClass());
+			if (tree == null)
+				return Collections.emptySet();
+
+			NavigableMap<Object, Set<Integer>> range = null;
+			if (from == null)
+				range = tree.headMap(to, true);
+			else if (to == null)
+				range = tree.tailMap(from, true);
+			else if (((Comparable<Object>) from).compareTo(to) > 0)
+				return Collections.emptySet();
+			else
+				range = tree.subMap(from, true, to, true);
+
+			Set<Integer> result = new HashSet<Integer>();
+			for (Set<Integer> postings : range.values())
+				result.addAll(postings);
+			return result;
+		}
+
+		private Set<Integer> ensurePostings(Map<Object, Set<Integer>> m, Object value) {
+			Set<Integer> postings = m.get(value);
+			if (postings == null) {
+				postings = new HashSet<Integer>();
+				m.put(value, postings);
+				owned.add(postings);
+			} else if (!owned.contains(postings)) {
+				// copy on write, previous index may share it
+				postings = new HashSet<Integer>(postings);
+				m.put(value, postings);
+				owned.add(postings);
+			}
+			return postings;
+		}
+
+		private void removePosting(Map<Object, Set<Integer>> m, Object value, int docId) {
+			Set<Integer> postings = ensurePostings(m, value);
+			postings.remove(docId);
+			if (postings.isEmpty()) {
+				m.remove(value);
+				owned.remove(postings);
+			}
+		}
+	}
+}
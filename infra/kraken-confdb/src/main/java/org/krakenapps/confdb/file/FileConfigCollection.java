@@ -21,6 +21,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+
+import org.krakenapps.api.PrimitiveConverter;
 import org.krakenapps.codec.EncodingRule;
 import org.krakenapps.confdb.CollectionEntry;
 import org.krakenapps.confdb.CommitOp;
@@ -29,8 +32,11 @@ import org.krakenapps.confdb.ConfigCollection;
 import org.krakenapps.confdb.ConfigEntry;
 import org.krakenapps.confdb.ConfigIterator;
 import org.krakenapps.confdb.ConfigTransaction;
+import org.krakenapps.confdb.IndexEntry;
+import org.krakenapps.confdb.IndexType;
 import org.krakenapps.confdb.Manifest;
 import org.krakenapps.confdb.Predicate;
+import org.krakenapps.confdb.Predicates;
 import org.krakenapps.confdb.RollbackException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -147,9 +153,60 @@ public class FileConfigCollection implements ConfigCollection {
 			logger.debug("kraken confdb: db [{}], col [{}], snapshot size [{}]", new Object[] { db.getName(), col.getName(),
 					snapshot.size() });
 
+		if (pred != null)
+			snapshot = selectByIndex(manifest, reader, snapshot, pred);
+
 		return new FileConfigIterator(db, manifest, this, reader, snapshot, pred);
 	}
 
+	/**
+	 * Narrow snapshot to index lookup candidates. Iterator evaluates predicate
+	 * again, so unindexed terms are just skipped here.
+	 */
+	private List<RevLog> selectByIndex(Manifest manifest, RevLogReader reader, List<RevLog> snapshot, Predicate pred) {
+		CollectionIndex index = getIndex(manifest, reader, snapshot);
+		if (index == null)
+			return snapshot;
+
+		Set<Integer> ids = Predicates.lookup(pred, index);
+		if (ids == null)
+			return snapshot;
+
+		List<RevLog> selected = new ArrayList<RevLog>(ids.size());
+		for (RevLog log : snapshot)
+			if (ids.contains(log.getDocId()))
+				selected.add(log);
+
+		if (logger.isDebugEnabled())
+			logger.debug("kraken confdb: db [{}], col [{}], index selected [{}] of [{}] docs",
+					new Object[] { db.getName(), col.getName(), selected.size(), snapshot.size() });
+
+		return selected;
+	}
+
+	private CollectionIndex getIndex(Manifest manifest, RevLogReader reader, List<RevLog> snapshot) {
+		List<IndexEntry> entries = manifest.getIndexEntries(col.getName());
+		if (entries.isEmpty())
+			return null;
+
+		CollectionIndex index = db.getIndexCache(col.getId());
+		if (index != null && index.getManifestId() == manifest.getId() && index.getEntries().equals(entries))
+			return index;
+
+		// build index only for head revision, old revision scans snapshot
+		if (changeset != null)
+			return null;
+
+		try {
+			index = CollectionIndex.build(manifest.getId(), entries, reader, snapshot);
+			db.setIndexCache(col.getId(), index);
+			return index;
+		} catch (Throwable t) {
+			logger.warn("kraken confdb: cannot build index, db [" + db.getName() + "], col [" + col.getName() + "]", t);
+			return null;
+		}
+	}
+
 	private List<RevLog> getSnapshot(Manifest manifest, RevLogReader reader) throws IOException {
 		List<RevLog> snapshot = db.getSnapshotCache(col.getId(), manifest.getId());
 		if (snapshot != null) {
@@ -186,6 +243,58 @@ public class FileConfigCollection implements ConfigCollection {
 		return snapshot;
 	}
 
+	@Override
+	public void ensureIndex(String field, IndexType type) {
+		IndexEntry entry = new IndexEntry(col.getId(), PrimitiveConverter.toUnderscoreName(field), type);
+		ConfigTransaction xact = db.beginTransaction();
+		try {
+			if (xact.getManifest().getIndexEntries(col.getName()).contains(entry)) {
+				xact.rollback();
+				return;
+			}
+
+			// replace index of other type
+			dropIndex(xact, entry.getField());
+			xact.getManifest().add(entry);
+			xact.commit(null, "ensure index " + entry.getField() + " of " + col.getName());
+		} catch (Throwable e) {
+			xact.rollback();
+			throw new RollbackException(e);
+		}
+	}
+
+	@Override
+	public void dropIndex(String field) {
+		ConfigTransaction xact = db.beginTransaction();
+		try {
+			if (!dropIndex(xact, PrimitiveConverter.toUnderscoreName(field))) {
+				xact.rollback();
+				return;
+			}
+
+			xact.commit(null, "drop index " + field + " of " + col.getName());
+		} catch (Throwable e) {
+			xact.rollback();
+			throw new RollbackException(e);
+		}
+	}
+
+	private boolean dropIndex(ConfigTransaction xact, String field) {
+		Manifest manifest = xact.getManifest();
+		for (IndexEntry e : manifest.getIndexEntries(col.getName())) {
+			if (e.getField().equals(field)) {
+				manifest.remove(e);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public List<IndexEntry> getIndexes() {
+		return db.getManifest(changeset).getIndexEntries(col.getName());
+	}
+
 	@Override
 	public Config add(Object doc) {
 		return add(doc, null, null);
@@ -218,6 +327,7 @@ public class FileConfigCollection implements ConfigCollection {
 
 			// write db changelog
 			xact.log(CommitOp.CreateDoc, col.getName(), docId, revlog.getRev(), index);
+			((FileConfigTransaction) xact).logDoc(col.getId(), docId, revlog.getDoc());
 			return new FileConfig(db, this, docId, revlog.getRev(), revlog.getPrevRev(), doc);
 		} catch (IOException e) {
 			throw new IllegalStateException("cannot add object", e);
@@ -281,6 +391,7 @@ public class FileConfigCollection implements ConfigCollection {
 			int id = writer.write(revlog);
 			int index = writer.count() - 1;
 			xact.log(CommitOp.UpdateDoc, col.getName(), id, revlog.getRev(), index);
+			((FileConfigTransaction) xact).logDoc(col.getId(), id, revlog.getDoc());
 
 			if (logger.isDebugEnabled())
 				logger.debug("kraken confdb: updated db [{}] col [{}] doc [{}]",
@@ -331,6 +442,7 @@ public class FileConfigCollection implements ConfigCollection {
 			int id = writer.write(revlog);
 			int index = writer.count() - 1;
 			xact.log(CommitOp.DeleteDoc, col.getName(), id, revlog.getRev(), index);
+			((FileConfigTransaction) xact).logDoc(col.getId(), id, null);
 			return new FileConfig(db, this, id, revlog.getRev(), revlog.getPrevRev(), null);
 		} catch (IOException e) {
 			throw new IllegalStateException("cannot remove object", e);
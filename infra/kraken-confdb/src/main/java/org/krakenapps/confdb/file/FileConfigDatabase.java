@@ -27,6 +27,7 @@ import java.nio.channels.FileLock;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -107,6 +108,9 @@ public class FileConfigDatabase implements ConfigDatabase {
 	// (collection id, manifest id) to snapshot cache
 	private WeakReference<ConcurrentMap<SnapshotKey, List<RevLog>>> snapshotCache;
 
+	// collection id to secondary index of latest manifest
+	private ConcurrentMap<Integer, CollectionIndex> indexCache;
+
 	// config cache
 	private FileConfigCache configCache;
 
@@ -127,6 +131,7 @@ public class FileConfigDatabase implements ConfigDatabase {
 				new ConcurrentHashMap<Integer, FileManifest>());
 		this.snapshotCache = new WeakReference<ConcurrentMap<SnapshotKey, List<RevLog>>>(
 				new ConcurrentHashMap<SnapshotKey, List<RevLog>>());
+		this.indexCache = new ConcurrentHashMap<Integer, CollectionIndex>();
 		this.configCache = new FileConfigCache(this);
 
 		changeLogFile = new File(dbDir, "changeset.log");
@@ -910,9 +915,50 @@ public class FileConfigDatabase implements ConfigDatabase {
 		snapshotMap.put(new SnapshotKey(colId, manifestId), snapshot);
 	}
 
+	CollectionIndex getIndexCache(int colId) {
+		return indexCache.get(colId);
+	}
+
+	void setIndexCache(int colId, CollectionIndex index) {
+		indexCache.put(colId, index);
+	}
+
+	/**
+	 * derive cached indexes for committed manifest. index is dropped if it is
+	 * not built from base manifest, then rebuilt at next lookup.
+	 * 
+	 * @param docs
+	 *            collection id to (doc id to encoded doc or null if removed)
+	 */
+	void updateIndexCache(int baseManifestId, Manifest manifest, Map<Integer, Map<Integer, byte[]>> docs) {
+		for (Map.Entry<Integer, CollectionIndex> e : indexCache.entrySet()) {
+			int colId = e.getKey();
+			CollectionIndex index = e.getValue();
+			String colName = ((FileManifest) manifest).getCollectionName(colId);
+
+			if (colName == null || index.getManifestId() != baseManifestId
+					|| !index.getEntries().equals(manifest.getIndexEntries(colName))) {
+				indexCache.remove(colId);
+				continue;
+			}
+
+			try {
+				Map<Integer, byte[]> changed = docs.get(colId);
+				if (changed == null)
+					changed = new HashMap<Integer, byte[]>();
+
+				indexCache.put(colId, index.derive(manifest.getId(), changed));
+			} catch (Throwable t) {
+				logger.warn("kraken confdb: cannot update index of db [" + dbName + "], col [" + colName + "]", t);
+				indexCache.remove(colId);
+			}
+		}
+	}
+
 	private void clearAllCaches() {
 		manifestCache.clear();
 		snapshotCache.clear();
+		indexCache.clear();
 		configCache = new FileConfigCache(this);
 	}
 
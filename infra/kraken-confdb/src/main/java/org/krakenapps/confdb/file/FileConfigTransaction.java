@@ -35,6 +35,9 @@ public class FileConfigTransaction implements ConfigTransaction {
 
 	private Manifest manifest;
 
+	// manifest id which this transaction started from
+	private int baseManifestId;
+
 	private List<ConfigChange> changeSet;
 
 	private File changeLogFile;
@@ -45,6 +48,9 @@ public class FileConfigTransaction implements ConfigTransaction {
 	private Map<File, RevLogWriter> writers;
 	private ConfigTransactionCache cache;
 
+	// collection id to (doc id to encoded doc or null if removed)
+	private Map<Integer, Map<Integer, byte[]>> docs;
+
 	public FileConfigTransaction(FileConfigDatabase db) {
 		this.db = db;
 		this.cache = new FileConfigTransactionCache();
@@ -52,6 +58,7 @@ public class FileConfigTransaction implements ConfigTransaction {
 
 		// TODO: apply changeset rev
 		manifest = ((FileManifest) db.getManifest(null)).duplicate();
+		baseManifestId = manifest.getId();
 		changeSet = new ArrayList<ConfigChange>();
 
 		changeLogFile = new File(dbDir, "changeset.log");
@@ -60,6 +67,7 @@ public class FileConfigTransaction implements ConfigTransaction {
 		manifestDatFile = new File(dbDir, "manifest.dat");
 
 		writers = new HashMap<File, RevLogWriter>();
+		docs = new HashMap<Integer, Map<Integer, byte[]>>();
 	}
 
 	public Map<File, RevLogWriter> getWriters() {
@@ -112,11 +120,27 @@ public class FileConfigTransaction implements ConfigTransaction {
 		changeSet.add(new ConfigChange(op, col.getName(), col.getId(), docId));
 	}
 
+	/**
+	 * log written document for index maintenance
+	 * 
+	 * @param doc
+	 *            encoded document, or null if removed
+	 */
+	public void logDoc(int colId, int docId, byte[] doc) {
+		Map<Integer, byte[]> m = docs.get(colId);
+		if (m == null) {
+			m = new HashMap<Integer, byte[]>();
+			docs.put(colId, m);
+		}
+		m.put(docId, doc);
+	}
+
 	@Override
 	public void commit(String committer, String log) {
 		try {
 			Manifest manifest = FileManifest.writeManifest(this.manifest, manifestLogFile, manifestDatFile);
 			ChangeSetWriter.log(changeLogFile, changeDatFile, changeSet, manifest.getId(), committer, log);
+			db.updateIndexCache(baseManifestId, manifest, docs);
 			// do not move this code to finally block. rollback should be called
 			// after exception throwing
 			closeWriters();
@@ -30,6 +30,7 @@ import org.krakenapps.codec.EncodingRule;
 import org.krakenapps.confdb.CollectionEntry;
 import org.krakenapps.confdb.CommitOp;
 import org.krakenapps.confdb.ConfigEntry;
+import org.krakenapps.confdb.IndexEntry;
 import org.krakenapps.confdb.Manifest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +45,9 @@ class FileManifest implements Manifest {
 	// col id -> (doc id -> entry) map
 	private Map<Integer, Map<Integer, ConfigEntry>> configMap = new TreeMap<Integer, Map<Integer, ConfigEntry>>();
 
+	// col id -> (field -> secondary index) map
+	private Map<Integer, Map<String, IndexEntry>> indexMap = new TreeMap<Integer, Map<String, IndexEntry>>();
+
 	public FileManifest duplicate() {
 		FileManifest dup = new FileManifest();
 
@@ -57,6 +61,9 @@ class FileManifest implements Manifest {
 			dup.configMap.put(key, new TreeMap<Integer, ConfigEntry>(value));
 		}
 
+		for (Integer key : indexMap.keySet())
+			dup.indexMap.put(key, new TreeMap<String, IndexEntry>(indexMap.get(key)));
+
 		return dup;
 	}
 
@@ -152,6 +159,7 @@ class FileManifest implements Manifest {
 	public void remove(CollectionEntry e) {
 		colMap.remove(e.getId());
 		configMap.remove(e.getId());
+		indexMap.remove(e.getId());
 	}
 
 	@Override
@@ -175,6 +183,41 @@ class FileManifest implements Manifest {
 		m.remove(e.getDocId());
 	}
 
+	@Override
+	public void add(IndexEntry e) {
+		if (!colMap.containsKey(e.getColId()))
+			throw new IllegalStateException("col not found: " + e.getColId());
+
+		Map<String, IndexEntry> m = indexMap.get(e.getColId());
+		if (m == null) {
+			m = new TreeMap<String, IndexEntry>();
+			indexMap.put(e.getColId(), m);
+		}
+
+		m.put(e.getField(), e);
+	}
+
+	@Override
+	public void remove(IndexEntry e) {
+		Map<String, IndexEntry> m = indexMap.get(e.getColId());
+		if (m == null)
+			return;
+
+		m.remove(e.getField());
+		if (m.isEmpty())
+			indexMap.remove(e.getColId());
+	}
+
+	@Override
+	public List<IndexEntry> getIndexEntries(String colName) {
+		int colId = getCollectionId(colName);
+		Map<String, IndexEntry> m = indexMap.get(colId);
+		if (m == null)
+			return new ArrayList<IndexEntry>();
+
+		return new ArrayList<IndexEntry>(m.values());
+	}
+
 	@Override
 	public int getCollectionId(String name) {
 		CollectionEntry e = getCollectionEntry(name);
@@ -333,6 +376,10 @@ class FileManifest implements Manifest {
 		if (colMap != null) {
 			for (CollectionEntry c : colMap.values()) {
 				manifest += c.toString() + ", count=" + configMap.get(c.getId()).values().size() + "\n";
+
+				if (indexMap.containsKey(c.getId()))
+					for (IndexEntry e : indexMap.get(c.getId()).values())
+						manifest += "  index " + e.getField() + ", type=" + e.getType() + "\n";
 			}
 		}
 
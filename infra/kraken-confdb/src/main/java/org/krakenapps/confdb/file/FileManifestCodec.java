@@ -17,12 +17,16 @@ package org.krakenapps.confdb.file;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.krakenapps.codec.CustomCodec;
 import org.krakenapps.codec.UnsupportedTypeException;
 import org.krakenapps.confdb.CollectionEntry;
 import org.krakenapps.confdb.ConfigEntry;
+import org.krakenapps.confdb.IndexEntry;
+import org.krakenapps.confdb.IndexType;
 
 public class FileManifestCodec implements CustomCodec {
 
@@ -59,10 +63,32 @@ public class FileManifestCodec implements CustomCodec {
 					bb.putInt(config.getIndex());
 				}
 			}
+
+			// index section is appended only if exists, and old version
+			// ignores it
+			List<IndexEntry> indexes = getIndexEntries(manifest);
+			if (indexes.isEmpty())
+				return;
+
+			bb.putShort((short) indexes.size());
+			for (IndexEntry index : indexes) {
+				byte[] fieldBytes = index.getField().getBytes("utf-8");
+				bb.putShort((short) index.getColId());
+				bb.put((byte) index.getType().getCode());
+				bb.putShort((short) fieldBytes.length);
+				bb.put(fieldBytes);
+			}
 		} catch (UnsupportedEncodingException e) {
 		}
 	}
 
+	private List<IndexEntry> getIndexEntries(FileManifest manifest) {
+		List<IndexEntry> indexes = new ArrayList<IndexEntry>();
+		for (String colName : manifest.getCollectionNames())
+			indexes.addAll(manifest.getIndexEntries(colName));
+		return indexes;
+	}
+
 	@Override
 	public Object decode(ByteBuffer bb) {
 		byte type = bb.get();
@@ -93,6 +119,20 @@ public class FileManifestCodec implements CustomCodec {
 			}
 		}
 
+		if (!bb.hasRemaining())
+			return manifest;
+
+		int indexCount = bb.getShort() & 0xffff;
+		for (int i = 0; i < indexCount; i++) {
+			int colId = bb.getShort() & 0xffff;
+			IndexType indexType = IndexType.parse(bb.get());
+			int fieldLength = bb.getShort() & 0xffff;
+			byte[] fieldBytes = new byte[fieldLength];
+			bb.get(fieldBytes);
+
+			manifest.add(new IndexEntry(colId, new String(fieldBytes, Charset.forName("utf-8")), indexType));
+		}
+
 		return manifest;
 	}
 
@@ -107,6 +147,14 @@ public class FileManifestCodec implements CustomCodec {
 				total += 6 + colName.getBytes("utf-8").length;
 				total += 16 * manifest.getConfigEntries(colName).size();
 			}
+
+			// index count (2b), col id (2b), type (1b), field len (2b), field
+			List<IndexEntry> indexes = getIndexEntries(manifest);
+			if (!indexes.isEmpty())
+				total += 2;
+
+			for (IndexEntry index : indexes)
+				total += 5 + index.getField().getBytes("utf-8").length;
 		} catch (UnsupportedEncodingException e) {
 		}
 
@@ -28,6 +28,7 @@ import java.util.TreeSet;
 import org.krakenapps.confdb.CommitLog;
 import org.krakenapps.confdb.CommitOp;
 import org.krakenapps.confdb.ConfigEntry;
+import org.krakenapps.confdb.IndexEntry;
 import org.krakenapps.confdb.Manifest;
 import org.krakenapps.confdb.ManifestIterator;
 import org.slf4j.Logger;
@@ -127,6 +128,9 @@ public class Shrinker {
 				for (ConfigEntry e : old.getConfigEntries(name)) {
 					newManifest.add(docIdMap.get(e));
 				}
+
+				for (IndexEntry e : old.getIndexEntries(name))
+					newManifest.add(e);
 			}
 			newManifests.add(newManifest);
 		}
@@ -15,10 +15,14 @@
  */
 package org.krakenapps.confdb.file;
 
+import java.util.List;
+
 import org.krakenapps.confdb.Config;
 import org.krakenapps.confdb.ConfigCollection;
 import org.krakenapps.confdb.ConfigIterator;
 import org.krakenapps.confdb.ConfigTransaction;
+import org.krakenapps.confdb.IndexEntry;
+import org.krakenapps.confdb.IndexType;
 import org.krakenapps.confdb.Predicate;
 
 public class UnmodifiableConfigCollection implements ConfigCollection {
@@ -64,6 +68,21 @@ public class UnmodifiableConfigCollection implements ConfigCollection {
 		return col.findOne(pred);
 	}
 
+	@Override
+	public void ensureIndex(String field, IndexType type) {
+		throw new IllegalStateException(CANNOT_MODIFY_MSG);
+	}
+
+	@Override
+	public void dropIndex(String field) {
+		throw new IllegalStateException(CANNOT_MODIFY_MSG);
+	}
+
+	@Override
+	public List<IndexEntry> getIndexes() {
+		return col.getIndexes();
+	}
+
 	@Override
 	public Config add(Object doc) {
 		throw new IllegalStateException(CANNOT_MODIFY_MSG);
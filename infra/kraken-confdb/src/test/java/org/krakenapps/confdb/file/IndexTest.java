@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Future Systems, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.confdb.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.confdb.CollectionEntry;
+import org.krakenapps.confdb.Config;
+import org.krakenapps.confdb.ConfigCollection;
+import org.krakenapps.confdb.ConfigEntry;
+import org.krakenapps.confdb.IndexEntry;
+import org.krakenapps.confdb.IndexType;
+import org.krakenapps.confdb.Predicate;
+import org.krakenapps.confdb.Predicates;
+
+public class IndexTest {
+	private FileConfigDatabase db;
+	private ConfigCollection col;
+
+	@Before
+	public void setup() throws IOException {
+		File workingDir = new File(System.getProperty("user.dir"));
+
+		db = new FileConfigDatabase(workingDir, "testdb3");
+		col = db.ensureCollection("testcol3");
+	}
+
+	@After
+	public void teardown() throws IOException {
+		db.purge();
+	}
+
+	@Test
+	public void testHashIndex() {
+		for (int i = 0; i < 10; i++)
+			col.add(newDoc("user" + i, i % 3));
+		col.add("not a map");
+
+		col.ensureIndex("group", IndexType.Hash);
+		assertEquals(1, col.getIndexes().size());
+
+		assertEquals(4, col.count(Predicates.field("group", 0)));
+		assertEquals(7, col.count(Predicates.in("group", Arrays.asList(0, 2))));
+		assertEquals(1, col.count(Predicates.and(Predicates.field("group", 1), Predicates.field("name", "user4"))));
+		assertEquals(0, col.count(Predicates.field("group", 5)));
+
+		// index is derived at commit
+		Config c = col.findOne(Predicates.field("name", "user0"));
+		c.setDocument(newDoc("user0", 1));
+		col.update(c);
+		col.remove(col.findOne(Predicates.field("name", "user3")));
+		col.add(newDoc("user10", 0));
+
+		assertEquals(3, col.count(Predicates.field("group", 0)));
+		assertEquals(4, col.count(Predicates.field("group", 1)));
+		assertEquals(0, col.count(Predicates.field("group", null)));
+	}
+
+	@Test
+	public void testOrderedIndex() {
+		col.ensureIndex("owner/loginName", IndexType.Ordered);
+		for (int i = 0; i < 10; i++) {
+			Map<String, Object> owner = new HashMap<String, Object>();
+			owner.put("login_name", "user" + i);
+			Map<String, Object> m = newDoc("doc" + i, i);
+			m.put("owner", owner);
+			col.add(m);
+		}
+
+		assertEquals("owner/login_name", col.getIndexes().get(0).getField());
+		assertEquals(1, col.count(Predicates.field("owner/loginName", "user3")));
+		assertEquals(3, col.count(Predicates.range("owner/loginName", "user2", "user4")));
+		assertEquals(2, col.count(Predicates.range("owner/loginName", null, "user1")));
+		assertEquals(0, col.count(Predicates.range("owner/loginName", 1, 3)));
+
+		// not indexed field is evaluated by scan
+		assertEquals(3, col.count(Predicates.range("group", 7, null)));
+	}
+
+	@Test
+	public void testIndexVersioning() {
+		col.add(newDoc("user0", 0));
+		col.ensureIndex("group", IndexType.Hash);
+		int rev = (int) db.getCommitLogs().get(0).getRev();
+
+		col.ensureIndex("group", IndexType.Ordered);
+		assertEquals(IndexType.Ordered, col.getIndexes().get(0).getType());
+		assertEquals(1, col.count(Predicates.range("group", 0, 0)));
+
+		col.dropIndex("group");
+		assertEquals(0, col.getIndexes().size());
+
+		db.rollback(rev);
+		assertEquals(IndexType.Hash, col.getIndexes().get(0).getType());
+		assertEquals(1, col.count(Predicates.field("group", 0)));
+	}
+
+	@Test
+	public void testIndexCache() {
+		col.ensureIndex("group", IndexType.Hash);
+		col.add(newDoc("user0", 0));
+		assertNull(db.getIndexCache(((FileConfigCollection) col).getId()));
+
+		Predicate pred = Predicates.field("group", 0);
+		assertEquals(1, col.count(pred));
+		CollectionIndex index = db.getIndexCache(((FileConfigCollection) col).getId());
+		assertNotNull(index);
+
+		col.count(pred);
+		assertSame(index, db.getIndexCache(((FileConfigCollection) col).getId()));
+
+		col.add(newDoc("user1", 0));
+		assertEquals(db.getManifest(null).getId(), db.getIndexCache(((FileConfigCollection) col).getId()).getManifestId());
+		assertEquals(2, col.count(pred));
+	}
+
+	@Test
+	public void testDerive() throws IOException {
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		entries.add(new IndexEntry(1, "group", IndexType.Hash));
+		entries.add(new IndexEntry(1, "name", IndexType.Ordered));
+		CollectionIndex index1 = CollectionIndex.build(1, entries, null, new ArrayList<RevLog>());
+
+		Map<Integer, byte[]> changed = new HashMap<Integer, byte[]>();
+		changed.put(1, encode(newDoc("user1", 0)));
+		changed.put(2, encode(newDoc("user2", 1)));
+		changed.put(3, encode(newDoc("user3", 1)));
+		changed.put(4, encode("not a map"));
+		CollectionIndex index2 = index1.derive(2, changed);
+
+		// group of user1 is changed, user2 is removed
+		changed = new HashMap<Integer, byte[]>();
+		changed.put(1, encode(newDoc("user1", 1)));
+		changed.put(2, null);
+		CollectionIndex index3 = index2.derive(3, changed);
+
+		// previous indexes are not modified
+		assertEquals(0, index1.find("group", 0).size());
+		assertEquals(set(1), index2.find("group", 0));
+		assertEquals(set(2, 3), index2.find("group", 1));
+		assertEquals(set(1, 2, 3), index2.find("name", "user1", "user3"));
+		assertEquals(set(4), index2.find("group", null));
+
+		assertEquals(0, index3.find("group", 0).size());
+		assertEquals(set(1, 3), index3.find("group", 1));
+		assertEquals(set(1, 3), index3.find("name", "user1", "user3"));
+		assertEquals(set(4), index3.find("group", null));
+
+		// unchanged field values
+		changed = new HashMap<Integer, byte[]>();
+		changed.put(1, encode(newDoc("user1", 1)));
+		changed.put(2, null);
+		CollectionIndex index4 = index3.derive(4, changed);
+		assertEquals(4, index4.getManifestId());
+		assertEquals(set(1, 3), index4.find("group", 1));
+		assertEquals(set(3), index4.find("name", "user3"));
+		assertNull(index4.find("group", 0, 1));
+	}
+
+	@Test
+	public void testIndexCodec() {
+		FileManifest manifest = new FileManifest();
+		manifest.setVersion(2);
+		manifest.setId(1);
+		manifest.add(new CollectionEntry(1, "col1"));
+		manifest.add(new ConfigEntry(1, 1, 1));
+		manifest.add(new ConfigEntry(1, 2, 1));
+		manifest.add(new CollectionEntry(2, "col2"));
+		manifest.add(new ConfigEntry(2, 1, 1));
+
+		FileManifestCodec codec = new FileManifestCodec();
+		int lenWithoutIndex = EncodingRule.lengthOf(manifest, codec);
+
+		manifest.add(new IndexEntry(1, "name", IndexType.Hash));
+		manifest.add(new IndexEntry(2, "owner/login_name", IndexType.Ordered));
+
+		int len = EncodingRule.lengthOf(manifest, codec);
+		assertEquals(lenWithoutIndex + 2 + (5 + 4) + (5 + 16), len);
+
+		ByteBuffer bb = ByteBuffer.allocate(len);
+		EncodingRule.encode(bb, manifest, codec);
+		assertEquals(len, bb.position());
+		bb.flip();
+
+		FileManifest decoded = (FileManifest) EncodingRule.decode(bb, codec);
+		assertEquals(manifest.getIndexEntries("col1"), decoded.getIndexEntries("col1"));
+		assertEquals(manifest.getIndexEntries("col2"), decoded.getIndexEntries("col2"));
+		assertEquals(3, decoded.getConfigEntries("col1").size() + decoded.getConfigEntries("col2").size());
+	}
+
+	private byte[] encode(Object doc) {
+		ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(doc));
+		EncodingRule.encode(bb, doc);
+		return bb.array();
+	}
+
+	private Set<Integer> set(Integer... ids) {
+		return new HashSet<Integer>(Arrays.asList(ids));
+	}
+
+	private Map<String, Object> newDoc(String name, int group) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("name", name);
+		m.put("group", group);
+		return m;
+	}
+}
@@ -251,15 +251,23 @@ public class RpcAgentImpl implements RpcAgent {
 				Executors.newCachedThreadPool());
 
 		ServerBootstrap bootstrap = new ServerBootstrap(factory);
-		ChannelPipeline pipeline = bootstrap.getPipeline();
-
-		// decoder, encoder and handler
-		pipeline.addLast("decoder", new RpcDecoder());
-		pipeline.addLast("encoder", new RpcEncoder());
-		pipeline.addLast("handler", handler);
 
 		bootstrap.setOption("child.tcpNoDelay", true);
 		bootstrap.setOption("child.keepAlive", true);
+		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				ChannelPipeline pipeline = Channels.pipeline();
+
+				// decoder keeps frame state per channel
+				pipeline.addLast("decoder", new RpcDecoder());
+				pipeline.addLast("encoder", new RpcEncoder());
+				pipeline.addLast("handler", handler);
+
+				return pipeline;
+			}
+		});
 
 		InetSocketAddress address = new InetSocketAddress(props.getHost(), props.getPort());
 
@@ -25,6 +25,10 @@ import org.krakenapps.codec.EncodingRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Decodes rpc message frames from channel buffer. Frame length is parsed once
+ * per frame, and complete frame is decoded from buffer view without copy.
+ */
 public class RpcDecoder extends FrameDecoder {
 	private final Logger logger = LoggerFactory.getLogger(RpcDecoder.class.getName());
 
@@ -38,63 +42,64 @@ public class RpcDecoder extends FrameDecoder {
 	public static final int IPV4_TYPE = 8;
 	public static final int IPV6_TYPE = 9;
 
+	// length of current frame including type and length bytes, or -1 if
+	// frame header is not parsed yet
+	private long frameLength = -1;
+
 	@Override
 	protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buf) throws Exception {
 		if (logger.isDebugEnabled())
 			logger.debug("kraken-rpc: current readable length {}", buf.readableBytes());
 
-		buf.markReaderIndex();
-		if (buf.readableBytes() < 2)
-			return null;
-
-		// read type byte
-		buf.readByte();
+		if (frameLength < 0) {
+			frameLength = parseFrameLength(buf);
 
-		// read length bytes
-		int lengthBytes = 0;
-		byte b = 0;
-		boolean eon = false;
-		while (true) {
-			if (buf.readableBytes() == 0)
-				break;
-
-			b = buf.readByte();
-			lengthBytes++;
-
-			if ((b & 0x80) != 0x80) {
-				eon = true;
-				break;
+			// fail before waiting for frame which cannot be buffered
+			if (frameLength > Integer.MAX_VALUE) {
+				long length = frameLength;
+				frameLength = -1;
+				buf.skipBytes(buf.readableBytes());
+				channel.close();
+				throw new IllegalStateException("kraken-rpc: too large frame, length " + length);
 			}
 		}
 
-		if (!eon) {
-			buf.resetReaderIndex();
-			return null; // more length bytes needed
-		}
+		if (frameLength < 0 || buf.readableBytes() < frameLength)
+			return null; // more bytes needed
 
-		buf.resetReaderIndex();
+		// decoder copies all values, so buffer view can be released after
+		int length = (int) frameLength;
+		ByteBuffer bb = buf.toByteBuffer(buf.readerIndex(), length);
+		Object decoded = EncodingRule.decode(bb);
+		buf.skipBytes(length);
+		frameLength = -1;
 
-		// read type byte
-		buf.readByte();
-
-		// byte buffer read does not modify readable index
-		long length = EncodingRule.decodeRawNumber(buf.toByteBuffer());
-
-		if (buf.readableBytes() >= lengthBytes + length) {
-			buf.resetReaderIndex();
-			ByteBuffer bb = ByteBuffer.allocate((int) length + lengthBytes + 1);
-			buf.readBytes(bb);
-			bb.flip();
+		if (logger.isDebugEnabled())
+			logger.debug("kraken-rpc: decoded one message, remaining {}", buf.readableBytes());
 
-			Object decoded = EncodingRule.decode(bb);
-			if (logger.isDebugEnabled())
-				logger.debug("kraken-rpc: decoded one message, remaining {}", buf.readableBytes());
+		return decoded;
+	}
 
-			return decoded;
+	/**
+	 * @return frame length, or -1 if length bytes are not received yet
+	 */
+	private long parseFrameLength(ChannelBuffer buf) {
+		int begin = buf.readerIndex();
+		int end = buf.writerIndex();
+
+		// skip type byte
+		long length = 0;
+		for (int i = begin + 1; i < end; i++) {
+			byte b = buf.getByte(i);
+			length = (length << 7) | (b & 0x7F);
+			if ((b & 0x80) != 0x80)
+				return i + 1 - begin + length;
+
+			// stop before shift overflow, caller rejects it
+			if (length > Integer.MAX_VALUE)
+				return length;
 		}
 
-		buf.resetReaderIndex();
-		return null;
+		return -1;
 	}
-
 }
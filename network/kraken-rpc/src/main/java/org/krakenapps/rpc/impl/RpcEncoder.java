@@ -15,34 +15,99 @@
  */
 package org.krakenapps.rpc.impl;
 
-import java.nio.ByteBuffer;
-
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+import org.krakenapps.codec.BinaryForm;
 import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.codec.FastEncodingRule;
 import org.krakenapps.rpc.RpcMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Encodes rpc message into channel buffer. Message is pre-encoded in one walk
+ * of object graph, and written to buffer of exact length from buffer factory
+ * of channel. Large message is written to chunks, which are sent as one
+ * composite buffer without contiguous allocation.
+ */
 public class RpcEncoder extends OneToOneEncoder {
 	private final Logger logger = LoggerFactory.getLogger(RpcEncoder.class.getName());
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private FastEncodingRule enc = new FastEncodingRule();
 
 	@Override
 	protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
 		RpcMessage rpcMsg = (RpcMessage) msg;
 		Object m = rpcMsg.marshal();
 
-		int length = EncodingRule.lengthOf(m);
-		ByteBuffer bb = ByteBuffer.allocate(length);
-		EncodingRule.encode(bb, m);
-		bb.flip();
+		BinaryForm bf = enc.preencode(m);
+		ChannelBuffer buf = allocate(channel.getConfig().getBufferFactory(), bf.totalLength);
+		write(buf, bf);
 
 		if (logger.isDebugEnabled())
 			logger.debug("kraken-rpc: sending id: {}, method: {}, size: {}", new Object[] { rpcMsg.getHeader("id"),
-					rpcMsg.getString("method"), bb.remaining() });
+					rpcMsg.getString("method"), buf.readableBytes() });
+
+		return buf;
+	}
+
+	private ChannelBuffer allocate(ChannelBufferFactory factory, int length) {
+		if (length <= CHUNK_SIZE)
+			return factory.getBuffer(length);
+
+		ChannelBuffer[] chunks = new ChannelBuffer[(length + CHUNK_SIZE - 1) / CHUNK_SIZE];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = factory.getBuffer(Math.min(CHUNK_SIZE, length - i * CHUNK_SIZE));
+			chunks[i].writerIndex(chunks[i].capacity());
+		}
+
+		// composite buffer has readable chunks only
+		ChannelBuffer buf = ChannelBuffers.wrappedBuffer(chunks);
+		buf.clear();
+		return buf;
+	}
+
+	private void write(ChannelBuffer buf, BinaryForm bf) {
+		buf.writeByte(bf.type);
 
-		return ChannelBuffers.wrappedBuffer(bb);
+		switch (bf.type) {
+		case EncodingRule.NULL_TYPE:
+			break;
+		case EncodingRule.STRING_TYPE:
+		case EncodingRule.BLOB_TYPE:
+			buf.writeBytes(bf.lengthBytes);
+			buf.writeBytes(bf.payloadBytes);
+			break;
+		case EncodingRule.ZINT16_TYPE:
+		case EncodingRule.ZINT32_TYPE:
+		case EncodingRule.ZINT64_TYPE:
+		case EncodingRule.DATE_TYPE:
+		case EncodingRule.IP4_TYPE:
+		case EncodingRule.IP6_TYPE:
+		case EncodingRule.BOOLEAN_TYPE:
+		case EncodingRule.FLOAT_TYPE:
+		case EncodingRule.DOUBLE_TYPE:
+			buf.writeBytes(bf.payloadBytes);
+			break;
+		case EncodingRule.MAP_TYPE:
+		case EncodingRule.ARRAY_TYPE:
+			buf.writeBytes(bf.lengthBytes);
+			for (BinaryForm c : bf.children)
+				write(buf, c);
+			break;
+		default:
+			buf.writeBytes(bf.lengthBytes);
+			if (bf.payloadBytes != null) {
+				buf.writeBytes(bf.payloadBytes);
+			} else if (bf.children != null) {
+				for (BinaryForm c : bf.children)
+					write(buf, c);
+			}
+		}
 	}
 }
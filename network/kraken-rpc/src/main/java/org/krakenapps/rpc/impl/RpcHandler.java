@@ -29,9 +29,9 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -67,20 +67,23 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 	final Logger logger = LoggerFactory.getLogger(RpcHandler.class.getName());
 	private static final int HIGH_WATERMARK = 10;
 
+	// warn if rpc session work takes longer than this
+	private static final long LONG_RUN_MILLIS = 2000;
+
 	private String guid;
 	private RpcControlService control;
 	private ThreadPoolExecutor executor;
 	private LinkedBlockingQueue<Runnable> queue;
 
 	private volatile boolean doStop;
-	private Thread scheduler;
+	private Thread watchdog;
 
 	private Map<Integer, RpcConnectionImpl> connMap;
 	private ConcurrentHashMap<RpcService, String> serviceMap;
 
 	// work key = channel id + session id
 	private ConcurrentMap<WorkKey, WorkStatus> worksheet;
-	private ConcurrentMap<WorkKey, ConcurrentLinkedQueue<RpcMessage>> channelMessages;
+	private ConcurrentMap<WorkKey, Mailbox> mailboxes;
 
 	private CopyOnWriteArraySet<RpcConnectionEventListener> listeners;
 
@@ -91,14 +94,14 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 		this.serviceMap = new ConcurrentHashMap<RpcService, String>();
 		this.listeners = new CopyOnWriteArraySet<RpcConnectionEventListener>();
 		this.worksheet = new ConcurrentHashMap<WorkKey, WorkStatus>();
-		this.channelMessages = new ConcurrentHashMap<WorkKey, ConcurrentLinkedQueue<RpcMessage>>();
+		this.mailboxes = new ConcurrentHashMap<WorkKey, Mailbox>();
 	}
 
 	public void start() {
 		if (executor != null)
 			return;
 
-		scheduler = new Thread(this, "Kraken RPC Scheduler");
+		watchdog = new Thread(this, "Kraken RPC Watchdog");
 		queue = new LinkedBlockingQueue<Runnable>();
 		int cpuCount = Runtime.getRuntime().availableProcessors();
 		executor = new ThreadPoolExecutor(cpuCount, cpuCount, 10, TimeUnit.SECONDS, queue, new ThreadFactory() {
@@ -108,12 +111,12 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 			}
 		});
 
-		scheduler.start();
+		watchdog.start();
 	}
 
 	public void stop() {
 		doStop = true;
-		scheduler.interrupt();
+		watchdog.interrupt();
 
 		if (executor != null) {
 			executor.shutdown();
@@ -126,69 +129,49 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 		connMap.clear();
 	}
 
+	/**
+	 * Warns rpc session works which take long time. Messages are dispatched
+	 * by mailbox, and this thread only watches running works.
+	 */
 	@Override
 	public void run() {
-
 		while (!doStop) {
 			try {
-				for (WorkKey workKey : channelMessages.keySet()) {
-					WorkStatus status = worksheet.get(workKey);
-					if (status == null) {
-						ConcurrentLinkedQueue<RpcMessage> q = channelMessages.get(workKey);
-
-						// prepare rpc message list
-						List<RpcMessage> list = new ArrayList<RpcMessage>();
-						while (true) {
-							RpcMessage m = q.poll();
-							if (m == null)
-								break;
-
-							list.add(m);
+				long now = new Date().getTime();
+				for (Map.Entry<WorkKey, WorkStatus> e : worksheet.entrySet()) {
+					WorkKey workKey = e.getKey();
+					WorkStatus status = e.getValue();
+					long elapsed = now - status.lastRun.getTime();
+					if (!status.alerted && elapsed > LONG_RUN_MILLIS) {
+						int i = 0;
+						StringBuilder sb = new StringBuilder();
+						for (RpcMessage m : status.runningMethods) {
+							if (i++ != 0)
+								sb.append(",");
+
+							sb.append(m.getString("method"));
+							sb.append("(");
+							sb.append(m.getHeader("type"));
+							sb.append(")");
 						}
 
-						if (executor != null && list.size() > 0) {
-							// prevent out-of-order execution per rpc session
-							worksheet.put(workKey, new WorkStatus(list));
-							executor.submit(new MessageHandler(workKey, list));
-						} else {
-							if (executor == null) {
-								logger.trace("kraken rpc: handler threadpool stopped, drop msg");
-								doStop = true;
-							}
-						}
-					} else {
-						long elapsed = new Date().getTime() - status.lastRun.getTime();
-						if (!status.alerted && elapsed > 2000) {
-							int i = 0;
-							StringBuilder sb = new StringBuilder();
-							for (RpcMessage m : status.runningMethods) {
-								if (i++ != 0)
-									sb.append(",");
-
-								sb.append(m.getString("method"));
-								sb.append("(");
-								sb.append(m.getHeader("type"));
-								sb.append(")");
-							}
-
-							logger.warn(
-									"kraken rpc: rpc channel [{}] session [{}] work takes long time [{}] elapsed, pending methods [{}]",
-									new Object[] { workKey.channelId, workKey.sessionId, elapsed, sb.toString() });
-
-							status.alerted = true;
-						}
+						logger.warn(
+								"kraken rpc: rpc channel [{}] session [{}] work takes long time [{}] elapsed, pending methods [{}]",
+								new Object[] { workKey.channelId, workKey.sessionId, elapsed, sb.toString() });
+
+						status.alerted = true;
 					}
 				}
 
-				Thread.sleep(100);
+				Thread.sleep(LONG_RUN_MILLIS / 4);
 			} catch (InterruptedException e) {
-				logger.trace("kraken rpc: rpc run scheduler interrupted");
+				logger.trace("kraken rpc: rpc watchdog interrupted");
 			} catch (Exception e) {
-				logger.error("kraken rpc: rpc run scheduler failed", e);
+				logger.error("kraken rpc: rpc watchdog failed", e);
 			}
 		}
 
-		logger.trace("kraken rpc: rpc run scheduler stopped");
+		logger.trace("kraken rpc: rpc watchdog stopped");
 		doStop = false;
 	}
 
@@ -429,25 +412,30 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 		e.getChannel().close();
 	}
 
-	private class MessageHandler implements Runnable {
+	/**
+	 * Mailbox of rpc session, handled by handler threadpool
+	 */
+	private class Mailbox extends RpcMailbox {
 		private WorkKey workKey;
-		private List<RpcMessage> msgs;
-		private Channel channel;
-		private RpcConnection conn;
 
-		public MessageHandler(WorkKey workKey, List<RpcMessage> msgs) {
+		public Mailbox(WorkKey workKey) {
 			this.workKey = workKey;
-			this.channel = workKey.channel;
-			this.msgs = msgs;
-			this.conn = findConnection(channel.getId());
+		}
 
-			if (conn == null)
-				throw new IllegalStateException("channel " + channel.getId() + " not found. already disconnected.");
+		@Override
+		protected Executor getExecutor() {
+			return executor;
 		}
 
 		@Override
-		public void run() {
+		protected void handleAll(List<RpcMessage> msgs) {
+			Channel channel = workKey.channel;
+			worksheet.put(workKey, new WorkStatus(msgs));
 			try {
+				RpcConnection conn = findConnection(channel.getId());
+				if (conn == null)
+					throw new IllegalStateException("channel " + channel.getId() + " not found. already disconnected.");
+
 				if (logger.isDebugEnabled())
 					logger.debug("kraken rpc: channel [{}], begin {} request handling", channel.getId(), msgs.size());
 
@@ -465,7 +453,6 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 				}
 			}
 		}
-
 	}
 
 	private void handle(Channel channel, RpcConnection conn, RpcMessage msg) {
@@ -589,15 +576,16 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 
 		// cannot use msg.getSession().getId() here (not set)
 		WorkKey workKey = new WorkKey(channel, (Integer) msg.getHeader("session"));
-		ConcurrentLinkedQueue<RpcMessage> q = channelMessages.get(workKey);
-		if (q == null) {
-			q = new ConcurrentLinkedQueue<RpcMessage>();
-			ConcurrentLinkedQueue<RpcMessage> old = channelMessages.putIfAbsent(workKey, q);
+		Mailbox mailbox = mailboxes.get(workKey);
+		if (mailbox == null) {
+			mailbox = new Mailbox(workKey);
+			Mailbox old = mailboxes.putIfAbsent(workKey, mailbox);
 			if (old != null)
-				q = old;
+				mailbox = old;
 		}
 
-		q.add(msg);
+		// prevent out-of-order execution per rpc session
+		mailbox.add(msg);
 	}
 
 	/**
@@ -700,6 +688,11 @@ public class RpcHandler extends SimpleChannelHandler implements Runnable, RpcCon
 		// remove connection
 		connMap.remove(connection.getId());
 
+		// remove mailboxes of closed channel
+		for (WorkKey workKey : mailboxes.keySet())
+			if (workKey.channelId == connection.getId())
+				mailboxes.remove(workKey);
+
 		// notify listeners
 		for (RpcConnectionEventListener listener : listeners) {
 			try {
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.rpc.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.krakenapps.rpc.RpcMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ordered message queue of rpc session. Mailbox is submitted to executor when
+ * the first message arrives at idle mailbox, and at most one handler thread
+ * runs a mailbox at once.
+ */
+abstract class RpcMailbox implements Runnable {
+	private final Logger logger = LoggerFactory.getLogger(RpcMailbox.class.getName());
+	private ConcurrentLinkedQueue<RpcMessage> messages = new ConcurrentLinkedQueue<RpcMessage>();
+	private AtomicBoolean scheduled = new AtomicBoolean();
+
+	public void add(RpcMessage msg) {
+		messages.add(msg);
+		schedule();
+	}
+
+	/**
+	 * @return handler executor, or null if handler is stopped
+	 */
+	protected abstract Executor getExecutor();
+
+	/**
+	 * handle drained messages in arrival order
+	 */
+	protected abstract void handleAll(List<RpcMessage> msgs);
+
+	private void schedule() {
+		if (!scheduled.compareAndSet(false, true))
+			return;
+
+		Executor e = getExecutor();
+		try {
+			if (e == null)
+				throw new RejectedExecutionException();
+			e.execute(this);
+		} catch (RejectedExecutionException ex) {
+			logger.trace("kraken rpc: handler threadpool stopped, drop msg");
+			messages.clear();
+			scheduled.set(false);
+		}
+	}
+
+	@Override
+	public void run() {
+		// prepare rpc message list
+		List<RpcMessage> msgs = new ArrayList<RpcMessage>();
+		while (true) {
+			RpcMessage m = messages.poll();
+			if (m == null)
+				break;
+
+			msgs.add(m);
+		}
+
+		try {
+			if (!msgs.isEmpty())
+				handleAll(msgs);
+		} finally {
+			// messages added after poll should be handled by another run
+			scheduled.set(false);
+			if (!messages.isEmpty())
+				schedule();
+		}
+	}
+}
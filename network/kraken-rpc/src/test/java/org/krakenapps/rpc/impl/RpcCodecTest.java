@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.rpc.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.rpc.RpcMessage;
+
+/**
+ * Decodes rpc frames split into arbitrary reads, and checks chunks of large
+ * encoded message
+ */
+public class RpcCodecTest {
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private RecordingFactory factory;
+	private boolean closed;
+	private Channel channel;
+
+	@Before
+	public void setup() {
+		factory = new RecordingFactory();
+		closed = false;
+		channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Channel.class },
+				new ChannelHandler());
+	}
+
+	@Test
+	public void testPartialReads() throws Exception {
+		RpcMessage small = RpcMessage.newCall(1, 2, "echo", new Object[] { "hello" });
+		RpcMessage large = RpcMessage.newCall(2, 2, "echo", new Object[] { text(200000) });
+		byte[] b = concat(encode(small), encode(large), encode(small));
+
+		// length bytes and frames are split at every point
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+		RpcDecoder decoder = new RpcDecoder();
+		List<Object> decoded = new ArrayList<Object>();
+		Random r = new Random(1);
+		int offset = 0;
+		while (offset < b.length) {
+			int len = offset < 20 ? 1 : Math.min(b.length - offset, 1 + r.nextInt(5000));
+			buf.writeBytes(b, offset, len);
+			offset += len;
+			decodeAll(decoder, buf, decoded);
+		}
+
+		assertEquals(3, decoded.size());
+		assertEquals(0, buf.readableBytes());
+		assertMessage(small, decoded.get(0));
+		assertMessage(large, decoded.get(1));
+		assertMessage(small, decoded.get(2));
+	}
+
+	@Test
+	public void testMultipleFrames() throws Exception {
+		RpcMessage m1 = RpcMessage.newCall(1, 2, "echo", new Object[] { "a" });
+		RpcMessage m2 = RpcMessage.newCall(2, 2, "echo", new Object[] { "b" });
+		byte[] b1 = encode(m1);
+		byte[] b2 = encode(m2);
+
+		// one read has first frame and head of next frame
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+		buf.writeBytes(concat(b1, Arrays.copyOf(b2, 2)));
+		RpcDecoder decoder = new RpcDecoder();
+		List<Object> decoded = new ArrayList<Object>();
+		decodeAll(decoder, buf, decoded);
+		assertEquals(1, decoded.size());
+		assertEquals(2, buf.readableBytes());
+
+		buf.writeBytes(b2, 2, b2.length - 2);
+		decodeAll(decoder, buf, decoded);
+		assertEquals(2, decoded.size());
+		assertMessage(m1, decoded.get(0));
+		assertMessage(m2, decoded.get(1));
+	}
+
+	@Test
+	public void testTooLargeFrame() throws Exception {
+		RpcDecoder decoder = new RpcDecoder();
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+
+		// unfinished length under cap waits for more bytes
+		buf.writeBytes(new byte[] { EncodingRule.MAP_TYPE, (byte) 0xff, (byte) 0xff });
+		assertNull(decoder.decode(null, channel, buf));
+		assertFalse(closed);
+
+		// length over cap is rejected before rest of frame is received
+		buf.writeBytes(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff });
+		try {
+			decoder.decode(null, channel, buf);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(closed);
+		assertEquals(0, buf.readableBytes());
+
+		// decoder does not keep length of rejected frame
+		RpcMessage m = RpcMessage.newCall(1, 2, "echo", new Object[] { "hello" });
+		buf.writeBytes(encode(m));
+		assertMessage(m, decoder.decode(null, channel, buf));
+	}
+
+	@Test
+	public void testSmallEncode() throws Exception {
+		RpcMessage m = RpcMessage.newCall(1, 2, "echo", new Object[] { "hello" });
+		byte[] b = encode(m);
+
+		// small message is written to one buffer of exact length
+		assertEquals(1, factory.capacities.size());
+		assertEquals(b.length, (int) factory.capacities.get(0));
+		assertArrayEquals(expected(m), b);
+	}
+
+	@Test
+	public void testChunkedEncode() throws Exception {
+		RpcMessage m = RpcMessage.newCall(1, 2, "echo", new Object[] { text(300000) });
+		byte[] b = encode(m);
+		assertArrayEquals(expected(m), b);
+
+		// large message is written to chunks, not one contiguous buffer
+		int chunks = (b.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		assertEquals(chunks, factory.capacities.size());
+		for (int i = 0; i < chunks - 1; i++)
+			assertEquals(CHUNK_SIZE, (int) factory.capacities.get(i));
+		assertEquals(b.length - (chunks - 1) * CHUNK_SIZE, (int) factory.capacities.get(chunks - 1));
+
+		ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+		buf.writeBytes(b);
+		assertMessage(m, new RpcDecoder().decode(null, channel, buf));
+	}
+
+	@Test
+	public void testChunkBoundary() throws Exception {
+		RpcMessage exact = sized(CHUNK_SIZE);
+		assertArrayEquals(expected(exact), encode(exact));
+		assertEquals(1, factory.capacities.size());
+
+		factory.capacities.clear();
+		RpcMessage over = sized(CHUNK_SIZE + 1);
+		assertArrayEquals(expected(over), encode(over));
+		assertEquals(Arrays.asList(CHUNK_SIZE, 1), factory.capacities);
+	}
+
+	private void decodeAll(RpcDecoder decoder, ChannelBuffer buf, List<Object> decoded) throws Exception {
+		while (true) {
+			Object o = decoder.decode(null, channel, buf);
+			if (o == null)
+				break;
+			decoded.add(o);
+		}
+	}
+
+	private byte[] encode(RpcMessage m) throws Exception {
+		ChannelBuffer buf = (ChannelBuffer) new RpcEncoder().encode(null, channel, m);
+		byte[] b = new byte[buf.readableBytes()];
+		buf.readBytes(b);
+		return b;
+	}
+
+	private byte[] expected(RpcMessage m) {
+		Object o = m.marshal();
+		ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(o));
+		EncodingRule.encode(bb, o);
+		return bb.array();
+	}
+
+	private void assertMessage(RpcMessage expected, Object decoded) {
+		RpcMessage m = new RpcMessage((Object[]) decoded);
+		assertEquals(expected.getHeader("id"), m.getHeader("id"));
+		assertEquals(expected.getHeader("type"), m.getHeader("type"));
+		assertEquals(expected.getString("method"), m.getString("method"));
+		assertArrayEquals((Object[]) expected.get("params"), (Object[]) m.get("params"));
+	}
+
+	/**
+	 * @return message of given encoded length
+	 */
+	private RpcMessage sized(int length) {
+		int n = length;
+		while (true) {
+			RpcMessage m = RpcMessage.newCall(1, 2, "echo", new Object[] { text(n) });
+			int diff = EncodingRule.lengthOf(m.marshal()) - length;
+			if (diff == 0)
+				return m;
+			n -= diff > 0 ? Math.max(1, diff / 2) : -1;
+		}
+	}
+
+	private static String text(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			sb.append((char) ('a' + i % 26));
+		return sb.toString();
+	}
+
+	private static byte[] concat(byte[]... arrays) {
+		int length = 0;
+		for (byte[] b : arrays)
+			length += b.length;
+
+		byte[] b = new byte[length];
+		int offset = 0;
+		for (byte[] a : arrays) {
+			System.arraycopy(a, 0, b, offset, a.length);
+			offset += a.length;
+		}
+		return b;
+	}
+
+	private class ChannelHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("getConfig"))
+				return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ChannelConfig.class },
+						new ConfigHandler());
+
+			if (method.getName().equals("close")) {
+				closed = true;
+				return null;
+			}
+
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private class ConfigHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("getBufferFactory"))
+				return factory;
+
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private static class RecordingFactory extends HeapChannelBufferFactory {
+		private List<Integer> capacities = new ArrayList<Integer>();
+
+		@Override
+		public ChannelBuffer getBuffer(ByteOrder order, int capacity) {
+			capacities.add(capacity);
+			return super.getBuffer(order, capacity);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.rpc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.krakenapps.rpc.RpcMessage;
+
+/**
+ * Checks message order and single runner of session mailbox, and scheduling
+ * of messages which arrive while mailbox is drained
+ */
+public class RpcMailboxTest {
+	@Test
+	public void testSchedule() {
+		ManualExecutor executor = new ManualExecutor();
+		TestMailbox mailbox = new TestMailbox(executor);
+
+		// mailbox is submitted once until it runs
+		mailbox.add(msg(1));
+		mailbox.add(msg(2));
+		assertEquals(1, executor.tasks.size());
+
+		executor.runNext();
+		assertEquals(ids(1, 2), mailbox.handled);
+		assertEquals(1, mailbox.runs);
+		assertEquals(0, executor.tasks.size());
+
+		mailbox.add(msg(3));
+		assertEquals(1, executor.tasks.size());
+		executor.runNext();
+		assertEquals(ids(1, 2, 3), mailbox.handled);
+	}
+
+	@Test
+	public void testRescheduleAfterDrain() {
+		ManualExecutor executor = new ManualExecutor();
+		final TestMailbox mailbox = new TestMailbox(executor);
+
+		// message arrives while drained messages are handled
+		mailbox.onHandle = new Runnable() {
+			@Override
+			public void run() {
+				mailbox.onHandle = null;
+				mailbox.add(msg(3));
+			}
+		};
+
+		mailbox.add(msg(1));
+		mailbox.add(msg(2));
+		executor.runNext();
+		assertEquals(ids(1, 2), mailbox.handled);
+		assertEquals(1, executor.tasks.size());
+
+		executor.runNext();
+		assertEquals(ids(1, 2, 3), mailbox.handled);
+		assertEquals(0, executor.tasks.size());
+	}
+
+	@Test
+	public void testHandleFailure() {
+		ManualExecutor executor = new ManualExecutor();
+		final TestMailbox mailbox = new TestMailbox(executor);
+		mailbox.onHandle = new Runnable() {
+			@Override
+			public void run() {
+				mailbox.onHandle = null;
+				mailbox.add(msg(2));
+				throw new IllegalStateException("handle failure");
+			}
+		};
+
+		// mailbox is not stuck after failure
+		mailbox.add(msg(1));
+		try {
+			executor.runNext();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(1, executor.tasks.size());
+
+		executor.runNext();
+		assertEquals(ids(1, 2), mailbox.handled);
+	}
+
+	@Test
+	public void testStopped() {
+		ManualExecutor executor = new ManualExecutor();
+		TestMailbox mailbox = new TestMailbox(null);
+
+		// messages are dropped while handler is stopped
+		mailbox.add(msg(1));
+		assertEquals(0, mailbox.handled.size());
+
+		executor.rejected = true;
+		mailbox.executor = executor;
+		mailbox.add(msg(2));
+		assertEquals(0, executor.tasks.size());
+
+		executor.rejected = false;
+		mailbox.add(msg(3));
+		executor.runNext();
+		assertEquals(ids(3), mailbox.handled);
+	}
+
+	@Test(timeout = 30000)
+	public void testSessionOrder() throws Exception {
+		final int sessions = 8;
+		final int count = 5000;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<TestMailbox> mailboxes = new ArrayList<TestMailbox>();
+			for (int i = 0; i < sessions; i++) {
+				TestMailbox mailbox = new TestMailbox(executor);
+				mailbox.delay = true;
+				mailboxes.add(mailbox);
+			}
+
+			// a producer per session, like a channel reader
+			List<Thread> producers = new ArrayList<Thread>();
+			for (int i = 0; i < sessions; i++) {
+				final TestMailbox mailbox = mailboxes.get(i);
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						for (int id = 0; id < count; id++)
+							mailbox.add(msg(id));
+					}
+				};
+				producers.add(t);
+				t.start();
+			}
+
+			for (Thread t : producers)
+				t.join();
+
+			for (TestMailbox mailbox : mailboxes) {
+				while (mailbox.size() < count)
+					Thread.sleep(10);
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	private RpcMessage msg(int id) {
+		Map<String, Object> header = new HashMap<String, Object>();
+		header.put("id", id);
+		return new RpcMessage(new Object[] { header, new HashMap<String, Object>() });
+	}
+
+	private List<Integer> ids(Integer... ids) {
+		List<Integer> l = new ArrayList<Integer>();
+		Collections.addAll(l, ids);
+		return l;
+	}
+
+	private static class TestMailbox extends RpcMailbox {
+		private volatile Executor executor;
+		private List<Integer> handled = new ArrayList<Integer>();
+		private int runs;
+		private volatile Runnable onHandle;
+		private boolean delay;
+		private Random random = new Random(1);
+		private AtomicInteger running = new AtomicInteger();
+
+		public TestMailbox(Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		protected Executor getExecutor() {
+			return executor;
+		}
+
+		@Override
+		protected void handleAll(List<RpcMessage> msgs) {
+			// at most one thread runs a mailbox
+			assertEquals(1, running.incrementAndGet());
+			try {
+				synchronized (this) {
+					runs++;
+					for (RpcMessage msg : msgs) {
+						int id = (Integer) msg.getHeader("id");
+						assertEquals(handled.size() > 0 ? handled.get(handled.size() - 1) + 1 : id, id);
+						handled.add(id);
+					}
+				}
+
+				if (delay && random.nextInt(10) == 0)
+					Thread.sleep(1);
+
+				Runnable r = onHandle;
+				if (r != null)
+					r.run();
+			} catch (InterruptedException e) {
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+
+		public synchronized int size() {
+			return handled.size();
+		}
+	}
+
+	private static class ManualExecutor implements Executor {
+		private LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		private boolean rejected;
+
+		@Override
+		public void execute(Runnable task) {
+			if (rejected)
+				throw new RejectedExecutionException();
+			tasks.add(task);
+		}
+
+		public void runNext() {
+			assertFalse(tasks.isEmpty());
+			tasks.removeFirst().run();
+		}
+	}
+}
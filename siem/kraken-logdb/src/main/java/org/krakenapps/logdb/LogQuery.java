@@ -41,12 +41,40 @@ public interface LogQuery extends Runnable {
 
 	LogResultSet getResult() throws IOException;
 
+	/**
+	 * Sorts loaded result without running query again.
+	 * 
+	 * @param fields
+	 *            sort field names. '-' prefixed name is sorted in descending
+	 *            order.
+	 * @return sorted result or null if query is not started
+	 */
+	LogResultSet getSortedResult(List<String> fields) throws IOException;
+
 	List<Map<String, Object>> getResultAsList() throws IOException;
 
 	List<Map<String, Object>> getResultAsList(long offset, int limit) throws IOException;
 
 	List<LogQueryCommand> getCommands();
 
+	/**
+	 * @return lines which describe table scan plan and commands. plan is
+	 *         rebuilt if query is not running.
+	 */
+	List<String> explain();
+
+	/**
+	 * @return worker thread count for commands after table scan, 0 or 1 for
+	 *         sequential run
+	 */
+	int getParallelism();
+
+	/**
+	 * Workers are bounded by query thread budget of query service, and
+	 * applied at next run.
+	 */
+	void setParallelism(int parallelism);
+
 	Set<LogQueryCallback> getLogQueryCallback();
 
 	void registerQueryCallback(LogQueryCallback callback);
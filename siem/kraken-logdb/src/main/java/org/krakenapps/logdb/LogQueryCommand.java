@@ -81,6 +81,18 @@ public abstract class LogQueryCommand {
 
 	public abstract void push(LogMap m);
 
+	/**
+	 * Override to process rows at once. Default implementation pushes each
+	 * selected row in order.
+	 */
+	public void push(RowBatch batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			if (status == Status.End)
+				break;
+			push(batch.get(i));
+		}
+	}
+
 	protected final void write(LogMap m) {
 		pushCount++;
 		if (next != null && next.status != Status.End) {
@@ -93,6 +105,27 @@ public abstract class LogQueryCommand {
 		}
 	}
 
+	protected final void write(RowBatch batch) {
+		if (batch.isEmpty())
+			return;
+
+		// batch can be written by parallel workers of query
+		synchronized (this) {
+			pushCount += batch.size();
+			if (next == null || next.status == Status.End)
+				return;
+
+			if (callbackTimeline) {
+				for (LogTimelineCallback callback : logQuery.getTimelineCallbacks())
+					for (int i = 0; i < batch.size(); i++)
+						callback.put((Date) batch.get(i).get(headerColumn.get("date")));
+			}
+		}
+
+		next.status = Status.Running;
+		next.push(batch);
+	}
+
 	@Deprecated
 	public void push(FileBufferList<Map<String, Object>> buf) {
 		if (buf != null) {
@@ -115,6 +148,14 @@ public abstract class LogQueryCommand {
 
 	public abstract boolean isReducer();
 
+	/**
+	 * @return true if push() can be called by several threads at once.
+	 *         Parallelizable reducer should write rows only in eof().
+	 */
+	public boolean isParallelizable() {
+		return false;
+	}
+
 	public boolean isCallbackTimeline() {
 		return callbackTimeline;
 	}
@@ -28,6 +28,13 @@ public interface LogQueryService {
 
 	void removeQuery(int id);
 
+	/**
+	 * @return max worker thread count for all parallel queries
+	 */
+	int getQueryThreadBudget();
+
+	void setQueryThreadBudget(int budget);
+
 	void addListener(LogQueryEventListener listener);
 
 	void removeListener(LogQueryEventListener listener);
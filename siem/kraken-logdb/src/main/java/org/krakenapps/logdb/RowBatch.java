@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb;
+
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+
+/**
+ * Rows passed between commands at once. Filtering commands narrow selection
+ * vector instead of copying rows. Receiver should not keep the batch itself
+ * after push, but can keep selected rows.
+ */
+public class RowBatch {
+	public static final int DEFAULT_SIZE = 1024;
+
+	private LogMap[] rows;
+
+	// row count including unselected rows
+	private int capacity;
+
+	// indexes of selected rows, null if all rows are selected
+	private int[] selected;
+
+	private int size;
+
+	// scan order of batch, assigned by table for parallel run
+	private long sequence;
+
+	public RowBatch() {
+		this(DEFAULT_SIZE);
+	}
+
+	public RowBatch(int maxSize) {
+		this.rows = new LogMap[maxSize];
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public void add(LogMap m) {
+		if (selected != null)
+			throw new IllegalStateException("cannot add row to filtered batch");
+
+		rows[capacity++] = m;
+		size = capacity;
+	}
+
+	public boolean isFull() {
+		return capacity == rows.length;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return selected row count
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 *            from 0 to size - 1
+	 * @return i-th selected row
+	 */
+	public LogMap get(int i) {
+		return rows[selected == null ? i : selected[i]];
+	}
+
+	/**
+	 * replace i-th selected row
+	 */
+	public void set(int i, LogMap m) {
+		rows[selected == null ? i : selected[i]] = m;
+	}
+
+	/**
+	 * keep first n selected rows only
+	 */
+	public void truncate(int n) {
+		if (n < size)
+			size = n;
+	}
+
+	/**
+	 * @param flags
+	 *            false to unselect i-th selected row
+	 */
+	public void select(boolean[] flags) {
+		int[] s = selected;
+		if (s == null)
+			s = new int[capacity];
+
+		int n = 0;
+		for (int i = 0; i < size; i++)
+			if (flags[i])
+				s[n++] = selected == null ? i : selected[i];
+
+		selected = s;
+		size = n;
+	}
+}
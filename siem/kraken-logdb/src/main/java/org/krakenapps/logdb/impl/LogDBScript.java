@@ -43,10 +43,13 @@ import org.krakenapps.logdb.LogResultSet;
 import org.krakenapps.logdb.LogScriptFactory;
 import org.krakenapps.logdb.LogScriptRegistry;
 import org.krakenapps.logdb.LookupHandlerRegistry;
+import org.krakenapps.logdb.mapreduce.MapReduceLink;
 import org.krakenapps.logdb.mapreduce.MapReduceQueryStatus;
 import org.krakenapps.logdb.mapreduce.MapReduceService;
 import org.krakenapps.logdb.mapreduce.RemoteQuery;
 import org.krakenapps.logdb.query.command.RpcFrom;
+import org.krakenapps.logdb.query.command.Search;
+import org.krakenapps.logdb.sort.SortService;
 import org.krakenapps.rpc.RpcConnection;
 import org.krakenapps.rpc.RpcConnectionProperties;
 
@@ -190,16 +193,25 @@ public class LogDBScript implements Script {
 				for (LogQueryCommand cmd : query.getCommands()) {
 					context.println(String.format("    [%s] %s \t/ passed %d data to next query", cmd.getStatus(),
 							cmd.getQueryString(), cmd.getPushCount()));
+					if (cmd instanceof Search) {
+						for (Map<String, Object> t : ((Search) cmd).getTermStatistics())
+							context.println(String.format("        term [%s] \t/ passed %d of %d", t.get("term"), t.get("passed"),
+									t.get("evaluated")));
+					}
 				}
 			} else
 				context.println("    null");
 		}
 	}
 
-	@ScriptUsage(description = "run query", arguments = { @ScriptArgument(name = "query", type = "string", description = "query string") })
+	@ScriptUsage(description = "run query", arguments = {
+			@ScriptArgument(name = "query", type = "string", description = "query string"),
+			@ScriptArgument(name = "parallelism", type = "int", description = "worker thread count, 1 by default", optional = true) })
 	public void query(String[] args) throws IOException {
 		long begin = System.currentTimeMillis();
 		LogQuery lq = qs.createQuery(args[0]);
+		if (args.length > 1)
+			lq.setParallelism(Integer.valueOf(args[1]));
 		qs.startQuery(lq.getId());
 
 		do {
@@ -224,6 +236,17 @@ public class LogDBScript implements Script {
 		context.println(String.format("total %d rows, elapsed %.1fs", count, (System.currentTimeMillis() - begin) / (double) 1000));
 	}
 
+	@ScriptUsage(description = "print query plan without running query", arguments = { @ScriptArgument(name = "query", type = "string", description = "query string") })
+	public void explain(String[] args) {
+		LogQuery lq = qs.createQuery(args[0]);
+		try {
+			for (String line : lq.explain())
+				context.println(line);
+		} finally {
+			qs.removeQuery(lq.getId());
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	private void printMap(Map<String, Object> m) {
 		boolean start = true;
@@ -250,6 +273,27 @@ public class LogDBScript implements Script {
 		context.println("}");
 	}
 
+	@ScriptUsage(description = "print or set max worker thread count for all parallel queries", arguments = { @ScriptArgument(name = "count", type = "int", description = "new thread budget", optional = true) })
+	public void queryThreads(String[] args) {
+		if (args.length > 0) {
+			qs.setQueryThreadBudget(Integer.valueOf(args[0]));
+			context.println("set");
+		} else {
+			context.println("query thread budget: " + qs.getQueryThreadBudget());
+		}
+	}
+
+	@ScriptUsage(description = "print sort status or set sort memory budget", arguments = { @ScriptArgument(name = "megabytes", type = "int", description = "new sort memory budget", optional = true) })
+	public void sortStatus(String[] args) {
+		SortService sort = SortService.getInstance();
+		if (args.length > 0) {
+			sort.setMemoryBudget(Long.valueOf(args[0]) * 1024 * 1024);
+			context.println("set");
+		} else {
+			context.println(sort);
+		}
+	}
+
 	@ScriptUsage(description = "stop query. you can still view search result", arguments = { @ScriptArgument(name = "id", type = "int", description = "log query id") })
 	public void stopQuery(String[] args) {
 		int id = Integer.parseInt(args[0]);
@@ -341,8 +385,11 @@ public class LogDBScript implements Script {
 		context.println("MapReduce Queries");
 		context.println("-----------------");
 
-		for (MapReduceQueryStatus q : mapreduce.getQueries())
+		for (MapReduceQueryStatus q : mapreduce.getQueries()) {
 			context.println(q);
+			for (MapReduceLink link : q.getLinks())
+				context.println("  " + link);
+		}
 	}
 
 	public void mrquery(String[] args) throws IOException {
@@ -28,6 +28,7 @@ import org.krakenapps.logdb.LogQueryCommand;
 import org.krakenapps.logdb.LogQueryService;
 import org.krakenapps.logdb.LogResultSet;
 import org.krakenapps.logdb.query.command.Fields;
+import org.krakenapps.logdb.query.command.Search;
 
 public class LogQueryHelper {
 	private LogQueryHelper() {
@@ -48,6 +49,8 @@ public class LogQueryHelper {
 					c.put("command", cmd.getQueryString());
 					c.put("status", cmd.getStatus());
 					c.put("push_count", cmd.getPushCount());
+					if (cmd instanceof Search)
+						c.put("terms", ((Search) cmd).getTermStatistics());
 					commands.add(c);
 				}
 			}
@@ -66,11 +69,21 @@ public class LogQueryHelper {
 	}
 
 	public static Map<String, Object> getResultData(LogQueryService qs, int id, int offset, int limit) throws IOException {
+		return getResultData(qs, id, offset, limit, null);
+	}
+
+	/**
+	 * @param sortFields
+	 *            sort field names of loaded result, '-' prefixed name for
+	 *            descending order. null for query output order.
+	 */
+	public static Map<String, Object> getResultData(LogQueryService qs, int id, int offset, int limit, List<String> sortFields)
+			throws IOException {
 		LogQuery query = qs.getQuery(id);
 		if (query != null) {
 			Map<String, Object> m = new HashMap<String, Object>();
 
-			m.put("result", getPage(query, offset, limit));
+			m.put("result", getPage(query, offset, limit, sortFields));
 			m.put("count", query.getResultCount());
 
 			Fields fields = null;
@@ -88,9 +101,9 @@ public class LogQueryHelper {
 		return null;
 	}
 
-	private static List<Object> getPage(LogQuery query, int offset, int limit) throws IOException {
+	private static List<Object> getPage(LogQuery query, int offset, int limit, List<String> sortFields) throws IOException {
 		List<Object> l = new LinkedList<Object>();
-		LogResultSet rs = query.getResult();
+		LogResultSet rs = sortFields != null ? query.getSortedResult(sortFields) : query.getResult();
 		try {
 			rs.skip(offset);
 
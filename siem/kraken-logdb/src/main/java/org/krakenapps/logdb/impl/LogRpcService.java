@@ -168,6 +168,7 @@ public class LogRpcService extends SimpleRpcService {
 		int offset = (Integer) options.get("offset");
 		int limit = (Integer) options.get("limit");
 		Integer timelineSize = (Integer) options.get("timeline_size");
+		Integer parallelism = (Integer) options.get("parallelism");
 
 		// TODO: general rpc callback infra
 
@@ -185,6 +186,9 @@ public class LogRpcService extends SimpleRpcService {
 				query.registerTimelineCallback(tc);
 			}
 
+			if (parallelism != null)
+				query.setParallelism(parallelism);
+
 			new Thread(query, "Log Query " + id).start();
 		}
 	}
@@ -33,6 +33,7 @@ import org.krakenapps.logdb.LogQueryService;
 import org.krakenapps.logdb.LogQueryStatus;
 import org.krakenapps.logdb.SyntaxProvider;
 import org.krakenapps.logdb.mapreduce.MapQuery;
+import org.krakenapps.logdb.mapreduce.MapReduceLink;
 import org.krakenapps.logdb.mapreduce.MapReduceQueryStatus;
 import org.krakenapps.logdb.mapreduce.MapReduceService;
 import org.krakenapps.logdb.mapreduce.ReduceQuery;
@@ -41,8 +42,11 @@ import org.krakenapps.logdb.mapreduce.RemoteQuery;
 import org.krakenapps.logdb.mapreduce.RemoteQueryKey;
 import org.krakenapps.logdb.query.LogQueryImpl;
 import org.krakenapps.logdb.query.StringPlaceholder;
+import org.krakenapps.logdb.query.command.AggregationStage;
 import org.krakenapps.logdb.query.command.RpcFrom;
 import org.krakenapps.logdb.query.command.RpcTo;
+import org.krakenapps.logdb.query.command.Stats2;
+import org.krakenapps.logdb.query.command.Timechart2;
 import org.krakenapps.rpc.RpcAgent;
 import org.krakenapps.rpc.RpcClient;
 import org.krakenapps.rpc.RpcConnection;
@@ -206,10 +210,22 @@ public class MapReduceRpcService extends SimpleRpcService implements MapReduceSe
 		return rpcToMap.get(guid);
 	}
 
+	/**
+	 * @return initial batch credits of mapper
+	 */
 	@RpcMethod(name = "setLogStream")
-	public void setLogStream(String guid) {
+	public int setLogStream(String guid) {
 		RpcSession session = RpcContext.getSession();
 		session.setProperty("guid", guid);
+
+		MapReduceLink link = new MapReduceLink(session.getConnection().getPeerGuid(), session.getId());
+		session.setProperty("link", link);
+
+		MapReduceQueryStatus status = queries.get(guid);
+		if (status != null)
+			status.getLinks().add(link);
+
+		return MapReduceLink.WINDOW;
 	}
 
 	@RpcMethod(name = "push")
@@ -225,6 +241,32 @@ public class MapReduceRpcService extends SimpleRpcService implements MapReduceSe
 		}
 	}
 
+	/**
+	 * @return credits granted to mapper
+	 */
+	@RpcMethod(name = "pushBatch")
+	public int pushBatch(byte[] data) {
+		RpcSession session = RpcContext.getSession();
+		String queryGuid = (String) session.getProperty("guid");
+		MapReduceLink link = (MapReduceLink) session.getProperty("link");
+
+		RpcFrom rpc = rpcFromMap.get(queryGuid);
+		if (rpc == null) {
+			logger.warn("kraken logdb: rpcfrom not found for mapreduce query [{}]", queryGuid);
+			return 1;
+		}
+
+		rpc.push(link, data);
+		return link.takeCredits();
+	}
+
+	@RpcMethod(name = "pollCredit")
+	public int pollCredit() {
+		RpcSession session = RpcContext.getSession();
+		MapReduceLink link = (MapReduceLink) session.getProperty("link");
+		return link.takeCredits();
+	}
+
 	@RpcMethod(name = "eof")
 	public void eof(String queryGuid) {
 		// TODO: check if all mapper queries are ended
@@ -362,6 +404,16 @@ public class MapReduceRpcService extends SimpleRpcService implements MapReduceSe
 		String mapQueryString = buildQueryString(mapCommands);
 		String reduceQueryString = buildQueryString(reduceCommands);
 
+		// aggregate in mapper nodes, and send partial groups only
+		if (!reduceCommands.isEmpty() && isPartialCapable(reduceCommands.get(0))) {
+			String aggregation = reduceCommands.get(0).getQueryString();
+			mapQueryString += "|" + setStage(aggregation, AggregationStage.Partial);
+			reduceQueryString = setStage(aggregation, AggregationStage.Final)
+					+ reduceQueryString.substring(aggregation.length());
+
+			logger.debug("kraken logdb: partial aggregation pushdown for mapreduce query [{}]", queryGuid);
+		}
+
 		mapQueryString = mapQueryString + "|rpcto " + queryGuid;
 		reduceQueryString = "rpcfrom " + queryGuid + "|" + reduceQueryString;
 
@@ -396,6 +448,23 @@ public class MapReduceRpcService extends SimpleRpcService implements MapReduceSe
 		return status;
 	}
 
+	private boolean isPartialCapable(LogQueryCommand c) {
+		if (c instanceof Stats2)
+			return ((Stats2) c).getStage() == AggregationStage.Complete;
+		if (c instanceof Timechart2)
+			return ((Timechart2) c).getStage() == AggregationStage.Complete;
+		return false;
+	}
+
+	/**
+	 * @return command string with stage option, e.g. 'stats stage=partial
+	 *         count by src_ip'
+	 */
+	private String setStage(String command, AggregationStage stage) {
+		int p = command.indexOf(' ');
+		return command.substring(0, p) + " stage=" + stage + command.substring(p);
+	}
+
 	private String buildQueryString(List<LogQueryCommand> commands) {
 		StringBuilder sb = new StringBuilder();
 		int i = 0;
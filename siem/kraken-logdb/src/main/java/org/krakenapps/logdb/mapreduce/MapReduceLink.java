@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.mapreduce;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Row stream from a mapper node to reducer. Mapper sends compressed row
+ * batches while it has credits, and reducer returns a credit for each batch
+ * which is passed to reduce query, so queued batches per link never exceed
+ * the window.
+ */
+public class MapReduceLink {
+	/**
+	 * initial credits of mapper, in batches
+	 */
+	public static final int WINDOW = 8;
+
+	private String peerGuid;
+	private int sessionId;
+	private Date openedAt = new Date();
+
+	private AtomicLong rows = new AtomicLong();
+	private AtomicLong batches = new AtomicLong();
+	private AtomicLong bytes = new AtomicLong();
+
+	// received but not consumed batches
+	private AtomicInteger queued = new AtomicInteger();
+
+	// consumed batches which are not granted to mapper yet
+	private AtomicInteger freed = new AtomicInteger();
+
+	public MapReduceLink(String peerGuid, int sessionId) {
+		this.peerGuid = peerGuid;
+		this.sessionId = sessionId;
+	}
+
+	public String getPeerGuid() {
+		return peerGuid;
+	}
+
+	public int getSessionId() {
+		return sessionId;
+	}
+
+	public Date getOpenedAt() {
+		return openedAt;
+	}
+
+	public long getRows() {
+		return rows.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * @return received compressed bytes
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return batches waiting for reduce query
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * @return consumed rows per second since link is opened
+	 */
+	public long getThroughput() {
+		long elapsed = Math.max(1, new Date().getTime() - openedAt.getTime());
+		return rows.get() * 1000 / elapsed;
+	}
+
+	public void onReceive(int length) {
+		batches.incrementAndGet();
+		bytes.addAndGet(length);
+		queued.incrementAndGet();
+	}
+
+	public void onConsume(int count) {
+		rows.addAndGet(count);
+		queued.decrementAndGet();
+		freed.incrementAndGet();
+	}
+
+	/**
+	 * @return credits to grant to mapper
+	 */
+	public int takeCredits() {
+		return freed.getAndSet(0);
+	}
+
+	@Override
+	public String toString() {
+		return "peer=" + peerGuid + ", session=" + sessionId + ", rows=" + rows.get() + ", batches=" + batches.get()
+				+ ", bytes=" + bytes.get() + ", queued=" + queued.get() + ", throughput=" + getThroughput() + " rows/s";
+	}
+}
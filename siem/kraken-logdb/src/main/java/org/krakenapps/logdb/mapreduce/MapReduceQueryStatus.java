@@ -1,6 +1,7 @@
 package org.krakenapps.logdb.mapreduce;
 
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class MapReduceQueryStatus {
 	private String guid;
@@ -8,6 +9,9 @@ public class MapReduceQueryStatus {
 	private List<RemoteMapQuery> mapQueries;
 	private ReduceQuery reduceQuery;
 
+	// row streams from mapper nodes
+	private List<MapReduceLink> links = new CopyOnWriteArrayList<MapReduceLink>();
+
 	public MapReduceQueryStatus(String guid, String query, List<RemoteMapQuery> mapQueries, ReduceQuery reduceQuery) {
 		this.guid = guid;
 		this.query = query;
@@ -39,6 +43,10 @@ public class MapReduceQueryStatus {
 		this.reduceQuery = reduceQuery;
 	}
 
+	public List<MapReduceLink> getLinks() {
+		return links;
+	}
+
 	@Override
 	public String toString() {
 		return "guid=" + guid + ", query=" + query;
@@ -176,6 +176,7 @@ public class LogQueryPlugin {
 		int offset = req.getInteger("offset");
 		int limit = req.getInteger("limit");
 		Integer timelineLimit = req.getInteger("timeline_limit");
+		Integer parallelism = req.getInteger("parallelism");
 
 		LogQuery query = service.getQuery(id);
 
@@ -196,6 +197,9 @@ public class LogQueryPlugin {
 			query.registerTimelineCallback(tc);
 		}
 
+		if (parallelism != null)
+			query.setParallelism(parallelism);
+
 		// start query
 		service.startQuery(query.getId());
 	}
@@ -216,7 +220,11 @@ public class LogQueryPlugin {
 		int offset = req.getInteger("offset");
 		int limit = req.getInteger("limit");
 
-		Map<String, Object> m = LogQueryHelper.getResultData(service, id, offset, limit);
+		// optional sort of loaded result, e.g. ["-count", "src_ip"]
+		@SuppressWarnings("unchecked")
+		List<String> sortFields = (List<String>) req.get("sort");
+
+		Map<String, Object> m = LogQueryHelper.getResultData(service, id, offset, limit, sortFields);
 		if (m != null)
 			resp.putAll(m);
 	}
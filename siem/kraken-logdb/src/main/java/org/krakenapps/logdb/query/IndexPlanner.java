@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.krakenapps.logdb.query.command.IndexPlan;
+import org.krakenapps.logdb.query.command.NumberUtil;
+import org.krakenapps.logdb.query.command.ScanFilter;
+import org.krakenapps.logdb.query.command.Search;
+import org.krakenapps.logdb.query.command.Table;
+import org.krakenapps.logdb.query.command.Term;
+import org.krakenapps.logstorage.BatchIndexingTask;
+import org.krakenapps.logstorage.LogIndexCondition;
+import org.krakenapps.logstorage.LogIndexCursor;
+import org.krakenapps.logstorage.LogIndexItem;
+import org.krakenapps.logstorage.LogIndexQuery;
+import org.krakenapps.logstorage.LogIndexSchema;
+import org.krakenapps.logstorage.LogIndexer;
+import org.krakenapps.logstorage.LogStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses index driven fetch for table with pushed down search terms. Index
+ * condition is built from == and in terms which delimiter tokenizer can
+ * index, and index is used only if estimated hit count is small enough
+ * compared to log count of indexed days, since fetching each log by id costs
+ * far more than sequential scan. Hit count is also bounded by fixed count, so
+ * planner walks a limited number of postings for each index. A day is indexed
+ * if index segment exists and batch indexing of the day is finished, and
+ * other days are scanned.
+ */
+public class IndexPlanner {
+	private final Logger logger = LoggerFactory.getLogger(IndexPlanner.class);
+	private static final long DAY_MILLIS = 86400000L;
+
+	// use index only if hits are less than this ratio of indexed logs
+	private static final double MAX_HIT_RATIO = 0.1;
+
+	// random fetch of more logs is not cheaper than scan even for large table
+	private static final long MAX_HITS = 50000;
+
+	// postings of days which are not indexed yet are walked but not counted
+	private static final long MAX_POSTINGS = MAX_HITS * 2;
+
+	private LogStorage storage;
+	private LogIndexer indexer;
+
+	public IndexPlanner(LogStorage storage, LogIndexer indexer) {
+		this.storage = storage;
+		this.indexer = indexer;
+	}
+
+	/**
+	 * @return the cheapest index plan, or null if table should be scanned
+	 */
+	public IndexPlan plan(Table table) {
+		ScanFilter filter = table.getFilter();
+		if (filter == null || filter.getSearches().isEmpty())
+			return null;
+
+		String tableName = table.getTableName();
+		Set<String> indexNames = indexer.getIndexNames(tableName);
+		if (indexNames == null || indexNames.isEmpty())
+			return null;
+
+		List<Date> days = getDays(tableName, table.getFrom(), table.getTo());
+		if (days.isEmpty())
+			return null;
+
+		IndexPlan best = null;
+		for (String indexName : indexNames) {
+			try {
+				IndexPlan plan = plan(tableName, indexName, filter.getSearches(), days);
+				if (plan != null && (best == null || plan.getEstimatedHits() < best.getEstimatedHits()))
+					best = plan;
+			} catch (IOException e) {
+				logger.error("kraken logdb: cannot estimate index [" + indexName + "] of table [" + tableName + "]", e);
+			}
+		}
+
+		return best;
+	}
+
+	private IndexPlan plan(String tableName, String indexName, List<Search> searches, List<Date> days)
+			throws IOException {
+		LogIndexSchema schema = indexer.getIndexConfig(tableName, indexName);
+		if (schema == null || !"delimiter".equals(schema.getTokenizerName()))
+			return null;
+
+		LogIndexCondition condition = buildCondition(schema.getTokenizerConfigs(), searches);
+		if (condition == null)
+			return null;
+
+		Set<Date> indexedDays = getIndexedDays(schema, days);
+
+		// log count is needed to compare with hit count
+		long indexedLogs = 0;
+		for (Date day : new ArrayList<Date>(indexedDays)) {
+			long count = storage.getLogCount(tableName, day);
+			if (count < 0)
+				indexedDays.remove(day);
+			else
+				indexedLogs += count;
+		}
+
+		if (indexedDays.isEmpty())
+			return null;
+
+		long maxHits = Math.min((long) (indexedLogs * MAX_HIT_RATIO), MAX_HITS);
+		long hits = countHits(tableName, indexName, condition, indexedDays, maxHits);
+		if (hits > maxHits) {
+			logger.debug("kraken logdb: index [{}] of table [{}] is not selective, hits > {} of {} logs", new Object[] {
+					indexName, tableName, maxHits, indexedLogs });
+			return null;
+		}
+
+		return new IndexPlan(indexer, indexName, condition, days, indexedDays, hits, indexedLogs);
+	}
+
+	/**
+	 * @return days of table in range, descending
+	 */
+	private List<Date> getDays(String tableName, Date from, Date to) {
+		List<Date> days = new ArrayList<Date>();
+		for (Date day : storage.getLogDates(tableName)) {
+			if (from != null && day.getTime() + DAY_MILLIS <= from.getTime())
+				continue;
+			if (to != null && day.after(to))
+				continue;
+			days.add(day);
+		}
+
+		Collections.sort(days, Collections.reverseOrder());
+		return days;
+	}
+
+	private Set<Date> getIndexedDays(LogIndexSchema schema, List<Date> days) {
+		Set<Date> indexedDays = new HashSet<Date>(indexer.getIndexedDays(schema.getTableName(), schema.getIndexName()));
+		indexedDays.retainAll(days);
+
+		Date minDay = schema.getMinIndexDay();
+		for (Date day : new ArrayList<Date>(indexedDays))
+			if (minDay != null && day.before(minDay))
+				indexedDays.remove(day);
+
+		// segments of building day do not have all logs yet
+		for (BatchIndexingTask task : indexer.getBatchIndexingTasks()) {
+			if (!task.getTableName().equals(schema.getTableName()) || !task.getIndexName().equals(schema.getIndexName()))
+				continue;
+			if (!task.isDone())
+				indexedDays.removeAll(task.getBuilds().keySet());
+		}
+
+		return indexedDays;
+	}
+
+	/**
+	 * @return hit count of indexed days, or maxHits + 1 if hits exceed limit
+	 */
+	private long countHits(String tableName, String indexName, LogIndexCondition condition, Set<Date> indexedDays,
+			long maxHits) throws IOException {
+		LogIndexQuery q = new LogIndexQuery();
+		q.setTableName(tableName);
+		q.setIndexName(indexName);
+		q.setCondition(condition);
+		q.setMinDay(Collections.min(indexedDays));
+		q.setMaxDay(Collections.max(indexedDays));
+
+		long hits = 0;
+		long postings = 0;
+		LogIndexCursor cursor = indexer.search(q);
+		try {
+			while (cursor.hasNext()) {
+				LogIndexItem item = cursor.next();
+				if (indexedDays.contains(item.getDay()) && ++hits > maxHits)
+					break;
+				if (++postings > MAX_POSTINGS)
+					return maxHits + 1;
+			}
+		} finally {
+			cursor.close();
+		}
+		return hits;
+	}
+
+	/**
+	 * @return conjunction of index conditions of all indexable terms, or null
+	 *         if no term can use index
+	 */
+	private LogIndexCondition buildCondition(Map<String, String> configs, List<Search> searches) {
+		String delimiters = configs.get("delimiters");
+		if (delimiters == null)
+			return null;
+
+		Set<String> targetColumns = null;
+		String s = configs.get("target_columns");
+		if (s != null) {
+			targetColumns = new HashSet<String>();
+			for (String column : s.split(","))
+				targetColumns.add(column);
+		}
+
+		List<LogIndexCondition> operands = new ArrayList<LogIndexCondition>();
+		for (Search search : searches) {
+			for (Term term : search.getTerms()) {
+				LogIndexCondition c = buildCondition(term, delimiters, targetColumns);
+				if (c != null)
+					operands.add(c);
+			}
+		}
+
+		if (operands.isEmpty())
+			return null;
+		if (operands.size() == 1)
+			return operands.get(0);
+		return LogIndexCondition.and(operands.toArray(new LogIndexCondition[0]));
+	}
+
+	/**
+	 * Term passes only if field value equals to constant text. String value
+	 * is indexed by lower case tokens, so all tokens of the text should be
+	 * found in index.
+	 */
+	private LogIndexCondition buildCondition(Term term, String delimiters, Set<String> targetColumns) {
+		if (term.isLhString() || !term.isRhString() || term.getRh() == null)
+			return null;
+
+		String field = term.getLh().toString();
+		if (field.contains("[") || (targetColumns != null && !targetColumns.contains(field)))
+			return null;
+
+		String value = term.getRh().toString();
+		switch (term.getOperator()) {
+		case Eq:
+			return buildCondition(value, delimiters);
+		case In: {
+			List<LogIndexCondition> operands = new ArrayList<LogIndexCondition>();
+			for (String v : value.replaceAll(",( )*", ",").split(",")) {
+				LogIndexCondition c = buildCondition(v, delimiters);
+				if (c == null)
+					return null;
+				operands.add(c);
+			}
+
+			if (operands.size() == 1)
+				return operands.get(0);
+			return LogIndexCondition.or(operands.toArray(new LogIndexCondition[0]));
+		}
+		default:
+			return null;
+		}
+	}
+
+	private LogIndexCondition buildCondition(String value, String delimiters) {
+		if (!isIndexable(value))
+			return null;
+
+		List<LogIndexCondition> operands = new ArrayList<LogIndexCondition>();
+		StringTokenizer tok = new StringTokenizer(value.toLowerCase(), delimiters);
+		while (tok.hasMoreTokens())
+			operands.add(LogIndexCondition.term(tok.nextToken()));
+
+		if (operands.isEmpty())
+			return null;
+		if (operands.size() == 1)
+			return operands.get(0);
+		return LogIndexCondition.and(operands.toArray(new LogIndexCondition[0]));
+	}
+
+	/**
+	 * Numbers are indexed without tokenizing, and value of other types is not
+	 * indexed. Text which can be equal to number, ip address, boolean or date
+	 * value cannot use index.
+	 */
+	private static boolean isIndexable(String value) {
+		if (NumberUtil.getValue(value) != null)
+			return false;
+		if (value.indexOf('/') >= 0)
+			return false;
+		if (value.equals("true") || value.equals("false"))
+			return false;
+		return !(value.indexOf(' ') >= 0 && value.indexOf(':') >= 0);
+	}
+}
@@ -34,7 +34,14 @@ import org.krakenapps.logdb.LogQueryCommand.Status;
 import org.krakenapps.logdb.LogResultSet;
 import org.krakenapps.logdb.LogTimelineCallback;
 import org.krakenapps.logdb.SyntaxProvider;
+import org.krakenapps.logdb.query.command.Fields;
+import org.krakenapps.logdb.query.command.Gather;
+import org.krakenapps.logdb.query.command.IndexPlan;
+import org.krakenapps.logdb.query.command.RollupPlan;
 import org.krakenapps.logdb.query.command.Result;
+import org.krakenapps.logdb.query.command.ScanFilter;
+import org.krakenapps.logdb.query.command.Search;
+import org.krakenapps.logdb.query.command.Table;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,9 +56,18 @@ public class LogQueryImpl implements LogQuery {
 	private Result result;
 	private Set<LogQueryCallback> logQueryCallbacks = new CopyOnWriteArraySet<LogQueryCallback>();
 	private Set<LogTimelineCallback> timelineCallbacks = new CopyOnWriteArraySet<LogTimelineCallback>();
+	private QueryThreadPool threadPool;
+	private IndexPlanner indexPlanner;
+	private RollupPlanner rollupPlanner;
+	private int parallelism;
 
 	public LogQueryImpl(SyntaxProvider syntaxProvider, String queryString) {
+		this(syntaxProvider, queryString, null);
+	}
+
+	public LogQueryImpl(SyntaxProvider syntaxProvider, String queryString, QueryThreadPool threadPool) {
 		this.queryString = queryString;
+		this.threadPool = threadPool;
 
 		for (String q : split(queryString)) {
 			q = q.trim();
@@ -115,22 +131,161 @@ public class LogQueryImpl implements LogQuery {
 		if (commands.isEmpty())
 			return;
 
+		int workers = 0;
 		try {
 			result = new Result();
 			result.setLogQuery(this);
-			commands.get(commands.size() - 1).setNextCommand(result);
+			link();
 			for (LogQueryCallback callback : logQueryCallbacks)
 				result.registerCallback(callback);
 			logQueryCallbacks.clear();
 
+			planPushdown();
+			workers = planParallel();
+
 			logger.trace("kraken logdb: run query => {}", queryString);
-			for (LogQueryCommand command : commands)
+			for (LogQueryCommand command = commands.get(0); command != result; command = command.getNextCommand())
 				command.init();
 
 			commands.get(0).start();
 		} catch (Exception e) {
 			logger.error("kraken logdb: query failed - " + this, e);
+		} finally {
+			if (workers > 0)
+				threadPool.release(workers);
+		}
+	}
+
+	/**
+	 * link commands to result, and restore links changed by last parallel run
+	 */
+	private void link() {
+		for (int i = 0; i < commands.size() - 1; i++)
+			commands.get(i).setNextCommand(commands.get(i + 1));
+		commands.get(commands.size() - 1).setNextCommand(result);
+	}
+
+	/**
+	 * Push search commands right after table, and field projection of
+	 * following fields command down into table scan. Storage skips blocks by
+	 * zone map and passes matched rows only.
+	 */
+	private void planPushdown() {
+		LogQueryCommand source = commands.get(0);
+		if (!(source instanceof Table))
+			return;
+
+		Table table = (Table) source;
+		table.setFilter(null);
+		table.setIndexPlan(null);
+		table.setRollupPlan(null);
+		for (LogQueryCommand command : commands)
+			if (command instanceof Search)
+				((Search) command).setPushedDown(false);
+
+		// offset, limit and parser are applied before filter
+		if (table.getOffset() != 0 || table.getLimit() != 0 || table.getParser() != null)
+			return;
+
+		List<Search> searches = new ArrayList<Search>();
+		LogQueryCommand next = table.getNextCommand();
+		while (next instanceof Search && ScanFilter.isPushable((Search) next)) {
+			searches.add((Search) next);
+			next = next.getNextCommand();
+		}
+
+		List<String> fieldNames = null;
+		if (next instanceof Fields && !((Fields) next).isRemove())
+			fieldNames = ((Fields) next).getFields();
+
+		if (searches.isEmpty() && fieldNames == null) {
+			// timechart right after table can be answered by table rollup
+			if (rollupPlanner != null) {
+				RollupPlan plan = rollupPlanner.plan(table);
+				table.setRollupPlan(plan);
+				if (plan != null)
+					logger.debug("kraken logdb: query [{}] uses {}", id, plan);
+			}
+			return;
+		}
+
+		ScanFilter filter = new ScanFilter(searches, fieldNames);
+		table.setFilter(filter);
+		for (Search search : searches)
+			search.setPushedDown(true);
+
+		// scan can stop at limit of the last search if no other search counts
+		// rows
+		Search last = searches.isEmpty() ? null : searches.get(searches.size() - 1);
+		if (last != null && last.getLimit() != null && last.getLimit() > 0) {
+			boolean counted = false;
+			for (Search search : searches)
+				if (search != last && search.getLimit() != null)
+					counted = true;
+
+			if (!counted)
+				filter.setLimit(last.getLimit());
+		}
+
+		logger.debug("kraken logdb: query [{}] pushed down {} searches, fields {}", new Object[] { id, searches.size(),
+				fieldNames });
+
+		if (indexPlanner != null && !searches.isEmpty()) {
+			IndexPlan plan = indexPlanner.plan(table);
+			table.setIndexPlan(plan);
+			if (plan != null)
+				logger.debug("kraken logdb: query [{}] uses {}", id, plan);
+		}
+	}
+
+	/**
+	 * Reserve workers for parallelizable commands after table, and put gather
+	 * command in front of the first command which should receive rows in one
+	 * thread and in scan order. Parallelizable reducer merges partial results
+	 * of workers at eof.
+	 * 
+	 * @return reserved worker count
+	 */
+	private int planParallel() {
+		LogQueryCommand source = commands.get(0);
+		if (!(source instanceof Table))
+			return 0;
+
+		Table table = (Table) source;
+		table.setWorkers(null, 0);
+		table.setGather(null);
+
+		if (threadPool == null || parallelism <= 1)
+			return 0;
+
+		LogQueryCommand prev = source;
+		LogQueryCommand next = source.getNextCommand();
+		while (next != result && next.isParallelizable() && !next.isReducer()) {
+			prev = next;
+			next = next.getNextCommand();
+		}
+
+		// nothing to run in parallel
+		if (prev == source && !next.isParallelizable())
+			return 0;
+
+		int workers = threadPool.reserve(parallelism);
+		if (workers == 0) {
+			logger.debug("kraken logdb: no query worker left, run query [{}] sequentially", id);
+			return 0;
 		}
+
+		if (!next.isParallelizable()) {
+			Gather gather = new Gather();
+			gather.setLogQuery(this);
+			prev.setNextCommand(gather);
+			gather.setNextCommand(next);
+			table.setGather(gather);
+		}
+
+		table.setWorkers(threadPool, workers);
+		logger.debug("kraken logdb: query [{}] runs with {} workers", id, workers);
+		return workers;
 	}
 
 	@Override
@@ -193,6 +348,13 @@ public class LogQueryImpl implements LogQuery {
 		return null;
 	}
 
+	@Override
+	public LogResultSet getSortedResult(List<String> fields) throws IOException {
+		if (result != null)
+			return result.getSortedResult(fields);
+		return null;
+	}
+
 	@Override
 	public Long getResultCount() throws IOException {
 		if (result == null)
@@ -222,17 +384,14 @@ public class LogQueryImpl implements LogQuery {
 			return null;
 
 		try {
-			long p = 0;
+			rs.skip(offset);
+
 			long count = 0;
 			while (rs.hasNext()) {
 				if (count >= limit)
 					break;
 
-				Map<String, Object> m = rs.next();
-				if (p++ < offset)
-					continue;
-
-				l.add(m);
+				l.add(rs.next());
 				count++;
 			}
 		} finally {
@@ -246,6 +405,68 @@ public class LogQueryImpl implements LogQuery {
 		return commands;
 	}
 
+	@Override
+	public List<String> explain() {
+		// planning resets pushed down state of running commands
+		if (isEnd()) {
+			link();
+			planPushdown();
+		}
+
+		List<String> lines = new ArrayList<String>();
+		LogQueryCommand source = commands.get(0);
+		if (source instanceof Table) {
+			Table table = (Table) source;
+			ScanFilter filter = table.getFilter();
+			IndexPlan plan = table.getIndexPlan();
+			if (plan != null)
+				lines.add("fetch " + plan);
+			else if (table.getRollupPlan() != null)
+				lines.add("fetch " + table.getRollupPlan());
+			else
+				lines.add("scan table [" + table.getTableName() + "]");
+
+			if (filter != null)
+				lines.add("pushed down searches=" + filter.getSearches().size() + ", fields=" + filter.getFieldNames());
+		}
+
+		for (LogQueryCommand command : commands) {
+			String line = command.getQueryString();
+			if (command instanceof Search && ((Search) command).isPushedDown())
+				line += " (pushed down)";
+			lines.add(line);
+		}
+
+		lines.add("parallelism " + parallelism);
+		return lines;
+	}
+
+	@Override
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	@Override
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Index planner is applied at next run. Query is run by table scan if
+	 * planner is not set.
+	 */
+	public void setIndexPlanner(IndexPlanner indexPlanner) {
+		this.indexPlanner = indexPlanner;
+	}
+
+	/**
+	 * Rollup planner is applied at next run. Timechart is aggregated from
+	 * scanned logs if planner is not set.
+	 */
+	public void setRollupPlanner(RollupPlanner rollupPlanner) {
+		this.rollupPlanner = rollupPlanner;
+	}
+
 	@Override
 	public Set<LogQueryCallback> getLogQueryCallback() {
 		return Collections.unmodifiableSet(logQueryCallbacks);
@@ -25,6 +25,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.Validate;
@@ -63,6 +64,7 @@ import org.krakenapps.logdb.query.parser.TextFileParser;
 import org.krakenapps.logdb.query.parser.TimechartParser;
 import org.krakenapps.logdb.query.parser.TimechartParser2;
 import org.krakenapps.logdb.query.parser.ZipFileParser;
+import org.krakenapps.logdb.sort.SortService;
 import org.krakenapps.logstorage.LogIndexer;
 import org.krakenapps.logstorage.LogStorage;
 import org.krakenapps.logstorage.LogTableRegistry;
@@ -104,6 +106,13 @@ public class LogQueryServiceImpl implements LogQueryService {
 
 	private CopyOnWriteArraySet<LogQueryEventListener> callbacks;
 
+	// workers shared by parallel queries
+	private QueryThreadPool threadPool;
+
+	// chooses index driven fetch for table queries
+	private IndexPlanner indexPlanner;
+	private RollupPlanner rollupPlanner;
+
 	public LogQueryServiceImpl(BundleContext bc) {
 		this.bc = bc;
 		this.queries = new ConcurrentHashMap<Integer, LogQuery>();
@@ -120,6 +129,30 @@ public class LogQueryServiceImpl implements LogQueryService {
 		if (!queryDir.exists())
 			logger.info("kraken logdb: create logdb query directory [{}]", queryDir.mkdir());
 
+		int budget = Runtime.getRuntime().availableProcessors();
+		String s = System.getProperty("kraken.logdb.query_threads");
+		if (s != null) {
+			try {
+				budget = Integer.valueOf(s);
+			} catch (NumberFormatException e) {
+				logger.error("kraken logdb: invalid query thread budget [{}]", s);
+			}
+		}
+		threadPool = new QueryThreadPool(budget);
+
+		// sort memory budget in megabytes
+		s = System.getProperty("kraken.logdb.sort_memory");
+		if (s != null) {
+			try {
+				SortService.getInstance().setMemoryBudget(Long.valueOf(s) * 1024 * 1024);
+			} catch (IllegalArgumentException e) {
+				logger.error("kraken logdb: invalid sort memory budget [{}]", s);
+			}
+		}
+
+		indexPlanner = new IndexPlanner(logStorage, logIndexer);
+		rollupPlanner = new RollupPlanner(logStorage);
+
 		@SuppressWarnings("unchecked")
 		List<Class<? extends LogQueryParser>> parserClazzes = Arrays.asList(DropParser.class, EvalParser.class,
 				SearchParser.class, FieldsParser.class, FunctionParser.class, OptionCheckerParser.class, OptionParser.class,
@@ -150,9 +183,19 @@ public class LogQueryServiceImpl implements LogQueryService {
 		// receive log table event and register it to data source registry
 	}
 
+	@Invalidate
+	public void stop() {
+		if (threadPool != null) {
+			threadPool.close();
+			threadPool = null;
+		}
+	}
+
 	@Override
 	public LogQuery createQuery(String query) {
-		LogQuery lq = new LogQueryImpl(syntaxProvider, query);
+		LogQueryImpl lq = new LogQueryImpl(syntaxProvider, query, threadPool);
+		lq.setIndexPlanner(indexPlanner);
+		lq.setRollupPlanner(rollupPlanner);
 		queries.put(lq.getId(), lq);
 		lq.registerQueryCallback(new EofReceiver(lq));
 		invokeCallbacks(lq, LogQueryStatus.Created);
@@ -170,6 +213,16 @@ public class LogQueryServiceImpl implements LogQueryService {
 		invokeCallbacks(lq, LogQueryStatus.Started);
 	}
 
+	@Override
+	public int getQueryThreadBudget() {
+		return threadPool.getBudget();
+	}
+
+	@Override
+	public void setQueryThreadBudget(int budget) {
+		threadPool.setBudget(budget);
+	}
+
 	@Override
 	public void removeQuery(int id) {
 		LogQuery lq = queries.remove(id);
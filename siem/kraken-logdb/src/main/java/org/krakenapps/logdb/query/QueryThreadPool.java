@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker threads shared by parallel queries. Query reserves workers before
+ * start, and total reserved count is bounded by thread budget. Query runs
+ * sequentially if no worker is left.
+ */
+public class QueryThreadPool {
+	private ExecutorService executor;
+	private int budget;
+	private int reserved;
+
+	public QueryThreadPool(int budget) {
+		this.budget = budget;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "Log Query Worker " + counter.incrementAndGet());
+			}
+		});
+	}
+
+	/**
+	 * @return reserved worker count, from 0 to requested count
+	 */
+	public synchronized int reserve(int count) {
+		int n = Math.max(0, Math.min(count, budget - reserved));
+		reserved += n;
+		return n;
+	}
+
+	public synchronized void release(int count) {
+		reserved -= count;
+	}
+
+	public synchronized int getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Running queries keep reserved workers, and new budget is applied to
+	 * next reservations.
+	 */
+	public synchronized void setBudget(int budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException("negative query thread budget: " + budget);
+		this.budget = budget;
+	}
+
+	public synchronized int getReservedCount() {
+		return reserved;
+	}
+
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+}
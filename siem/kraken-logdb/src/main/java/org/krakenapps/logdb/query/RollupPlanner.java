@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.query.command.RollupPlan;
+import org.krakenapps.logdb.query.command.Table;
+import org.krakenapps.logdb.query.command.Timechart2;
+import org.krakenapps.logstorage.LogRollupSpec;
+import org.krakenapps.logstorage.LogStorage;
+
+/**
+ * Chooses rollup driven fetch for table which is directly followed by
+ * timechart. Rollup is used only if table scans raw logs without filter,
+ * offset, limit and parser, and timechart functions and key field can be
+ * evaluated from rollup entries. Only whole rollup buckets after rollup
+ * declaration are covered, and both ends of query range are scanned.
+ */
+public class RollupPlanner {
+	private static final long DAY_MILLIS = 86400000L;
+
+	private LogStorage storage;
+
+	public RollupPlanner(LogStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * @return the rollup plan, or null if table should be scanned
+	 */
+	public RollupPlan plan(Table table) {
+		if (table.getFilter() != null || table.getOffset() != 0 || table.getLimit() != 0 || table.getParser() != null)
+			return null;
+
+		LogQueryCommand next = table.getNextCommand();
+		if (!(next instanceof Timechart2))
+			return null;
+
+		String tableName = table.getTableName();
+		LogRollupSpec spec = storage.getRollupSpec(tableName);
+		if (spec == null)
+			return null;
+
+		Timechart2 timechart = (Timechart2) next;
+		if (!timechart.isRollupCompatible(spec))
+			return null;
+
+		// rollup bucket of current time is not complete yet
+		long span = spec.getSpan();
+		long from = spec.getSince().getTime();
+		if (table.getFrom() != null)
+			from = Math.max(from, ceil(table.getFrom().getTime(), span));
+
+		long to = table.getTo() != null ? Math.min(table.getTo().getTime() + 1, System.currentTimeMillis())
+				: System.currentTimeMillis();
+		to -= to % span;
+
+		if (from >= to)
+			return null;
+
+		List<Date> days = new ArrayList<Date>();
+		for (Date day : storage.getLogDates(tableName)) {
+			if (day.getTime() + DAY_MILLIS <= from || day.getTime() >= to)
+				continue;
+			days.add(day);
+		}
+
+		return new RollupPlan(spec, timechart, new Date(from), new Date(to), days);
+	}
+
+	private long ceil(long time, long span) {
+		long mod = time % span;
+		return mod == 0 ? time : time - mod + span;
+	}
+}
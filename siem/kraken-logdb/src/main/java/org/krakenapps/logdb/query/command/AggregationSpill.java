@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.krakenapps.codec.EncodingRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hash partitioned spill files of aggregation table. Groups are written to
+ * partition file by key hash, so each partition can be merged in memory
+ * independently at the end.
+ */
+class AggregationSpill {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private final Logger logger = LoggerFactory.getLogger(AggregationSpill.class);
+
+	private File[] files;
+	private DataOutputStream[] outputs;
+	private long spilledCount;
+
+	public AggregationSpill(int partitions) {
+		this.files = new File[partitions];
+		this.outputs = new DataOutputStream[partitions];
+	}
+
+	public int getPartitionCount() {
+		return files.length;
+	}
+
+	public long getSpilledCount() {
+		return spilledCount;
+	}
+
+	/**
+	 * write all groups of table, and caller should clear the table
+	 */
+	public void write(AggregationTable table) throws IOException {
+		for (int g = 0; g < table.size(); g++) {
+			int p = AggregationTable.getPartition(table.getHash(g), files.length);
+			Object[] record = new Object[] { table.getKeys(g), table.getState(g) };
+			ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(record));
+			EncodingRule.encode(bb, record);
+
+			DataOutputStream os = getOutput(p);
+			os.writeInt(bb.position());
+			os.write(bb.array(), 0, bb.position());
+		}
+
+		spilledCount += table.size();
+	}
+
+	private DataOutputStream getOutput(int p) throws IOException {
+		if (outputs[p] == null) {
+			File dir = new File(System.getProperty("kraken.data.dir"), "kraken-logdb/sort");
+			dir.mkdirs();
+			files[p] = File.createTempFile("aggr", ".dat", dir);
+			outputs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[p]), BUFFER_SIZE));
+		}
+		return outputs[p];
+	}
+
+	/**
+	 * merge spilled groups of partition into table, and delete partition file
+	 */
+	public void read(int p, AggregationTable table) throws IOException {
+		if (files[p] == null)
+			return;
+
+		outputs[p].close();
+		outputs[p] = null;
+
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(files[p]), BUFFER_SIZE));
+		try {
+			byte[] buf = new byte[1024];
+			while (true) {
+				int len = 0;
+				try {
+					len = is.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+
+				if (buf.length < len)
+					buf = new byte[len];
+				is.readFully(buf, 0, len);
+
+				Object[] record = (Object[]) EncodingRule.decode(ByteBuffer.wrap(buf, 0, len));
+				table.mergeState(table.findOrAdd((Object[]) record[0]), (Object[]) record[1]);
+			}
+		} finally {
+			is.close();
+			delete(p);
+		}
+	}
+
+	/**
+	 * close and delete all partition files
+	 */
+	public void close() {
+		for (int p = 0; p < files.length; p++) {
+			if (outputs[p] != null) {
+				try {
+					outputs[p].close();
+				} catch (IOException e) {
+					logger.error("kraken logdb: cannot close aggregation spill file", e);
+				}
+				outputs[p] = null;
+			}
+
+			delete(p);
+		}
+	}
+
+	private void delete(int p) {
+		if (files[p] != null && !files[p].delete())
+			logger.warn("kraken logdb: cannot delete aggregation spill file [{}]", files[p].getAbsolutePath());
+		files[p] = null;
+	}
+}
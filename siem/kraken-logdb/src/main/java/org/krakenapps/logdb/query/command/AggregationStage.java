@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+/**
+ * Stage of stats and timechart command. Partial stage passes aggregation
+ * state of each group instead of result (e.g. mapper of map/reduce query),
+ * and final stage merges the states of partial groups.
+ */
+public enum AggregationStage {
+	Complete, Partial, Final;
+
+	/**
+	 * field name of aggregation state in partial group row
+	 */
+	public static final String STATE_FIELD = "_partial";
+
+	/**
+	 * @param option
+	 *            'stage' option of command, complete if null
+	 */
+	public static AggregationStage parse(String option) {
+		if (option == null)
+			return Complete;
+
+		for (AggregationStage stage : values())
+			if (stage.name().equalsIgnoreCase(option))
+				return stage;
+
+		throw new IllegalArgumentException("invalid aggregation stage: " + option);
+	}
+
+	@Override
+	public String toString() {
+		return name().toLowerCase();
+	}
+}
@@ -0,0 +1,654 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.net.Inet4Address;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.query.ObjectComparator;
+import org.krakenapps.logdb.query.command.Function.Average;
+import org.krakenapps.logdb.query.command.Function.Count;
+import org.krakenapps.logdb.query.command.Function.First;
+import org.krakenapps.logdb.query.command.Function.Last;
+import org.krakenapps.logdb.query.command.Function.Max;
+import org.krakenapps.logdb.query.command.Function.Min;
+import org.krakenapps.logdb.query.command.Function.Range;
+import org.krakenapps.logdb.query.command.Function.Sum;
+
+/**
+ * Hash aggregation table for stats and timechart. Group keys and aggregation
+ * states are stored in column arrays, instead of key list and function
+ * objects per group. Builtin functions use fixed state slots, and other
+ * functions fall back to function object per group.
+ */
+class AggregationTable {
+	public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	// key types, primitive types are compared by bits only
+	private static final byte NULL = 0;
+	private static final byte INT = 1;
+	private static final byte LONG = 2;
+	private static final byte IP4 = 3;
+	private static final byte DATE = 4;
+	private static final byte OBJECT = 5;
+
+	// state slot types
+	private static final int COUNT = 0;
+	private static final int SUM = 1;
+	private static final int AVG = 2;
+	private static final int MIN = 3;
+	private static final int MAX = 4;
+	private static final int FIRST = 5;
+	private static final int LAST = 6;
+	private static final int RANGE = 7;
+	private static final int FUNC = 8;
+
+	private ObjectComparator comp = new ObjectComparator();
+
+	private Function[] values;
+	private int[] types;
+	private boolean[] nullable;
+	private int keyCount;
+
+	// rough heap usage per group
+	private int groupBytes;
+
+	// group count
+	private int size;
+
+	// open addressing, group index + 1 or 0 for empty slot
+	private int[] slots;
+
+	// group columns
+	private int[] hashes;
+	private byte[][] keyTypes;
+	private long[][] keyBits;
+	private Object[][] keys;
+
+	// state columns per function, allocated by slot type
+	private long[][] longs;
+	private double[][] doubles;
+	private boolean[][] flags;
+	private Object[][] objs;
+	private Object[][] objs2;
+	private Function[][] funcs;
+
+	public AggregationTable(int keyCount, Function[] values) {
+		this.keyCount = keyCount;
+		this.values = values;
+		this.types = new int[values.length];
+		this.nullable = new boolean[values.length];
+
+		// key type, bits, reference and key object
+		groupBytes = 4 + keyCount * (1 + 8 + 4 + 24) + 8;
+		for (int i = 0; i < values.length; i++) {
+			types[i] = getSlotType(values[i]);
+			nullable[i] = values[i].getTarget() == null;
+			groupBytes += getSlotBytes(types[i]);
+		}
+
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private static int getSlotType(Function f) {
+		// per time functions of timechart are sum
+		if (f instanceof Count)
+			return COUNT;
+		if (f instanceof Sum)
+			return SUM;
+		if (f instanceof Average)
+			return AVG;
+		if (f instanceof Min)
+			return MIN;
+		if (f instanceof Max)
+			return MAX;
+		if (f instanceof First)
+			return FIRST;
+		if (f instanceof Last)
+			return LAST;
+		if (f instanceof Range)
+			return RANGE;
+		return FUNC;
+	}
+
+	/**
+	 * @return true if result depends on input order of rows, and partial
+	 *         groups cannot be merged in arbitrary order
+	 */
+	public static boolean isOrderSensitive(Function[] fs) {
+		for (Function f : fs) {
+			int type = getSlotType(f);
+			if (type == FIRST || type == LAST)
+				return true;
+		}
+		return false;
+	}
+
+	private static int getSlotBytes(int type) {
+		switch (type) {
+		case COUNT:
+			return 8;
+		case SUM:
+		case AVG:
+			return 17;
+		case RANGE:
+			return 8 + 48;
+		case FUNC:
+			return 4 + 64;
+		default:
+			return 4 + 24;
+		}
+	}
+
+	private void allocate(int capacity) {
+		slots = new int[capacity * 2];
+		hashes = new int[capacity];
+		keyTypes = new byte[keyCount][capacity];
+		keyBits = new long[keyCount][capacity];
+		keys = new Object[keyCount][capacity];
+
+		longs = new long[values.length][];
+		doubles = new double[values.length][];
+		flags = new boolean[values.length][];
+		objs = new Object[values.length][];
+		objs2 = new Object[values.length][];
+		funcs = new Function[values.length][];
+
+		for (int i = 0; i < values.length; i++) {
+			switch (types[i]) {
+			case COUNT:
+				longs[i] = new long[capacity];
+				break;
+			case SUM:
+			case AVG:
+				longs[i] = new long[capacity];
+				doubles[i] = new double[capacity];
+				flags[i] = new boolean[capacity];
+				break;
+			case RANGE:
+				objs2[i] = new Object[capacity];
+				objs[i] = new Object[capacity];
+				break;
+			case FUNC:
+				funcs[i] = new Function[capacity];
+				break;
+			default:
+				objs[i] = new Object[capacity];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return estimated heap usage in bytes
+	 */
+	public long getUsage() {
+		return (long) hashes.length * groupBytes + slots.length * 4L;
+	}
+
+	public int getHash(int group) {
+		return hashes[group];
+	}
+
+	/**
+	 * @param hash
+	 *            group hash
+	 * @return partition from 0 to partitions - 1, independent of slot index
+	 */
+	public static int getPartition(int hash, int partitions) {
+		return ((hash * 0x9e3779b9) >>> 16) % partitions;
+	}
+
+	/**
+	 * @param key
+	 *            key values of row. array is not kept, and can be reused
+	 * @return index of existing or new group
+	 */
+	public int findOrAdd(Object[] key) {
+		int hash = 1;
+		for (int k = 0; k < keyCount; k++) {
+			Object o = key[k];
+			byte type = getKeyType(o);
+			long bits = getKeyBits(type, o);
+			hash = 31 * hash + (int) (bits ^ (bits >>> 32)) + type;
+		}
+
+		int mask = slots.length - 1;
+		int pos = mix(hash) & mask;
+		while (true) {
+			int g = slots[pos] - 1;
+			if (g < 0)
+				break;
+
+			if (hashes[g] == hash && keyEquals(g, key))
+				return g;
+
+			pos = (pos + 1) & mask;
+		}
+
+		if (size == hashes.length) {
+			grow();
+			return findOrAdd(key);
+		}
+
+		int g = size++;
+		slots[pos] = g + 1;
+		hashes[g] = hash;
+		for (int k = 0; k < keyCount; k++) {
+			Object o = key[k];
+			byte type = getKeyType(o);
+			keyTypes[k][g] = type;
+			keyBits[k][g] = getKeyBits(type, o);
+			keys[k][g] = o;
+		}
+
+		for (int i = 0; i < values.length; i++)
+			if (types[i] == FUNC)
+				funcs[i][g] = values[i].clone();
+
+		return g;
+	}
+
+	private static int mix(int hash) {
+		hash ^= (hash >>> 16);
+		return hash * 0x85ebca6b;
+	}
+
+	private static byte getKeyType(Object o) {
+		if (o == null)
+			return NULL;
+
+		Class<?> c = o.getClass();
+		if (c == Integer.class)
+			return INT;
+		if (c == Long.class)
+			return LONG;
+		if (c == Inet4Address.class)
+			return IP4;
+		if (c == Date.class)
+			return DATE;
+		return OBJECT;
+	}
+
+	private static long getKeyBits(byte type, Object o) {
+		switch (type) {
+		case NULL:
+			return 0;
+		case INT:
+			return (Integer) o;
+		case LONG:
+			return (Long) o;
+		case IP4:
+			// ipv4 address without copying address bytes
+			return o.hashCode();
+		case DATE:
+			return ((Date) o).getTime();
+		default:
+			return o.hashCode();
+		}
+	}
+
+	private boolean keyEquals(int g, Object[] key) {
+		for (int k = 0; k < keyCount; k++) {
+			Object o = key[k];
+			byte type = getKeyType(o);
+			if (keyTypes[k][g] != type || keyBits[k][g] != getKeyBits(type, o))
+				return false;
+
+			if (type == OBJECT && !keys[k][g].equals(o))
+				return false;
+		}
+		return true;
+	}
+
+	private void grow() {
+		int capacity = hashes.length * 2;
+		slots = new int[capacity * 2];
+		hashes = Arrays.copyOf(hashes, capacity);
+
+		for (int k = 0; k < keyCount; k++) {
+			keyTypes[k] = Arrays.copyOf(keyTypes[k], capacity);
+			keyBits[k] = Arrays.copyOf(keyBits[k], capacity);
+			keys[k] = Arrays.copyOf(keys[k], capacity);
+		}
+
+		for (int i = 0; i < values.length; i++) {
+			if (longs[i] != null)
+				longs[i] = Arrays.copyOf(longs[i], capacity);
+			if (doubles[i] != null)
+				doubles[i] = Arrays.copyOf(doubles[i], capacity);
+			if (flags[i] != null)
+				flags[i] = Arrays.copyOf(flags[i], capacity);
+			if (objs[i] != null)
+				objs[i] = Arrays.copyOf(objs[i], capacity);
+			if (objs2[i] != null)
+				objs2[i] = Arrays.copyOf(objs2[i], capacity);
+			if (funcs[i] != null)
+				funcs[i] = Arrays.copyOf(funcs[i], capacity);
+		}
+
+		int mask = slots.length - 1;
+		for (int g = 0; g < size; g++) {
+			int pos = mix(hashes[g]) & mask;
+			while (slots[pos] != 0)
+				pos = (pos + 1) & mask;
+			slots[pos] = g + 1;
+		}
+	}
+
+	/**
+	 * aggregate row to group, in the same way as function put
+	 */
+	public void put(int g, LogMap row) {
+		for (int i = 0; i < values.length; i++) {
+			Function f = values[i];
+			Object value = f.getInput(row);
+			if (value == null && !nullable[i])
+				continue;
+
+			switch (types[i]) {
+			case COUNT:
+				longs[i][g]++;
+				break;
+			case SUM:
+				addSum(i, g, toNumber(value));
+				break;
+			case AVG:
+				doubles[i][g] += toNumber(value).doubleValue();
+				flags[i][g] = true;
+				longs[i][g]++;
+				break;
+			case MIN:
+				putMin(i, g, value);
+				break;
+			case MAX:
+				putMax(i, g, value);
+				break;
+			case FIRST:
+				if (objs[i][g] == null && value != null)
+					objs[i][g] = value;
+				break;
+			case LAST:
+				if (value != null)
+					objs[i][g] = value;
+				break;
+			case RANGE:
+				objs[i][g] = NumberUtil.min(objs[i][g], value);
+				objs2[i][g] = NumberUtil.max(objs2[i][g], value);
+				break;
+			default:
+				funcs[i][g].put(row);
+			}
+		}
+	}
+
+	// same as number util, without parsing string of long and double
+	private static Number toNumber(Object value) {
+		if (value instanceof Long || value instanceof Double)
+			return (Number) value;
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return ((Number) value).longValue();
+		return NumberUtil.getValue(value, 0L);
+	}
+
+	// long sum is promoted to double sum at first non-long value
+	private void addSum(int i, int g, Number n) {
+		if (!flags[i][g]) {
+			if (n instanceof Long) {
+				longs[i][g] += n.longValue();
+				return;
+			}
+
+			flags[i][g] = true;
+			doubles[i][g] = longs[i][g];
+		}
+
+		doubles[i][g] += n.doubleValue();
+	}
+
+	private void putMin(int i, int g, Object value) {
+		Object min = objs[i][g];
+		if (min == null || (comp.compare(min, value) > 0 && value != null))
+			objs[i][g] = value;
+	}
+
+	private void putMax(int i, int g, Object value) {
+		Object max = objs[i][g];
+		if (max == null || comp.compare(max, value) < 0)
+			objs[i][g] = value;
+	}
+
+	/**
+	 * @return new key array of group
+	 */
+	public Object[] getKeys(int g) {
+		Object[] key = new Object[keyCount];
+		for (int k = 0; k < keyCount; k++)
+			key[k] = keys[k][g];
+		return key;
+	}
+
+	/**
+	 * @return new function objects which have aggregation states of group
+	 */
+	public Function[] getFunctions(int g) {
+		Function[] fs = new Function[values.length];
+		for (int i = 0; i < values.length; i++) {
+			if (types[i] == FUNC) {
+				fs[i] = funcs[i][g];
+				continue;
+			}
+
+			Function f = values[i].clone();
+			switch (types[i]) {
+			case COUNT:
+				((Count) f).setResult(longs[i][g]);
+				break;
+			case SUM:
+				((Sum) f).setSum((Number) getSum(i, g));
+				break;
+			case AVG:
+				if (flags[i][g])
+					((Average) f).setD(doubles[i][g]);
+				((Average) f).setCount((int) longs[i][g]);
+				break;
+			case MIN:
+				((Min) f).setMin(objs[i][g]);
+				break;
+			case MAX:
+				((Max) f).setMax(objs[i][g]);
+				break;
+			case FIRST:
+				((First) f).setFirst(objs[i][g]);
+				break;
+			case LAST:
+				((Last) f).setLast(objs[i][g]);
+				break;
+			case RANGE:
+				((Range) f).setMin((Number) objs[i][g]);
+				((Range) f).setMax((Number) objs2[i][g]);
+				break;
+			}
+			fs[i] = f;
+		}
+		return fs;
+	}
+
+	private Object getSum(int i, int g) {
+		if (flags[i][g])
+			return doubles[i][g];
+		return longs[i][g];
+	}
+
+	/**
+	 * @return aggregation states of group, which can be encoded for spill
+	 */
+	public Object[] getState(int g) {
+		Object[] state = new Object[values.length];
+		for (int i = 0; i < values.length; i++) {
+			switch (types[i]) {
+			case COUNT:
+				state[i] = longs[i][g];
+				break;
+			case SUM:
+				state[i] = getSum(i, g);
+				break;
+			case AVG:
+				state[i] = new Object[] { flags[i][g] ? doubles[i][g] : null, longs[i][g] };
+				break;
+			case RANGE:
+				state[i] = new Object[] { objs[i][g], objs2[i][g] };
+				break;
+			case FUNC:
+				state[i] = funcs[i][g].serialize();
+				break;
+			default:
+				state[i] = objs[i][g];
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * @return aggregation states of function objects, in the same format as
+	 *         group states
+	 */
+	public static Object[] getState(Function[] fs) {
+		Object[] state = new Object[fs.length];
+		for (int i = 0; i < fs.length; i++) {
+			Function f = fs[i];
+			switch (getSlotType(f)) {
+			case COUNT:
+				state[i] = f.getResult();
+				break;
+			case SUM: {
+				Number sum = ((Sum) f).getSum();
+				state[i] = sum != null ? sum : 0L;
+				break;
+			}
+			case AVG:
+				state[i] = new Object[] { ((Average) f).getD(), (long) ((Average) f).getCount() };
+				break;
+			case MIN:
+				state[i] = ((Min) f).getMin();
+				break;
+			case MAX:
+				state[i] = ((Max) f).getMax();
+				break;
+			case FIRST:
+				state[i] = ((First) f).getFirst();
+				break;
+			case LAST:
+				state[i] = ((Last) f).getLast();
+				break;
+			case RANGE:
+				state[i] = new Object[] { ((Range) f).getMin(), ((Range) f).getMax() };
+				break;
+			default:
+				state[i] = f.serialize();
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * merge aggregation states into group, in the same way as function merge
+	 */
+	public void mergeState(int g, Object[] state) {
+		for (int i = 0; i < values.length; i++) {
+			Object value = state[i];
+			switch (types[i]) {
+			case COUNT:
+				longs[i][g] += (Long) value;
+				break;
+			case SUM:
+				addSum(i, g, (Number) value);
+				break;
+			case AVG: {
+				Object[] l = (Object[]) value;
+				if (l[0] != null) {
+					doubles[i][g] += (Double) l[0];
+					flags[i][g] = true;
+				}
+				longs[i][g] += (Long) l[1];
+				break;
+			}
+			case MIN:
+				putMin(i, g, value);
+				break;
+			case MAX:
+				if (value != null)
+					putMax(i, g, value);
+				break;
+			case FIRST:
+				if (objs[i][g] == null)
+					objs[i][g] = value;
+				break;
+			case LAST:
+				if (value != null)
+					objs[i][g] = value;
+				break;
+			case RANGE: {
+				Object[] l = (Object[]) value;
+				objs[i][g] = NumberUtil.min(objs[i][g], l[0]);
+				objs2[i][g] = NumberUtil.max(objs2[i][g], l[1]);
+				break;
+			}
+			default: {
+				Function f = values[i].clone();
+				f.load(value);
+				funcs[i][g].merge(f);
+			}
+			}
+		}
+	}
+
+	/**
+	 * merge all groups of other table
+	 */
+	public void merge(AggregationTable other) {
+		for (int g = 0; g < other.size; g++)
+			mergeState(findOrAdd(other.getKeys(g)), other.getState(g));
+	}
+
+	/**
+	 * merge groups of other table in the partition only
+	 */
+	public void merge(AggregationTable other, int partition, int partitions) {
+		for (int g = 0; g < other.size; g++)
+			if (getPartition(other.hashes[g], partitions) == partition)
+				mergeState(findOrAdd(other.getKeys(g)), other.getState(g));
+	}
+
+	/**
+	 * remove all groups, and shrink to initial capacity
+	 */
+	public void clear() {
+		size = 0;
+		allocate(INITIAL_CAPACITY);
+	}
+}
@@ -1,6 +1,7 @@
 package org.krakenapps.logdb.query.command;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 
 public class Eval extends LogQueryCommand {
 	private Term term;
@@ -21,8 +22,22 @@ public class Eval extends LogQueryCommand {
 		write(m);
 	}
 
+	@Override
+	public void push(RowBatch batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			LogMap m = batch.get(i);
+			m.put(column, term.eval(m));
+		}
+		write(batch);
+	}
+
 	@Override
 	public boolean isReducer() {
 		return false;
 	}
+
+	@Override
+	public boolean isParallelizable() {
+		return true;
+	}
 }
@@ -18,6 +18,7 @@ package org.krakenapps.logdb.query.command;
 import java.util.List;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 
 public class Fields extends LogQueryCommand {
 	private boolean remove;
@@ -48,11 +49,33 @@ public class Fields extends LogQueryCommand {
 		write(m);
 	}
 
+	@Override
+	public void push(RowBatch batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			LogMap m = batch.get(i);
+			if (remove) {
+				for (String field : fields)
+					m.remove(field);
+			} else {
+				LogMap newMap = new LogMap();
+				for (String field : fields)
+					newMap.put(field, m.get(field));
+				batch.set(i, newMap);
+			}
+		}
+		write(batch);
+	}
+
 	@Override
 	public boolean isReducer() {
 		return (remove == fields.contains(headerColumn.get("date")));
 	}
 
+	@Override
+	public boolean isParallelizable() {
+		return !isReducer();
+	}
+
 	public boolean isRemove() {
 		return remove;
 	}
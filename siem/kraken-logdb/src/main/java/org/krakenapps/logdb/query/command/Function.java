@@ -158,15 +158,17 @@ public abstract class Function {
 	}
 
 	public void put(LogMap row) {
-		Object value = null;
+		Object value = getInput(row);
+		if (value != null || target == null)
+			put(value);
+	}
 
+	// aggregation input value of row
+	Object getInput(LogMap row) {
 		if (evaled != null)
-			value = evaled.eval(row);
+			return evaled.eval(row);
 		else
-			value = row.get(target);
-
-		if (value != null || target == null)
-			put(value);
+			return row.get(target);
 	}
 
 	abstract protected void put(Object obj);
@@ -307,9 +309,10 @@ public abstract class Function {
 
 		@Override
 		public Function merge(Function func) {
-			// d should not be null here (do not allow null merge set)
+			// d is null if no value is put
 			Average other = (Average) func;
-			this.d += other.d;
+			if (other.d != null)
+				this.d = (this.d == null) ? other.d : this.d + other.d;
 			this.count += other.count;
 			return this;
 		}
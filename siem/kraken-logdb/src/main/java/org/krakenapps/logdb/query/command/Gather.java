@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
+
+/**
+ * Passes rows from parallel workers of query to next command one by one. It
+ * is placed in front of the first command which is not parallelizable.
+ * 
+ * Workers finish batches in any order, so rows of each batch are kept until
+ * all preceding batches are passed. Next command receives rows in scan order
+ * like sequential run.
+ */
+public class Gather extends LogQueryCommand {
+	// rows written by worker thread while processing current batch
+	private ThreadLocal<List<LogMap>> pending = new ThreadLocal<List<LogMap>>();
+
+	// rows of finished batches waiting for preceding batches
+	private Map<Long, List<LogMap>> finished = new HashMap<Long, List<LogMap>>();
+
+	// sequence of batch to be passed next
+	private long nextSequence;
+
+	/**
+	 * Called by worker before passing scanned batch to parallel commands.
+	 */
+	public void begin(RowBatch batch) {
+		pending.set(new ArrayList<LogMap>());
+	}
+
+	/**
+	 * Called by worker after parallel commands processed scanned batch. Rows
+	 * of the batch and following finished batches are passed in order.
+	 */
+	public void end(RowBatch batch) {
+		List<LogMap> rows = pending.get();
+		pending.remove();
+		if (rows == null)
+			rows = new ArrayList<LogMap>();
+
+		synchronized (this) {
+			finished.put(batch.getSequence(), rows);
+			while ((rows = finished.remove(nextSequence)) != null) {
+				nextSequence++;
+				pass(rows);
+			}
+		}
+	}
+
+	private void pass(List<LogMap> rows) {
+		if (rows.isEmpty())
+			return;
+
+		RowBatch b = new RowBatch(rows.size());
+		for (LogMap m : rows)
+			b.add(m);
+		write(b);
+	}
+
+	@Override
+	public void push(LogMap m) {
+		List<LogMap> rows = pending.get();
+		if (rows != null) {
+			rows.add(m);
+			return;
+		}
+
+		synchronized (this) {
+			write(m);
+		}
+	}
+
+	@Override
+	public void push(RowBatch batch) {
+		List<LogMap> rows = pending.get();
+		if (rows != null) {
+			for (int i = 0; i < batch.size(); i++)
+				rows.add(batch.get(i));
+			return;
+		}
+
+		synchronized (this) {
+			write(batch);
+		}
+	}
+
+	@Override
+	public boolean isReducer() {
+		return false;
+	}
+}
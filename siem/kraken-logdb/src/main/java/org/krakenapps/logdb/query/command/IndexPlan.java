@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.krakenapps.logstorage.LogIndexCondition;
+import org.krakenapps.logstorage.LogIndexer;
+
+/**
+ * Index driven fetch plan of table. Logs of indexed days are fetched by
+ * looking up index, and other days are scanned. Fetched logs are still
+ * checked by scan filter, since index condition is a superset of search
+ * terms.
+ */
+public class IndexPlan {
+	private LogIndexer indexer;
+	private String indexName;
+	private LogIndexCondition condition;
+	private Set<Date> indexedDays;
+	private List<Date> days;
+	private long estimatedHits;
+	private long indexedLogs;
+
+	/**
+	 * @param days
+	 *            all days of table in query range, descending
+	 * @param indexedDays
+	 *            days which can be fetched by index
+	 * @param estimatedHits
+	 *            index hit count of indexed days
+	 * @param indexedLogs
+	 *            log count of indexed days
+	 */
+	public IndexPlan(LogIndexer indexer, String indexName, LogIndexCondition condition, List<Date> days,
+			Set<Date> indexedDays, long estimatedHits, long indexedLogs) {
+		this.indexer = indexer;
+		this.indexName = indexName;
+		this.condition = condition;
+		this.days = Collections.unmodifiableList(days);
+		this.indexedDays = Collections.unmodifiableSet(indexedDays);
+		this.estimatedHits = estimatedHits;
+		this.indexedLogs = indexedLogs;
+	}
+
+	public LogIndexer getIndexer() {
+		return indexer;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public LogIndexCondition getCondition() {
+		return condition;
+	}
+
+	public List<Date> getDays() {
+		return days;
+	}
+
+	public Set<Date> getIndexedDays() {
+		return indexedDays;
+	}
+
+	public long getEstimatedHits() {
+		return estimatedHits;
+	}
+
+	public long getIndexedLogs() {
+		return indexedLogs;
+	}
+
+	@Override
+	public String toString() {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		Set<String> scanned = new TreeSet<String>();
+		for (Date day : days)
+			if (!indexedDays.contains(day))
+				scanned.add(dateFormat.format(day));
+
+		return "index [" + indexName + "] condition [" + condition + "], indexed days=" + indexedDays.size()
+				+ ", estimated hits=" + estimatedHits + " of " + indexedLogs + " logs, scanned days=" + scanned;
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.query.ObjectComparator;
+import org.krakenapps.logdb.query.command.Term.Operator;
+
+/**
+ * Compiled form of search term. Field name, constant operand, set of in
+ * operator and regular expression are resolved once, and evaluation result
+ * is same as {@link Term#eval(LogMap)}. Each predicate counts evaluated and
+ * passed rows, which are used to order terms by selectivity.
+ */
+abstract class Predicate {
+	private static final Comparator<Object> comp = new ObjectComparator();
+
+	// weight of estimated selectivity in observed hit ratio
+	private static final int PRIOR_WEIGHT = 100;
+
+	protected final Term term;
+	private final double cost;
+	private final double selectivity;
+	private final AtomicLong evalCount = new AtomicLong();
+	private final AtomicLong passCount = new AtomicLong();
+
+	public static Predicate compile(Term term) {
+		Operator op = term.getOperator();
+		if (term.isLhString())
+			return new Interpreted(term);
+
+		switch (op) {
+		case IsNull:
+		case NotNull:
+			return new NullCheck(term);
+		case Regexp:
+			if (term.isRhString())
+				return new Regexp(term);
+			return new FieldRegexp(term);
+		default:
+			if (!term.isRhString() || term.getRh() == null)
+				return new Interpreted(term);
+		}
+
+		switch (op) {
+		case Contain:
+			return new Contain(term);
+		case In:
+			return new In(term);
+		default:
+			return new Compare(term);
+		}
+	}
+
+	protected Predicate(Term term, double cost, double selectivity) {
+		this.term = term;
+		this.cost = cost;
+		this.selectivity = selectivity;
+	}
+
+	public abstract boolean eval(LogMap m);
+
+	public Term getTerm() {
+		return term;
+	}
+
+	public long getEvalCount() {
+		return evalCount.get();
+	}
+
+	public long getPassCount() {
+		return passCount.get();
+	}
+
+	public void count(long evaluated, long passed) {
+		evalCount.addAndGet(evaluated);
+		passCount.addAndGet(passed);
+	}
+
+	public void resetCount() {
+		evalCount.set(0);
+		passCount.set(0);
+	}
+
+	/**
+	 * @return estimated cost to filter out one row. Cheap and selective
+	 *         predicate should be evaluated first.
+	 */
+	public double getRank() {
+		double ratio = (passCount.get() + selectivity * PRIOR_WEIGHT) / (evalCount.get() + PRIOR_WEIGHT);
+		return cost / Math.max(1 - ratio, 0.001);
+	}
+
+	@Override
+	public String toString() {
+		return term.toString();
+	}
+
+	protected static Object get(LogMap m, String key, boolean nested) {
+		return nested ? m.get(key) : m.map().get(key);
+	}
+
+	private static boolean isNested(String key) {
+		return key.endsWith("]") && key.contains("[");
+	}
+
+	private static class Interpreted extends Predicate {
+		public Interpreted(Term term) {
+			super(term, 4, 0.5);
+		}
+
+		@Override
+		public boolean eval(LogMap m) {
+			return term.eval(m);
+		}
+	}
+
+	private static abstract class FieldPredicate extends Predicate {
+		protected final String field;
+		protected final boolean nested;
+
+		public FieldPredicate(Term term, double cost, double selectivity) {
+			super(term, cost, selectivity);
+			this.field = term.getLh().toString();
+			this.nested = isNested(field);
+		}
+
+		@Override
+		public boolean eval(LogMap m) {
+			return eval(m, get(m, field, nested));
+		}
+
+		protected abstract boolean eval(LogMap m, Object l);
+	}
+
+	private static class NullCheck extends FieldPredicate {
+		private final boolean isNull;
+
+		public NullCheck(Term term) {
+			super(term, 1, term.getOperator() == Operator.IsNull ? 0.1 : 0.9);
+			this.isNull = term.getOperator() == Operator.IsNull;
+		}
+
+		@Override
+		protected boolean eval(LogMap m, Object l) {
+			boolean empty = l == null || l.toString().isEmpty();
+			return isNull == empty;
+		}
+	}
+
+	private static class Compare extends FieldPredicate {
+		private final Operator op;
+		private final String rh;
+		private final Number rhNumber;
+
+		public Compare(Term term) {
+			super(term, 1, getSelectivity(term.getOperator()));
+			this.op = term.getOperator();
+			this.rh = term.getRh().toString();
+			this.rhNumber = NumberUtil.getValue(rh);
+		}
+
+		private static double getSelectivity(Operator op) {
+			switch (op) {
+			case Eq:
+				return 0.1;
+			case Neq:
+				return 0.9;
+			default:
+				return 0.5;
+			}
+		}
+
+		@Override
+		protected boolean eval(LogMap m, Object l) {
+			int cmp;
+			try {
+				cmp = compare(l);
+			} catch (Exception e) {
+				return false;
+			}
+
+			switch (op) {
+			case Eq:
+				return cmp == 0;
+			case Neq:
+				return cmp != 0;
+			case Gt:
+				return cmp > 0;
+			case Lt:
+				return cmp < 0;
+			case Ge:
+				return cmp >= 0;
+			case Le:
+				return cmp <= 0;
+			default:
+				return false;
+			}
+		}
+
+		// same result as object comparator, without parsing field value
+		private int compare(Object l) {
+			if (l == null)
+				return 1;
+
+			if (l instanceof String)
+				return ((String) l).compareTo(rh);
+
+			if (l instanceof Long || l instanceof Integer || l instanceof Short || l instanceof Byte) {
+				if (rhNumber == null)
+					return l.toString().compareTo(rh);
+
+				long v = ((Number) l).longValue();
+				if (rhNumber instanceof Long)
+					return signum(v - rhNumber.longValue());
+				return signum((long) (v - rhNumber.doubleValue()));
+			}
+
+			if (l instanceof Double) {
+				if (rhNumber == null)
+					return l.toString().compareTo(rh);
+				return signum((long) ((Double) l - rhNumber.doubleValue()));
+			}
+
+			return comp.compare(l, rh);
+		}
+
+		private static int signum(long l) {
+			return (l == 0) ? 0 : ((l > 0) ? 1 : -1);
+		}
+	}
+
+	private static class Contain extends FieldPredicate {
+		private final String rh;
+
+		public Contain(Term term) {
+			super(term, 2, 0.3);
+			this.rh = term.getRh().toString();
+		}
+
+		@Override
+		protected boolean eval(LogMap m, Object l) {
+			return l != null && l.toString().contains(rh);
+		}
+	}
+
+	private static class In extends FieldPredicate {
+		private final Set<String> values = new HashSet<String>();
+
+		public In(Term term) {
+			super(term, 1, 0.2);
+			for (String s : term.getRh().toString().replaceAll(",( )*", ",").split(","))
+				values.add(s);
+		}
+
+		@Override
+		protected boolean eval(LogMap m, Object l) {
+			return l != null && values.contains(l.toString());
+		}
+	}
+
+	private static class Regexp extends FieldPredicate {
+		private final Pattern p;
+
+		public Regexp(Term term) {
+			super(term, 8, 0.3);
+			this.p = Pattern.compile(term.getRh().toString());
+		}
+
+		@Override
+		protected boolean eval(LogMap m, Object l) {
+			return l != null && p.matcher(l.toString()).find();
+		}
+	}
+
+	private static class FieldRegexp extends FieldPredicate {
+		private static final int MAX_CACHED_PATTERNS = 1000;
+		private final String rhField;
+		private final boolean rhNested;
+		private final ConcurrentMap<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+
+		public FieldRegexp(Term term) {
+			super(term, 8, 0.3);
+			this.rhField = term.getRh().toString();
+			this.rhNested = isNested(rhField);
+		}
+
+		@Override
+		protected boolean eval(LogMap m, Object l) {
+			if (l == null)
+				return false;
+
+			Object r = get(m, rhField, rhNested);
+			if (r == null)
+				return false;
+
+			try {
+				return getPattern(r.toString()).matcher(l.toString()).find();
+			} catch (Exception e) {
+				return false;
+			}
+		}
+
+		private Pattern getPattern(String regex) {
+			Pattern p = patterns.get(regex);
+			if (p == null) {
+				p = Pattern.compile(regex, Pattern.MULTILINE);
+				if (patterns.size() >= MAX_CACHED_PATTERNS)
+					patterns.clear();
+				patterns.put(regex, p);
+			}
+			return p;
+		}
+	}
+}
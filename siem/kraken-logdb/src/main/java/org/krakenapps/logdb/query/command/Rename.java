@@ -16,6 +16,7 @@
 package org.krakenapps.logdb.query.command;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 
 public class Rename extends LogQueryCommand {
 	private String from;
@@ -35,8 +36,25 @@ public class Rename extends LogQueryCommand {
 		write(m);
 	}
 
+	@Override
+	public void push(RowBatch batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			LogMap m = batch.get(i);
+			if (m.containsKey(from)) {
+				m.put(to, m.get(from));
+				m.remove(from);
+			}
+		}
+		write(batch);
+	}
+
 	@Override
 	public boolean isReducer() {
 		return false;
 	}
+
+	@Override
+	public boolean isParallelizable() {
+		return true;
+	}
 }
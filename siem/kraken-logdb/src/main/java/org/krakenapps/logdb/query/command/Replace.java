@@ -1,6 +1,7 @@
 package org.krakenapps.logdb.query.command;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 
 public class Replace extends LogQueryCommand {
 	private Term term;
@@ -18,8 +19,23 @@ public class Replace extends LogQueryCommand {
 		write(m);
 	}
 
+	@Override
+	public void push(RowBatch batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			LogMap m = batch.get(i);
+			if (term.eval(m))
+				m.put(term.getLh().toString(), value);
+		}
+		write(batch);
+	}
+
 	@Override
 	public boolean isReducer() {
 		return false;
 	}
+
+	@Override
+	public boolean isParallelizable() {
+		return true;
+	}
 }
@@ -17,30 +17,21 @@ package org.krakenapps.logdb.query.command;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Comparator;
-import java.util.Date;
-import java.util.Map;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
-import org.krakenapps.codec.EncodingRule;
-import org.krakenapps.codec.FastEncodingRule;
 import org.krakenapps.logdb.LogQueryCallback;
 import org.krakenapps.logdb.LogQueryCommand;
 import org.krakenapps.logdb.LogResultSet;
-import org.krakenapps.logstorage.file.LogFileReaderV2;
-import org.krakenapps.logstorage.file.LogFileWriterV2;
-import org.krakenapps.logstorage.file.LogRecord;
-import org.krakenapps.logstorage.file.LogRecordCursor;
+import org.krakenapps.logdb.query.result.ResultStore;
 
 public class Result extends LogQueryCommand {
 	private static File BASE_DIR = new File(System.getProperty("kraken.data.dir"), "kraken-logdb/query/");
-	private LogFileWriterV2 writer;
-	private File indexPath;
-	private File dataPath;
+	private ResultStore store;
 	private long count;
 
 	private Set<LogQueryCallback> callbacks;
@@ -57,10 +48,7 @@ public class Result extends LogQueryCommand {
 		callbacks = new CopyOnWriteArraySet<LogQueryCallback>();
 		callbackQueue = new PriorityQueue<Result.LogQueryCallbackInfo>(11, new CallbackInfoComparator());
 
-		indexPath = File.createTempFile("result", ".idx", BASE_DIR);
-		dataPath = File.createTempFile("result", ".dat", BASE_DIR);
-		writer = new LogFileWriterV2(indexPath, dataPath, 1024 * 1024, 1);
-		BASE_DIR.mkdirs();
+		store = new ResultStore(BASE_DIR);
 	}
 
 	private class LogQueryCallbackInfo {
@@ -118,9 +106,7 @@ public class Result extends LogQueryCommand {
 	@Override
 	public void push(LogMap m) {
 		try {
-			synchronized (writer) {
-				writer.write(convert(m.map()));
-			}
+			store.write(m.map());
 		} catch (IOException e) {
 			throw new IllegalStateException(e);
 		}
@@ -142,13 +128,6 @@ public class Result extends LogQueryCommand {
 		}
 	}
 
-	private LogRecord convert(Map<String, Object> m) {
-		FastEncodingRule enc = new FastEncodingRule();
-		ByteBuffer bb = enc.encode(m);
-		LogRecord logdata = new LogRecord(new Date(), count + 1, bb);
-		return logdata;
-	}
-
 	@Override
 	public boolean isReducer() {
 		return false;
@@ -169,19 +148,23 @@ public class Result extends LogQueryCommand {
 	}
 
 	public LogResultSet getResult() throws IOException {
-		if (purged) {
-			String msg = "query result file is already purged, index=" + indexPath.getAbsolutePath() + ", data="
-					+ dataPath.getAbsolutePath();
-			throw new IOException(msg);
-		}
+		checkPurged();
+		return store.open();
+	}
 
-		synchronized (writer) {
-			writer.flush();
-			writer.sync();
-		}
+	/**
+	 * @param fields
+	 *            sort field names. '-' prefixed name is sorted in descending
+	 *            order.
+	 */
+	public LogResultSet getSortedResult(List<String> fields) throws IOException {
+		checkPurged();
+		return store.openSorted(fields);
+	}
 
-		LogFileReaderV2 reader = new LogFileReaderV2(indexPath, dataPath);
-		return new LogResultSetImpl(reader);
+	private void checkPurged() throws IOException {
+		if (purged)
+			throw new IOException("query result file is already purged, data=" + store.getDataFile().getAbsolutePath());
 	}
 
 	@Override
@@ -189,9 +172,7 @@ public class Result extends LogQueryCommand {
 		this.status = Status.Finalizing;
 
 		try {
-			synchronized (writer) {
-				writer.close();
-			}
+			store.close();
 		} catch (IOException e) {
 		}
 
@@ -209,51 +190,6 @@ public class Result extends LogQueryCommand {
 		nextCallback = null;
 
 		// delete files
-		indexPath.delete();
-		dataPath.delete();
-	}
-
-	private static class LogResultSetImpl implements LogResultSet {
-		private LogFileReaderV2 reader;
-		private LogRecordCursor cursor;
-
-		public LogResultSetImpl(LogFileReaderV2 reader) {
-			this.reader = reader;
-			this.cursor = reader.getCursor(true);
-		}
-
-		@Override
-		public long size() {
-			return reader.count();
-		}
-
-		@Override
-		public boolean hasNext() {
-			return cursor.hasNext();
-		}
-
-		@Override
-		public Map<String, Object> next() {
-			LogRecord next = cursor.next();
-			return EncodingRule.decodeMap(next.getData());
-		}
-
-		@Override
-		public void remove() {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public void skip(long n) {
-			cursor.skip(n);
-		}
-
-		@Override
-		public void close() {
-			try {
-				reader.close();
-			} catch (IOException e) {
-			}
-		}
+		store.purge();
 	}
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.krakenapps.logstorage.LogRollupSpec;
+
+/**
+ * Rollup driven fetch plan of table followed by timechart. Buckets in
+ * [rollupFrom, rollupTo) are aggregated from table rollup entries, and rest
+ * of query range is scanned.
+ */
+public class RollupPlan {
+	private LogRollupSpec spec;
+	private Timechart2 timechart;
+	private Date rollupFrom;
+	private Date rollupTo;
+	private List<Date> days;
+
+	/**
+	 * @param rollupFrom
+	 *            first rollup bucket, aligned to rollup span
+	 * @param rollupTo
+	 *            exclusive end of rollup buckets, aligned to rollup span
+	 * @param days
+	 *            days of table which have logs in rollup range
+	 */
+	public RollupPlan(LogRollupSpec spec, Timechart2 timechart, Date rollupFrom, Date rollupTo, List<Date> days) {
+		this.spec = spec;
+		this.timechart = timechart;
+		this.rollupFrom = rollupFrom;
+		this.rollupTo = rollupTo;
+		this.days = Collections.unmodifiableList(days);
+	}
+
+	public LogRollupSpec getSpec() {
+		return spec;
+	}
+
+	public Timechart2 getTimechart() {
+		return timechart;
+	}
+
+	public Date getRollupFrom() {
+		return rollupFrom;
+	}
+
+	public Date getRollupTo() {
+		return rollupTo;
+	}
+
+	public List<Date> getDays() {
+		return days;
+	}
+
+	@Override
+	public String toString() {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		return "rollup [" + spec + "] from " + dateFormat.format(rollupFrom) + " to " + dateFormat.format(rollupTo)
+				+ ", days=" + days.size();
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.codec.FastEncodingRule;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+
+/**
+ * Row batch format of rpc row stream. Encoded row array is deflated, and
+ * prefixed by 4 byte encoded length.
+ */
+class RpcBatchCodec {
+	private static final long MAX_RATIO = 1032;
+
+	private RpcBatchCodec() {
+	}
+
+	public static byte[] encode(List<Map<String, Object>> rows) {
+		ByteBuffer bb = new FastEncodingRule().encode(rows.toArray());
+		int length = bb.remaining();
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bb.array(), 0, length);
+			deflater.finish();
+
+			byte[] buf = new byte[length + length / 1000 + 64];
+			ByteBuffer.wrap(buf).putInt(length);
+			int offset = 4;
+			while (!deflater.finished()) {
+				if (offset == buf.length) {
+					byte[] grown = new byte[buf.length * 2];
+					System.arraycopy(buf, 0, grown, 0, offset);
+					buf = grown;
+				}
+				offset += deflater.deflate(buf, offset, buf.length - offset);
+			}
+
+			byte[] b = new byte[offset];
+			System.arraycopy(buf, 0, b, 0, offset);
+			return b;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if batch is truncated or corrupted
+	 */
+	@SuppressWarnings("unchecked")
+	public static Object[] decode(byte[] b) {
+		if (b.length < 4)
+			throw new IllegalStateException("kraken logdb: broken row batch, length " + b.length);
+
+		// deflate cannot compress more than 1032:1
+		int length = ByteBuffer.wrap(b).getInt();
+		if (length < 0 || length > (b.length - 4) * MAX_RATIO)
+			throw new IllegalStateException("kraken logdb: broken row batch, invalid length " + length);
+
+		byte[] raw = new byte[length];
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(b, 4, b.length - 4);
+			int offset = 0;
+			while (offset < length) {
+				int n = inflater.inflate(raw, offset, length - offset);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					throw new IllegalStateException("kraken logdb: broken row batch, expected " + length + " bytes");
+				offset += n;
+			}
+
+			// deflated stream should end with checksum, without more bytes
+			if (inflater.inflate(new byte[1]) != 0 || !inflater.finished())
+				throw new IllegalStateException("kraken logdb: broken row batch, length mismatch");
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("kraken logdb: broken row batch", e);
+		} finally {
+			inflater.end();
+		}
+
+		try {
+			Object[] rows = (Object[]) EncodingRule.decode(ByteBuffer.wrap(raw));
+			for (int i = 0; i < rows.length; i++)
+				rows[i] = new LogMap((Map<String, Object>) rows[i]);
+			return rows;
+		} catch (RuntimeException e) {
+			throw new IllegalStateException("kraken logdb: broken row batch", e);
+		}
+	}
+}
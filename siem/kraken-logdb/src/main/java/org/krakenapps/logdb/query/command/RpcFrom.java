@@ -6,6 +6,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.krakenapps.api.Primitive;
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.mapreduce.MapReduceLink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,13 +20,18 @@ public class RpcFrom extends LogQueryCommand implements Runnable {
 
 	private Thread t;
 	private volatile boolean end;
+
+	// set by reducer after last drain, guarded by queue
+	private boolean closed;
+
 	private AtomicInteger counter;
 
-	private LinkedBlockingQueue<LogMap> queue;
+	// rows or row batches of mapper links
+	private LinkedBlockingQueue<Object> queue;
 
 	public RpcFrom(String guid) {
 		this.guid = guid;
-		this.queue = new LinkedBlockingQueue<LogMap>();
+		this.queue = new LinkedBlockingQueue<Object>();
 		this.counter = new AtomicInteger();
 	}
 
@@ -33,23 +39,26 @@ public class RpcFrom extends LogQueryCommand implements Runnable {
 	public void run() {
 		while (!end) {
 			try {
-				LogMap data = queue.poll(100, TimeUnit.MILLISECONDS);
-				if (data != null) {
-					write(data);
-					counter.incrementAndGet();
-				}
+				Object data = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (data != null)
+					pass(data);
 			} catch (InterruptedException e) {
 			}
 		}
 
-		// process all remainings
+		// process all remainings, including batches which are pushed while
+		// draining
 		while (true) {
-			LogMap data = queue.poll();
-			if (data == null)
-				break;
+			Object data;
+			synchronized (queue) {
+				data = queue.poll();
+				if (data == null) {
+					closed = true;
+					break;
+				}
+			}
 
-			write(data);
-			counter.incrementAndGet();
+			pass(data);
 		}
 
 		logger.info("kraken logdb: rpcfrom pass total [{}], remain [{}]", counter.get(), queue.size());
@@ -57,19 +66,66 @@ public class RpcFrom extends LogQueryCommand implements Runnable {
 		logger.info("kraken logdb: closed rpc reducer stream for query guid [{}]", guid);
 	}
 
+	private void pass(Object data) {
+		if (data instanceof LogMap) {
+			write((LogMap) data);
+			counter.incrementAndGet();
+			return;
+		}
+
+		// batches are decompressed by reducer thread, not by rpc handler
+		Batch batch = (Batch) data;
+		Object[] rows = null;
+		try {
+			rows = RpcBatchCodec.decode(batch.data);
+			for (Object row : rows)
+				write((LogMap) row);
+			counter.addAndGet(rows.length);
+		} catch (IllegalStateException e) {
+			logger.error("kraken logdb: cannot decode row batch from peer " + batch.link.getPeerGuid(), e);
+		} finally {
+			batch.link.onConsume(rows != null ? rows.length : 0);
+		}
+	}
+
 	@Override
 	public void push(LogMap m) {
-		if (end) {
-			logger.info("kraken logdb: loss (will be fixed) - {}", Primitive.stringify(m));
-			return;
+		synchronized (queue) {
+			if (closed) {
+				logger.warn("kraken logdb: dropped row after rpc reducer stream is closed - {}",
+						Primitive.stringify(m));
+				return;
+			}
+
+			queue.add(m);
 		}
+		startReducer();
+	}
+
+	/**
+	 * Queue compressed row batch of mapper link. Mapper should not send
+	 * batches more than its credits. Batches which arrive after eof are still
+	 * passed until reducer closes the stream.
+	 */
+	public void push(MapReduceLink link, byte[] data) {
+		synchronized (queue) {
+			if (closed) {
+				logger.warn("kraken logdb: dropped batch of peer [{}] after rpc reducer stream is closed",
+						link.getPeerGuid());
+				return;
+			}
 
+			link.onReceive(data.length);
+			queue.add(new Batch(link, data));
+		}
+		startReducer();
+	}
+
+	private synchronized void startReducer() {
 		if (t == null) {
 			t = new Thread(this, "RPC Reducer [" + guid + "]");
 			t.start();
 		}
-
-		queue.add(m);
 	}
 
 	@Override
@@ -86,6 +142,9 @@ public class RpcFrom extends LogQueryCommand implements Runnable {
 	public void eof() {
 		this.status = Status.Finalizing;
 		end = true;
+
+		// reducer closes stream even if no row is pushed
+		startReducer();
 		logger.info("kraken logdb: eof for query guid [{}]", guid);
 	}
 
@@ -94,4 +153,14 @@ public class RpcFrom extends LogQueryCommand implements Runnable {
 		return "RPC Reducer [" + guid + "] - " + queue.size();
 	}
 
+	private static class Batch {
+		private MapReduceLink link;
+		private byte[] data;
+
+		public Batch(MapReduceLink link, byte[] data) {
+			this.link = link;
+			this.data = data;
+		}
+	}
+
 }
@@ -1,7 +1,14 @@
 package org.krakenapps.logdb.query.command;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
 import org.krakenapps.api.Primitive;
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.rpc.RpcAsyncCallback;
+import org.krakenapps.rpc.RpcAsyncResult;
 import org.krakenapps.rpc.RpcClient;
 import org.krakenapps.rpc.RpcConnection;
 import org.krakenapps.rpc.RpcConnectionProperties;
@@ -11,6 +18,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class RpcTo extends LogQueryCommand {
+	private static final int BATCH_ROWS = 1000;
+	private static final int MAX_CREDIT_WAIT = 200;
+
 	private final Logger logger = LoggerFactory.getLogger(RpcTo.class.getName());
 
 	private String agentGuid;
@@ -25,6 +35,14 @@ public class RpcTo extends LogQueryCommand {
 	private RpcConnection datastream;
 	private RpcSession datasession;
 
+	/**
+	 * batch credits granted by reducer. null if reducer does not support row
+	 * batch (per row push)
+	 */
+	private Semaphore credits;
+	private List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(BATCH_ROWS);
+	private CreditCallback creditCallback = new CreditCallback();
+
 	public RpcTo(String agentGuid, RpcConnection upstream, String guid) {
 		this.agentGuid = agentGuid;
 		this.upstream = upstream;
@@ -41,20 +59,66 @@ public class RpcTo extends LogQueryCommand {
 			datastream = client.connect(props);
 			try {
 				datasession = datastream.createSession("logdb-mapreduce");
-				datasession.call("setLogStream", guid);
+				Object window = datasession.call("setLogStream", guid);
+				if (window instanceof Integer)
+					credits = new Semaphore((Integer) window);
 			} catch (RpcException e) {
 				logger.error("kraken logdb: cannot set log stream", e);
 			} catch (InterruptedException e) {
 				logger.error("kraken logdb: cannot set log stream", e);
 			}
 
-			logger.info("kraken logdb: opened rpc data stream for query guid [{}]", guid);
+			logger.info("kraken logdb: opened rpc data stream for query guid [{}], credits [{}]", guid,
+					credits != null ? credits.availablePermits() : "n/a");
 		}
 
-		datasession.post("push", m);
-
 		if (logger.isDebugEnabled())
 			logger.debug("kraken logdb: rpc mapper [{}]", Primitive.stringify(m));
+
+		if (credits == null) {
+			datasession.post("push", m.map());
+			return;
+		}
+
+		batch.add(m.map());
+		if (batch.size() >= BATCH_ROWS)
+			flush();
+	}
+
+	private void flush() {
+		if (batch.isEmpty())
+			return;
+
+		byte[] blob = RpcBatchCodec.encode(batch);
+		batch.clear();
+
+		try {
+			acquireCredit();
+			datasession.call("pushBatch", new Object[] { blob }, creditCallback);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("interrupted while waiting rpc mapper credit, query guid " + guid);
+		} catch (RpcException e) {
+			throw new IllegalStateException("cannot poll rpc mapper credit, query guid " + guid, e);
+		}
+	}
+
+	/**
+	 * credits are returned with batch replies. if all credits are in flight,
+	 * poll reducer with backoff until reduce query consumes queued batches.
+	 */
+	private void acquireCredit() throws InterruptedException, RpcException {
+		int wait = 10;
+		while (!credits.tryAcquire()) {
+			Integer granted = (Integer) datasession.call("pollCredit");
+			if (granted != null && granted > 0) {
+				credits.release(granted);
+				wait = 10;
+				continue;
+			}
+
+			Thread.sleep(wait);
+			wait = Math.min(wait * 2, MAX_CREDIT_WAIT);
+		}
 	}
 
 	@Override
@@ -67,6 +131,8 @@ public class RpcTo extends LogQueryCommand {
 		this.status = Status.Finalizing;
 		if (datasession != null) {
 			try {
+				if (credits != null)
+					flush();
 				datasession.call("eof", guid);
 			} catch (Exception e) {
 				logger.error("kraken logdb: eof fail for mapreduce query " + guid, e);
@@ -88,4 +154,20 @@ public class RpcTo extends LogQueryCommand {
 	public String toString() {
 		return "RPC Mapper [" + guid + "]";
 	}
+
+	private class CreditCallback implements RpcAsyncCallback {
+		@Override
+		public void onComplete(RpcAsyncResult r) {
+			if (r.isError()) {
+				// failed batch is never queued in reducer, take back its credit
+				logger.error("kraken logdb: cannot push row batch for query guid " + guid, r.getException());
+				credits.release();
+				return;
+			}
+
+			Integer granted = (Integer) r.getReturn();
+			if (granted != null && granted > 0)
+				credits.release(granted);
+		}
+	}
 }
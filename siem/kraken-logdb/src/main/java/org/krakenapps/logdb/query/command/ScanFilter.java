@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.command;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logstorage.LogFilter;
+import org.krakenapps.logstorage.file.LogBlockZone;
+
+/**
+ * Search terms and field projection pushed down into table scan. Blocks are
+ * pruned by zone map only if no log of the block can pass the terms, so
+ * result is same as evaluating terms after table.
+ */
+public class ScanFilter implements LogFilter {
+	// added by table after scan
+	private static final Set<String> metadataFields = new HashSet<String>(Arrays.asList("_table", "_id", "_time"));
+
+	private List<Search> searches;
+	private Set<String> fieldNames;
+
+	// max count of passed logs, 0 for no limit
+	private int limit;
+
+	/**
+	 * @param fieldNames
+	 *            field names of query result, or null for all fields
+	 */
+	public ScanFilter(List<Search> searches, List<String> fieldNames) {
+		this.searches = searches;
+		if (fieldNames != null) {
+			this.fieldNames = new HashSet<String>();
+			for (String name : fieldNames)
+				this.fieldNames.add(getTopLevelName(name));
+		}
+	}
+
+	/**
+	 * @return true if search does not refer table metadata fields
+	 */
+	public static boolean isPushable(Search search) {
+		for (Term term : search.getTerms()) {
+			if (!term.isLhString() && isMetadataField(term.getLh()))
+				return false;
+			if (!term.isRhString() && isMetadataField(term.getRh()))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isMetadataField(Object name) {
+		return name != null && metadataFields.contains(getTopLevelName(name.toString()));
+	}
+
+	// map field name of a[b] is a
+	private static String getTopLevelName(String name) {
+		int p = name.indexOf('[');
+		if (p > 0 && name.endsWith("]"))
+			return name.substring(0, p);
+		return name;
+	}
+
+	public List<Search> getSearches() {
+		return searches;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Set max count of logs which pass all searches. Scan is stopped at
+	 * limit, so it should be used only if the last search has the limit.
+	 */
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	@Override
+	public Set<String> getFieldNames() {
+		return fieldNames;
+	}
+
+	@Override
+	public boolean matches(Map<String, Object> data) {
+		LogMap m = new LogMap(data);
+		for (Search search : searches)
+			if (!search.eval(m))
+				return false;
+		return true;
+	}
+
+	@Override
+	public boolean mayMatch(LogBlockZone zone) {
+		for (Search search : searches)
+			for (Term term : search.getTerms())
+				if (!mayMatch(zone, term))
+					return false;
+		return true;
+	}
+
+	/**
+	 * Checks block zone only if it gives same result with term evaluation.
+	 * Null value does not pass ==, in, < and <= terms.
+	 */
+	private static boolean mayMatch(LogBlockZone zone, Term term) {
+		if (term.isLhString() || !term.isRhString() || term.getRh() == null)
+			return true;
+
+		String field = term.getLh().toString();
+		if (field.contains("["))
+			return true;
+
+		String value = term.getRh().toString();
+		switch (term.getOperator()) {
+		case Eq:
+			return mayEqual(zone, field, value);
+		case In:
+			for (String s : value.replaceAll(",( )*", ",").split(","))
+				if (mayEqual(zone, field, s))
+					return true;
+			return false;
+		case Lt: {
+			Long l = parseInteger(value);
+			if (l == null || l == Long.MIN_VALUE)
+				return true;
+			return zone.mayOverlap(field, null, l - 1);
+		}
+		case Le: {
+			Long l = parseInteger(value);
+			if (l == null)
+				return true;
+			return zone.mayOverlap(field, null, l);
+		}
+		default:
+			return true;
+		}
+	}
+
+	private static boolean mayEqual(LogBlockZone zone, String field, String value) {
+		// integer range of zone is used only if all values are integers
+		Long l = parseInteger(value);
+		if (l != null)
+			return zone.mayOverlap(field, l, l);
+
+		// numeric text can be equal to number of other text form
+		if (NumberUtil.getValue(value) != null)
+			return true;
+
+		// text form of ip address in zone has no slash
+		if (value.indexOf('/') >= 0)
+			return true;
+
+		return zone.mayContain(field, value);
+	}
+
+	private static Long parseInteger(String s) {
+		try {
+			long l = Long.parseLong(s);
+			return Long.toString(l).equals(s) ? l : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
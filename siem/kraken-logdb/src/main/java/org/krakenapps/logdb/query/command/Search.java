@@ -15,15 +15,29 @@
  */
 package org.krakenapps.logdb.query.command;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 
 public class Search extends LogQueryCommand {
+	// terms are reordered by observed hit ratio at this interval in row mode
+	private static final int REORDER_INTERVAL = RowBatch.DEFAULT_SIZE;
+
 	private Integer limit;
 	private Integer count;
 	private List<Term> terms;
 
+	// compiled terms in original order, and in evaluation order
+	private Predicate[] compiled;
+	private volatile Predicate[] predicates;
+
+	// terms are evaluated by table scan
+	private boolean pushedDown;
+
 	public Search(List<Term> terms) {
 		this(null, terms);
 	}
@@ -31,31 +45,183 @@ public class Search extends LogQueryCommand {
 	public Search(Integer limit, List<Term> terms) {
 		this.limit = limit;
 		this.terms = terms;
+		this.compiled = new Predicate[terms.size()];
+		for (int i = 0; i < compiled.length; i++)
+			compiled[i] = Predicate.compile(terms.get(i));
+	}
+
+	public Integer getLimit() {
+		return limit;
+	}
+
+	public List<Term> getTerms() {
+		return terms;
+	}
+
+	public boolean isPushedDown() {
+		return pushedDown;
+	}
+
+	/**
+	 * Set true if table scan passes matched rows only, using
+	 * {@link #eval(LogMap)}
+	 */
+	public void setPushedDown(boolean pushedDown) {
+		this.pushedDown = pushedDown;
 	}
 
 	@Override
 	public void init() {
 		super.init();
 		count = 0;
+		for (Predicate p : compiled)
+			p.resetCount();
+		predicates = compiled.clone();
+		reorder();
 	}
 
 	@Override
 	public void push(LogMap m) {
-		for (Term term : terms) {
-			if (!term.eval(m))
-				return;
-		}
+		if (!pushedDown && !eval(m))
+			return;
 
 		write(m);
 
-		if (limit != null && ++count == limit) {
+		if (limit != null && ++count >= limit) {
 			eof();
 			return;
 		}
 	}
 
+	@Override
+	public void push(RowBatch batch) {
+		// evaluate term by term over selected rows
+		boolean[] flags = new boolean[batch.size()];
+		for (int i = 0; i < flags.length; i++)
+			flags[i] = true;
+
+		int selected = flags.length;
+		for (Predicate p : predicates) {
+			if (selected == 0 || pushedDown)
+				break;
+
+			int passed = 0;
+			for (int i = 0; i < flags.length; i++) {
+				if (!flags[i])
+					continue;
+
+				if (p.eval(batch.get(i)))
+					passed++;
+				else
+					flags[i] = false;
+			}
+
+			p.count(selected, passed);
+			selected = passed;
+		}
+
+		if (limit != null && count + selected > limit) {
+			selected = 0;
+			for (int i = 0; i < flags.length; i++) {
+				if (flags[i] && count + selected >= limit)
+					flags[i] = false;
+				if (flags[i])
+					selected++;
+			}
+		}
+
+		if (compiled.length > 1 && !pushedDown)
+			reorder();
+
+		batch.select(flags);
+		write(batch);
+
+		count += selected;
+		if (limit != null && count >= limit)
+			eof();
+	}
+
+	/**
+	 * @return true if row passes all terms. It can be called by table scan
+	 *         threads at once.
+	 */
+	boolean eval(LogMap m) {
+		Predicate[] preds = predicates;
+		boolean pass = true;
+		for (Predicate p : preds) {
+			pass = p.eval(m);
+			p.count(1, pass ? 1 : 0);
+			if (!pass)
+				break;
+		}
+
+		if (preds.length > 1 && preds[0].getEvalCount() % REORDER_INTERVAL == 0)
+			reorder();
+
+		return pass;
+	}
+
+	/**
+	 * Sorts terms by rank. All terms should be passed, so evaluation order does
+	 * not change the result.
+	 */
+	private void reorder() {
+		Predicate[] sorted = predicates.clone();
+
+		// rank can be changed by other workers while sorting
+		double[] ranks = new double[sorted.length];
+		for (int i = 0; i < sorted.length; i++)
+			ranks[i] = sorted[i].getRank();
+
+		for (int i = 1; i < sorted.length; i++) {
+			Predicate p = sorted[i];
+			double rank = ranks[i];
+			int j = i - 1;
+			for (; j >= 0 && ranks[j] > rank; j--) {
+				sorted[j + 1] = sorted[j];
+				ranks[j + 1] = ranks[j];
+			}
+			sorted[j + 1] = p;
+			ranks[j + 1] = rank;
+		}
+
+		predicates = sorted;
+	}
+
+	/**
+	 * @return evaluated and passed row count of each term, in query order
+	 */
+	public List<Map<String, Object>> getTermStatistics() {
+		Predicate[] preds = predicates;
+		List<Map<String, Object>> l = new ArrayList<Map<String, Object>>();
+		for (Predicate p : compiled) {
+			long evaluated = p.getEvalCount();
+			long passed = p.getPassCount();
+
+			int order = 0;
+			if (preds != null)
+				while (order < preds.length && preds[order] != p)
+					order++;
+
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("term", p.toString());
+			m.put("order", order);
+			m.put("evaluated", evaluated);
+			m.put("passed", passed);
+			m.put("hit_ratio", evaluated == 0 ? null : (double) passed / evaluated);
+			l.add(m);
+		}
+		return l;
+	}
+
 	@Override
 	public boolean isReducer() {
 		return false;
 	}
+
+	@Override
+	public boolean isParallelizable() {
+		// limit count is shared
+		return limit == null;
+	}
 }
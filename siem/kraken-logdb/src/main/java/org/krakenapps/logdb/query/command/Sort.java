@@ -22,6 +22,7 @@ import java.util.Map;
 import org.krakenapps.logdb.LogQueryCommand;
 import org.krakenapps.logdb.query.FileBufferList;
 import org.krakenapps.logdb.query.ObjectComparator;
+import org.krakenapps.logdb.sort.TopSelector;
 
 public class Sort extends LogQueryCommand {
 	private Integer limit;
@@ -29,6 +30,9 @@ public class Sort extends LogQueryCommand {
 	private FileBufferList<Map<String, Object>> buf;
 	private boolean reverse;
 
+	// used instead of file buffer if limit is small
+	private TopSelector<Map<String, Object>> selector;
+
 	public Sort(SortField[] fields) throws IOException {
 		this(null, fields, false);
 	}
@@ -50,6 +54,13 @@ public class Sort extends LogQueryCommand {
 	@Override
 	public void init() {
 		super.init();
+		if (TopSelector.isSupported(limit)) {
+			this.selector = new TopSelector<Map<String, Object>>(new DefaultComparator(), limit);
+			this.buf = null;
+			return;
+		}
+
+		this.selector = null;
 		try {
 			this.buf = new FileBufferList<Map<String, Object>>(new DefaultComparator());
 		} catch (IOException e) {
@@ -70,7 +81,10 @@ public class Sort extends LogQueryCommand {
 
 	@Override
 	public void push(LogMap m) {
-		buf.add(m.map());
+		if (selector != null)
+			selector.add(m.map());
+		else
+			buf.add(m.map());
 	}
 
 	@Override
@@ -81,7 +95,11 @@ public class Sort extends LogQueryCommand {
 	@Override
 	public void eof() {
 		this.status = Status.Finalizing;
-		if (limit == null) {
+		if (selector != null) {
+			for (Map<String, Object> m : selector.sort())
+				write(new LogMap(m));
+			selector = null;
+		} else if (limit == null) {
 			write(buf);
 		} else {
 			if (buf != null) {
@@ -107,10 +125,13 @@ public class Sort extends LogQueryCommand {
 				Object o1 = m1.get(field.name);
 				Object o2 = m2.get(field.name);
 
+				// null is always placed last
 				if (o1 == null && o2 == null)
 					continue;
-				else if (o1 == null && o2 != null)
+				else if (o1 == null)
 					return 1;
+				else if (o2 == null)
+					return -1;
 
 				if (!o1.equals(o2)) {
 					int result = cmp.compare(o1, o2);
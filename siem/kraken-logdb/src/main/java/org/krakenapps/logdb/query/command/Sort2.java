@@ -16,14 +16,18 @@
 package org.krakenapps.logdb.query.command;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 import org.krakenapps.logdb.query.ObjectComparator;
 import org.krakenapps.logdb.sort.CloseableIterator;
 import org.krakenapps.logdb.sort.Item;
 import org.krakenapps.logdb.sort.ParallelMergeSorter;
+import org.krakenapps.logdb.sort.TopSelector;
 
 public class Sort2 extends LogQueryCommand {
 	private Integer limit;
@@ -31,6 +35,12 @@ public class Sort2 extends LogQueryCommand {
 	private ParallelMergeSorter sorter;
 	private boolean reverse;
 
+	// used instead of sorter if limit is small
+	private TopSelector<Item> selector;
+
+	// input order of row, which breaks tie of sort keys
+	private long seq;
+
 	public Sort2(SortField[] fields) throws IOException {
 		this(null, fields, false);
 	}
@@ -52,7 +62,14 @@ public class Sort2 extends LogQueryCommand {
 	@Override
 	public void init() {
 		super.init();
-		this.sorter = new ParallelMergeSorter(new DefaultComparator());
+		this.seq = 0;
+		if (TopSelector.isSupported(limit)) {
+			this.selector = new TopSelector<Item>(new DefaultComparator(), limit);
+			this.sorter = null;
+		} else {
+			this.selector = null;
+			this.sorter = new ParallelMergeSorter(new DefaultComparator());
+		}
 	}
 
 	public Integer getLimit() {
@@ -69,8 +86,31 @@ public class Sort2 extends LogQueryCommand {
 
 	@Override
 	public void push(LogMap m) {
+		if (selector != null) {
+			selector.add(new Item(m.map(), seq++));
+			return;
+		}
+
+		try {
+			sorter.add(new Item(m.map(), seq++));
+		} catch (IOException e) {
+			throw new IllegalStateException("sort failed, query " + logQuery, e);
+		}
+	}
+
+	@Override
+	public void push(RowBatch batch) {
+		List<Item> items = new ArrayList<Item>(batch.size());
+		for (int i = 0; i < batch.size(); i++)
+			items.add(new Item(batch.get(i).map(), seq++));
+
+		if (selector != null) {
+			selector.addAll(items);
+			return;
+		}
+
 		try {
-			sorter.add(new Item(m.map(), null));
+			sorter.addAll(items);
 		} catch (IOException e) {
 			throw new IllegalStateException("sort failed, query " + logQuery, e);
 		}
@@ -85,6 +125,12 @@ public class Sort2 extends LogQueryCommand {
 	@Override
 	public void eof() {
 		this.status = Status.Finalizing;
+		if (selector != null) {
+			writeSelected();
+			super.eof();
+			return;
+		}
+
 		// TODO: use LONG instead!
 		int count = limit != null ? limit : Integer.MAX_VALUE;
 
@@ -92,15 +138,22 @@ public class Sort2 extends LogQueryCommand {
 		try {
 			it = sorter.sort();
 
+			RowBatch batch = new RowBatch();
 			while (it.hasNext()) {
 				Object o = it.next();
 				if (--count < 0)
 					break;
 
 				Map<String, Object> value = (Map<String, Object>) ((Item) o).getKey();
-				write(new LogMap(value));
+				batch.add(new LogMap(value));
+				if (batch.isFull()) {
+					write(batch);
+					batch = new RowBatch();
+				}
 			}
 
+			write(batch);
+
 		} catch (IOException e) {
 		} finally {
 			// close and delete sorted run file
@@ -118,6 +171,21 @@ public class Sort2 extends LogQueryCommand {
 		super.eof();
 	}
 
+	@SuppressWarnings("unchecked")
+	private void writeSelected() {
+		RowBatch batch = new RowBatch();
+		for (Item item : selector.sort()) {
+			batch.add(new LogMap((Map<String, Object>) item.getKey()));
+			if (batch.isFull()) {
+				write(batch);
+				batch = new RowBatch();
+			}
+		}
+
+		write(batch);
+		selector = null;
+	}
+
 	private class DefaultComparator implements Comparator<Item> {
 		private ObjectComparator cmp = new ObjectComparator();
 
@@ -131,10 +199,13 @@ public class Sort2 extends LogQueryCommand {
 				Object v1 = m1.get(field.name);
 				Object v2 = m2.get(field.name);
 
+				// null is always placed last
 				if (v1 == null && v2 == null)
 					continue;
-				else if (v1 == null && v2 != null)
+				else if (v1 == null)
 					return 1;
+				else if (v2 == null)
+					return -1;
 
 				if (!v1.equals(v2)) {
 					int result = cmp.compare(v1, v2);
@@ -148,7 +219,10 @@ public class Sort2 extends LogQueryCommand {
 				}
 			}
 
-			return 0;
+			// keep input order of equal keys, since runs are merged in any order
+			long seq1 = (Long) o1.getValue();
+			long seq2 = (Long) o2.getValue();
+			return seq1 < seq2 ? -1 : (seq1 == seq2 ? 0 : 1);
 		}
 	}
 
@@ -17,13 +17,15 @@ package org.krakenapps.logdb.query.command;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 import org.krakenapps.logdb.query.ObjectComparator;
 import org.krakenapps.logdb.sort.CloseableIterator;
 import org.krakenapps.logdb.sort.Item;
@@ -32,24 +34,61 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Stats2 extends LogQueryCommand {
+	private static final int SPILL_PARTITIONS = 16;
 	private final Logger logger = LoggerFactory.getLogger(Stats2.class);
-	private int inputCount;
 	private List<String> clauses;
 	private Function[] values;
-	private ParallelMergeSorter sorter;
+	private long memoryBudget = AggregationTable.DEFAULT_MEMORY_BUDGET;
+	private AggregationStage stage = AggregationStage.Complete;
 
-	private Map<List<Object>, Function[]> buffer;
+	// partial aggregation per pushing thread, merged in eof()
+	private ThreadLocal<PartialBuffer> buffer;
+	private List<PartialBuffer> partials;
+
+	// created when partial buffers exceed memory budget
+	private AggregationSpill spill;
+
+	// result rows waiting to be passed at once
+	private RowBatch output;
 
 	public Stats2(List<String> clause, Function[] values) {
 		this.clauses = clause;
 		this.values = values;
-		this.sorter = new ParallelMergeSorter(new ItemComparer());
-		this.buffer = new HashMap<List<Object>, Function[]>();
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            max heap usage of aggregation table in bytes, shared by all
+	 *            parallel workers
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public AggregationStage getStage() {
+		return stage;
+	}
+
+	public void setStage(AggregationStage stage) {
+		this.stage = stage;
 	}
 
 	@Override
 	public void init() {
 		super.init();
+		this.partials = new CopyOnWriteArrayList<PartialBuffer>();
+		this.buffer = new ThreadLocal<PartialBuffer>() {
+			@Override
+			protected PartialBuffer initialValue() {
+				PartialBuffer p = new PartialBuffer();
+				partials.add(p);
+				return p;
+			}
+		};
 
 		for (Function f : values)
 			f.clean();
@@ -57,53 +96,59 @@ public class Stats2 extends LogQueryCommand {
 
 	@Override
 	public void push(LogMap m) {
-		List<Object> keys = new ArrayList<Object>(clauses.size());
-		for (String clause : clauses) {
-			Object keyValue = m.get(clause);
+		aggregate(buffer.get(), m);
+	}
+
+	@Override
+	public void push(RowBatch batch) {
+		PartialBuffer p = buffer.get();
+		for (int i = 0; i < batch.size(); i++)
+			aggregate(p, batch.get(i));
+	}
+
+	private void aggregate(PartialBuffer p, LogMap m) {
+		// lookup key is reused, and copied only for new group
+		Object[] keys = p.probe;
+		for (int i = 0; i < keys.length; i++) {
+			Object keyValue = m.get(clauses.get(i));
 			if (keyValue == null)
 				return;
 
-			keys.add(keyValue);
+			keys[i] = keyValue;
 		}
 
-		try {
-			inputCount++;
-
-			Function[] fs = buffer.get(keys);
-			if (fs == null) {
-				fs = new Function[values.length];
-				for (int i = 0; i < fs.length; i++)
-					fs[i] = values[i].clone();
-
-				buffer.put(keys, fs);
-			}
+		AggregationTable table = p.table;
+		int size = table.size();
+		if (stage == AggregationStage.Final) {
+			Object[] state = (Object[]) m.get(AggregationStage.STATE_FIELD);
+			if (state == null)
+				return;
 
-			for (Function f : fs)
-				f.put(m);
+			table.mergeState(table.findOrAdd(keys), state);
+		} else
+			table.put(table.findOrAdd(keys), m);
 
-			// flush
-			if (buffer.keySet().size() > 50000)
-				flush();
+		p.inputCount++;
 
-		} catch (IOException e) {
-			throw new IllegalStateException("sort failed, query " + logQuery, e);
-		}
+		if (table.size() > size && table.getUsage() > memoryBudget / partials.size())
+			spill(table);
 	}
 
-	private void flush() throws IOException {
-		logger.debug("kraken logdb: flushing stats2 buffer, [{}] keys", buffer.keySet().size());
-
-		for (List<Object> keys : buffer.keySet()) {
-			Function[] fs = buffer.get(keys);
-			Object[] l = new Object[fs.length];
-			int i = 0;
-			for (Function f : fs)
-				l[i++] = f.serialize();
-
-			sorter.add(new Item(keys.toArray(), l));
+	private void spill(AggregationTable table) {
+		logger.debug("kraken logdb: spilling stats2 buffer, [{}] keys", table.size());
+
+		// partial buffers of parallel workers share the spill
+		synchronized (this) {
+			try {
+				if (spill == null)
+					spill = new AggregationSpill(SPILL_PARTITIONS);
+				spill.write(table);
+			} catch (IOException e) {
+				throw new IllegalStateException("stats2 spill failed, query " + logQuery, e);
+			}
 		}
 
-		buffer.clear();
+		table.clear();
 	}
 
 	@Override
@@ -111,76 +156,80 @@ public class Stats2 extends LogQueryCommand {
 		return true;
 	}
 
+	@Override
+	public boolean isParallelizable() {
+		// partial groups of workers are merged in thread order, not scan order
+		return !AggregationTable.isOrderSensitive(values);
+	}
+
 	@Override
 	public void eof() {
 		this.status = Status.Finalizing;
 
-		logger.debug("kraken logdb: stats2 sort input count [{}]", inputCount);
+		int inputCount = 0;
+		for (PartialBuffer p : partials)
+			inputCount += p.inputCount;
+
+		logger.debug("kraken logdb: stats2 input count [{}]", inputCount);
+		ParallelMergeSorter sorter = null;
 		CloseableIterator it = null;
 		try {
-			// last flush
-			flush();
-
-			// reclaim buffer (GC support)
-			buffer = null;
-
-			// sort
-			it = sorter.sort();
-
-			Object[] lastKeys = null;
-			Function[] fs = null;
-			Item item = null;
-			int count = 0;
-			while (it.hasNext()) {
-				item = (Item) it.next();
-				count++;
-
-				// first record or need to change merge set?
-				if (lastKeys == null || !Arrays.equals(lastKeys, (Object[]) item.getKey())) {
-					if (logger.isDebugEnabled() && lastKeys != null)
-						logger.debug("kraken logdb: stats2 key compare [{}] != [{}]", lastKeys[0], ((Object[]) item.getKey())[0]);
-
-					// finalize last record (only if changing set)
-					if (fs != null) {
-						pass(fs, lastKeys);
-					}
+			output = new RowBatch();
+
+			if (stage == AggregationStage.Partial) {
+				passPartials();
+			} else if (spill == null) {
+				// merge partial buffers in memory, and write sorted groups
+				AggregationTable table = null;
+				for (PartialBuffer p : partials) {
+					if (table == null)
+						table = p.table;
+					else
+						table.merge(p.table);
+				}
+				clearPartials();
 
-					// load new record
-					fs = new Function[values.length];
-					int i = 0;
-					Object[] rawFuncs = (Object[]) item.getValue();
-					for (Object rawFunc : rawFuncs) {
-						Object[] l = (Object[]) rawFunc;
-						String name = (String) l[0];
-						String target = (String) l[1];
-						String keyName = (String) l[2];
-						Function f = Function.getFunction(name, target, keyName, Timechart.func);
-						f.load(l);
-						fs[i++] = f;
-					}
-				} else {
-					// merge
-					int i = 0;
-					for (Function f : fs) {
-						Object[] l = (Object[]) ((Object[]) item.getValue())[i];
-						String name = (String) l[0];
-						String target = (String) l[1];
-						String keyName = (String) l[2];
-						Function f2 = Function.getFunction(name, target, keyName, Timechart.func);
-						f2.load(l);
-						f.merge(f2);
-						i++;
+				if (table == null)
+					table = new AggregationTable(clauses.size(), values);
+
+				List<Item> items = new ArrayList<Item>(table.size());
+				for (int g = 0; g < table.size(); g++)
+					items.add(new Item(table.getKeys(g), g));
+
+				Collections.sort(items, new ItemComparer());
+
+				for (Item item : items)
+					pass(table.getFunctions((Integer) item.getValue()), (Object[]) item.getKey());
+			} else {
+				// merge each hash partition in memory, and sort groups
+				logger.debug("kraken logdb: stats2 spilled [{}] keys", spill.getSpilledCount());
+				sorter = new ParallelMergeSorter(new ItemComparer());
+
+				for (int partition = 0; partition < spill.getPartitionCount(); partition++) {
+					AggregationTable table = new AggregationTable(clauses.size(), values);
+					spill.read(partition, table);
+					for (PartialBuffer p : partials)
+						table.merge(p.table, partition, spill.getPartitionCount());
+
+					for (int g = 0; g < table.size(); g++) {
+						Function[] fs = table.getFunctions(g);
+						Object[] l = new Object[fs.length];
+						for (int i = 0; i < fs.length; i++)
+							l[i] = fs[i].serialize();
+
+						sorter.add(new Item(table.getKeys(g), l));
 					}
 				}
+				clearPartials();
 
-				lastKeys = (Object[]) item.getKey();
+				it = sorter.sort();
+				while (it.hasNext()) {
+					Item item = it.next();
+					pass(loadFunctions(item), (Object[]) item.getKey());
+				}
 			}
 
-			// write last merge set
-			if (item != null)
-				pass(fs, lastKeys);
-
-			logger.debug("kraken logdb: sorted stats2 input [{}]", count);
+			write(output);
 		} catch (IOException e) {
 			throw new IllegalStateException("sort failed, query " + logQuery, e);
 		} finally {
@@ -192,13 +241,67 @@ public class Stats2 extends LogQueryCommand {
 				}
 			}
 
-			// support sorter cache GC when query processing is ended
-			sorter = null;
+			if (spill != null) {
+				spill.close();
+				spill = null;
+			}
 
 			super.eof();
 		}
 	}
 
+	/**
+	 * pass aggregation states of groups without sorting. final stage merges
+	 * and sorts them.
+	 */
+	private void passPartials() throws IOException {
+		int partitions = spill != null ? spill.getPartitionCount() : 1;
+		for (int partition = 0; partition < partitions; partition++) {
+			AggregationTable table = new AggregationTable(clauses.size(), values);
+			if (spill != null)
+				spill.read(partition, table);
+
+			for (PartialBuffer p : partials)
+				table.merge(p.table, partition, partitions);
+
+			for (int g = 0; g < table.size(); g++) {
+				Object[] keys = table.getKeys(g);
+				Map<String, Object> m = new HashMap<String, Object>();
+				for (int i = 0; i < clauses.size(); i++)
+					m.put(clauses.get(i), keys[i]);
+
+				m.put(AggregationStage.STATE_FIELD, table.getState(g));
+				add(new LogMap(m));
+			}
+		}
+		clearPartials();
+	}
+
+	/**
+	 * Pool threads keep partial buffers in thread locals after query ends.
+	 * Release aggregation tables before dropping buffers.
+	 */
+	private void clearPartials() {
+		for (PartialBuffer p : partials)
+			p.table = null;
+		partials.clear();
+	}
+
+	private Function[] loadFunctions(Item item) {
+		Function[] fs = new Function[values.length];
+		int i = 0;
+		for (Object rawFunc : (Object[]) item.getValue()) {
+			Object[] l = (Object[]) rawFunc;
+			String name = (String) l[0];
+			String target = (String) l[1];
+			String keyName = (String) l[2];
+			Function f = Function.getFunction(name, target, keyName, Timechart.func);
+			f.load(l);
+			fs[i++] = f;
+		}
+		return fs;
+	}
+
 	private void pass(Function[] fs, Object[] keys) {
 		Map<String, Object> m = new HashMap<String, Object>();
 
@@ -208,7 +311,21 @@ public class Stats2 extends LogQueryCommand {
 		for (int i = 0; i < values.length; i++)
 			m.put(values[i].toString(), fs[i].getResult());
 
-		write(new LogMap(m));
+		add(new LogMap(m));
+	}
+
+	private void add(LogMap m) {
+		output.add(m);
+		if (output.isFull()) {
+			write(output);
+			output = new RowBatch();
+		}
+	}
+
+	private class PartialBuffer {
+		private int inputCount;
+		private Object[] probe = new Object[clauses.size()];
+		private AggregationTable table = new AggregationTable(clauses.size(), values);
 	}
 
 	private static class ItemComparer implements Comparator<Item> {
@@ -15,18 +15,35 @@
  */
 package org.krakenapps.logdb.query.command;
 
+import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 
 import org.krakenapps.log.api.LogParser;
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
+import org.krakenapps.logdb.query.QueryThreadPool;
+import org.krakenapps.logstorage.CachedRandomSeeker;
 import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogIndexCursor;
+import org.krakenapps.logstorage.LogIndexItem;
+import org.krakenapps.logstorage.LogIndexQuery;
+import org.krakenapps.logstorage.LogRollupEntry;
 import org.krakenapps.logstorage.LogSearchCallback;
 import org.krakenapps.logstorage.LogStorage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Table extends LogQueryCommand {
+	// passed to each worker after last batch
+	private static final RowBatch END_OF_SCAN = new RowBatch(0);
+
 	private Logger logger = LoggerFactory.getLogger(Table.class);
 	private LogStorage storage;
 	private String tableName;
@@ -36,6 +53,31 @@ public class Table extends LogQueryCommand {
 	private Date to;
 	private LogParser parser;
 
+	// search terms and projection evaluated by storage, null if not pushed
+	private ScanFilter filter;
+
+	// fetch logs of indexed days by index if not null
+	private IndexPlan indexPlan;
+
+	// aggregate rollup buckets into timechart if not null
+	private RollupPlan rollupPlan;
+
+	// rows waiting to be passed to next command at once
+	private RowBatch batch;
+
+	// run next commands in worker threads if worker count is positive
+	private QueryThreadPool threadPool;
+	private int workers;
+
+	// restores scan order of batches processed by workers, null if not used
+	private Gather gather;
+
+	// batches waiting for workers, null for sequential run
+	private BlockingQueue<RowBatch> queue;
+	private CountDownLatch workerDone;
+	private long sequence;
+	private volatile boolean workerFailed;
+
 	public Table(String tableName) {
 		this(tableName, 0);
 	}
@@ -97,11 +139,104 @@ public class Table extends LogQueryCommand {
 		this.limit = limit;
 	}
 
+	public Date getFrom() {
+		return from;
+	}
+
+	public Date getTo() {
+		return to;
+	}
+
+	public LogParser getParser() {
+		return parser;
+	}
+
+	public ScanFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Set filter which is evaluated by storage scan. Filter should not be
+	 * used with offset, limit or parser, since they count or parse logs
+	 * before filter.
+	 */
+	public void setFilter(ScanFilter filter) {
+		this.filter = filter;
+	}
+
+	public IndexPlan getIndexPlan() {
+		return indexPlan;
+	}
+
+	/**
+	 * Set index plan which is used with filter. Logs fetched by index are
+	 * checked and projected by filter.
+	 */
+	public void setIndexPlan(IndexPlan indexPlan) {
+		this.indexPlan = indexPlan;
+	}
+
+	public RollupPlan getRollupPlan() {
+		return rollupPlan;
+	}
+
+	/**
+	 * Set rollup plan which is used without filter. Logs in rollup range are
+	 * not passed to next command, and next timechart aggregates rollup
+	 * entries instead.
+	 */
+	public void setRollupPlan(RollupPlan rollupPlan) {
+		this.rollupPlan = rollupPlan;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Set worker threads which run parallelizable commands after table.
+	 * Commands are run in table thread if workers is 0.
+	 */
+	public void setWorkers(QueryThreadPool threadPool, int workers) {
+		this.threadPool = threadPool;
+		this.workers = workers;
+	}
+
+	public Gather getGather() {
+		return gather;
+	}
+
+	/**
+	 * Set gather command which receives rows from workers. Workers notify
+	 * gather of each batch, and gather passes rows in scan order.
+	 */
+	public void setGather(Gather gather) {
+		this.gather = gather;
+	}
+
 	@Override
 	public void start() {
 		try {
 			status = Status.Running;
-			storage.search(tableName, from, to, offset, limit, new LogSearchCallbackImpl());
+			batch = new RowBatch();
+			if (workers > 0)
+				startWorkers();
+
+			try {
+				// filter counts passed logs only
+				int scanLimit = filter != null ? filter.getLimit() : limit;
+				LogSearchCallbackImpl callback = new LogSearchCallbackImpl();
+				if (indexPlan != null && filter != null)
+					searchByIndex(callback);
+				else if (rollupPlan != null && filter == null)
+					searchByRollup(callback);
+				else
+					storage.search(tableName, from, to, offset, scanLimit, filter, callback);
+				flush();
+			} finally {
+				if (queue != null)
+					stopWorkers();
+			}
 		} catch (InterruptedException e) {
 			logger.trace("kraken logdb: query interrupted");
 		} catch (Exception e) {
@@ -112,6 +247,175 @@ public class Table extends LogQueryCommand {
 		eof();
 	}
 
+	/**
+	 * Fetch logs of indexed days by index, and scan consecutive days which
+	 * are not indexed at once. Days are visited in descending order like
+	 * storage scan, and stopped at limit of filter.
+	 */
+	private void searchByIndex(LogSearchCallbackImpl callback) throws InterruptedException, IOException {
+		List<Date> days = indexPlan.getDays();
+		Set<Date> indexedDays = indexPlan.getIndexedDays();
+		int limit = filter.getLimit();
+		int found = 0;
+
+		CachedRandomSeeker seeker = storage.openCachedRandomSeeker();
+		try {
+			int i = 0;
+			while (i < days.size() && !callback.isInterrupted() && (limit == 0 || found < limit)) {
+				int needed = limit == 0 ? 0 : limit - found;
+				if (indexedDays.contains(days.get(i))) {
+					found += fetch(seeker, days.get(i++), needed, callback);
+					continue;
+				}
+
+				int j = i;
+				while (j + 1 < days.size() && !indexedDays.contains(days.get(j + 1)))
+					j++;
+
+				// query range is kept at both ends not to change boundary check
+				Date scanFrom = j == days.size() - 1 ? from : days.get(j);
+				Date scanTo = i == 0 ? to : new Date(days.get(i).getTime() + 86400000L - 1);
+				found += storage.search(tableName, scanFrom, scanTo, 0, needed, filter, callback);
+				i = j + 1;
+			}
+		} finally {
+			seeker.close();
+		}
+	}
+
+	/**
+	 * Scan both ends of query range, and push rollup entries of days in
+	 * rollup range to timechart.
+	 */
+	private void searchByRollup(LogSearchCallbackImpl callback) throws InterruptedException, IOException {
+		Date rollupFrom = rollupPlan.getRollupFrom();
+		Date rollupTo = rollupPlan.getRollupTo();
+
+		if (to == null || !to.before(rollupTo))
+			storage.search(tableName, rollupTo, to, 0, 0, null, callback);
+
+		Timechart2 timechart = rollupPlan.getTimechart();
+		for (Date day : rollupPlan.getDays()) {
+			if (callback.isInterrupted())
+				return;
+
+			List<LogRollupEntry> entries = storage.getRollupEntries(tableName, day);
+			timechart.pushRollup(rollupPlan.getSpec(), entries, rollupFrom, rollupTo);
+		}
+
+		if (from == null || from.before(rollupFrom))
+			storage.search(tableName, from, new Date(rollupFrom.getTime() - 1), 0, 0, null, callback);
+	}
+
+	/**
+	 * @param limit
+	 *            max count of passed logs, 0 for no limit
+	 * @return count of passed logs
+	 */
+	private int fetch(CachedRandomSeeker seeker, Date day, int limit, LogSearchCallbackImpl callback) throws IOException {
+		LogIndexQuery q = new LogIndexQuery();
+		q.setTableName(tableName);
+		q.setIndexName(indexPlan.getIndexName());
+		q.setCondition(indexPlan.getCondition());
+		q.setMinDay(day);
+		q.setMaxDay(day);
+
+		Set<String> fieldNames = filter.getFieldNames();
+		int found = 0;
+		LogIndexCursor cursor = indexPlan.getIndexer().search(q);
+		try {
+			while (cursor.hasNext() && !callback.isInterrupted()) {
+				LogIndexItem item = cursor.next();
+				Log log = seeker.getLog(tableName, item.getDay(), (int) item.getLogId());
+				if (log == null) {
+					logger.trace("kraken logdb: log [table={}, day={}, id={}] not found", new Object[] { tableName,
+							item.getDay(), item.getLogId() });
+					continue;
+				}
+
+				Date date = log.getDate();
+				if ((from != null && date.before(from)) || (to != null && date.after(to)))
+					continue;
+
+				Map<String, Object> data = log.getData();
+				if (!filter.matches(data))
+					continue;
+
+				if (fieldNames != null) {
+					Map<String, Object> projected = new HashMap<String, Object>();
+					for (String name : fieldNames)
+						if (data.containsKey(name))
+							projected.put(name, data.get(name));
+					log = new Log(tableName, date, log.getId(), projected);
+				}
+
+				callback.onLog(log);
+				if (++found == limit)
+					break;
+			}
+		} finally {
+			cursor.close();
+		}
+		return found;
+	}
+
+	private void flush() throws InterruptedException {
+		RowBatch b = batch;
+		batch = new RowBatch();
+
+		if (queue == null)
+			write(b);
+		else if (!b.isEmpty()) {
+			b.setSequence(sequence++);
+			queue.put(b);
+		}
+	}
+
+	private void startWorkers() {
+		queue = new ArrayBlockingQueue<RowBatch>(workers * 2);
+		workerDone = new CountDownLatch(workers);
+		sequence = 0;
+		workerFailed = false;
+
+		for (int i = 0; i < workers; i++)
+			threadPool.execute(new BatchWorker());
+
+		logger.debug("kraken logdb: table [{}] started {} workers for query [{}]", new Object[] { tableName, workers, logQuery });
+	}
+
+	/**
+	 * Workers drain queue until end marker even if interrupted, so waiting
+	 * for them does not block forever. Table should not return while workers
+	 * are still writing rows.
+	 */
+	private void stopWorkers() {
+		boolean interrupted = false;
+		try {
+			int markers = 0;
+			while (markers < workers) {
+				try {
+					queue.put(END_OF_SCAN);
+					markers++;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			while (true) {
+				try {
+					workerDone.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			queue = null;
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
 	@Override
 	public void push(LogMap m) {
 		throw new UnsupportedOperationException();
@@ -145,7 +449,15 @@ public class Table extends LogQueryCommand {
 				m.put("_time", log.getDate());
 			}
 
-			write(new LogMap(m));
+			batch.add(new LogMap(m));
+			if (batch.isFull()) {
+				try {
+					flush();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					eof();
+				}
+			}
 		}
 
 		@Override
@@ -155,7 +467,54 @@ public class Table extends LogQueryCommand {
 
 		@Override
 		public boolean isInterrupted() {
-			return status.equals(Status.End);
+			return status.equals(Status.End) || workerFailed;
+		}
+	}
+
+	private class BatchWorker implements Runnable {
+		@Override
+		public void run() {
+			boolean interrupted = false;
+			try {
+				while (true) {
+					RowBatch b = null;
+					try {
+						b = queue.take();
+					} catch (InterruptedException e) {
+						// stop scan (e.g. pool shutdown), and keep draining
+						// until end marker not to block table
+						logger.trace("kraken logdb: table worker interrupted");
+						interrupted = true;
+						workerFailed = true;
+						continue;
+					}
+
+					if (b == END_OF_SCAN)
+						break;
+
+					// drain rest batches if query is stopped
+					if (status == Status.End || workerFailed)
+						continue;
+
+					try {
+						if (gather != null)
+							gather.begin(b);
+
+						write(b);
+
+						if (gather != null)
+							gather.end(b);
+					} catch (Throwable t) {
+						// stop scan, and keep draining not to block table
+						workerFailed = true;
+						logger.error("kraken logdb: table worker failed", t);
+					}
+				}
+			} finally {
+				workerDone.countDown();
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
 		}
 	}
 }
@@ -16,18 +16,30 @@
 package org.krakenapps.logdb.query.command;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.RowBatch;
 import org.krakenapps.logdb.query.ObjectComparator;
+import org.krakenapps.logdb.query.command.Function.Average;
+import org.krakenapps.logdb.query.command.Function.Count;
 import org.krakenapps.logdb.query.command.Function.Sum;
 import org.krakenapps.logdb.sort.CloseableIterator;
 import org.krakenapps.logdb.sort.Item;
 import org.krakenapps.logdb.sort.ParallelMergeSorter;
+import org.krakenapps.logstorage.LogRollupEntry;
+import org.krakenapps.logstorage.LogRollupSpec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,11 +69,17 @@ public class Timechart2 extends LogQueryCommand {
 		func.put("per_day", PerDay.class);
 	}
 
-	// sort by timechart key, and merge incrementally in eof()
-	private ParallelMergeSorter sorter;
+	private static final int SPILL_PARTITIONS = 16;
 
-	// flush waiting buffer. merge in memory as many as possible
-	private HashMap<TimechartKey, Function[]> buffer;
+	// aggregation buffer per pushing thread. merge in memory as many as
+	// possible, and merge incrementally by timechart key in eof()
+	private ThreadLocal<PartialBuffer> buffer;
+	private List<PartialBuffer> partials;
+
+	// created when partial buffers exceed memory budget
+	private AggregationSpill spill;
+	private long memoryBudget = AggregationTable.DEFAULT_MEMORY_BUDGET;
+	private AggregationStage stage = AggregationStage.Complete;
 
 	// span unit. e.g. 'day' for '2d'
 	private Span spanField;
@@ -78,6 +96,9 @@ public class Timechart2 extends LogQueryCommand {
 	// key field name ('by' clause of command)
 	private String keyField;
 
+	// buckets aggregated from table rollup, merged with scanned rows in eof()
+	private Map<List<Object>, Function[]> rollupBuckets;
+
 	public Timechart2(Function[] values, String keyField) {
 		this(Span.Day, 1, values, keyField);
 	}
@@ -89,12 +110,41 @@ public class Timechart2 extends LogQueryCommand {
 		this.keyField = keyField;
 	}
 
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            max heap usage of aggregation table in bytes, shared by all
+	 *            parallel workers
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public AggregationStage getStage() {
+		return stage;
+	}
+
+	public void setStage(AggregationStage stage) {
+		this.stage = stage;
+	}
+
 	@Override
 	public void init() {
 		super.init();
-		this.sorter = new ParallelMergeSorter(new ItemComparer());
-		this.buffer = new HashMap<TimechartKey, Function[]>();
+		this.partials = new CopyOnWriteArrayList<PartialBuffer>();
+		this.buffer = new ThreadLocal<PartialBuffer>() {
+			@Override
+			protected PartialBuffer initialValue() {
+				PartialBuffer p = new PartialBuffer();
+				partials.add(p);
+				return p;
+			}
+		};
 		this.spanMillis = getSpanMillis();
+		this.rollupBuckets = new HashMap<List<Object>, Function[]>();
 
 		logger.debug("kraken logdb: span millis [{}] for query [{}]", spanMillis, logQuery);
 	}
@@ -107,8 +157,93 @@ public class Timechart2 extends LogQueryCommand {
 		return c.getTimeInMillis() - d.getTime();
 	}
 
+	/**
+	 * @return true if functions and key field can be evaluated from rollup
+	 *         entries, and rollup bucket is never split by timechart span
+	 */
+	public boolean isRollupCompatible(LogRollupSpec spec) {
+		long span = spec.getSpan();
+		if (keyField != null && !spec.getGroupFields().contains(keyField))
+			return false;
+
+		for (Function f : values) {
+			String target = f.getTarget();
+			if (f instanceof Count) {
+				if (target != null && !spec.getSumFields().contains(target))
+					return false;
+			} else if (f instanceof Sum || f instanceof Average) {
+				if (!spec.getSumFields().contains(target))
+					return false;
+			} else {
+				return false;
+			}
+		}
+
+		// month and year begin at local midnight
+		if (spanField == Span.Month || spanField == Span.Year)
+			return 15 * 60 * 1000L % span == 0 && TimeZone.getDefault().getRawOffset() % span == 0;
+
+		return spanField.millis * spanAmount % span == 0;
+	}
+
+	/**
+	 * Aggregate rollup entries of buckets in [from, to). Entries of same
+	 * bucket and groups can be repeated.
+	 */
+	public synchronized void pushRollup(LogRollupSpec spec, List<LogRollupEntry> entries, Date from, Date to) {
+		int keyIndex = keyField != null ? spec.getGroupFields().indexOf(keyField) : -1;
+		List<String> sumFields = spec.getSumFields();
+
+		for (LogRollupEntry e : entries) {
+			Date bucket = e.getBucket();
+			if (bucket.before(from) || !bucket.before(to))
+				continue;
+
+			String keyFieldValue = keyIndex >= 0 ? e.getGroups()[keyIndex] : null;
+			if (keyField != null && keyFieldValue == null)
+				continue;
+
+			List<Object> key = Arrays.asList(new Object[] { getKey(bucket), keyFieldValue });
+			Function[] fs = rollupBuckets.get(key);
+			if (fs == null) {
+				fs = new Function[values.length];
+				for (int i = 0; i < values.length; i++)
+					fs[i] = values[i].clone();
+				rollupBuckets.put(key, fs);
+			}
+
+			for (Function f : fs) {
+				int field = f.getTarget() != null ? sumFields.indexOf(f.getTarget()) : -1;
+				long valueCount = field >= 0 ? e.getValueCounts()[field] : e.getCount();
+				if (f instanceof Count) {
+					Count c = (Count) f;
+					c.setResult((Long) c.getResult() + valueCount);
+				} else if (valueCount > 0 && f instanceof Sum) {
+					Sum s = (Sum) f;
+					s.setSum(NumberUtil.add(s.getSum(), e.getSums()[field]));
+				} else if (valueCount > 0 && f instanceof Average) {
+					Average a = (Average) f;
+					double sum = e.getSums()[field].doubleValue();
+					a.setD(a.getD() == null ? sum : a.getD() + sum);
+					a.setCount(a.getCount() + (int) valueCount);
+				}
+			}
+		}
+	}
+
 	@Override
 	public void push(LogMap m) {
+		aggregate(buffer.get(), m);
+	}
+
+	@Override
+	public void push(RowBatch batch) {
+		PartialBuffer p = buffer.get();
+		for (int i = 0; i < batch.size(); i++)
+			aggregate(p, batch.get(i));
+	}
+
+	private void aggregate(PartialBuffer p, LogMap m) {
 		Date time = getKey((Date) m.get("_time"));
 		String keyFieldValue = null;
 		if (keyField != null) {
@@ -118,35 +253,43 @@ public class Timechart2 extends LogQueryCommand {
 		}
 
 		// bucket is identified by truncated time and key field value. each
-		// bucket has function array.
-		TimechartKey key = new TimechartKey(time, keyFieldValue);
-
-		// find or create flush waiting bucket
-		Function[] fs = buffer.get(key);
-		if (fs == null) {
-			fs = new Function[values.length];
-			for (int i = 0; i < fs.length; i++) {
-				fs[i] = values[i].clone();
-
-				// set span milliseconds for average evaluation per span
-				if (fs[i] instanceof PerTime)
-					((PerTime) fs[i]).amount = spanMillis;
-			}
+		// bucket has aggregation states of functions.
+		Object[] key = p.probe;
+		key[0] = time;
+		key[1] = keyFieldValue;
+
+		// find or create bucket, and aggregate for each functions
+		AggregationTable table = p.table;
+		int size = table.size();
+		if (stage == AggregationStage.Final) {
+			Object[] state = (Object[]) m.get(AggregationStage.STATE_FIELD);
+			if (state == null)
+				return;
 
-			buffer.put(key, fs);
-		}
+			table.mergeState(table.findOrAdd(key), state);
+		} else
+			table.put(table.findOrAdd(key), m);
 
-		// aggregate for each functions
-		for (Function f : fs)
-			f.put(m);
+		// spill if flood
+		if (table.size() > size && table.getUsage() > memoryBudget / partials.size())
+			spill(table);
+	}
 
-		// flush if flood
-		try {
-			if (buffer.size() > 50000)
-				flush();
-		} catch (IOException e) {
-			throw new IllegalStateException("timechart sort failed, query " + logQuery, e);
+	private void spill(AggregationTable table) {
+		logger.debug("kraken logdb: spilling timechart buffer, [{}] keys", table.size());
+
+		// partial buffers of parallel workers share the spill
+		synchronized (this) {
+			try {
+				if (spill == null)
+					spill = new AggregationSpill(SPILL_PARTITIONS);
+				spill.write(table);
+			} catch (IOException e) {
+				throw new IllegalStateException("timechart spill failed, query " + logQuery, e);
+			}
 		}
+
+		table.clear();
 	}
 
 	@Override
@@ -154,18 +297,10 @@ public class Timechart2 extends LogQueryCommand {
 		return true;
 	}
 
-	private void flush() throws IOException {
-		for (TimechartKey key : buffer.keySet()) {
-			Function[] fs = buffer.get(key);
-			Object[] l = new Object[fs.length];
-			int i = 0;
-			for (Function f : fs)
-				l[i++] = f.serialize();
-
-			sorter.add(new Item(new Object[] { key.time, key.key }, l));
-		}
-
-		buffer.clear();
+	@Override
+	public boolean isParallelizable() {
+		// partial groups of workers are merged in thread order, not scan order
+		return !AggregationTable.isOrderSensitive(values);
 	}
 
 	@Override
@@ -174,16 +309,54 @@ public class Timechart2 extends LogQueryCommand {
 
 		CloseableIterator it = null;
 		try {
-			// last flush
-			flush();
+			if (stage == AggregationStage.Partial) {
+				passPartials();
+			} else if (spill == null) {
+				// merge partial buffers and sort buckets in memory
+				AggregationTable table = null;
+				for (PartialBuffer p : partials) {
+					if (table == null)
+						table = p.table;
+					else
+						table.merge(p.table);
+				}
+
+				// reclaim buffer (GC support)
+				clearPartials();
+
+				List<Item> items = new ArrayList<Item>();
+				for (int g = 0; table != null && g < table.size(); g++)
+					items.add(toItem(table, g));
+
+				for (Map.Entry<List<Object>, Function[]> e : rollupBuckets.entrySet())
+					items.add(toItem(e.getKey().toArray(), e.getValue()));
+				rollupBuckets.clear();
+
+				Collections.sort(items, new ItemComparer());
+				mergeAndWrite(items.iterator());
+			} else {
+				// merge each hash partition in memory, and sort buckets
+				ParallelMergeSorter sorter = new ParallelMergeSorter(new ItemComparer());
+				for (int partition = 0; partition < spill.getPartitionCount(); partition++) {
+					AggregationTable table = new AggregationTable(2, values);
+					spill.read(partition, table);
+					for (PartialBuffer p : partials)
+						table.merge(p.table, partition, spill.getPartitionCount());
+
+					for (int g = 0; g < table.size(); g++)
+						sorter.add(toItem(table, g));
+				}
 
-			// reclaim buffer (GC support)
-			buffer = null;
+				for (Map.Entry<List<Object>, Function[]> e : rollupBuckets.entrySet())
+					sorter.add(toItem(e.getKey().toArray(), e.getValue()));
+				rollupBuckets.clear();
 
-			// sort
-			it = sorter.sort();
+				// reclaim buffer (GC support)
+				clearPartials();
 
-			mergeAndWrite(it);
+				it = sorter.sort();
+				mergeAndWrite(it);
+			}
 		} catch (IOException e) {
 			throw new IllegalStateException("timechart sort failed, query " + logQuery, e);
 		} finally {
@@ -194,16 +367,68 @@ public class Timechart2 extends LogQueryCommand {
 				} catch (IOException e) {
 				}
 			}
+
+			if (spill != null) {
+				spill.close();
+				spill = null;
+			}
+
 			super.eof();
 		}
+	}
+
+	/**
+	 * pass aggregation states of buckets without sorting. final stage merges
+	 * and sorts them.
+	 */
+	private void passPartials() throws IOException {
+		int partitions = spill != null ? spill.getPartitionCount() : 1;
+		for (int partition = 0; partition < partitions; partition++) {
+			AggregationTable table = new AggregationTable(2, values);
+			if (spill != null)
+				spill.read(partition, table);
+
+			for (PartialBuffer p : partials)
+				table.merge(p.table, partition, partitions);
+
+			for (int g = 0; g < table.size(); g++)
+				passPartial(table.getKeys(g), table.getState(g));
+		}
+		clearPartials();
+
+		for (Map.Entry<List<Object>, Function[]> e : rollupBuckets.entrySet())
+			passPartial(e.getKey().toArray(), AggregationTable.getState(e.getValue()));
+		rollupBuckets.clear();
+	}
+
+	private void passPartial(Object[] keys, Object[] state) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("_time", keys[0]);
+		if (keyField != null)
+			m.put(keyField, keys[1]);
+
+		m.put(AggregationStage.STATE_FIELD, state);
+		write(new LogMap(m));
+	}
 
-		// support sorter cache GC when query processing is ended
-		sorter = null;
+	private Item toItem(AggregationTable table, int g) {
+		return toItem(table.getKeys(g), table.getFunctions(g));
+	}
+
+	private Item toItem(Object[] keys, Function[] fs) {
+		Object[] l = new Object[fs.length];
+		for (int i = 0; i < fs.length; i++) {
+			// set span milliseconds for average evaluation per span
+			if (fs[i] instanceof PerTime)
+				((PerTime) fs[i]).amount = spanMillis;
+
+			l[i] = fs[i].serialize();
+		}
 
-		super.eof();
+		return new Item(keys, l);
 	}
 
-	private void mergeAndWrite(CloseableIterator it) {
+	private void mergeAndWrite(Iterator<Item> it) {
 		Date lastTime = null;
 
 		// value of key field
@@ -418,65 +643,18 @@ public class Timechart2 extends LogQueryCommand {
 		}
 	}
 
-	private static class TimechartKey implements Comparable<TimechartKey> {
-		// truncated time by span amount
-		public Date time;
-
-		// value of key field ('by' clause, can be null)
-		public String key;
-
-		public TimechartKey(Date time, String key) {
-			this.time = time;
-			this.key = key;
-		}
-
-		@Override
-		public int compareTo(TimechartKey o) {
-			if (o == null)
-				return -1;
-
-			int diff = (int) (time.getTime() - o.time.getTime());
-			if (diff != 0)
-				return diff;
-
-			if (key == null && o.key != null)
-				return -1;
-			else if (key != null && o.key == null)
-				return 1;
-
-			diff = key.compareTo(o.key);
-			return diff;
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + ((key == null) ? 0 : key.hashCode());
-			result = prime * result + ((time == null) ? 0 : time.hashCode());
-			return result;
-		}
+	/**
+	 * Pool threads keep partial buffers in thread locals after query ends.
+	 * Release aggregation tables before dropping buffers.
+	 */
+	private void clearPartials() {
+		for (PartialBuffer p : partials)
+			p.table = null;
+		partials.clear();
+	}
 
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			TimechartKey other = (TimechartKey) obj;
-			if (key == null) {
-				if (other.key != null)
-					return false;
-			} else if (!key.equals(other.key))
-				return false;
-			if (time == null) {
-				if (other.time != null)
-					return false;
-			} else if (!time.equals(other.time))
-				return false;
-			return true;
-		}
+	private class PartialBuffer {
+		private Object[] probe = new Object[2];
+		private AggregationTable table = new AggregationTable(2, values);
 	}
 }
@@ -25,6 +25,7 @@ import org.krakenapps.bnf.Syntax;
 import org.krakenapps.logdb.LogQueryParser;
 import org.krakenapps.logdb.query.StringPlaceholder;
 import org.krakenapps.logdb.query.command.Fulltext;
+import org.krakenapps.logstorage.LogIndexCondition;
 import org.krakenapps.logstorage.LogIndexQuery;
 import org.krakenapps.logstorage.LogIndexer;
 import org.krakenapps.logstorage.LogStorage;
@@ -57,8 +58,13 @@ public class FulltextParser implements LogQueryParser {
 		indexQuery.setTableName(option.get("table"));
 		indexQuery.setIndexName(option.get("index"));
 
-		// List<Term> terms = (List<Term>) b.getChildren()[2].getValue();
-		indexQuery.setTerm((String) b.getChildren()[2].getValue());
+		// quoted terms with whitespace are parsed as boolean condition, e.g.
+		// "error and (10.0.0.1 or 10.0.0.2) and not debug"
+		String term = (String) b.getChildren()[2].getValue();
+		if (term.trim().indexOf(' ') < 0)
+			indexQuery.setTerm(term);
+		else
+			indexQuery.setCondition(LogIndexCondition.parse(term));
 
 		return new Fulltext(storage, indexer, indexQuery);
 	}
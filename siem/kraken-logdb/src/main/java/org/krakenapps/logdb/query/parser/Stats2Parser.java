@@ -22,12 +22,14 @@ import static org.krakenapps.bnf.Syntax.ref;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.krakenapps.bnf.Binding;
 import org.krakenapps.bnf.Parser;
 import org.krakenapps.bnf.Syntax;
 import org.krakenapps.logdb.LogQueryParser;
 import org.krakenapps.logdb.query.StringPlaceholder;
+import org.krakenapps.logdb.query.command.AggregationStage;
 import org.krakenapps.logdb.query.command.Function;
 import org.krakenapps.logdb.query.command.Stats2;
 
@@ -44,6 +46,7 @@ public class Stats2Parser implements LogQueryParser {
 	@Override
 	public Object parse(Binding b) {
 		List<String> keyFields = null;
+		Map<String, String> option = (Map<String, String>) b.getChildren()[1].getValue();
 		Function[] func = ((List<Function>) b.getChildren()[2].getValue()).toArray(new Function[0]);
 
 		if (b.getChildren().length < 4)
@@ -51,7 +54,9 @@ public class Stats2Parser implements LogQueryParser {
 		else
 			keyFields = (List<String>) b.getChildren()[3].getChildren()[1].getValue();
 
-		return new Stats2(keyFields, func);
+		Stats2 stats = new Stats2(keyFields, func);
+		stats.setStage(AggregationStage.parse(option.get("stage")));
+		return stats;
 	}
 
 	public class StatsFieldParser implements Parser {
@@ -28,6 +28,7 @@ import org.krakenapps.bnf.Syntax;
 import org.krakenapps.logdb.LogQueryParser;
 import org.krakenapps.logdb.query.FunctionPlaceholder;
 import org.krakenapps.logdb.query.StringPlaceholder;
+import org.krakenapps.logdb.query.command.AggregationStage;
 import org.krakenapps.logdb.query.command.Function;
 import org.krakenapps.logdb.query.command.Timechart2.Span;
 import org.krakenapps.logdb.query.command.Timechart2;
@@ -82,9 +83,13 @@ public class TimechartParser2 implements LogQueryParser {
 			amount = Integer.parseInt(value.substring(0, i));
 		}
 
+		Timechart2 timechart = null;
 		if (field == null)
-			return new Timechart2(func, keyField);
+			timechart = new Timechart2(func, keyField);
 		else
-			return new Timechart2(field, amount, func, keyField);
+			timechart = new Timechart2(field, amount, func, keyField);
+
+		timechart.setStage(AggregationStage.parse(option.get("stage")));
+		return timechart;
 	}
 }
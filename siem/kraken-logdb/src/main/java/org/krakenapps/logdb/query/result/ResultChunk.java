@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.result;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.codec.FastEncodingRule;
+
+/**
+ * Decoded columns of result rows. Chunk is encoded as row count, column
+ * directory (name, raw and deflated length) and deflated column blocks. Each
+ * column block is an encoded array of presence bitmap and present values.
+ */
+class ResultChunk {
+	private int rows;
+	private String[] names;
+	private byte[][] presences;
+	private Object[][] values;
+
+	private ResultChunk(int rows, String[] names, byte[][] presences, Object[][] values) {
+		this.rows = rows;
+		this.names = names;
+		this.presences = presences;
+		this.values = values;
+	}
+
+	public int getRowCount() {
+		return rows;
+	}
+
+	public int indexOf(String name) {
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	public Object get(int column, int row) {
+		if (column < 0 || values[column] == null)
+			return null;
+		return values[column][row];
+	}
+
+	public Map<String, Object> getRow(int row) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		for (int i = 0; i < names.length; i++) {
+			if (values[i] != null && isPresent(presences[i], row))
+				m.put(names[i], values[i][row]);
+		}
+		return m;
+	}
+
+	private static boolean isPresent(byte[] presence, int row) {
+		return (presence[row >> 3] & (1 << (row & 7))) != 0;
+	}
+
+	public static byte[] encode(List<Map<String, Object>> rows, Deflater deflater) throws IOException {
+		// columns in first seen order
+		Map<String, Integer> columns = new LinkedHashMap<String, Integer>();
+		for (Map<String, Object> m : rows)
+			for (String key : m.keySet())
+				if (!columns.containsKey(key))
+					columns.put(key, columns.size());
+
+		int bitmapLength = (rows.size() + 7) / 8;
+		byte[][] presences = new byte[columns.size()][bitmapLength];
+		List<List<Object>> values = new ArrayList<List<Object>>(columns.size());
+		for (int i = 0; i < columns.size(); i++)
+			values.add(new ArrayList<Object>());
+
+		int row = 0;
+		for (Map<String, Object> m : rows) {
+			for (Map.Entry<String, Object> e : m.entrySet()) {
+				int column = columns.get(e.getKey());
+				presences[column][row >> 3] |= 1 << (row & 7);
+				values.get(column).add(e.getValue());
+			}
+			row++;
+		}
+
+		FastEncodingRule enc = new FastEncodingRule();
+		ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(header);
+		dos.writeInt(rows.size());
+		dos.writeInt(columns.size());
+
+		for (Map.Entry<String, Integer> e : columns.entrySet()) {
+			int column = e.getValue();
+			ByteBuffer bb = enc.encode(new Object[] { presences[column], values.get(column).toArray() });
+			int rawLength = bb.remaining();
+			byte[] compressed = deflate(deflater, bb.array(), rawLength);
+
+			dos.writeUTF(e.getKey());
+			dos.writeInt(rawLength);
+			dos.writeInt(compressed.length);
+			blocks.write(compressed);
+		}
+
+		dos.flush();
+		blocks.writeTo(header);
+		return header.toByteArray();
+	}
+
+	/**
+	 * @param selected
+	 *            column names to decode, or null for all columns. other
+	 *            columns are read as absent.
+	 */
+	public static ResultChunk decode(byte[] b, String[] selected, Inflater inflater) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(b));
+		int rows = dis.readInt();
+		int count = dis.readInt();
+
+		String[] names = new String[count];
+		int[] rawLengths = new int[count];
+		int[] lengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = dis.readUTF();
+			rawLengths[i] = dis.readInt();
+			lengths[i] = dis.readInt();
+		}
+
+		int offset = b.length - dis.available();
+		byte[][] presences = new byte[count][];
+		Object[][] values = new Object[count][];
+		for (int i = 0; i < count; i++) {
+			if (selected == null || Arrays.asList(selected).contains(names[i])) {
+				byte[] raw = inflate(inflater, b, offset, lengths[i], rawLengths[i]);
+				Object[] block = EncodingRule.decodeArray(ByteBuffer.wrap(raw));
+				presences[i] = (byte[]) block[0];
+				values[i] = expand(rows, presences[i], (Object[]) block[1]);
+			}
+			offset += lengths[i];
+		}
+
+		return new ResultChunk(rows, names, presences, values);
+	}
+
+	private static Object[] expand(int rows, byte[] presence, Object[] present) {
+		Object[] column = new Object[rows];
+		int p = 0;
+		for (int row = 0; row < rows; row++)
+			if (isPresent(presence, row))
+				column[row] = present[p++];
+		return column;
+	}
+
+	private static byte[] deflate(Deflater deflater, byte[] b, int len) {
+		deflater.reset();
+		deflater.setInput(b, 0, len);
+		deflater.finish();
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 64);
+		byte[] buf = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buf);
+			bos.write(buf, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	private static byte[] inflate(Inflater inflater, byte[] b, int offset, int len, int rawLength) throws IOException {
+		inflater.reset();
+		inflater.setInput(b, offset, len);
+
+		byte[] raw = new byte[rawLength];
+		try {
+			int n = 0;
+			while (n < rawLength) {
+				int read = inflater.inflate(raw, n, rawLength - n);
+				if (read == 0 && (inflater.finished() || inflater.needsInput()))
+					throw new IOException("truncated result column block");
+				n += read;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("corrupted result column block", e);
+		}
+		return raw;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.result;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.krakenapps.logdb.LogResultSet;
+
+/**
+ * Result set which locates each row by chunk index, so skip does not read
+ * any row.
+ */
+class ResultCursor implements LogResultSet {
+	private ResultStore store;
+	private ResultStore.Snapshot snapshot;
+	private ResultOrder order;
+	private boolean ownOrder;
+	private long position;
+
+	/**
+	 * @param order
+	 *            sorted order or null for written order
+	 * @param ownOrder
+	 *            true if order should be deleted at close
+	 */
+	public ResultCursor(ResultStore store, ResultStore.Snapshot snapshot, ResultOrder order, boolean ownOrder) {
+		this.store = store;
+		this.snapshot = snapshot;
+		this.order = order;
+		this.ownOrder = ownOrder;
+	}
+
+	@Override
+	public long size() {
+		return snapshot.count;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position < snapshot.count;
+	}
+
+	@Override
+	public Map<String, Object> next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		try {
+			long row = order != null ? order.get(position) : position;
+			position++;
+			return store.getRow(snapshot, row);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void skip(long n) {
+		position = Math.min(snapshot.count, position + n);
+	}
+
+	@Override
+	public void close() {
+		if (ownOrder)
+			order.delete();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.result;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.krakenapps.logdb.query.ObjectComparator;
+import org.krakenapps.logdb.sort.CloseableIterator;
+import org.krakenapps.logdb.sort.Item;
+import org.krakenapps.logdb.sort.ParallelMergeSorter;
+
+/**
+ * Row numbers of result in sorted order, stored as 8 byte entries so that any
+ * position is read without scan.
+ */
+class ResultOrder {
+	private static final int PAGE_SIZE = 1024;
+
+	private File file;
+	private long count;
+	private RandomAccessFile raf;
+
+	// cached page of row numbers
+	private long[] page = new long[PAGE_SIZE];
+	private long pageBegin = -1;
+	private int pageLength;
+
+	private ResultOrder(File file, long count) throws IOException {
+		this.file = file;
+		this.count = count;
+		this.raf = new RandomAccessFile(file, "r");
+	}
+
+	/**
+	 * Sorts rows of snapshot by key columns using merge sorter. Only key
+	 * columns are decoded.
+	 * 
+	 * @param fields
+	 *            column names. '-' prefixed name is sorted in descending
+	 *            order.
+	 */
+	public static ResultOrder build(ResultStore store, ResultStore.Snapshot snapshot, List<String> fields, File dir)
+			throws IOException {
+		String[] names = new String[fields.size()];
+		boolean[] asc = new boolean[fields.size()];
+		for (int i = 0; i < names.length; i++) {
+			String field = fields.get(i);
+			asc[i] = !field.startsWith("-");
+			names[i] = asc[i] ? field : field.substring(1);
+		}
+
+		ParallelMergeSorter sorter = new ParallelMergeSorter(new KeyComparator(asc));
+		long row = 0;
+		for (int i = 0; i < snapshot.chunks; i++) {
+			ResultChunk chunk = store.getColumns(i, names);
+			int[] columns = new int[names.length];
+			for (int k = 0; k < names.length; k++)
+				columns[k] = chunk.indexOf(names[k]);
+
+			for (int j = 0; j < chunk.getRowCount(); j++) {
+				Object[] keys = new Object[names.length];
+				for (int k = 0; k < names.length; k++)
+					keys[k] = chunk.get(columns[k], j);
+				sorter.add(new Item(keys, row++));
+			}
+		}
+
+		for (Map<String, Object> m : snapshot.pending) {
+			Object[] keys = new Object[names.length];
+			for (int k = 0; k < names.length; k++)
+				keys[k] = m.get(names[k]);
+			sorter.add(new Item(keys, row++));
+		}
+
+		File file = File.createTempFile("result", ".ord", dir);
+		CloseableIterator it = null;
+		DataOutputStream dos = null;
+		boolean completed = false;
+		try {
+			it = sorter.sort();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			while (it.hasNext())
+				dos.writeLong(((Number) it.next().getValue()).longValue());
+			dos.close();
+			dos = null;
+
+			ResultOrder order = new ResultOrder(file, row);
+			completed = true;
+			return order;
+		} finally {
+			if (it != null)
+				it.close();
+			if (dos != null)
+				dos.close();
+			if (!completed)
+				file.delete();
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return row number at sorted position
+	 */
+	public synchronized long get(long pos) throws IOException {
+		if (pos < pageBegin || pos >= pageBegin + pageLength) {
+			pageBegin = pos - pos % PAGE_SIZE;
+			pageLength = (int) Math.min(PAGE_SIZE, count - pageBegin);
+
+			byte[] b = new byte[pageLength * 8];
+			raf.seek(pageBegin * 8);
+			raf.readFully(b);
+
+			for (int i = 0; i < pageLength; i++) {
+				long l = 0;
+				for (int j = 0; j < 8; j++)
+					l = (l << 8) | (b[i * 8 + j] & 0xff);
+				page[i] = l;
+			}
+		}
+
+		return page[(int) (pos - pageBegin)];
+	}
+
+	public synchronized void delete() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+		}
+		file.delete();
+	}
+
+	private static class KeyComparator implements Comparator<Item> {
+		private ObjectComparator cmp = new ObjectComparator();
+		private boolean[] asc;
+
+		public KeyComparator(boolean[] asc) {
+			this.asc = asc;
+		}
+
+		@Override
+		public int compare(Item o1, Item o2) {
+			Object[] keys1 = (Object[]) o1.getKey();
+			Object[] keys2 = (Object[]) o2.getKey();
+
+			for (int i = 0; i < asc.length; i++) {
+				Object k1 = keys1[i];
+				Object k2 = keys2[i];
+
+				// null is always placed last
+				if (k1 == null && k2 == null)
+					continue;
+				else if (k1 == null)
+					return 1;
+				else if (k2 == null)
+					return -1;
+
+				int result = cmp.compare(k1, k2);
+				if (result != 0)
+					return asc[i] ? result : -result;
+			}
+
+			// keep original order of equal keys
+			long r1 = ((Number) o1.getValue()).longValue();
+			long r2 = ((Number) o2.getValue()).longValue();
+			return r1 < r2 ? -1 : (r1 == r2 ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.query.result;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.krakenapps.logdb.LogResultSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Query result file which stores rows in column chunks. Every chunk except
+ * last one holds {@link #CHUNK_ROWS} rows, and chunk offsets are kept in
+ * memory, so that any row is located without scan. Recently read chunks are
+ * cached for paging, and sorted row orders are cached after result is
+ * closed.
+ */
+public class ResultStore {
+	private final Logger logger = LoggerFactory.getLogger(ResultStore.class);
+	static final int CHUNK_ROWS = 1024;
+	private static final int CACHED_CHUNKS = 8;
+
+	private File dir;
+	private File dataFile;
+	private FileOutputStream fos;
+	private RandomAccessFile raf;
+	private long dataOffset;
+	private long[] chunkOffsets = new long[64];
+	private int chunkCount;
+	private List<Map<String, Object>> pending = new ArrayList<Map<String, Object>>();
+	private long count;
+	private boolean closed;
+	private boolean purged;
+
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private Inflater inflater = new Inflater();
+	private Map<Integer, ResultChunk> chunkCache;
+
+	// sorted orders of closed result, keyed by sort fields
+	private Map<List<String>, ResultOrder> orders = new HashMap<List<String>, ResultOrder>();
+
+	public ResultStore(File dir) throws IOException {
+		this.dir = dir;
+		dir.mkdirs();
+		dataFile = File.createTempFile("result", ".dat", dir);
+		fos = new FileOutputStream(dataFile);
+		raf = new RandomAccessFile(dataFile, "r");
+
+		chunkCache = new LinkedHashMap<Integer, ResultChunk>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, ResultChunk> eldest) {
+				return size() > CACHED_CHUNKS;
+			}
+		};
+	}
+
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	public synchronized long count() {
+		return count;
+	}
+
+	public synchronized void write(Map<String, Object> m) throws IOException {
+		if (closed)
+			throw new IllegalStateException("result store is closed: " + dataFile.getAbsolutePath());
+
+		pending.add(m);
+		count++;
+		if (pending.size() >= CHUNK_ROWS)
+			flushChunk();
+	}
+
+	private void flushChunk() throws IOException {
+		byte[] b = ResultChunk.encode(pending, deflater);
+		fos.write(b);
+
+		if (chunkCount == chunkOffsets.length)
+			chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+		chunkOffsets[chunkCount++] = dataOffset;
+		dataOffset += b.length;
+		pending = new ArrayList<Map<String, Object>>();
+	}
+
+	/**
+	 * Writes rest rows as last chunk. No more rows can be written.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+
+		closed = true;
+		try {
+			if (!pending.isEmpty() && !purged)
+				flushChunk();
+		} finally {
+			fos.close();
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Deletes result file and sorted orders. Opened result sets cannot be read
+	 * anymore.
+	 */
+	public synchronized void purge() {
+		purged = true;
+		try {
+			close();
+		} catch (IOException e) {
+			logger.error("kraken logdb: cannot close result file " + dataFile.getAbsolutePath(), e);
+		}
+
+		try {
+			raf.close();
+		} catch (IOException e) {
+		}
+
+		inflater.end();
+		chunkCache.clear();
+		for (ResultOrder order : orders.values())
+			order.delete();
+		orders.clear();
+		dataFile.delete();
+	}
+
+	/**
+	 * @return result set of rows written until now
+	 */
+	public LogResultSet open() throws IOException {
+		return new ResultCursor(this, snapshot(), null, false);
+	}
+
+	/**
+	 * Sorts rows written until now without running query again. Order is
+	 * cached and reused if result is closed.
+	 * 
+	 * @param fields
+	 *            column names. '-' prefixed name is sorted in descending
+	 *            order.
+	 */
+	public LogResultSet openSorted(List<String> fields) throws IOException {
+		if (fields == null || fields.isEmpty())
+			return open();
+
+		Snapshot snapshot = snapshot();
+		boolean complete = snapshot.pending.isEmpty() && isClosed();
+
+		ResultOrder order = null;
+		if (complete) {
+			synchronized (this) {
+				order = orders.get(fields);
+			}
+		}
+
+		if (order == null) {
+			long begin = System.currentTimeMillis();
+			order = ResultOrder.build(this, snapshot, fields, dir);
+			logger.debug("kraken logdb: sorted {} result rows by {}, {}ms",
+					new Object[] { snapshot.count, fields, System.currentTimeMillis() - begin });
+
+			if (!complete)
+				return new ResultCursor(this, snapshot, order, true);
+
+			synchronized (this) {
+				if (purged) {
+					order.delete();
+					throw new IOException("query result file is already purged: " + dataFile.getAbsolutePath());
+				}
+
+				ResultOrder old = orders.get(fields);
+				if (old != null) {
+					order.delete();
+					order = old;
+				} else {
+					orders.put(new ArrayList<String>(fields), order);
+				}
+			}
+		}
+
+		return new ResultCursor(this, snapshot, order, false);
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private synchronized Snapshot snapshot() throws IOException {
+		if (purged)
+			throw new IOException("query result file is already purged: " + dataFile.getAbsolutePath());
+		return new Snapshot(chunkCount, new ArrayList<Map<String, Object>>(pending), count);
+	}
+
+	Map<String, Object> getRow(Snapshot snapshot, long row) throws IOException {
+		int chunk = (int) (row / CHUNK_ROWS);
+		if (chunk < snapshot.chunks)
+			return getChunk(chunk).getRow((int) (row % CHUNK_ROWS));
+
+		// copy since pending row is shared by snapshots
+		Map<String, Object> m = snapshot.pending.get((int) (row - (long) snapshot.chunks * CHUNK_ROWS));
+		return new HashMap<String, Object>(m);
+	}
+
+	synchronized ResultChunk getChunk(int i) throws IOException {
+		ResultChunk chunk = chunkCache.get(i);
+		if (chunk == null) {
+			chunk = ResultChunk.decode(readChunk(i), null, inflater);
+			chunkCache.put(i, chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Decodes selected columns only, unless whole chunk is cached
+	 */
+	synchronized ResultChunk getColumns(int i, String[] names) throws IOException {
+		ResultChunk chunk = chunkCache.get(i);
+		if (chunk != null)
+			return chunk;
+		return ResultChunk.decode(readChunk(i), names, inflater);
+	}
+
+	private byte[] readChunk(int i) throws IOException {
+		if (purged)
+			throw new IOException("query result file is already purged: " + dataFile.getAbsolutePath());
+
+		long begin = chunkOffsets[i];
+		long end = i + 1 < chunkCount ? chunkOffsets[i + 1] : dataOffset;
+		byte[] b = new byte[(int) (end - begin)];
+		raf.seek(begin);
+		raf.readFully(b);
+		return b;
+	}
+
+	/**
+	 * Rows visible to a result set. Pending rows are not written to file yet.
+	 */
+	static class Snapshot {
+		final int chunks;
+		final List<Map<String, Object>> pending;
+		final long count;
+
+		private Snapshot(int chunks, List<Map<String, Object>> pending, long count) {
+			this.chunks = chunks;
+			this.pending = pending;
+			this.count = count;
+		}
+	}
+}
@@ -20,9 +20,11 @@ import java.util.Iterator;
 
 class CacheRunIterator implements CloseableIterator {
 	private Iterator<Item> it;
+	private SortMemory memory;
 
-	public CacheRunIterator(Iterator<Item> it) {
+	public CacheRunIterator(Iterator<Item> it, SortMemory memory) {
 		this.it = it;
+		this.memory = memory;
 	}
 
 	@Override
@@ -42,5 +44,6 @@ class CacheRunIterator implements CloseableIterator {
 
 	@Override
 	public void close() throws IOException {
+		memory.close();
 	}
 }
@@ -16,14 +16,12 @@
 package org.krakenapps.logdb.sort;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.NoSuchElementException;
 
-import org.krakenapps.codec.EncodingRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,31 +29,22 @@ class FileRunIterator implements CloseableIterator {
 	private final Logger logger = LoggerFactory.getLogger(FileRunIterator.class);
 	private static final int READ_BUFFER_SIZE = 1024 * 128;
 	private File f;
-	private InputStream bis;
+	private DataInputStream dis;
 	private Item next;
-	private byte[] buf = new byte[640 * 1024];
-	private byte[] intbuf = new byte[4];
-	private long totalRead;
+	private RunRecordCodec codec = new RunRecordCodec();
+	private SortMemory memory;
 
-	public FileRunIterator(File f) throws IOException {
+	public FileRunIterator(File f, SortMemory memory) throws IOException {
 		this.f = f;
-		bis = new BufferedInputStream(new FileInputStream(f), READ_BUFFER_SIZE);
+		this.memory = memory;
+		dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), READ_BUFFER_SIZE));
 	}
 
 	@Override
 	public boolean hasNext() {
 		if (next == null) {
 			try {
-				int readBytes = IoHelper.ensureRead(bis, intbuf, 4);
-				totalRead += readBytes;
-
-				if (readBytes == 4) {
-					int len = IoHelper.decodeInt(intbuf);
-					readBytes = IoHelper.ensureRead(bis, buf, len);
-					totalRead += readBytes;
-					if (readBytes == len)
-						next = (Item) EncodingRule.decode(ByteBuffer.wrap(buf, 0, len), SortCodec.instance);
-				}
+				next = codec.read(dis);
 			} catch (IOException e) {
 				try {
 					close();
@@ -85,7 +74,12 @@ class FileRunIterator implements CloseableIterator {
 
 	@Override
 	public void close() throws IOException {
-		bis.close();
-		f.delete();
+		try {
+			dis.close();
+		} finally {
+			codec.close();
+			memory.close();
+			f.delete();
+		}
 	}
 }
@@ -25,60 +25,49 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Sorts items by flushing sorted runs and merging partitions of runs.
+ * Flushes and merges run on workers of {@link SortService}, and runs are
+ * cached in memory while budget of sort service remains.
+ */
 public class ParallelMergeSorter {
 	private final Logger logger = LoggerFactory.getLogger(ParallelMergeSorter.class);
+
+	// heap bytes of decoded item per encoded byte, roughly
+	private static final int HEAP_BYTES_PER_ENCODED_BYTE = 3;
+	private static final long DEFAULT_ITEM_BYTES = 1024;
+	private static final int SAMPLE_COUNT = 16;
+
 	private Queue<Run> runs = new LinkedBlockingDeque<Run>();
 	private Queue<PartitionMergeTask> merges = new LinkedBlockingQueue<PartitionMergeTask>();
 	private LinkedList<Item> buffer;
 	private Comparator<Item> comparer;
-	private int runLength = 20000;
+	private int runLength;
+	private long itemBytes = DEFAULT_ITEM_BYTES;
 	private AtomicInteger runIndexer;
 	private volatile int flushTaskCount;
-	private AtomicInteger cacheCount;
 	private Object flushDoneSignal = new Object();
-	private ExecutorService executor;
-	private CyclicBarrier mergeBarrier;
+	private SortService service;
+	private SortMemory memory;
+	private Semaphore pendingFlushes = new Semaphore(SortService.MAX_PENDING_FLUSHES);
+	private CountDownLatch mergeDone;
 
 	public ParallelMergeSorter(Comparator<Item> comparer) {
 		this.comparer = comparer;
 		this.buffer = new LinkedList<Item>();
 		this.runIndexer = new AtomicInteger();
-		this.executor = new ThreadPoolExecutor(8, 8, 10, TimeUnit.SECONDS, new LimitedQueue<Runnable>(8));
-		this.cacheCount = new AtomicInteger(10000);
-	}
-
-	public class LimitedQueue<E> extends ArrayBlockingQueue<E> {
-		private static final long serialVersionUID = 1L;
-
-		public LimitedQueue(int maxSize) {
-			super(maxSize);
-		}
-
-		@Override
-		public boolean offer(E e) {
-			// turn offer() and add() into a blocking calls (unless interrupted)
-			try {
-				put(e);
-				return true;
-			} catch (InterruptedException ie) {
-				Thread.currentThread().interrupt();
-			}
-			return false;
-		}
-
+		this.service = SortService.getInstance();
+		this.memory = new SortMemory(service);
+		this.runLength = service.getRunLength(itemBytes);
 	}
 
 	public void add(Item item) throws IOException {
@@ -99,13 +88,55 @@ public class ParallelMergeSorter {
 			return;
 
 		buffer = new LinkedList<Item>();
+		estimateItemBytes(buffered);
+		runLength = service.getRunLength(itemBytes);
+
+		// bound buffers waiting for flush
+		pendingFlushes.acquireUninterruptibly();
 		synchronized (flushDoneSignal) {
 			flushTaskCount++;
 		}
-		executor.submit(new FlushWorker(buffered));
+		service.execute(new FlushWorker(buffered));
+	}
+
+	private void estimateItemBytes(List<Item> items) {
+		int step = Math.max(1, items.size() / SAMPLE_COUNT);
+		long total = 0;
+		int count = 0;
+		int i = 0;
+		try {
+			for (Item item : items) {
+				if (i++ % step != 0)
+					continue;
+				total += SortCodec.instance.lengthOf(item);
+				count++;
+			}
+		} catch (RuntimeException e) {
+			// keep last estimation, unsupported type fails at spill anyway
+			return;
+		}
+
+		if (count > 0)
+			itemBytes = Math.max(1, total / count) * HEAP_BYTES_PER_ENCODED_BYTE;
 	}
 
+	/**
+	 * Sorter cannot be used after sort. Returned iterator should be closed
+	 * to release memory and run files.
+	 */
 	public CloseableIterator sort() throws IOException {
+		boolean completed = false;
+		try {
+			CloseableIterator it = doSort();
+			completed = true;
+			return it;
+		} finally {
+			if (!completed)
+				memory.close();
+		}
+	}
+
+	private CloseableIterator doSort() throws IOException {
 		// flush rest objects
 		flushRun();
 		buffer = null;
@@ -144,12 +175,12 @@ public class ParallelMergeSorter {
 
 		// n-way merge
 		Run run = mergeAll(partitions);
-		executor.shutdown();
+		logger.debug("kraken logdb: sort completed, {}", service);
 
 		if (run.cached != null)
-			return new CacheRunIterator(run.cached.iterator());
+			return new CacheRunIterator(run.cached.iterator(), memory);
 		else
-			return new FileRunIterator(run.dataFile);
+			return new FileRunIterator(run.dataFile, memory);
 	}
 
 	private static int getProperPartitionCount() {
@@ -202,6 +233,8 @@ public class ParallelMergeSorter {
 				if (run.cached != null) {
 					List<Item> sublist = run.cached.subList(range.getFrom(), range.getTo() + 1);
 					Run r = new Run(newId, sublist);
+					r.memory = run.memory;
+					r.itemBytes = run.itemBytes;
 					runParts.add(r);
 				} else {
 					Run r = new Run(newId, range.length(), run.indexFile.share(), run.dataFile.share(), range.getFrom());
@@ -215,18 +248,17 @@ public class ParallelMergeSorter {
 			}
 		}
 
-		mergeBarrier = new CyclicBarrier(tasks.size() + 1);
+		mergeDone = new CountDownLatch(tasks.size());
 		for (PartitionMergeTask task : tasks) {
 			merges.add(task);
-			executor.submit(new MergeWorker(task));
+			service.execute(new MergeWorker(task));
 		}
 
 		// wait partition merge
 		try {
-			mergeBarrier.await();
+			mergeDone.await();
 		} catch (InterruptedException e) {
-		} catch (BrokenBarrierException e) {
-			logger.error("kraken logdb: barrier assumption fail", e);
+			throw new IOException("interrupted partition merge");
 		}
 
 		// final merge
@@ -262,6 +294,7 @@ public class ParallelMergeSorter {
 			} catch (Throwable t) {
 				logger.error("kraken logdb: failed to flush", t);
 			} finally {
+				pendingFlushes.release();
 				synchronized (flushDoneSignal) {
 					flushTaskCount--;
 					flushDoneSignal.notifyAll();
@@ -273,7 +306,7 @@ public class ParallelMergeSorter {
 			Collections.sort(buffered, comparer);
 
 			int id = runIndexer.incrementAndGet();
-			RunOutput out = new RunOutput(id, buffered.size(), cacheCount);
+			RunOutput out = new RunOutput(id, buffered.size(), memory, itemBytes);
 			try {
 				for (Item o : buffered)
 					out.write(o);
@@ -301,12 +334,7 @@ public class ParallelMergeSorter {
 			} catch (Throwable t) {
 				logger.error("kraken logdb: failed to merge " + task.runs, t);
 			} finally {
-				try {
-					mergeBarrier.await();
-				} catch (InterruptedException e) {
-				} catch (BrokenBarrierException e) {
-					logger.error("kraken logdb: merge barrier assumption fail", e);
-				}
+				mergeDone.countDown();
 			}
 		}
 
@@ -343,12 +371,12 @@ public class ParallelMergeSorter {
 			int total = 0;
 			for (Run r : finalRuns) {
 				total += r.length;
-				inputs.add(new RunInput(r, cacheCount));
+				inputs.add(new RunInput(r));
 				logger.debug("kraken logdb: concat run #{}", r.id);
 			}
 
 			int id = runIndexer.incrementAndGet();
-			out = new RunOutput(id, total, cacheCount, true);
+			out = new RunOutput(id, total, memory, itemBytes, true);
 
 			for (RunInput in : inputs) {
 				writeRestObjects(in, out);
@@ -379,18 +407,19 @@ public class ParallelMergeSorter {
 		}
 
 		logger.debug("kraken logdb: begin {}way merge, {}", runs.size(), runs);
+		service.addMergePass();
 		ArrayList<RunInput> inputs = new ArrayList<RunInput>();
 		PriorityQueue<RunItem> q = new PriorityQueue<RunItem>(runs.size(), new RunItemComparater());
 		RunOutput r3 = null;
 		try {
 			int total = 0;
 			for (Run r : runs) {
-				inputs.add(new RunInput(r, cacheCount));
+				inputs.add(new RunInput(r));
 				total += r.length;
 			}
 
 			int id = runIndexer.incrementAndGet();
-			r3 = new RunOutput(id, total, cacheCount, true);
+			r3 = new RunOutput(id, total, memory, itemBytes, true);
 
 			while (true) {
 				// load next inputs
@@ -24,6 +24,10 @@ class Run {
 	public ReferenceCountedFile dataFile;
 	public List<Item> cached;
 
+	// budget reserved for cached items
+	public SortMemory memory;
+	public long itemBytes;
+
 	// skip n objects
 	public int offset;
 
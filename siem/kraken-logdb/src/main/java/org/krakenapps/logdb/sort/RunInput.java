@@ -16,28 +16,20 @@
 package org.krakenapps.logdb.sort;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import org.krakenapps.codec.EncodingRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 class RunInput {
 	private static final int READ_BUFFER_SIZE = 1024 * 128;
 	private final Logger logger = LoggerFactory.getLogger(RunInput.class);
-	private ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
-		@Override
-		protected byte[] initialValue() {
-			return new byte[640 * 1024];
-		}
-	};
 
 	private Run run;
 	public Iterator<Item> cachedIt;
@@ -45,14 +37,13 @@ class RunInput {
 	public Item loaded;
 
 	private FileInputStream fis;
+	private DataInputStream dis;
+	private RunRecordCodec codec;
 	private Item prefetch;
-	private byte[] intbuf = new byte[4];
 	private int loadCount;
-	private AtomicInteger cacheCount;
 
-	public RunInput(Run run, AtomicInteger cacheCount) throws IOException {
+	public RunInput(Run run) throws IOException {
 		this.run = run;
-		this.cacheCount = cacheCount;
 
 		if (run.cached != null) {
 			cachedIt = run.cached.iterator();
@@ -66,6 +57,8 @@ class RunInput {
 			}
 
 			this.bis = new BufferedInputStream(fis, READ_BUFFER_SIZE);
+			this.dis = new DataInputStream(bis);
+			this.codec = new RunRecordCodec();
 		}
 	}
 
@@ -99,14 +92,7 @@ class RunInput {
 		}
 
 		try {
-			int readBytes = IoHelper.ensureRead(bis, intbuf, 4);
-			if (readBytes == 4) {
-				int len = IoHelper.decodeInt(intbuf);
-				byte[] buf = readBuffer.get();
-				readBytes = IoHelper.ensureRead(bis, buf, len);
-				if (readBytes == len)
-					prefetch = (Item) EncodingRule.decode(ByteBuffer.wrap(buf, 0, len), SortCodec.instance);
-			}
+			prefetch = codec.read(dis);
 		} catch (IOException e) {
 			logger.error("kraken logdb: cannot read run", e);
 		}
@@ -124,6 +110,8 @@ class RunInput {
 
 	public void purge() {
 		ensureClose(bis, fis);
+		if (codec != null)
+			codec.close();
 
 		if (run.indexFile != null)
 			run.indexFile.delete();
@@ -131,9 +119,8 @@ class RunInput {
 		if (run.dataFile != null)
 			run.dataFile.delete();
 
-		if (run.cached != null) {
-			cacheCount.addAndGet(run.length);
-		}
+		if (run.cached != null && run.memory != null)
+			run.memory.release(run.length * run.itemBytes);
 	}
 
 	private void ensureClose(BufferedInputStream bis, FileInputStream fis) {
@@ -17,9 +17,7 @@ package org.krakenapps.logdb.sort;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 
-import org.krakenapps.codec.EncodingRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,7 +26,7 @@ class RunInputRandomAccess {
 	public Run run;
 	private RandomAccessFile indexRaf;
 	private RandomAccessFile dataRaf;
-	private byte[] buf = new byte[64 * 1024];
+	private RunRecordCodec codec = new RunRecordCodec();
 
 	public RunInputRandomAccess(Run run) throws IOException {
 		this.run = run;
@@ -52,16 +50,16 @@ class RunInputRandomAccess {
 		long pos = indexRaf.readLong();
 
 		dataRaf.seek(pos);
-		int len = dataRaf.readInt();
+		Item item = codec.read(dataRaf);
+		if (item == null)
+			throw new IOException("insufficient merge data block, offset=" + offset + ", pos=" + pos);
 
-		int readBytes = dataRaf.read(buf, 0, len);
-		if (readBytes != len)
-			throw new IOException("insufficient merge data block, expected=" + len + ", actual=" + readBytes);
-
-		return (Item) EncodingRule.decode(ByteBuffer.wrap(buf, 0, len), SortCodec.instance);
+		return item;
 	}
 
 	public void close() {
+		codec.close();
+
 		if (indexRaf != null) {
 			try {
 				indexRaf.close();
@@ -21,7 +21,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.krakenapps.codec.FastEncodingRule;
 import org.slf4j.Logger;
@@ -37,25 +36,31 @@ class RunOutput {
 	private BufferedOutputStream indexBos;
 	private FileOutputStream indexFos;
 	private FileOutputStream dataFos;
-	private byte[] intbuf = new byte[4];
 	private byte[] longbuf = new byte[8];
 	private long dataOffset;
 	private boolean noIndexWrite;
 	private FastEncodingRule enc = new FastEncodingRule();
+	private RunRecordCodec codec;
+	private SortMemory memory;
 
-	public RunOutput(int id, int length, AtomicInteger cacheCount) throws IOException {
-		this(id, length, cacheCount, false);
+	public RunOutput(int id, int length, SortMemory memory, long itemBytes) throws IOException {
+		this(id, length, memory, itemBytes, false);
 	}
 
-	public RunOutput(int id, int length, AtomicInteger cacheCount, boolean noIndexWrite) throws IOException {
+	/**
+	 * @param itemBytes
+	 *            estimated heap bytes of an item. run is cached if memory
+	 *            for all items is reserved.
+	 */
+	public RunOutput(int id, int length, SortMemory memory, long itemBytes, boolean noIndexWrite) throws IOException {
 		this.noIndexWrite = noIndexWrite;
+		this.memory = memory;
 
-		int remainCacheSize = cacheCount.addAndGet(-length);
-		if (remainCacheSize >= 0) {
+		if (memory.reserve(length * itemBytes)) {
 			this.run = new Run(id, new LinkedList<Item>());
+			run.memory = memory;
+			run.itemBytes = itemBytes;
 		} else {
-			cacheCount.addAndGet(length);
-
 			File indexFile = null;
 			File tmpDir = new File(System.getProperty("kraken.data.dir"), "kraken-logdb/sort");
 			tmpDir.mkdirs();
@@ -68,6 +73,7 @@ class RunOutput {
 			}
 			dataFos = new FileOutputStream(dataFile);
 			dataBos = new BufferedOutputStream(dataFos, WRITE_BUFFER_SIZE);
+			codec = new RunRecordCodec();
 
 			ReferenceCountedFile rcIndex = null;
 			if (indexFile != null)
@@ -92,12 +98,8 @@ class RunOutput {
 				indexBos.write(longbuf);
 			}
 
-			IoHelper.encodeInt(intbuf, len);
-			dataBos.write(intbuf);
-			dataBos.write(buf.array(), 0, len);
+			dataOffset += codec.write(dataBos, buf.array(), len);
 			buf.clear();
-
-			dataOffset += 4 + len;
 		}
 	}
 
@@ -105,6 +107,11 @@ class RunOutput {
 		ensureClose(indexBos, indexFos);
 		ensureClose(dataBos, dataFos);
 
+		if (codec != null) {
+			codec.close();
+			memory.getService().addSpill(dataOffset + (noIndexWrite ? 0 : 8L * written));
+		}
+
 		run.updateLength();
 		return run;
 	}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.sort;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.krakenapps.codec.EncodingRule;
+
+/**
+ * Length prefixed records of spilled run. Item encoded by {@link SortCodec}
+ * is deflated if it gets smaller, and negative length marks deflated payload
+ * followed by original length. Each record can be read alone, so index of
+ * run can point any record.
+ */
+class RunRecordCodec {
+	// short payload is not worth to deflate
+	private static final int MIN_DEFLATE_LENGTH = 256;
+
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] buf = new byte[8192];
+	private byte[] deflated = new byte[8192];
+	private byte[] intbuf = new byte[4];
+
+	/**
+	 * @return written bytes
+	 */
+	public int write(OutputStream os, byte[] b, int len) throws IOException {
+		if (len >= MIN_DEFLATE_LENGTH) {
+			if (deflater == null)
+				deflater = new Deflater(Deflater.BEST_SPEED);
+
+			deflater.reset();
+			deflater.setInput(b, 0, len);
+			deflater.finish();
+
+			// keep original if deflated form is not smaller
+			byte[] out = ensure(deflated, len);
+			deflated = out;
+			int deflatedLen = 0;
+			while (!deflater.finished() && deflatedLen < len) {
+				int n = deflater.deflate(out, deflatedLen, len - deflatedLen);
+				if (n == 0)
+					break;
+				deflatedLen += n;
+			}
+
+			if (deflater.finished() && deflatedLen + 4 < len) {
+				IoHelper.encodeInt(intbuf, -deflatedLen);
+				os.write(intbuf);
+				IoHelper.encodeInt(intbuf, len);
+				os.write(intbuf);
+				os.write(out, 0, deflatedLen);
+				return 8 + deflatedLen;
+			}
+		}
+
+		IoHelper.encodeInt(intbuf, len);
+		os.write(intbuf);
+		os.write(b, 0, len);
+		return 4 + len;
+	}
+
+	/**
+	 * @return next item, or null at the end of run
+	 */
+	public Item read(DataInput in) throws IOException {
+		int len;
+		try {
+			len = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+
+		if (len >= 0) {
+			buf = ensure(buf, len);
+			in.readFully(buf, 0, len);
+			return decode(buf, len);
+		}
+
+		int deflatedLen = -len;
+		int rawLen = in.readInt();
+		deflated = ensure(deflated, deflatedLen);
+		in.readFully(deflated, 0, deflatedLen);
+
+		if (inflater == null)
+			inflater = new Inflater();
+
+		buf = ensure(buf, rawLen);
+		inflater.reset();
+		inflater.setInput(deflated, 0, deflatedLen);
+		try {
+			int n = 0;
+			while (n < rawLen) {
+				int r = inflater.inflate(buf, n, rawLen - n);
+				if (r == 0)
+					break;
+				n += r;
+			}
+
+			if (n != rawLen)
+				throw new IOException("broken sort run record, expected=" + rawLen + ", actual=" + n);
+		} catch (DataFormatException e) {
+			throw new IOException("broken sort run record", e);
+		}
+
+		return decode(buf, rawLen);
+	}
+
+	public void close() {
+		if (deflater != null)
+			deflater.end();
+		if (inflater != null)
+			inflater.end();
+	}
+
+	private static Item decode(byte[] b, int len) {
+		return (Item) EncodingRule.decode(ByteBuffer.wrap(b, 0, len), SortCodec.instance);
+	}
+
+	private static byte[] ensure(byte[] b, int len) {
+		if (b.length >= len)
+			return b;
+		return new byte[Math.max(len, b.length * 2)];
+	}
+}
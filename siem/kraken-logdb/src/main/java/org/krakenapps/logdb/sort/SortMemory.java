@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.sort;
+
+/**
+ * Memory which a sorter reserved in sort service budget for cached runs.
+ * Rest reservation is released when sorter is closed, even if some runs are
+ * not purged by failure.
+ */
+class SortMemory {
+	private SortService service;
+	private long reserved;
+	private boolean closed;
+
+	public SortMemory(SortService service) {
+		this.service = service;
+		service.register();
+	}
+
+	public SortService getService() {
+		return service;
+	}
+
+	public synchronized boolean reserve(long bytes) {
+		if (closed || !service.reserve(bytes))
+			return false;
+
+		reserved += bytes;
+		return true;
+	}
+
+	public synchronized void release(long bytes) {
+		// released by close already
+		if (closed)
+			return;
+
+		reserved -= bytes;
+		service.release(bytes);
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		service.release(reserved);
+		service.unregister();
+		reserved = 0;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.sort;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker threads and memory budget shared by all merge sorters of process.
+ * Sorted runs are kept in memory while budget remains, and spilled to file
+ * otherwise. Run length of each sorter is sized by its share of budget.
+ */
+public class SortService {
+	private static final SortService instance = new SortService();
+
+	// run length bounds in items
+	private static final int MIN_RUN_LENGTH = 1000;
+	private static final int MAX_RUN_LENGTH = 100000;
+
+	// unflushed buffer and pending flushes of a sorter
+	static final int MAX_PENDING_FLUSHES = 2;
+
+	private ThreadPoolExecutor executor;
+	private volatile long memoryBudget;
+	private AtomicLong reservedBytes = new AtomicLong();
+	private AtomicInteger activeSorters = new AtomicInteger();
+
+	// metrics
+	private AtomicLong spilledBytes = new AtomicLong();
+	private AtomicLong spilledRuns = new AtomicLong();
+	private AtomicLong mergePasses = new AtomicLong();
+
+	private SortService() {
+		int workers = Runtime.getRuntime().availableProcessors();
+		executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private AtomicInteger counter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Log Sort Worker " + counter.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	public static SortService getInstance() {
+		return instance;
+	}
+
+	public int getWorkerCount() {
+		return executor.getMaximumPoolSize();
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set memory budget in bytes. New budget is applied to next runs.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 0)
+			throw new IllegalArgumentException("negative sort memory budget: " + memoryBudget);
+		this.memoryBudget = memoryBudget;
+	}
+
+	public long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	public int getActiveSorters() {
+		return activeSorters.get();
+	}
+
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	public long getSpilledRuns() {
+		return spilledRuns.get();
+	}
+
+	public long getMergePasses() {
+		return mergePasses.get();
+	}
+
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * @return true if bytes are reserved in budget
+	 */
+	boolean reserve(long bytes) {
+		while (true) {
+			long reserved = reservedBytes.get();
+			if (reserved + bytes > memoryBudget)
+				return false;
+			if (reservedBytes.compareAndSet(reserved, reserved + bytes))
+				return true;
+		}
+	}
+
+	void release(long bytes) {
+		reservedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * @param itemBytes
+	 *            estimated heap bytes of an item
+	 * @return run length which fits in budget share of a sorter
+	 */
+	int getRunLength(long itemBytes) {
+		long free = Math.max(0, memoryBudget - reservedBytes.get());
+		long share = free / Math.max(1, activeSorters.get());
+		long length = share / (Math.max(1, itemBytes) * (MAX_PENDING_FLUSHES + 1));
+		return (int) Math.max(MIN_RUN_LENGTH, Math.min(MAX_RUN_LENGTH, length));
+	}
+
+	void register() {
+		activeSorters.incrementAndGet();
+	}
+
+	void unregister() {
+		activeSorters.decrementAndGet();
+	}
+
+	void addSpill(long bytes) {
+		spilledBytes.addAndGet(bytes);
+		spilledRuns.incrementAndGet();
+	}
+
+	void addMergePass() {
+		mergePasses.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "sort service: workers=" + getWorkerCount() + ", active sorters=" + getActiveSorters() + ", memory="
+				+ getReservedBytes() + "/" + getMemoryBudget() + " bytes, spilled=" + getSpilledBytes() + " bytes in "
+				+ getSpilledRuns() + " runs, merge passes=" + getMergePasses();
+	}
+}
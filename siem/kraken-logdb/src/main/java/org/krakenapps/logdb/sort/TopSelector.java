@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logdb.sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps first n items in sort order using bounded heap, instead of sorting
+ * all items with sorted runs. Items of same order are kept in insertion
+ * order. Not thread-safe.
+ */
+public class TopSelector<T> {
+	/**
+	 * selector keeps all selected items in memory, so larger limit should
+	 * use merge sort. same as run length of merge sorter.
+	 */
+	public static final int MAX_LIMIT = 20000;
+
+	private Comparator<T> comparer;
+	private int limit;
+	private long seq;
+
+	// root is the last item in order
+	private PriorityQueue<Entry<T>> heap;
+
+	public TopSelector(Comparator<T> comparer, int limit) {
+		this.comparer = comparer;
+		this.limit = limit;
+		this.heap = new PriorityQueue<Entry<T>>(Math.max(1, limit), new ReverseComparator());
+	}
+
+	public static boolean isSupported(Integer limit) {
+		return limit != null && limit >= 0 && limit <= MAX_LIMIT;
+	}
+
+	public void add(T item) {
+		long n = seq++;
+		if (heap.size() < limit) {
+			heap.add(new Entry<T>(item, n));
+			return;
+		}
+
+		// later item of same order is dropped
+		Entry<T> last = heap.peek();
+		if (last == null || comparer.compare(item, last.item) >= 0)
+			return;
+
+		heap.poll();
+		heap.add(new Entry<T>(item, n));
+	}
+
+	public void addAll(List<? extends T> items) {
+		for (T item : items)
+			add(item);
+	}
+
+	/**
+	 * @return selected items in sort order. selector is cleared.
+	 */
+	public List<T> sort() {
+		List<Entry<T>> entries = new ArrayList<Entry<T>>(heap);
+		heap.clear();
+		Collections.sort(entries, Collections.reverseOrder(new ReverseComparator()));
+
+		List<T> items = new ArrayList<T>(entries.size());
+		for (Entry<T> e : entries)
+			items.add(e.item);
+		return items;
+	}
+
+	private static class Entry<T> {
+		private T item;
+		private long seq;
+
+		private Entry(T item, long seq) {
+			this.item = item;
+			this.seq = seq;
+		}
+	}
+
+	private class ReverseComparator implements Comparator<Entry<T>> {
+		@Override
+		public int compare(Entry<T> o1, Entry<T> o2) {
+			int result = comparer.compare(o2.item, o1.item);
+			if (result != 0)
+				return result;
+			return o1.seq < o2.seq ? 1 : (o1.seq == o2.seq ? 0 : -1);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package org.krakenapps.logdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+
+public class RowBatchTest {
+	@Test
+	public void testAdd() {
+		RowBatch batch = new RowBatch(4);
+		assertTrue(batch.isEmpty());
+		for (int i = 0; i < 4; i++) {
+			assertFalse(batch.isFull());
+			batch.add(row(i));
+		}
+
+		assertTrue(batch.isFull());
+		assertEquals(4, batch.size());
+		assertRows(batch, 0, 1, 2, 3);
+	}
+
+	@Test
+	public void testSelect() {
+		RowBatch batch = batch(8);
+		batch.select(new boolean[] { true, false, true, true, false, true, true, false });
+		assertRows(batch, 0, 2, 3, 5, 6);
+
+		// flags are indexed by selected rows
+		batch.select(new boolean[] { false, true, true, false, true });
+		assertRows(batch, 2, 3, 6);
+
+		// replaced row keeps its position
+		batch.set(1, row(30));
+		assertRows(batch, 2, 30, 6);
+
+		batch.select(new boolean[] { false, false, false });
+		assertTrue(batch.isEmpty());
+
+		try {
+			batch.add(row(8));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testTruncate() {
+		RowBatch batch = batch(8);
+		batch.truncate(10);
+		assertEquals(8, batch.size());
+
+		batch.truncate(6);
+		assertRows(batch, 0, 1, 2, 3, 4, 5);
+
+		// truncated rows are not selected again
+		batch.select(new boolean[] { false, true, false, true, true, true });
+		assertRows(batch, 1, 3, 4, 5);
+
+		batch.truncate(2);
+		assertRows(batch, 1, 3);
+
+		batch.truncate(0);
+		assertTrue(batch.isEmpty());
+	}
+
+	private RowBatch batch(int count) {
+		RowBatch batch = new RowBatch(count);
+		for (int i = 0; i < count; i++)
+			batch.add(row(i));
+		return batch;
+	}
+
+	private void assertRows(RowBatch batch, int... expected) {
+		assertEquals(expected.length, batch.size());
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], batch.get(i).get("n"));
+	}
+
+	private LogMap row(int n) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("n", n);
+		return new LogMap(m);
+	}
+}
@@ -0,0 +1,427 @@
+package org.krakenapps.logdb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.query.command.IndexPlan;
+import org.krakenapps.logdb.query.command.ScanFilter;
+import org.krakenapps.logdb.query.command.Search;
+import org.krakenapps.logdb.query.command.Table;
+import org.krakenapps.logdb.query.command.Term;
+import org.krakenapps.logdb.query.command.Term.Operator;
+import org.krakenapps.logstorage.BatchIndexingStatus;
+import org.krakenapps.logstorage.BatchIndexingTask;
+import org.krakenapps.logstorage.CachedRandomSeeker;
+import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogFilter;
+import org.krakenapps.logstorage.LogIndexCursor;
+import org.krakenapps.logstorage.LogIndexItem;
+import org.krakenapps.logstorage.LogIndexQuery;
+import org.krakenapps.logstorage.LogIndexSchema;
+import org.krakenapps.logstorage.LogIndexer;
+import org.krakenapps.logstorage.LogSearchCallback;
+import org.krakenapps.logstorage.LogStorage;
+
+/**
+ * Plans index fetch against generated logs and postings. Log of id n has
+ * host "h" + (n % 100), and kind "a" if n is even or "b" otherwise.
+ */
+public class IndexPlannerTest {
+	// descending like storage
+	private List<Date> days;
+
+	private int logsPerDay;
+
+	// reported log count per actual log
+	private int logCountScale;
+
+	private Map<String, LogIndexSchema> schemas;
+	private Set<Date> indexedDays;
+	private List<BatchIndexingTask> tasks;
+
+	private long walked;
+	private long fetched;
+
+	private LogStorage storage;
+	private LogIndexer indexer;
+	private IndexPlanner planner;
+
+	@Before
+	public void setup() {
+		days = new ArrayList<Date>();
+		for (int i = 3; i >= 1; i--) {
+			Calendar c = Calendar.getInstance();
+			c.clear();
+			c.set(2013, 0, i);
+			days.add(c.getTime());
+		}
+
+		logsPerDay = 1000;
+		logCountScale = 1;
+		indexedDays = new HashSet<Date>(days);
+		tasks = new ArrayList<BatchIndexingTask>();
+
+		schemas = new HashMap<String, LogIndexSchema>();
+		schemas.put("host", newSchema("host", "host"));
+		schemas.put("all", newSchema("all", null));
+
+		storage = (LogStorage) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LogStorage.class },
+				new StorageHandler());
+		indexer = (LogIndexer) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LogIndexer.class },
+				new IndexerHandler());
+		planner = new IndexPlanner(storage, indexer);
+	}
+
+	@Test
+	public void testSelective() {
+		schemas.remove("all");
+		IndexPlan plan = planner.plan(newTable(term("host", "h7")));
+		assertNotNull(plan);
+		assertEquals("host", plan.getIndexName());
+		assertEquals(30, plan.getEstimatedHits());
+		assertEquals(3000, plan.getIndexedLogs());
+		assertEquals(days, plan.getDays());
+
+		// term which index does not cover
+		assertNull(planner.plan(newTable(term("kind", "a"), term("other", "x"))));
+	}
+
+	@Test
+	public void testNotSelective() {
+		// hit counting stops at 10% of indexed logs
+		assertNull(planner.plan(newTable(term("kind", "a"))));
+		assertEquals(301, walked);
+	}
+
+	@Test
+	public void testMaxHits() {
+		// 10% of reported log count is larger than fixed bound
+		logsPerDay = 100000;
+		logCountScale = 10;
+		assertNull(planner.plan(newTable(term("kind", "a"))));
+		assertTrue(walked <= 50001);
+
+		// exact hits are counted below bound
+		schemas.remove("all");
+		walked = 0;
+		IndexPlan plan = planner.plan(newTable(term("host", "h7")));
+		assertEquals(3000, plan.getEstimatedHits());
+		assertEquals(3000, walked);
+	}
+
+	@Test
+	public void testBestIndex() {
+		// host index hits all h8 logs, and all index hits none
+		IndexPlan plan = planner.plan(newTable(term("host", "h8"), term("kind", "b")));
+		assertEquals("all", plan.getIndexName());
+		assertEquals(0, plan.getEstimatedHits());
+
+		schemas.remove("all");
+		plan = planner.plan(newTable(term("host", "h8"), term("kind", "b")));
+		assertEquals("host", plan.getIndexName());
+		assertEquals(30, plan.getEstimatedHits());
+	}
+
+	@Test
+	public void testIndexedDays() {
+		schemas.remove("all");
+
+		// day under batch indexing is scanned
+		BatchIndexingTask task = new BatchIndexingTask();
+		task.setTableName("t");
+		task.setIndexName("host");
+		BatchIndexingStatus status = new BatchIndexingStatus();
+		status.setDay(days.get(1));
+		task.getBuilds().put(days.get(1), status);
+		tasks.add(task);
+
+		IndexPlan plan = planner.plan(newTable(term("host", "h7")));
+		assertEquals(new HashSet<Date>(Arrays.asList(days.get(0), days.get(2))), plan.getIndexedDays());
+		assertEquals(20, plan.getEstimatedHits());
+		assertEquals(2000, plan.getIndexedLogs());
+
+		status.setDone(true);
+		indexedDays.remove(days.get(0));
+		plan = planner.plan(newTable(term("host", "h7")));
+		assertEquals(new HashSet<Date>(days.subList(1, 3)), plan.getIndexedDays());
+	}
+
+	@Test
+	public void testFetchLimit() {
+		schemas.remove("all");
+		indexedDays.remove(days.get(1));
+
+		// 10 matched logs of each day, and second day is scanned
+		for (int limit : new int[] { 0, 5, 10, 15, 25 }) {
+			fetched = 0;
+			Table table = newTable(term("host", "h8"), term("kind", "a"));
+			table.getFilter().setLimit(limit);
+			table.setIndexPlan(planner.plan(table));
+			assertNotNull(table.getIndexPlan());
+
+			Collector collector = new Collector();
+			table.setNextCommand(collector);
+			table.init();
+			collector.init();
+			table.start();
+
+			int expected = limit == 0 ? 30 : limit;
+			assertEquals(expected, collector.rows.size());
+			assertEquals(Math.min(expected, 10) + Math.max(0, expected - 20), fetched);
+
+			Date last = null;
+			for (Map<String, Object> m : collector.rows) {
+				assertEquals("h8", m.get("host"));
+				Date date = (Date) m.get("_time");
+				assertTrue(last == null || date.before(last));
+				last = date;
+			}
+		}
+	}
+
+	private LogIndexSchema newSchema(String indexName, String targetColumns) {
+		Map<String, String> configs = new HashMap<String, String>();
+		configs.put("delimiters", " ");
+		if (targetColumns != null)
+			configs.put("target_columns", targetColumns);
+
+		LogIndexSchema schema = new LogIndexSchema();
+		schema.setTableName("t");
+		schema.setIndexName(indexName);
+		schema.setTokenizerName("delimiter");
+		schema.setTokenizerConfigs(configs);
+		return schema;
+	}
+
+	private Table newTable(Term... terms) {
+		List<Search> searches = new ArrayList<Search>();
+		for (Term term : terms) {
+			Search search = new Search(Arrays.asList(term));
+			search.init();
+			searches.add(search);
+		}
+
+		Table table = new Table("t");
+		table.setStorage(storage);
+		table.setFilter(new ScanFilter(searches, null));
+		return table;
+	}
+
+	private Term term(String field, String value) {
+		Term term = new Term();
+		term.setLh(field);
+		term.setLhString(false);
+		term.setOperator(Operator.Eq);
+		term.setRh(value);
+		term.setRhString(true);
+		return term;
+	}
+
+	private Log getLog(Date day, long id) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("host", "h" + (id % 100));
+		data.put("kind", id % 2 == 0 ? "a" : "b");
+		return new Log("t", new Date(day.getTime() + id * 100), id, data);
+	}
+
+	private Set<String> getTokens(String indexName, long id) {
+		Set<String> tokens = new HashSet<String>();
+		tokens.add("h" + (id % 100));
+		if (indexName.equals("all"))
+			tokens.add(id % 2 == 0 ? "a" : "b");
+		return tokens;
+	}
+
+	private class StorageHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getLogDates"))
+				return days;
+
+			if (name.equals("getLogCount"))
+				return (long) logsPerDay * logCountScale;
+
+			if (name.equals("openCachedRandomSeeker"))
+				return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { CachedRandomSeeker.class },
+						new SeekerHandler());
+
+			if (name.equals("search") && args.length == 7)
+				return search((Date) args[1], (Date) args[2], (Integer) args[4], (LogFilter) args[5],
+						(LogSearchCallback) args[6]);
+
+			throw new UnsupportedOperationException(name);
+		}
+
+		private int search(Date from, Date to, int limit, LogFilter filter, LogSearchCallback callback) {
+			int found = 0;
+			for (Date day : days) {
+				for (long id = logsPerDay; id >= 1; id--) {
+					Log log = getLog(day, id);
+					if ((from != null && log.getDate().before(from)) || (to != null && log.getDate().after(to)))
+						continue;
+					if (!filter.matches(log.getData()))
+						continue;
+
+					callback.onLog(log);
+					if (++found == limit)
+						return found;
+				}
+			}
+			return found;
+		}
+	}
+
+	private class SeekerHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("getLog")) {
+				fetched++;
+				return getLog((Date) args[1], (Integer) args[2]);
+			}
+			return null;
+		}
+	}
+
+	private class IndexerHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getIndexNames"))
+				return new HashSet<String>(schemas.keySet());
+
+			if (name.equals("getIndexConfig"))
+				return schemas.get(args[1]);
+
+			if (name.equals("getIndexedDays"))
+				return new ArrayList<Date>(indexedDays);
+
+			if (name.equals("getBatchIndexingTasks"))
+				return tasks;
+
+			if (name.equals("search"))
+				return new Cursor((LogIndexQuery) args[0]);
+
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	/**
+	 * Generates postings of days in query range, newest first
+	 */
+	private class Cursor implements LogIndexCursor {
+		private LogIndexQuery q;
+		private List<Date> queryDays = new ArrayList<Date>();
+		private int dayIndex;
+		private long id;
+		private LogIndexItem next;
+
+		public Cursor(LogIndexQuery q) {
+			this.q = q;
+			for (Date day : days)
+				if (!day.before(q.getMinDay()) && !day.after(q.getMaxDay()))
+					queryDays.add(day);
+			Collections.sort(queryDays, Collections.reverseOrder());
+			this.id = logsPerDay + 1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && dayIndex < queryDays.size()) {
+				if (--id < 1) {
+					dayIndex++;
+					id = logsPerDay + 1;
+					continue;
+				}
+
+				if (q.getCondition().matches(getTokens(q.getIndexName(), id)))
+					next = new Item(queryDays.get(dayIndex), id);
+			}
+			return next != null;
+		}
+
+		@Override
+		public LogIndexItem next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			walked++;
+			LogIndexItem item = next;
+			next = null;
+			return item;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void skip(long offset) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class Item implements LogIndexItem {
+		private Date day;
+		private long id;
+
+		public Item(Date day, long id) {
+			this.day = day;
+			this.id = id;
+		}
+
+		@Override
+		public String getTableName() {
+			return "t";
+		}
+
+		@Override
+		public Date getDay() {
+			return day;
+		}
+
+		@Override
+		public long getLogId() {
+			return id;
+		}
+	}
+
+	private static class Collector extends LogQueryCommand {
+		private List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+		@Override
+		public void push(LogMap m) {
+			rows.add(m.map());
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+	}
+}
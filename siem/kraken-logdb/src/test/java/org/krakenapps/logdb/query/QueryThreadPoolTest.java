@@ -0,0 +1,68 @@
+package org.krakenapps.logdb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryThreadPoolTest {
+	private QueryThreadPool pool;
+
+	@Before
+	public void setup() {
+		pool = new QueryThreadPool(4);
+	}
+
+	@After
+	public void teardown() {
+		pool.close();
+	}
+
+	@Test
+	public void testReserve() {
+		assertEquals(3, pool.reserve(3));
+		assertEquals(3, pool.getReservedCount());
+
+		// reservation is bounded by rest of budget
+		assertEquals(1, pool.reserve(3));
+		assertEquals(0, pool.reserve(1));
+		assertEquals(0, pool.reserve(0));
+		assertEquals(4, pool.getReservedCount());
+
+		pool.release(3);
+		assertEquals(1, pool.getReservedCount());
+		assertEquals(3, pool.reserve(5));
+
+		pool.release(1);
+		pool.release(3);
+		assertEquals(0, pool.getReservedCount());
+	}
+
+	@Test
+	public void testBudget() {
+		assertEquals(4, pool.reserve(4));
+
+		// running queries keep workers over new budget
+		pool.setBudget(2);
+		assertEquals(2, pool.getBudget());
+		assertEquals(4, pool.getReservedCount());
+		assertEquals(0, pool.reserve(1));
+
+		pool.release(3);
+		assertEquals(1, pool.reserve(2));
+		assertEquals(0, pool.reserve(1));
+
+		pool.setBudget(0);
+		pool.release(2);
+		assertEquals(0, pool.reserve(1));
+
+		try {
+			pool.setBudget(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(0, pool.getBudget());
+	}
+}
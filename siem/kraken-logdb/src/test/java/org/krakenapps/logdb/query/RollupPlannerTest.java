@@ -0,0 +1,249 @@
+package org.krakenapps.logdb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.query.command.Function;
+import org.krakenapps.logdb.query.command.RollupPlan;
+import org.krakenapps.logdb.query.command.Table;
+import org.krakenapps.logdb.query.command.Timechart2;
+import org.krakenapps.logdb.query.command.Timechart2.Span;
+import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogRollupEntry;
+import org.krakenapps.logstorage.LogRollupSpec;
+import org.krakenapps.logstorage.LogSearchCallback;
+import org.krakenapps.logstorage.LogStorage;
+
+/**
+ * Compares timechart answered by rollup entries with full table scan
+ */
+public class RollupPlannerTest {
+	private static final long SPAN = 60000L;
+
+	private LogRollupSpec spec;
+
+	// logs in ascending time order
+	private List<Log> logs;
+	private LogStorage storage;
+	private long since;
+
+	@Before
+	public void setup() {
+		Calendar c = Calendar.getInstance();
+		c.add(Calendar.DAY_OF_MONTH, -5);
+		c.set(Calendar.HOUR_OF_DAY, 5);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		since = c.getTimeInMillis();
+
+		spec = new LogRollupSpec(SPAN, Arrays.asList("host"), Arrays.asList("bytes"), new Date(since));
+
+		// logs before rollup start are scanned
+		logs = new ArrayList<Log>();
+		long begin = since - 3 * 3600000L;
+		for (int i = 0; begin + i * 17000L < since + 2 * 86400000L; i++) {
+			Map<String, Object> data = new HashMap<String, Object>();
+			if (i % 7 != 0)
+				data.put("host", "host" + (i % 3));
+			if (i % 5 != 0)
+				data.put("bytes", (long) (i % 1000));
+			logs.add(new Log("t", new Date(begin + i * 17000L), i + 1, data));
+		}
+
+		storage = (LogStorage) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LogStorage.class },
+				new StorageHandler());
+	}
+
+	@Test
+	public void testUnalignedRange() {
+		Date[][] ranges = new Date[][] { { null, null },
+				{ new Date(since + 12345), new Date(since + 86400000L + 3 * 3600000L + 17777) },
+				{ new Date(since - 3600000L - 1), new Date(since + 86400000L) },
+				{ new Date(since + 86400000L - 1), null } };
+
+		for (Date[] range : ranges) {
+			assertSame(range, Span.Minute, 10, "host");
+			assertSame(range, Span.Hour, 1, null);
+			assertSame(range, Span.Day, 1, "host");
+		}
+	}
+
+	@Test
+	public void testNotPlanned() {
+		// range shorter than rollup span
+		Table table = newTable(new Date(since + 1000), new Date(since + 50000), Span.Minute, 1, null, "count");
+		assertNull(new RollupPlanner(storage).plan(table));
+
+		// range before rollup start
+		table = newTable(new Date(since - 3600000L), new Date(since - 1), Span.Minute, 1, null, "count");
+		assertNull(new RollupPlanner(storage).plan(table));
+
+		// timechart span splits rollup bucket
+		table = newTable(null, null, Span.Second, 30, null, "count");
+		assertNull(new RollupPlanner(storage).plan(table));
+
+		// key field is not group field
+		table = newTable(null, null, Span.Minute, 1, "bytes", "count");
+		assertNull(new RollupPlanner(storage).plan(table));
+
+		// function cannot be evaluated from rollup
+		table = newTable(null, null, Span.Minute, 1, null, "max");
+		assertNull(new RollupPlanner(storage).plan(table));
+	}
+
+	private void assertSame(Date[] range, Span span, int amount, String keyField) {
+		List<Map<String, Object>> scanned = run(range[0], range[1], span, amount, keyField, false);
+		List<Map<String, Object>> rolled = run(range[0], range[1], span, amount, keyField, true);
+		assertFalse(scanned.isEmpty());
+		assertEquals(Arrays.toString(range) + " " + amount + span + " by " + keyField, scanned, rolled);
+	}
+
+	private List<Map<String, Object>> run(Date from, Date to, Span span, int amount, String keyField, boolean rollup) {
+		Table table = newTable(from, to, span, amount, keyField, "count", "sum", "avg");
+		if (rollup) {
+			RollupPlan plan = new RollupPlanner(storage).plan(table);
+			assertNotNull(plan);
+			table.setRollupPlan(plan);
+		}
+
+		Collector collector = new Collector();
+		LogQueryCommand timechart = table.getNextCommand();
+		timechart.setNextCommand(collector);
+
+		table.init();
+		timechart.init();
+		collector.init();
+		table.start();
+		return collector.rows;
+	}
+
+	private Table newTable(Date from, Date to, Span span, int amount, String keyField, String... functions) {
+		Function[] values = new Function[functions.length];
+		for (int i = 0; i < functions.length; i++)
+			values[i] = Function.getFunction(functions[i], functions[i].equals("count") ? null : "bytes");
+
+		Table table = new Table("t", 0, 0, from, to);
+		table.setStorage(storage);
+		table.setNextCommand(new Timechart2(span, amount, values, keyField));
+		return table;
+	}
+
+	private static Date getDay(Date date) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(date);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		return c.getTime();
+	}
+
+	/**
+	 * @return aggregated rollup of logs in the day after rollup start
+	 */
+	private List<LogRollupEntry> getRollupEntries(Date day) {
+		Map<List<Object>, long[]> buckets = new LinkedHashMap<List<Object>, long[]>();
+		for (Log log : logs) {
+			long time = log.getDate().getTime();
+			if (time < since || !getDay(log.getDate()).equals(day))
+				continue;
+
+			Object host = log.getData().get("host");
+			List<Object> key = Arrays.asList(new Object[] { time - time % SPAN, host });
+			long[] acc = buckets.get(key);
+			if (acc == null) {
+				acc = new long[3];
+				buckets.put(key, acc);
+			}
+
+			Long bytes = (Long) log.getData().get("bytes");
+			acc[0]++;
+			if (bytes != null) {
+				acc[1] += bytes;
+				acc[2]++;
+			}
+		}
+
+		List<LogRollupEntry> entries = new ArrayList<LogRollupEntry>();
+		for (Map.Entry<List<Object>, long[]> e : buckets.entrySet()) {
+			Date bucket = new Date((Long) e.getKey().get(0));
+			String[] groups = new String[] { (String) e.getKey().get(1) };
+			long[] acc = e.getValue();
+			entries.add(new LogRollupEntry(bucket, groups, acc[0], new Number[] { acc[1] }, new long[] { acc[2] }));
+		}
+		return entries;
+	}
+
+	private int search(Date from, Date to, LogSearchCallback callback) {
+		// storage passes newer logs first
+		int count = 0;
+		for (int i = logs.size() - 1; i >= 0 && !callback.isInterrupted(); i--) {
+			Log log = logs.get(i);
+			if ((from != null && log.getDate().before(from)) || (to != null && log.getDate().after(to)))
+				continue;
+
+			Map<String, Object> data = new HashMap<String, Object>(log.getData());
+			callback.onLog(new Log(log.getTableName(), log.getDate(), log.getId(), data));
+			count++;
+		}
+		return count;
+	}
+
+	private class StorageHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getRollupSpec"))
+				return spec;
+
+			if (name.equals("getRollupEntries"))
+				return getRollupEntries((Date) args[1]);
+
+			if (name.equals("getLogDates")) {
+				TreeSet<Date> days = new TreeSet<Date>(Collections.reverseOrder());
+				for (Log log : logs)
+					days.add(getDay(log.getDate()));
+				return new ArrayList<Date>(days);
+			}
+
+			if (name.equals("search") && args.length == 7)
+				return search((Date) args[1], (Date) args[2], (LogSearchCallback) args[6]);
+
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private static class Collector extends LogQueryCommand {
+		private List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+		@Override
+		public void push(LogMap m) {
+			rows.add(m.map());
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+	}
+}
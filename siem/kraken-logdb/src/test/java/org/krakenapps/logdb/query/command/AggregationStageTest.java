@@ -0,0 +1,210 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.query.command.Timechart2.Span;
+
+/**
+ * Merges partial groups of two map streams, passed through rpc row batch
+ * codec, and compares with complete stage result of all rows
+ */
+public class AggregationStageTest {
+	private static final String[] FUNCTIONS = new String[] { "count", "sum", "avg", "min", "max", "range" };
+	private static final int BATCH_ROWS = 100;
+
+	private List<LogMap> streamA;
+	private List<LogMap> streamB;
+
+	@Before
+	public void setup() {
+		Random r = new Random(1);
+		streamA = new ArrayList<LogMap>();
+		streamB = new ArrayList<LogMap>();
+
+		for (int i = 0; i < 20000; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+
+			// host 'a' is only in stream a, and 'b' is only in stream b
+			boolean a = r.nextBoolean();
+			int host = r.nextInt(300);
+			if (host == 0)
+				m.put("host", a ? "a" : "b");
+			else if (host != 1)
+				m.put("host", "10.0.0." + host);
+
+			m.put("_time", new Date(1356966000000L + r.nextInt(72) * 3600000L + r.nextInt(3600000)));
+
+			// long, int and exact double values
+			int type = r.nextInt(4);
+			if (type == 0)
+				m.put("v", (long) r.nextInt(1000) - 500);
+			else if (type == 1)
+				m.put("v", r.nextInt(1000));
+			else if (type == 2)
+				m.put("v", r.nextInt(100) * 0.5);
+
+			(a ? streamA : streamB).add(new LogMap(m));
+		}
+	}
+
+	@Test
+	public void testStats() {
+		List<Map<String, Object>> expected = run(newStats(AggregationStage.Complete, 0), all());
+		assertTrue(expected.size() > 290);
+
+		assertEquals(expected, runStaged(new StatsFactory(0, 0)));
+	}
+
+	@Test
+	public void testStatsSpill() {
+		List<Map<String, Object>> expected = run(newStats(AggregationStage.Complete, 0), all());
+
+		// spilled partitions of partial stage, and spill of final stage
+		assertEquals(expected, runStaged(new StatsFactory(10000, 0)));
+		assertEquals(expected, runStaged(new StatsFactory(10000, 10000)));
+	}
+
+	@Test
+	public void testTimechart() {
+		List<Map<String, Object>> expected = run(newTimechart(AggregationStage.Complete, 0), all());
+		assertEquals(72, expected.size());
+
+		assertEquals(expected, runStaged(new TimechartFactory(0, 0)));
+		assertEquals(expected, runStaged(new TimechartFactory(10000, 10000)));
+	}
+
+	private List<Map<String, Object>> runStaged(CommandFactory factory) {
+		List<LogMap> partialA = encode(run(factory.create(AggregationStage.Partial), streamA));
+		List<LogMap> partialB = encode(run(factory.create(AggregationStage.Partial), streamB));
+
+		// partial groups of mappers are not sorted, and arrive in any order
+		List<LogMap> merged = new ArrayList<LogMap>();
+		for (int i = 0; i < Math.max(partialA.size(), partialB.size()); i++) {
+			if (i < partialB.size())
+				merged.add(partialB.get(i));
+			if (i < partialA.size())
+				merged.add(partialA.get(i));
+		}
+
+		for (LogMap m : merged)
+			assertTrue(m.get(AggregationStage.STATE_FIELD) instanceof Object[]);
+
+		return run(factory.create(AggregationStage.Final), merged);
+	}
+
+	private List<LogMap> all() {
+		List<LogMap> l = new ArrayList<LogMap>(streamA);
+		l.addAll(streamB);
+		return l;
+	}
+
+	private List<Map<String, Object>> run(LogQueryCommand command, List<LogMap> rows) {
+		Collector collector = new Collector();
+		command.setNextCommand(collector);
+		command.init();
+		collector.init();
+
+		for (LogMap m : rows)
+			command.push(m);
+		command.eof();
+		return collector.rows;
+	}
+
+	/**
+	 * encode and decode rows as rpc row stream does
+	 */
+	private List<LogMap> encode(List<Map<String, Object>> rows) {
+		List<LogMap> decoded = new ArrayList<LogMap>();
+		for (int i = 0; i < rows.size(); i += BATCH_ROWS) {
+			byte[] b = RpcBatchCodec.encode(rows.subList(i, Math.min(i + BATCH_ROWS, rows.size())));
+			for (Object o : RpcBatchCodec.decode(b))
+				decoded.add((LogMap) o);
+		}
+		return decoded;
+	}
+
+	private static Function[] newFunctions() {
+		Function[] values = new Function[FUNCTIONS.length + 1];
+		values[0] = Function.getFunction("count", null);
+		for (int i = 0; i < FUNCTIONS.length; i++)
+			values[i + 1] = Function.getFunction(FUNCTIONS[i], "v");
+		return values;
+	}
+
+	private static Stats2 newStats(AggregationStage stage, long memoryBudget) {
+		Stats2 stats = new Stats2(Arrays.asList("host"), newFunctions());
+		stats.setStage(stage);
+		if (memoryBudget > 0)
+			stats.setMemoryBudget(memoryBudget);
+		return stats;
+	}
+
+	private static Timechart2 newTimechart(AggregationStage stage, long memoryBudget) {
+		Timechart2 timechart = new Timechart2(Span.Hour, 1, newFunctions(), "host");
+		timechart.setStage(stage);
+		if (memoryBudget > 0)
+			timechart.setMemoryBudget(memoryBudget);
+		return timechart;
+	}
+
+	private static interface CommandFactory {
+		LogQueryCommand create(AggregationStage stage);
+	}
+
+	private static class StatsFactory implements CommandFactory {
+		private long partialBudget;
+		private long finalBudget;
+
+		public StatsFactory(long partialBudget, long finalBudget) {
+			this.partialBudget = partialBudget;
+			this.finalBudget = finalBudget;
+		}
+
+		@Override
+		public LogQueryCommand create(AggregationStage stage) {
+			return newStats(stage, stage == AggregationStage.Partial ? partialBudget : finalBudget);
+		}
+	}
+
+	private static class TimechartFactory implements CommandFactory {
+		private long partialBudget;
+		private long finalBudget;
+
+		public TimechartFactory(long partialBudget, long finalBudget) {
+			this.partialBudget = partialBudget;
+			this.finalBudget = finalBudget;
+		}
+
+		@Override
+		public LogQueryCommand create(AggregationStage stage) {
+			return newTimechart(stage, stage == AggregationStage.Partial ? partialBudget : finalBudget);
+		}
+	}
+
+	private static class Collector extends LogQueryCommand {
+		private List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+		@Override
+		public void push(LogMap m) {
+			rows.add(m.map());
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+	}
+}
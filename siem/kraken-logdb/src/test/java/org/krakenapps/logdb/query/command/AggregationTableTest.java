@@ -0,0 +1,244 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+
+/**
+ * Compares aggregation table with function object per group
+ */
+public class AggregationTableTest {
+	private Function[] values;
+	private List<LogMap> rows;
+
+	@Before
+	public void setup() throws IOException {
+		values = new Function[] { Function.getFunction("count", null), Function.getFunction("count", "v"),
+				Function.getFunction("sum", "v"), Function.getFunction("avg", "v"), Function.getFunction("min", "v"),
+				Function.getFunction("max", "v"), Function.getFunction("first", "v"), Function.getFunction("last", "v"),
+				Function.getFunction("range", "v") };
+
+		// key of same text in different types are different groups
+		Object[] hosts = new Object[] { null, 1, 1L, "1", new Date(1000), InetAddress.getByName("10.0.0.1"), "a" };
+
+		Random r = new Random(1);
+		rows = new ArrayList<LogMap>();
+		for (int i = 0; i < 20000; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("host", hosts[r.nextInt(hosts.length)]);
+			m.put("port", r.nextInt(500));
+
+			// long, int and exact double values
+			int type = r.nextInt(4);
+			if (type == 0)
+				m.put("v", (long) r.nextInt(1000) - 500);
+			else if (type == 1)
+				m.put("v", r.nextInt(1000));
+			else if (type == 2)
+				m.put("v", r.nextInt(100) * 0.5);
+
+			rows.add(new LogMap(m));
+		}
+	}
+
+	@Test
+	public void testFindOrAdd() throws IOException {
+		AggregationTable table = new AggregationTable(2, values);
+		Object[] key = new Object[2];
+
+		int[] groups = new int[6];
+		Object[][] keys = new Object[][] { { null, null }, { 1, null }, { 1L, null }, { "1", null },
+				{ new Date(1), InetAddress.getByName("10.0.0.1") }, { null, "x" } };
+
+		// key array is reused
+		for (int i = 0; i < keys.length; i++) {
+			key[0] = keys[i][0];
+			key[1] = keys[i][1];
+			groups[i] = table.findOrAdd(key);
+			assertEquals(i, groups[i]);
+		}
+
+		for (int i = 0; i < keys.length; i++) {
+			Object[] copy = new Object[] { keys[i][0], keys[i][1] };
+			assertEquals(groups[i], table.findOrAdd(copy));
+			assertArrayEquals(keys[i], table.getKeys(groups[i]));
+		}
+
+		// same key after growth
+		for (int i = 0; i < 5000; i++)
+			table.findOrAdd(new Object[] { (long) i, "k" + (i % 7) });
+
+		assertEquals(keys.length + 5000, table.size());
+		for (int i = 0; i < keys.length; i++)
+			assertEquals(groups[i], table.findOrAdd(new Object[] { keys[i][0], keys[i][1] }));
+		for (int i = 0; i < 5000; i++)
+			assertEquals(keys.length + i, table.findOrAdd(new Object[] { (long) i, "k" + (i % 7) }));
+		assertTrue(table.findOrAdd(new Object[] { 3, "k3" }) != table.findOrAdd(new Object[] { 3L, "k3" }));
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertEquals(0, table.findOrAdd(new Object[] { 1L, "k1" }));
+	}
+
+	@Test
+	public void testPut() {
+		AggregationTable table = aggregate(rows);
+		assertSame(reference(rows), table);
+	}
+
+	@Test
+	public void testState() {
+		AggregationTable table = aggregate(rows);
+		Map<List<Object>, Function[]> expected = reference(rows);
+
+		// group states and function states have same format
+		AggregationTable fromGroups = new AggregationTable(2, values);
+		AggregationTable fromFunctions = new AggregationTable(2, values);
+		for (int g = 0; g < table.size(); g++) {
+			Object[] keys = table.getKeys(g);
+			fromGroups.mergeState(fromGroups.findOrAdd(keys), table.getState(g));
+
+			Function[] fs = expected.get(Arrays.asList(keys));
+			fromFunctions.mergeState(fromFunctions.findOrAdd(keys), AggregationTable.getState(fs));
+		}
+
+		assertSame(expected, fromGroups);
+		assertSame(expected, fromFunctions);
+
+		// merging twice doubles counts
+		for (int g = 0; g < table.size(); g++)
+			fromGroups.mergeState(g, table.getState(g));
+
+		for (int g = 0; g < table.size(); g++)
+			assertEquals(2 * (Long) table.getFunctions(g)[0].getResult(), fromGroups.getFunctions(g)[0].getResult());
+	}
+
+	@Test
+	public void testMerge() {
+		List<LogMap> first = rows.subList(0, 7000);
+		List<LogMap> second = rows.subList(7000, rows.size());
+		Map<List<Object>, Function[]> expected = reference(rows);
+
+		AggregationTable merged = aggregate(first);
+		merged.merge(aggregate(second));
+		assertSame(expected, merged);
+
+		// each partition has disjoint groups
+		int partitions = 5;
+		AggregationTable left = aggregate(first);
+		AggregationTable right = aggregate(second);
+		Set<List<Object>> seen = new HashSet<List<Object>>();
+		for (int p = 0; p < partitions; p++) {
+			AggregationTable table = new AggregationTable(2, values);
+			table.merge(left, p, partitions);
+			table.merge(right, p, partitions);
+
+			for (int g = 0; g < table.size(); g++) {
+				List<Object> key = Arrays.asList(table.getKeys(g));
+				assertEquals(p, AggregationTable.getPartition(table.getHash(g), partitions));
+				assertTrue(seen.add(key));
+				assertSame(key, expected.get(key), table.getFunctions(g));
+			}
+		}
+		assertEquals(expected.size(), seen.size());
+	}
+
+	@Test
+	public void testSpill() throws IOException {
+		Map<List<Object>, Function[]> expected = reference(rows);
+
+		// spill chunks in order, and keep the last chunk in memory
+		int partitions = 4;
+		AggregationSpill spill = new AggregationSpill(partitions);
+		try {
+			AggregationTable memory = new AggregationTable(2, values);
+			for (int i = 0; i < rows.size(); i++) {
+				LogMap row = rows.get(i);
+				memory.put(memory.findOrAdd(new Object[] { row.get("host"), row.get("port") }), row);
+
+				if (i % 6000 == 5999) {
+					spill.write(memory);
+					memory.clear();
+				}
+			}
+
+			assertTrue(spill.getSpilledCount() > 0);
+
+			int groups = 0;
+			for (int p = 0; p < partitions; p++) {
+				AggregationTable table = new AggregationTable(2, values);
+				spill.read(p, table);
+				table.merge(memory, p, partitions);
+
+				for (int g = 0; g < table.size(); g++) {
+					List<Object> key = Arrays.asList(table.getKeys(g));
+					assertSame(key, expected.get(key), table.getFunctions(g));
+				}
+				groups += table.size();
+			}
+
+			assertEquals(expected.size(), groups);
+		} finally {
+			spill.close();
+		}
+	}
+
+	private AggregationTable aggregate(List<LogMap> rows) {
+		AggregationTable table = new AggregationTable(2, values);
+		Object[] key = new Object[2];
+		for (LogMap row : rows) {
+			key[0] = row.get("host");
+			key[1] = row.get("port");
+			table.put(table.findOrAdd(key), row);
+		}
+		return table;
+	}
+
+	private Map<List<Object>, Function[]> reference(List<LogMap> rows) {
+		Map<List<Object>, Function[]> groups = new LinkedHashMap<List<Object>, Function[]>();
+		for (LogMap row : rows) {
+			List<Object> key = Arrays.asList(row.get("host"), row.get("port"));
+			Function[] fs = groups.get(key);
+			if (fs == null) {
+				fs = new Function[values.length];
+				for (int i = 0; i < values.length; i++)
+					fs[i] = values[i].clone();
+				groups.put(key, fs);
+			}
+
+			for (Function f : fs)
+				f.put(row);
+		}
+		return groups;
+	}
+
+	private void assertSame(Map<List<Object>, Function[]> expected, AggregationTable table) {
+		assertEquals(expected.size(), table.size());
+		for (int g = 0; g < table.size(); g++) {
+			List<Object> key = Arrays.asList(table.getKeys(g));
+			assertSame(key, expected.get(key), table.getFunctions(g));
+		}
+	}
+
+	private void assertSame(List<Object> key, Function[] expected, Function[] fs) {
+		for (int i = 0; i < values.length; i++)
+			assertEquals(key + " " + values[i], expected[i].getResult(), fs[i].getResult());
+	}
+}
@@ -0,0 +1,301 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.LogQueryCommand.Status;
+import org.krakenapps.logdb.RowBatch;
+import org.krakenapps.logdb.query.QueryThreadPool;
+import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogSearchCallback;
+import org.krakenapps.logstorage.LogStorage;
+
+/**
+ * Runs commands after table in worker threads, and checks scan order and
+ * shutdown of workers
+ */
+public class ParallelScanTest {
+	private static final int WORKERS = 4;
+
+	private QueryThreadPool pool;
+	private int logCount;
+	private volatile int scanned;
+
+	@Before
+	public void setup() {
+		pool = new QueryThreadPool(WORKERS);
+		logCount = 20000;
+	}
+
+	@After
+	public void teardown() {
+		pool.close();
+	}
+
+	@Test
+	public void testGatherOrder() {
+		Gather gather = new Gather();
+		Collector collector = new Collector();
+		gather.setNextCommand(collector);
+
+		// later batch is kept until preceding batch is finished
+		gather.begin(batch(1));
+		gather.push(new LogMap(row(3)));
+		gather.push(new LogMap(row(4)));
+		gather.end(batch(1));
+		assertEquals(0, collector.rows.size());
+
+		// empty batch is passed over
+		gather.begin(batch(2));
+		gather.end(batch(2));
+
+		gather.begin(batch(0));
+		RowBatch b = new RowBatch();
+		for (int i = 0; i < 3; i++)
+			b.add(new LogMap(row(i)));
+		gather.push(b);
+		gather.end(batch(0));
+
+		assertEquals(5, collector.rows.size());
+		for (int i = 0; i < 5; i++)
+			assertEquals(i, collector.rows.get(i).get("n"));
+
+		// row outside of batch is passed at once
+		gather.push(new LogMap(row(5)));
+		assertEquals(6, collector.rows.size());
+	}
+
+	@Test
+	public void testScanOrder() {
+		Table table = newTable();
+		Shuffle shuffle = new Shuffle(0);
+		Gather gather = new Gather();
+		Collector collector = new Collector();
+		link(table, shuffle, gather, collector);
+		table.setWorkers(pool, WORKERS);
+		table.setGather(gather);
+
+		table.start();
+
+		assertEquals(Status.End, collector.getStatus());
+		assertEquals(logCount, collector.rows.size());
+		for (int i = 0; i < logCount; i++)
+			assertEquals((long) i, collector.rows.get(i).get("_id"));
+	}
+
+	@Test(timeout = 30000)
+	public void testWorkerFailure() {
+		logCount = 1000000;
+		Table table = newTable();
+		Shuffle shuffle = new Shuffle(1);
+		shuffle.failAt = 10;
+		Collector collector = new Collector();
+		link(table, shuffle, collector);
+		table.setWorkers(pool, WORKERS);
+
+		// scan is stopped, and rest batches are drained
+		table.start();
+		assertEquals(Status.End, collector.getStatus());
+		assertTrue(scanned < logCount);
+		assertTrue(collector.rows.size() < scanned);
+	}
+
+	@Test(timeout = 30000)
+	public void testPoolShutdown() throws InterruptedException {
+		logCount = 1000000;
+		Table table = newTable();
+		Shuffle shuffle = new Shuffle(1);
+		Collector collector = new Collector();
+		link(table, shuffle, collector);
+		table.setWorkers(pool, WORKERS);
+
+		// workers are interrupted while scan is running
+		Thread closer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				pool.close();
+			}
+		};
+		closer.start();
+
+		table.start();
+		closer.join();
+		assertEquals(Status.End, collector.getStatus());
+		assertTrue(scanned < logCount);
+	}
+
+	@Test(timeout = 30000)
+	public void testTableInterrupt() throws InterruptedException {
+		logCount = 1000000;
+		final Table table = newTable();
+		Shuffle shuffle = new Shuffle(1);
+		Collector collector = new Collector();
+		link(table, shuffle, collector);
+		table.setWorkers(pool, WORKERS);
+
+		// table waits for workers even if interrupted
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				table.start();
+			}
+		};
+		t.start();
+		Thread.sleep(100);
+		t.interrupt();
+		t.join();
+
+		assertEquals(Status.End, collector.getStatus());
+		assertTrue(scanned < logCount);
+		int rows = collector.size();
+		Thread.sleep(50);
+		assertEquals(rows, collector.size());
+	}
+
+	@Test
+	public void testOrderSensitive() {
+		List<String> keys = Arrays.asList("k");
+		Function count = Function.getFunction("count", null);
+		Function sum = Function.getFunction("sum", "n");
+
+		assertTrue(new Stats2(keys, new Function[] { count, sum }).isParallelizable());
+		assertFalse(new Stats2(keys, new Function[] { count, Function.getFunction("first", "n") })
+				.isParallelizable());
+		assertFalse(new Stats2(keys, new Function[] { Function.getFunction("last", "n") }).isParallelizable());
+
+		assertTrue(new Timechart2(Timechart2.Span.Hour, 1, new Function[] { count }, "k").isParallelizable());
+		assertFalse(new Timechart2(Timechart2.Span.Hour, 1, new Function[] { Function.getFunction("first", "n") },
+				"k").isParallelizable());
+	}
+
+	private Table newTable() {
+		Table table = new Table("t");
+		table.setStorage((LogStorage) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { LogStorage.class }, new StorageHandler()));
+		return table;
+	}
+
+	private void link(LogQueryCommand... commands) {
+		for (int i = 0; i < commands.length - 1; i++)
+			commands[i].setNextCommand(commands[i + 1]);
+		for (LogQueryCommand c : commands)
+			c.init();
+	}
+
+	private RowBatch batch(long sequence) {
+		RowBatch b = new RowBatch();
+		b.setSequence(sequence);
+		return b;
+	}
+
+	private Map<String, Object> row(int n) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("n", n);
+		return m;
+	}
+
+	private class StorageHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (!method.getName().equals("search") || args.length != 7)
+				throw new UnsupportedOperationException(method.getName());
+
+			LogSearchCallback callback = (LogSearchCallback) args[6];
+			for (int i = 0; i < logCount; i++) {
+				if (callback.isInterrupted())
+					break;
+
+				scanned++;
+				Map<String, Object> data = new HashMap<String, Object>();
+				data.put("n", i);
+				callback.onLog(new Log("t", new Date(1356966000000L - i * 1000L), i, data));
+			}
+			return scanned;
+		}
+	}
+
+	/**
+	 * Delays each batch randomly, so workers finish batches in any order
+	 */
+	private static class Shuffle extends LogQueryCommand {
+		private Random random = new Random(1);
+		private int delay;
+		private int failAt = -1;
+		private int batches;
+
+		public Shuffle(int delay) {
+			this.delay = delay;
+		}
+
+		@Override
+		public void push(RowBatch batch) {
+			int n;
+			synchronized (this) {
+				n = batches++;
+			}
+			if (n == failAt)
+				throw new IllegalStateException("worker failure");
+
+			try {
+				Thread.sleep(delay > 0 ? delay : random.nextInt(3));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			write(batch);
+		}
+
+		@Override
+		public void push(LogMap m) {
+			write(m);
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+
+		@Override
+		public boolean isParallelizable() {
+			return true;
+		}
+	}
+
+	private static class Collector extends LogQueryCommand {
+		private List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+		@Override
+		public synchronized void push(LogMap m) {
+			rows.add(m.map());
+		}
+
+		public synchronized int size() {
+			return rows.size();
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.query.command.Term.Operator;
+
+/**
+ * Compares compiled predicate with term evaluation
+ */
+public class PredicateTest {
+	private static final Object MISSING = new Object();
+
+	private static final Object[] VALUES = new Object[] { MISSING, null, "", "10", "9", "9.5", "-1", "0x10", "abc",
+			"a*c", "a.c", "ABC", 10L, 9, 9.5, -1L, (short) 3, new Date(1000), "1970" };
+
+	private static final Object[] PATTERNS = new Object[] { MISSING, null, "a.c", "^1", "[", "\\*" };
+
+	private static final String[] CONSTANTS = new String[] { "10", "9", "9.5", "-1", "0x10", "abc", "", "a*c",
+			"a.c", "1970" };
+
+	// lh, operator, rh, rh is string
+	private static final Object[][] TERMS = new Object[][] {
+			{ "v", Operator.Contain, "a", true },
+			{ "v", Operator.Contain, "*", true },
+			{ "v", Operator.Contain, ".", true },
+			{ "v", Operator.Contain, "", true },
+			{ "v", Operator.In, "10, abc", true },
+			{ "v", Operator.In, "9,a*c,", true },
+			{ "v", Operator.In, "*", true },
+			{ "v", Operator.Regexp, "^a.c$", true },
+			{ "v", Operator.Regexp, "a\\*c", true },
+			{ "v", Operator.Regexp, "^[0-9]+$", true },
+			{ "v", Operator.Regexp, "^$", true },
+			{ "v", Operator.Regexp, ".*", true },
+			{ "v", Operator.Regexp, "(?i)abc", true },
+			{ "v", Operator.Regexp, "p", false },
+			{ "v", Operator.Eq, "p", false },
+			{ "v", Operator.IsNull, null, true },
+			{ "v", Operator.NotNull, null, true },
+			{ "m[v]", Operator.IsNull, null, true },
+			{ "m[v]", Operator.Regexp, "^a.c$", true },
+			{ "m[v]", Operator.Regexp, "p", false },
+			{ "abc", Operator.Eq, "v", false },
+			{ "abc", Operator.Contain, "b", true } };
+
+	@Test
+	public void testSemantics() {
+		// numeric string field is compared as string, number field as number
+		assertEval(true, "v", Operator.Lt, "9", "10");
+		assertEval(true, "v", Operator.Gt, "9", 10L);
+		assertEval(true, "v", Operator.Eq, "9.5", 9.5);
+		assertEval(true, "v", Operator.Eq, "0x10", 16L);
+		assertEval(false, "v", Operator.Eq, "0x10", "16");
+
+		// missing field is greater than any constant
+		assertEval(true, "v", Operator.Gt, "10", MISSING);
+		assertEval(false, "v", Operator.Contain, "", MISSING);
+		assertEval(true, "v", Operator.IsNull, null, "");
+
+		// wildcard is literal except in regular expression
+		assertEval(false, "v", Operator.Eq, "a*c", "abc");
+		assertEval(true, "v", Operator.Contain, "*", "a*c");
+		assertEval(true, "v", Operator.Regexp, "a.c", "abc");
+		assertEval(false, "v", Operator.Regexp, "a\\.c", "abc");
+	}
+
+	@Test
+	public void testCompare() {
+		List<LogMap> rows = rows();
+		for (Operator op : new Operator[] { Operator.Eq, Operator.Neq, Operator.Gt, Operator.Lt, Operator.Ge,
+				Operator.Le }) {
+			for (String rh : CONSTANTS) {
+				check(term("v", op, rh, true), rows);
+				check(term("m[v]", op, rh, true), rows);
+			}
+		}
+	}
+
+	@Test
+	public void testTerms() {
+		List<LogMap> rows = rows();
+		for (Object[] t : TERMS)
+			check(term((String) t[0], (Operator) t[1], (String) t[2], (Boolean) t[3]), rows);
+	}
+
+	private void assertEval(boolean expected, String lh, Operator op, String rh, Object value) {
+		Term term = term(lh, op, rh, true);
+		LogMap m = row(value, MISSING);
+		assertEquals(term + " on " + value, expected, term.eval(m));
+		assertEquals(term + " on " + value, expected, Predicate.compile(term).eval(m));
+	}
+
+	private void check(Term term, List<LogMap> rows) {
+		Predicate p = Predicate.compile(term);
+		for (LogMap m : rows)
+			assertEquals(term + " on " + m.map(), term.eval(m), p.eval(m));
+	}
+
+	private Term term(String lh, Operator op, String rh, boolean rhString) {
+		Term term = new Term();
+		term.setLh(lh);
+		term.setLhString(!lh.equals("v") && !lh.equals("m[v]"));
+		term.setOperator(op);
+		if (rh != null) {
+			term.setRhString(rhString);
+			term.setRh(rh);
+		}
+		return term;
+	}
+
+	private List<LogMap> rows() {
+		List<LogMap> rows = new ArrayList<LogMap>();
+		for (Object v : VALUES)
+			for (Object p : PATTERNS)
+				rows.add(row(v, p));
+
+		try {
+			rows.add(row(InetAddress.getByName("10.0.0.1"), "^/10"));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		return rows;
+	}
+
+	private LogMap row(Object v, Object p) {
+		LogMap m = new LogMap();
+		if (v != MISSING) {
+			m.put("v", v);
+			Map<String, Object> nested = new HashMap<String, Object>();
+			nested.put("v", v);
+			m.put("m", nested);
+		}
+		if (p != MISSING)
+			m.put("p", p);
+		return m;
+	}
+}
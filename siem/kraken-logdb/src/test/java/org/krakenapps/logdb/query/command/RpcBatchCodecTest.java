@@ -0,0 +1,104 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+
+public class RpcBatchCodecTest {
+	@Test
+	public void testRoundTrip() {
+		List<Map<String, Object>> rows = rows(1000);
+		Object[] decoded = RpcBatchCodec.decode(RpcBatchCodec.encode(rows));
+
+		assertEquals(rows.size(), decoded.length);
+		for (int i = 0; i < rows.size(); i++)
+			assertEquals(rows.get(i), ((LogMap) decoded[i]).map());
+
+		// empty batch
+		List<Map<String, Object>> empty = new ArrayList<Map<String, Object>>();
+		assertEquals(0, RpcBatchCodec.decode(RpcBatchCodec.encode(empty)).length);
+	}
+
+	@Test
+	public void testIncompressible() {
+		// deflated output can be larger than encoded rows
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		Random r = new Random(1);
+		for (int i = 0; i < 100; i++) {
+			byte[] b = new byte[1000];
+			r.nextBytes(b);
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("b", b);
+			rows.add(m);
+		}
+
+		Object[] decoded = RpcBatchCodec.decode(RpcBatchCodec.encode(rows));
+		assertEquals(100, decoded.length);
+		for (int i = 0; i < 100; i++)
+			assertTrue(Arrays.equals((byte[]) rows.get(i).get("b"), (byte[]) ((LogMap) decoded[i]).get("b")));
+	}
+
+	@Test
+	public void testTruncated() {
+		byte[] b = RpcBatchCodec.encode(rows(1000));
+
+		int[] lengths = new int[] { 0, 2, 4, 5, b.length / 2, b.length - 1 };
+		for (int length : lengths)
+			assertBroken(Arrays.copyOf(b, length));
+	}
+
+	@Test
+	public void testCorrupted() {
+		byte[] b = RpcBatchCodec.encode(rows(1000));
+
+		// flipped bit of deflated stream
+		byte[] flipped = b.clone();
+		flipped[b.length / 2] ^= 0x10;
+		assertBroken(flipped);
+
+		// negative, larger and smaller length prefix
+		assertBroken(withLength(b, -1));
+		assertBroken(withLength(b, Integer.MAX_VALUE));
+		int length = ByteBuffer.wrap(b).getInt();
+		assertBroken(withLength(b, length + 1));
+		assertBroken(withLength(b, length / 2));
+	}
+
+	private void assertBroken(byte[] b) {
+		try {
+			RpcBatchCodec.decode(b);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	private byte[] withLength(byte[] b, int length) {
+		byte[] c = b.clone();
+		ByteBuffer.wrap(c).putInt(length);
+		return c;
+	}
+
+	private List<Map<String, Object>> rows(int count) {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("n", i);
+			m.put("host", "10.0.0." + (i % 256));
+			m.put("_time", new Date(1356966000000L + i * 1000L));
+			rows.add(m);
+		}
+		return rows;
+	}
+}
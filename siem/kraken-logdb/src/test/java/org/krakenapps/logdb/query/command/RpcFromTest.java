@@ -0,0 +1,193 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.LogQueryCommand.Status;
+import org.krakenapps.logdb.mapreduce.MapReduceLink;
+
+/**
+ * Pushes row batches of mapper links to rpc reducer stream, and checks
+ * credits of links and drain of stream after eof
+ */
+public class RpcFromTest {
+	private static final int BATCH_ROWS = 10;
+
+	private RpcFrom rpc;
+	private Collector collector;
+	private MapReduceLink link;
+
+	@Before
+	public void setup() {
+		rpc = new RpcFrom("guid");
+		collector = new Collector();
+		rpc.setNextCommand(collector);
+		rpc.init();
+		collector.init();
+		rpc.start();
+		link = new MapReduceLink("peer", 1);
+	}
+
+	@Test
+	public void testLinkCredits() {
+		for (int i = 0; i < MapReduceLink.WINDOW; i++)
+			link.onReceive(100);
+		assertEquals(MapReduceLink.WINDOW, link.getQueueDepth());
+		assertEquals(0, link.takeCredits());
+
+		// each consumed batch is granted once, even if it is broken
+		link.onConsume(BATCH_ROWS);
+		link.onConsume(0);
+		link.onConsume(BATCH_ROWS);
+		assertEquals(MapReduceLink.WINDOW - 3, link.getQueueDepth());
+		assertEquals(3, link.takeCredits());
+		assertEquals(0, link.takeCredits());
+
+		for (int i = 0; i < MapReduceLink.WINDOW - 3; i++)
+			link.onConsume(BATCH_ROWS);
+		assertEquals(0, link.getQueueDepth());
+		assertEquals(MapReduceLink.WINDOW - 3, link.takeCredits());
+
+		assertEquals(MapReduceLink.WINDOW, link.getBatches());
+		assertEquals(800, link.getBytes());
+		assertEquals((MapReduceLink.WINDOW - 1) * BATCH_ROWS, link.getRows());
+	}
+
+	@Test(timeout = 30000)
+	public void testCreditWindow() throws InterruptedException {
+		collector.delay = 1;
+
+		// mapper sends batches only with credits, as rpc to does
+		int credits = MapReduceLink.WINDOW;
+		int sent = 0;
+		int granted = 0;
+		while (sent < 300) {
+			if (credits == 0) {
+				Thread.sleep(1);
+				int n = link.takeCredits();
+				credits += n;
+				granted += n;
+				continue;
+			}
+
+			credits--;
+			rpc.push(link, batch(sent++));
+
+			assertTrue(link.getQueueDepth() <= MapReduceLink.WINDOW);
+			int n = link.takeCredits();
+			credits += n;
+			granted += n;
+			assertTrue(credits <= MapReduceLink.WINDOW);
+		}
+
+		rpc.eof();
+		waitEnd();
+
+		assertEquals(300 * BATCH_ROWS, collector.size());
+		assertEquals(0, link.getQueueDepth());
+		assertEquals(300, granted + link.takeCredits());
+		for (int i = 0; i < collector.size(); i++)
+			assertEquals(i, collector.rows.get(i).get("n"));
+	}
+
+	@Test(timeout = 30000)
+	public void testDrainAfterEof() throws InterruptedException {
+		collector.delay = 1;
+		for (int i = 0; i < 20; i++)
+			rpc.push(link, batch(i));
+
+		// queued batches are passed before eof of next command
+		rpc.eof();
+		assertEquals(Status.Finalizing, rpc.getStatus());
+		waitEnd();
+		assertEquals(20 * BATCH_ROWS, collector.size());
+		assertEquals(0, link.getQueueDepth());
+
+		// stream is closed
+		rpc.push(link, batch(20));
+		rpc.push(new LogMap(row(0)));
+		assertEquals(20, link.getBatches());
+		assertEquals(20 * BATCH_ROWS, collector.size());
+	}
+
+	@Test(timeout = 30000)
+	public void testPushWithEof() throws InterruptedException {
+		// batches arriving while eof are passed, or rejected without receive
+		Thread mapper = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 2000; i++)
+					rpc.push(link, batch(i));
+			}
+		};
+		mapper.start();
+		Thread.sleep(5);
+		rpc.eof();
+		mapper.join();
+		waitEnd();
+
+		assertTrue(link.getBatches() > 0);
+		assertEquals(0, link.getQueueDepth());
+		assertEquals(link.getBatches() * BATCH_ROWS, link.getRows());
+		assertEquals(link.getRows(), collector.size());
+	}
+
+	@Test(timeout = 30000)
+	public void testEofWithoutRows() throws InterruptedException {
+		rpc.eof();
+		waitEnd();
+		assertEquals(0, collector.size());
+	}
+
+	private void waitEnd() throws InterruptedException {
+		while (collector.getStatus() != Status.End)
+			Thread.sleep(10);
+	}
+
+	private byte[] batch(int seq) {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < BATCH_ROWS; i++)
+			rows.add(row(seq * BATCH_ROWS + i));
+		return RpcBatchCodec.encode(rows);
+	}
+
+	private Map<String, Object> row(int n) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("n", n);
+		return m;
+	}
+
+	private static class Collector extends LogQueryCommand {
+		private List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		private volatile int delay;
+
+		@Override
+		public synchronized void push(LogMap m) {
+			rows.add(m.map());
+			if (delay > 0 && rows.size() % BATCH_ROWS == 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+
+		public synchronized int size() {
+			return rows.size();
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.LogQueryCommand.Status;
+import org.krakenapps.logdb.RowBatch;
+import org.krakenapps.logdb.query.command.Term.Operator;
+
+/**
+ * Checks search limit over row batches, which is trimmed in the middle of
+ * batch
+ */
+public class SearchTest {
+	@Test
+	public void testLimitInBatch() {
+		Collector collector = new Collector();
+		Search search = newSearch(5, collector);
+
+		// 10 of 20 rows are matched, limit falls in the middle
+		search.push(batch(0, 20));
+		assertEquals(Arrays.asList(0, 2, 4, 6, 8), collector.rows);
+		assertEquals(Status.End, search.getStatus());
+		assertEquals(Status.End, collector.getStatus());
+	}
+
+	@Test
+	public void testLimitAcrossBatches() {
+		Collector collector = new Collector();
+		Search search = newSearch(7, collector);
+
+		search.push(batch(0, 10));
+		assertEquals(Arrays.asList(0, 2, 4, 6, 8), collector.rows);
+		assertEquals(Status.Running, collector.getStatus());
+
+		search.push(batch(10, 10));
+		assertEquals(Arrays.asList(0, 2, 4, 6, 8, 10, 12), collector.rows);
+		assertEquals(Status.End, collector.getStatus());
+	}
+
+	@Test
+	public void testLimitAtBatchEnd() {
+		Collector collector = new Collector();
+		Search search = newSearch(5, collector);
+
+		search.push(batch(0, 10));
+		assertEquals(5, collector.rows.size());
+		assertEquals(Status.End, collector.getStatus());
+	}
+
+	@Test
+	public void testPushedDownLimit() {
+		Collector collector = new Collector();
+		Search search = newSearch(3, collector);
+		search.setPushedDown(true);
+
+		// all rows are matched by table scan
+		search.push(batch(0, 10));
+		assertEquals(Arrays.asList(0, 1, 2), collector.rows);
+		assertEquals(Status.End, collector.getStatus());
+	}
+
+	@Test
+	public void testRowLimit() {
+		Collector collector = new Collector();
+		Search search = newSearch(2, collector);
+
+		for (int i = 0; i < 10 && search.getStatus() != Status.End; i++)
+			search.push(row(i));
+		assertEquals(Arrays.asList(0, 2), collector.rows);
+		assertEquals(Status.End, collector.getStatus());
+	}
+
+	private Search newSearch(int limit, Collector collector) {
+		Term term = new Term();
+		term.setLh("s");
+		term.setOperator(Operator.Contain);
+		term.setRhString(true);
+		term.setRh("a");
+
+		Search search = new Search(limit, Arrays.asList(term));
+		search.setNextCommand(collector);
+		search.init();
+		collector.init();
+		return search;
+	}
+
+	private RowBatch batch(int begin, int count) {
+		RowBatch batch = new RowBatch(count);
+		for (int i = begin; i < begin + count; i++)
+			batch.add(row(i));
+		return batch;
+	}
+
+	private LogMap row(int n) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("n", n);
+		m.put("s", (n % 2 == 0 ? "a" : "b") + n);
+		return new LogMap(m);
+	}
+
+	private static class Collector extends LogQueryCommand {
+		private List<Integer> rows = new ArrayList<Integer>();
+
+		@Override
+		public void push(LogMap m) {
+			rows.add((Integer) m.get("n"));
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package org.krakenapps.logdb.query.command;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogQueryCommand;
+import org.krakenapps.logdb.LogQueryCommand.LogMap;
+import org.krakenapps.logdb.RowBatch;
+import org.krakenapps.logdb.sort.TopSelector;
+
+/**
+ * Compares sort output of top selector, used for small limit, with output of
+ * full sort
+ */
+public class SortLimitTest {
+	private static final int ROWS = TopSelector.MAX_LIMIT + 5000;
+
+	private List<LogMap> rows;
+
+	@Before
+	public void setup() {
+		Random r = new Random(1);
+		rows = new ArrayList<LogMap>();
+		for (int i = 0; i < ROWS; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			m.put("n", i);
+
+			// many rows of same key
+			if (r.nextInt(10) != 0)
+				m.put("k", r.nextInt(50));
+			m.put("s", "s" + r.nextInt(3));
+			rows.add(new LogMap(m));
+		}
+	}
+
+	@Test
+	public void testSort() throws IOException {
+		for (String[] fields : new String[][] { { "k" }, { "-k" }, { "s", "k" }, { "-s", "-k" } }) {
+			for (boolean reverse : new boolean[] { false, true }) {
+				List<Map<String, Object>> sorted = run(new Sort(toSortFields(fields), reverse), false);
+				assertEquals(ROWS, sorted.size());
+
+				for (int limit : new int[] { 0, 1, 100, TopSelector.MAX_LIMIT, TopSelector.MAX_LIMIT + 1 }) {
+					String msg = join(fields) + " reverse " + reverse + " limit " + limit;
+					Sort sort = new Sort(limit, toSortFields(fields), reverse);
+					assertEquals(msg, sorted.subList(0, limit), run(sort, false));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSort2() throws IOException {
+		for (String[] fields : new String[][] { { "k" }, { "-k" }, { "s", "k" }, { "-s", "-k" } }) {
+			for (boolean reverse : new boolean[] { false, true }) {
+				List<Map<String, Object>> sorted = run(new Sort2(toSort2Fields(fields), reverse), true);
+				assertEquals(ROWS, sorted.size());
+
+				for (int limit : new int[] { 0, 1, 100, TopSelector.MAX_LIMIT, TopSelector.MAX_LIMIT + 1 }) {
+					String msg = join(fields) + " reverse " + reverse + " limit " + limit;
+					Sort2 sort = new Sort2(limit, toSort2Fields(fields), reverse);
+					assertEquals(msg, sorted.subList(0, limit), run(sort, true));
+					assertEquals(msg, sorted.subList(0, limit), run(sort, false));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSame() throws IOException {
+		// sort and sort2 output is same with or without selector
+		for (int limit : new int[] { 10, TopSelector.MAX_LIMIT, TopSelector.MAX_LIMIT + 1 }) {
+			String[] fields = new String[] { "-s", "k" };
+			assertEquals(run(new Sort(limit, toSortFields(fields), false), false),
+					run(new Sort2(limit, toSort2Fields(fields), false), true));
+		}
+	}
+
+	private List<Map<String, Object>> run(LogQueryCommand command, boolean batch) {
+		Collector collector = new Collector();
+		command.setNextCommand(collector);
+		command.init();
+		collector.init();
+
+		if (batch) {
+			RowBatch b = new RowBatch();
+			for (LogMap m : rows) {
+				b.add(m);
+				if (b.isFull()) {
+					command.push(b);
+					b = new RowBatch();
+				}
+			}
+			command.push(b);
+		} else {
+			for (LogMap m : rows)
+				command.push(m);
+		}
+
+		command.eof();
+		return collector.rows;
+	}
+
+	private Sort.SortField[] toSortFields(String[] fields) {
+		Sort.SortField[] l = new Sort.SortField[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			boolean asc = !fields[i].startsWith("-");
+			l[i] = new Sort.SortField(asc ? fields[i] : fields[i].substring(1), asc);
+		}
+		return l;
+	}
+
+	private Sort2.SortField[] toSort2Fields(String[] fields) {
+		Sort2.SortField[] l = new Sort2.SortField[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			boolean asc = !fields[i].startsWith("-");
+			l[i] = new Sort2.SortField(asc ? fields[i] : fields[i].substring(1), asc);
+		}
+		return l;
+	}
+
+	private String join(String[] fields) {
+		StringBuilder sb = new StringBuilder();
+		for (String field : fields) {
+			if (sb.length() > 0)
+				sb.append(",");
+			sb.append(field);
+		}
+		return sb.toString();
+	}
+
+	private static class Collector extends LogQueryCommand {
+		private List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+		@Override
+		public void push(LogMap m) {
+			rows.add(m.map());
+		}
+
+		@Override
+		public boolean isReducer() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package org.krakenapps.logdb.query.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logdb.LogResultSet;
+import org.krakenapps.logdb.query.ObjectComparator;
+
+public class ResultStoreTest {
+	private static final int ROWS = ResultStore.CHUNK_ROWS * 10 + 5;
+
+	private File dir;
+	private ResultStore store;
+	private List<Map<String, Object>> rows;
+
+	@Before
+	public void setup() throws IOException {
+		dir = File.createTempFile("result", "");
+		dir.delete();
+		store = new ResultStore(dir);
+
+		rows = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < ROWS; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+
+			// empty rows at end and start of chunk
+			if (i != ResultStore.CHUNK_ROWS - 1 && i != ResultStore.CHUNK_ROWS) {
+				m.put("n", i);
+				m.put("k", i % 7);
+				m.put("s", "row" + i);
+
+				// null value is present, unlike missing field
+				if (i % 3 == 0)
+					m.put("x", null);
+				else if (i % 3 == 2)
+					m.put("x", (long) i);
+
+				// column which appears in the middle of chunk
+				if (i >= 2000)
+					m.put("d", new Date(i * 1000L));
+			}
+			rows.add(m);
+		}
+	}
+
+	@After
+	public void teardown() {
+		store.purge();
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testChunkBoundary() throws IOException {
+		write(rows);
+		store.close();
+		assertEquals(ROWS, store.count());
+
+		LogResultSet rs = store.open();
+		assertEquals(ROWS, rs.size());
+		assertEquals(rows, readAll(rs));
+		rs.close();
+
+		assertEquals(ResultStore.CHUNK_ROWS, store.getChunk(0).getRowCount());
+		assertEquals(5, store.getChunk(10).getRowCount());
+	}
+
+	@Test
+	public void testPresence() throws IOException {
+		List<Map<String, Object>> sparse = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < ResultStore.CHUNK_ROWS + 20; i++) {
+			Map<String, Object> m = new HashMap<String, Object>();
+			if (i % 2 == 0)
+				m.put("a", null);
+			if (i % 5 == 0)
+				m.put("b", i);
+			if (i == 9)
+				m.put("c", "only");
+			sparse.add(m);
+		}
+
+		write(sparse);
+
+		// last chunk is still pending
+		assertEquals(sparse, readAll(store.open()));
+
+		store.close();
+		LogResultSet rs = store.open();
+		for (int i = 0; i < sparse.size(); i++) {
+			Map<String, Object> m = rs.next();
+			assertEquals(i % 2 == 0, m.containsKey("a"));
+			assertNull(m.get("a"));
+			assertEquals(i % 5 == 0, m.containsKey("b"));
+			assertEquals(i == 9, m.containsKey("c"));
+		}
+		assertFalse(rs.hasNext());
+
+		ResultChunk chunk = store.getChunk(0);
+		assertTrue(chunk.indexOf("c") >= 0);
+		assertEquals("only", chunk.get(chunk.indexOf("c"), 9));
+		assertEquals(-1, chunk.indexOf("d"));
+		assertNull(chunk.get(chunk.indexOf("d"), 9));
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		write(rows.subList(0, 1500));
+		LogResultSet rs = store.open();
+		write(rows.subList(1500, ROWS));
+
+		assertEquals(1500, rs.size());
+		List<Map<String, Object>> read = readAll(rs);
+		assertEquals(rows.subList(0, 1500), read);
+
+		// pending row is copied
+		read.get(1499).put("n", -1);
+		rs = store.open();
+		rs.skip(1499);
+		assertEquals(1499, rs.next().get("n"));
+	}
+
+	@Test
+	public void testSkip() throws IOException {
+		write(rows);
+		store.close();
+
+		int[] offsets = new int[] { 0, 1, ResultStore.CHUNK_ROWS - 1, ResultStore.CHUNK_ROWS,
+				ResultStore.CHUNK_ROWS * 3 + 17, ROWS - 1 };
+		for (int offset : offsets) {
+			LogResultSet rs = store.open();
+			rs.skip(offset);
+			for (int i = offset; i < Math.min(offset + 10, ROWS); i++)
+				assertEquals("offset " + offset, rows.get(i), rs.next());
+		}
+
+		// skip in steps over chunks
+		LogResultSet rs = store.open();
+		for (int i = 0; i < ROWS; i += 1000) {
+			assertEquals(rows.get(i), rs.next());
+			rs.skip(999);
+		}
+		assertFalse(rs.hasNext());
+
+		rs = store.open();
+		rs.skip(ROWS + 100);
+		assertFalse(rs.hasNext());
+	}
+
+	@Test
+	public void testChunkCache() throws IOException {
+		write(rows);
+		store.close();
+
+		ResultChunk first = store.getChunk(0);
+		assertSame(first, store.getChunk(0));
+		assertSame(first, store.getColumns(0, new String[] { "k" }));
+
+		// only selected columns are decoded if chunk is not cached
+		ResultChunk columns = store.getColumns(9, new String[] { "k" });
+		assertNotSame(columns, store.getChunk(9));
+		assertEquals(9 * ResultStore.CHUNK_ROWS % 7, columns.get(columns.indexOf("k"), 0));
+		assertNull(columns.get(columns.indexOf("s"), 0));
+
+		// least recently used chunk is evicted
+		for (int i = 1; i <= 8; i++)
+			store.getChunk(i);
+		assertNotSame(first, store.getChunk(0));
+		assertEquals(first.getRow(5), store.getChunk(0).getRow(5));
+	}
+
+	@Test
+	public void testSorted() throws IOException {
+		write(rows);
+
+		// rows of pending chunk are sorted, and order is deleted at close
+		List<String> fields = Arrays.asList("-k");
+		LogResultSet rs = store.openSorted(fields);
+		assertEquals(sort(rows, fields), readAll(rs));
+		assertEquals(1, countOrders());
+		rs.close();
+		assertEquals(0, countOrders());
+
+		store.close();
+		for (List<String> f : Arrays.asList(Arrays.asList("k"), Arrays.asList("-k"), Arrays.asList("x"),
+				Arrays.asList("-x", "k"), Arrays.asList("s"), Arrays.asList("d", "-n"))) {
+			rs = store.openSorted(f);
+			assertEquals(f.toString(), sort(rows, f), readAll(rs));
+			rs.close();
+		}
+
+		// order of closed result is cached
+		assertEquals(6, countOrders());
+		rs = store.openSorted(new ArrayList<String>(Arrays.asList("k")));
+		rs.skip(ROWS - 3);
+		List<Map<String, Object>> expected = sort(rows, Arrays.asList("k"));
+		assertEquals(expected.subList(ROWS - 3, ROWS), readAll(rs));
+		rs.close();
+		assertEquals(6, countOrders());
+
+		rs = store.openSorted(Arrays.asList("k"));
+		rs.skip(ResultStore.CHUNK_ROWS - 1);
+		assertEquals(expected.get(ResultStore.CHUNK_ROWS - 1), rs.next());
+		assertEquals(expected.get(ResultStore.CHUNK_ROWS), rs.next());
+
+		store.purge();
+		assertEquals(0, countOrders());
+	}
+
+	private void write(List<Map<String, Object>> l) throws IOException {
+		for (Map<String, Object> m : l)
+			store.write(m);
+	}
+
+	private List<Map<String, Object>> readAll(LogResultSet rs) {
+		List<Map<String, Object>> l = new ArrayList<Map<String, Object>>();
+		while (rs.hasNext())
+			l.add(rs.next());
+		return l;
+	}
+
+	private int countOrders() {
+		int count = 0;
+		for (File f : dir.listFiles())
+			if (f.getName().endsWith(".ord"))
+				count++;
+		return count;
+	}
+
+	// stable sort, null is placed last
+	private List<Map<String, Object>> sort(List<Map<String, Object>> l, final List<String> fields) {
+		final ObjectComparator cmp = new ObjectComparator();
+		List<Map<String, Object>> sorted = new ArrayList<Map<String, Object>>(l);
+		Collections.sort(sorted, new Comparator<Map<String, Object>>() {
+			@Override
+			public int compare(Map<String, Object> o1, Map<String, Object> o2) {
+				for (String field : fields) {
+					boolean asc = !field.startsWith("-");
+					String name = asc ? field : field.substring(1);
+					Object k1 = o1.get(name);
+					Object k2 = o2.get(name);
+					if (k1 == null && k2 == null)
+						continue;
+					else if (k1 == null)
+						return 1;
+					else if (k2 == null)
+						return -1;
+
+					int result = cmp.compare(k1, k2);
+					if (result != 0)
+						return asc ? result : -result;
+				}
+				return 0;
+			}
+		});
+		return sorted;
+	}
+}
@@ -0,0 +1,218 @@
+package org.krakenapps.logdb.sort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks memory budget of sort service shared by sorters, spill of runs over
+ * budget, and bound of pending flushes
+ */
+public class SortMemoryTest {
+	private SortService service;
+	private long budget;
+	private long reserved;
+	private int sorters;
+
+	@Before
+	public void setup() {
+		service = SortService.getInstance();
+		budget = service.getMemoryBudget();
+		reserved = service.getReservedBytes();
+		sorters = service.getActiveSorters();
+	}
+
+	@After
+	public void teardown() {
+		service.setMemoryBudget(budget);
+	}
+
+	@Test
+	public void testReserve() {
+		service.setMemoryBudget(reserved + 1000);
+		SortMemory m1 = new SortMemory(service);
+		SortMemory m2 = new SortMemory(service);
+		assertEquals(sorters + 2, service.getActiveSorters());
+
+		assertTrue(m1.reserve(600));
+		assertFalse(m1.reserve(600));
+		assertTrue(m2.reserve(400));
+		assertFalse(m2.reserve(1));
+		assertEquals(reserved + 1000, service.getReservedBytes());
+
+		m1.release(200);
+		assertTrue(m2.reserve(200));
+
+		// rest reservation is released at close only once
+		m1.close();
+		assertEquals(reserved + 600, service.getReservedBytes());
+		assertEquals(sorters + 1, service.getActiveSorters());
+		assertFalse(m1.reserve(1));
+		m1.release(400);
+		m1.close();
+		assertEquals(reserved + 600, service.getReservedBytes());
+		assertEquals(sorters + 1, service.getActiveSorters());
+
+		m2.close();
+		assertEquals(reserved, service.getReservedBytes());
+		assertEquals(sorters, service.getActiveSorters());
+
+		try {
+			service.setMemoryBudget(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testRunLength() {
+		service.setMemoryBudget(reserved);
+		assertEquals(1000, service.getRunLength(100));
+
+		service.setMemoryBudget(Long.MAX_VALUE / 2);
+		assertEquals(100000, service.getRunLength(100));
+
+		// budget is shared by active sorters, with pending flushes
+		SortMemory m1 = new SortMemory(service);
+		SortMemory m2 = null;
+		try {
+			int n = service.getActiveSorters();
+			long share = 300L * (SortService.MAX_PENDING_FLUSHES + 1) * 10000;
+			service.setMemoryBudget(reserved + share * n);
+			assertEquals(10000, service.getRunLength(300));
+
+			m2 = new SortMemory(service);
+			assertEquals(share * n / (n + 1) / (share / 10000), service.getRunLength(300));
+
+			// reserved memory is not shared
+			assertTrue(m1.reserve(share * n / 2));
+			assertEquals(share * n / 2 / (n + 1) / (share / 10000), service.getRunLength(300));
+		} finally {
+			m1.close();
+			if (m2 != null)
+				m2.close();
+		}
+	}
+
+	@Test
+	public void testCachedSort() throws IOException {
+		service.setMemoryBudget(Long.MAX_VALUE / 2);
+		long spilled = service.getSpilledRuns();
+
+		sortAndCheck(20000);
+		assertEquals(spilled, service.getSpilledRuns());
+		assertEquals(reserved, service.getReservedBytes());
+		assertEquals(sorters, service.getActiveSorters());
+	}
+
+	@Test
+	public void testSpilledSort() throws IOException {
+		// no budget, all runs are written to files
+		service.setMemoryBudget(0);
+		long spilled = service.getSpilledRuns();
+
+		sortAndCheck(20000);
+		assertTrue(service.getSpilledRuns() > spilled);
+		assertEquals(reserved, service.getReservedBytes());
+		assertEquals(sorters, service.getActiveSorters());
+	}
+
+	@Test(timeout = 30000)
+	public void testPendingFlushes() throws Exception {
+		service.setMemoryBudget(0);
+
+		// occupy all sort workers, so flushes are not run
+		final CountDownLatch started = new CountDownLatch(service.getWorkerCount());
+		final CountDownLatch resume = new CountDownLatch(1);
+		for (int i = 0; i < service.getWorkerCount(); i++) {
+			service.execute(new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						resume.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+		}
+		started.await();
+
+		// each 1000 items are flushed, third flush waits for a pending one
+		final ParallelMergeSorter sorter = new ParallelMergeSorter(new KeyComparator());
+		final AtomicInteger added = new AtomicInteger();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 3000; i++) {
+						sorter.add(new Item(3000 - i, null));
+						added.set(i + 1);
+					}
+				} catch (IOException e) {
+				}
+			}
+		};
+
+		try {
+			t.start();
+			t.join(300);
+			assertTrue(t.isAlive());
+			assertEquals(2999, added.get());
+		} finally {
+			resume.countDown();
+		}
+
+		t.join();
+		assertEquals(3000, added.get());
+
+		CloseableIterator it = sorter.sort();
+		try {
+			for (int i = 1; i <= 3000; i++)
+				assertEquals(i, it.next().getKey());
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+	}
+
+	private void sortAndCheck(int count) throws IOException {
+		ParallelMergeSorter sorter = new ParallelMergeSorter(new KeyComparator());
+		Random r = new Random(1);
+		for (int i = 0; i < count; i++)
+			sorter.add(new Item(r.nextInt(count), i));
+
+		CloseableIterator it = sorter.sort();
+		try {
+			int n = 0;
+			int last = Integer.MIN_VALUE;
+			while (it.hasNext()) {
+				int key = (Integer) it.next().getKey();
+				assertTrue(last <= key);
+				last = key;
+				n++;
+			}
+			assertEquals(count, n);
+		} finally {
+			it.close();
+		}
+	}
+
+	private static class KeyComparator implements Comparator<Item> {
+		@Override
+		public int compare(Item o1, Item o2) {
+			return ((Integer) o1.getKey()).compareTo((Integer) o2.getKey());
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.krakenapps.logdb.sort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopSelectorTest {
+	@Test
+	public void testStable() {
+		Random r = new Random(1);
+		List<int[]> items = new ArrayList<int[]>();
+		for (int i = 0; i < 10000; i++)
+			items.add(new int[] { r.nextInt(20), i });
+
+		// items of same key are kept in insertion order
+		List<int[]> sorted = new ArrayList<int[]>(items);
+		Collections.sort(sorted, new KeyComparator());
+
+		for (int limit : new int[] { 0, 1, 7, 100, 499, 500, 501, 9999, 10000, 20000 }) {
+			TopSelector<int[]> selector = new TopSelector<int[]>(new KeyComparator(), limit);
+			selector.addAll(items);
+			assertItems("limit " + limit, sorted.subList(0, Math.min(limit, sorted.size())), selector.sort());
+		}
+
+		// all keys are same
+		TopSelector<int[]> selector = new TopSelector<int[]>(new KeyComparator(), 10);
+		for (int i = 0; i < 100; i++)
+			selector.add(new int[] { 0, i });
+
+		List<int[]> top = selector.sort();
+		assertEquals(10, top.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, top.get(i)[1]);
+	}
+
+	@Test
+	public void testClear() {
+		TopSelector<int[]> selector = new TopSelector<int[]>(new KeyComparator(), 3);
+		for (int i = 0; i < 10; i++)
+			selector.add(new int[] { 10 - i, i });
+
+		assertEquals(3, selector.sort().size());
+		assertTrue(selector.sort().isEmpty());
+	}
+
+	@Test
+	public void testLimit() {
+		assertTrue(TopSelector.isSupported(0));
+		assertTrue(TopSelector.isSupported(1));
+		assertTrue(TopSelector.isSupported(TopSelector.MAX_LIMIT));
+		assertFalse(TopSelector.isSupported(TopSelector.MAX_LIMIT + 1));
+		assertFalse(TopSelector.isSupported(-1));
+		assertFalse(TopSelector.isSupported(null));
+	}
+
+	private void assertItems(String msg, List<int[]> expected, List<int[]> actual) {
+		assertEquals(msg, expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertTrue(msg + " at " + i, expected.get(i) == actual.get(i));
+	}
+
+	private static class KeyComparator implements Comparator<int[]> {
+		@Override
+		public int compare(int[] o1, int[] o2) {
+			return o1[0] - o2[0];
+		}
+	}
+}
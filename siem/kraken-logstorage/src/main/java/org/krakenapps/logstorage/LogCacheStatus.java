@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage;
+
+/**
+ * hit, miss and eviction counters of storage read caches
+ */
+public class LogCacheStatus {
+	private String name;
+
+	// bytes for block cache, reader count for reader cache
+	private long usage;
+	private long capacity;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public long getUsage() {
+		return usage;
+	}
+
+	public void setUsage(long usage) {
+		this.usage = usage;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public void setHits(long hits) {
+		this.hits = hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public void setMisses(long misses) {
+		this.misses = misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public void setEvictions(long evictions) {
+		this.evictions = evictions;
+	}
+
+	@Override
+	public String toString() {
+		return "cache=" + name + ", usage=" + usage + "/" + capacity + ", hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions;
+	}
+}
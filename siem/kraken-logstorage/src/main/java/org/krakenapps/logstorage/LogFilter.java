@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.krakenapps.logstorage.file.LogBlockFilter;
+
+/**
+ * Log filter and projection pushed down into table scan. Blocks are pruned by
+ * zone map first, then each log is checked before it is passed to search
+ * callback. Logs rejected by filter are not counted for offset and limit.
+ */
+public interface LogFilter extends LogBlockFilter {
+	/**
+	 * @return field names which should be decoded, or null for all fields
+	 */
+	Set<String> getFieldNames();
+
+	/**
+	 * Called by scanner threads at once, so implementation should be
+	 * thread-safe.
+	 * 
+	 * @param data
+	 *            log data which decodes values when they are accessed
+	 * @return true if log should be passed to search callback
+	 */
+	boolean matches(Map<String, Object> data);
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Boolean combination of index terms. Negation is allowed only as an operand
+ * of conjunction with at least one positive operand, since all logs cannot
+ * be enumerated from index.
+ */
+public abstract class LogIndexCondition {
+	/**
+	 * @return true if tokens of a log satisfy the condition
+	 */
+	public abstract boolean matches(Set<String> tokens);
+
+	public static LogIndexCondition term(String term) {
+		return new Term(term);
+	}
+
+	public static LogIndexCondition and(LogIndexCondition... operands) {
+		return new And(Arrays.asList(operands));
+	}
+
+	public static LogIndexCondition or(LogIndexCondition... operands) {
+		return new Or(Arrays.asList(operands));
+	}
+
+	public static LogIndexCondition not(LogIndexCondition operand) {
+		return new Not(operand);
+	}
+
+	/**
+	 * parse terms separated by whitespace, "and", "or", "not" and
+	 * parentheses. adjacent terms are joined by "and", and "not" binds
+	 * tighter than "and", which binds tighter than "or".
+	 */
+	public static LogIndexCondition parse(String s) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (Character.isWhitespace(c) || c == '(' || c == ')') {
+				if (sb.length() > 0) {
+					tokens.add(sb.toString());
+					sb.setLength(0);
+				}
+				if (!Character.isWhitespace(c))
+					tokens.add(String.valueOf(c));
+			} else {
+				sb.append(c);
+			}
+		}
+
+		if (sb.length() > 0)
+			tokens.add(sb.toString());
+
+		if (tokens.isEmpty())
+			throw new IllegalArgumentException("empty index condition");
+
+		Parser parser = new Parser(tokens);
+		LogIndexCondition cond = parser.parseOr();
+		if (parser.pos < tokens.size())
+			throw new IllegalArgumentException("unexpected token [" + tokens.get(parser.pos) + "] in index condition: " + s);
+
+		cond.validate(false);
+		return cond;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if negation is not guarded by positive operand
+	 */
+	public void validate() {
+		validate(false);
+	}
+
+	abstract void validate(boolean guarded);
+
+	/**
+	 * @return all terms including negated terms
+	 */
+	public Set<String> getTerms() {
+		Set<String> terms = new HashSet<String>();
+		collectTerms(terms);
+		return terms;
+	}
+
+	abstract void collectTerms(Set<String> terms);
+
+	private static class Parser {
+		private List<String> tokens;
+		private int pos;
+
+		private Parser(List<String> tokens) {
+			this.tokens = tokens;
+		}
+
+		private LogIndexCondition parseOr() {
+			List<LogIndexCondition> operands = new ArrayList<LogIndexCondition>();
+			operands.add(parseAnd());
+			while (accept("or"))
+				operands.add(parseAnd());
+
+			return operands.size() == 1 ? operands.get(0) : new Or(operands);
+		}
+
+		private LogIndexCondition parseAnd() {
+			List<LogIndexCondition> operands = new ArrayList<LogIndexCondition>();
+			operands.add(parseNot());
+			while (pos < tokens.size() && !peek("or") && !peek(")")) {
+				accept("and");
+				operands.add(parseNot());
+			}
+
+			return operands.size() == 1 ? operands.get(0) : new And(operands);
+		}
+
+		private LogIndexCondition parseNot() {
+			if (accept("not"))
+				return new Not(parseNot());
+
+			if (accept("(")) {
+				LogIndexCondition cond = parseOr();
+				if (!accept(")"))
+					throw new IllegalArgumentException("missing close parenthesis in index condition");
+				return cond;
+			}
+
+			if (pos >= tokens.size())
+				throw new IllegalArgumentException("missing term in index condition");
+
+			String t = tokens.get(pos);
+			if (t.equals(")") || isKeyword(t))
+				throw new IllegalArgumentException("unexpected token [" + t + "] in index condition");
+
+			pos++;
+			return new Term(t);
+		}
+
+		private boolean isKeyword(String t) {
+			return t.equalsIgnoreCase("and") || t.equalsIgnoreCase("or") || t.equalsIgnoreCase("not");
+		}
+
+		private boolean peek(String t) {
+			return pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(t);
+		}
+
+		private boolean accept(String t) {
+			if (!peek(t))
+				return false;
+			pos++;
+			return true;
+		}
+	}
+
+	public static class Term extends LogIndexCondition {
+		private String term;
+
+		public Term(String term) {
+			if (term == null)
+				throw new IllegalArgumentException("index term should be not null");
+			this.term = term;
+		}
+
+		public String getTerm() {
+			return term;
+		}
+
+		@Override
+		public boolean matches(Set<String> tokens) {
+			return tokens.contains(term);
+		}
+
+		@Override
+		void validate(boolean guarded) {
+		}
+
+		@Override
+		void collectTerms(Set<String> terms) {
+			terms.add(term);
+		}
+
+		@Override
+		public String toString() {
+			return term;
+		}
+	}
+
+	public static class And extends LogIndexCondition {
+		private List<LogIndexCondition> operands;
+
+		public And(List<LogIndexCondition> operands) {
+			if (operands.isEmpty())
+				throw new IllegalArgumentException("empty operands");
+			this.operands = Collections.unmodifiableList(new ArrayList<LogIndexCondition>(operands));
+		}
+
+		public List<LogIndexCondition> getOperands() {
+			return operands;
+		}
+
+		@Override
+		public boolean matches(Set<String> tokens) {
+			for (LogIndexCondition c : operands)
+				if (!c.matches(tokens))
+					return false;
+			return true;
+		}
+
+		@Override
+		void validate(boolean guarded) {
+			boolean positive = false;
+			for (LogIndexCondition c : operands)
+				if (!(c instanceof Not))
+					positive = true;
+
+			for (LogIndexCondition c : operands)
+				c.validate(positive);
+		}
+
+		@Override
+		void collectTerms(Set<String> terms) {
+			for (LogIndexCondition c : operands)
+				c.collectTerms(terms);
+		}
+
+		@Override
+		public String toString() {
+			return join(operands, " and ");
+		}
+	}
+
+	public static class Or extends LogIndexCondition {
+		private List<LogIndexCondition> operands;
+
+		public Or(List<LogIndexCondition> operands) {
+			if (operands.isEmpty())
+				throw new IllegalArgumentException("empty operands");
+			this.operands = Collections.unmodifiableList(new ArrayList<LogIndexCondition>(operands));
+		}
+
+		public List<LogIndexCondition> getOperands() {
+			return operands;
+		}
+
+		@Override
+		public boolean matches(Set<String> tokens) {
+			for (LogIndexCondition c : operands)
+				if (c.matches(tokens))
+					return true;
+			return false;
+		}
+
+		@Override
+		void validate(boolean guarded) {
+			for (LogIndexCondition c : operands)
+				c.validate(false);
+		}
+
+		@Override
+		void collectTerms(Set<String> terms) {
+			for (LogIndexCondition c : operands)
+				c.collectTerms(terms);
+		}
+
+		@Override
+		public String toString() {
+			return join(operands, " or ");
+		}
+	}
+
+	public static class Not extends LogIndexCondition {
+		private LogIndexCondition operand;
+
+		public Not(LogIndexCondition operand) {
+			this.operand = operand;
+		}
+
+		public LogIndexCondition getOperand() {
+			return operand;
+		}
+
+		@Override
+		public boolean matches(Set<String> tokens) {
+			return !operand.matches(tokens);
+		}
+
+		@Override
+		void validate(boolean guarded) {
+			if (!guarded)
+				throw new IllegalArgumentException("negation should be combined with positive term by and: " + this);
+			operand.validate(false);
+		}
+
+		@Override
+		void collectTerms(Set<String> terms) {
+			operand.collectTerms(terms);
+		}
+
+		@Override
+		public String toString() {
+			return "not " + (operand instanceof Term ? operand : "(" + operand + ")");
+		}
+	}
+
+	private static String join(List<LogIndexCondition> operands, String delimiter) {
+		StringBuilder sb = new StringBuilder();
+		for (LogIndexCondition c : operands) {
+			if (sb.length() > 0)
+				sb.append(delimiter);
+			if (c instanceof Term || c instanceof Not)
+				sb.append(c);
+			else
+				sb.append("(").append(c).append(")");
+		}
+		return sb.toString();
+	}
+}
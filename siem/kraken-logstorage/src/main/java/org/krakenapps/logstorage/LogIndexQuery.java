@@ -25,6 +25,7 @@ public class LogIndexQuery {
 	private String tableName;
 	private String indexName;
 	private String term;
+	private LogIndexCondition condition;
 	private Date minDay;
 	private Date maxDay;
 
@@ -52,6 +53,22 @@ public class LogIndexQuery {
 		this.term = term;
 	}
 
+	/**
+	 * @return boolean condition of terms, or null if single term is used
+	 */
+	public LogIndexCondition getCondition() {
+		return condition;
+	}
+
+	/**
+	 * @param condition
+	 *            boolean condition of terms. term is ignored if condition is
+	 *            set
+	 */
+	public void setCondition(LogIndexCondition condition) {
+		this.condition = condition;
+	}
+
 	public Date getMinDay() {
 		return minDay;
 	}
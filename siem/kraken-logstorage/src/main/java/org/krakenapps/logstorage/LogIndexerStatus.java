@@ -28,6 +28,12 @@ public class LogIndexerStatus {
 	private Date day;
 	private Date lastFlush;
 	private long queueCount;
+	private long termCount;
+	private long postingCount;
+
+	// estimated heap usage of buffered postings in bytes
+	private long heapUsage;
+	private long heapLimit;
 
 	public String getTableName() {
 		return tableName;
@@ -69,10 +75,43 @@ public class LogIndexerStatus {
 		this.queueCount = queueCount;
 	}
 
+	public long getTermCount() {
+		return termCount;
+	}
+
+	public void setTermCount(long termCount) {
+		this.termCount = termCount;
+	}
+
+	public long getPostingCount() {
+		return postingCount;
+	}
+
+	public void setPostingCount(long postingCount) {
+		this.postingCount = postingCount;
+	}
+
+	public long getHeapUsage() {
+		return heapUsage;
+	}
+
+	public void setHeapUsage(long heapUsage) {
+		this.heapUsage = heapUsage;
+	}
+
+	public long getHeapLimit() {
+		return heapLimit;
+	}
+
+	public void setHeapLimit(long heapLimit) {
+		this.heapLimit = heapLimit;
+	}
+
 	@Override
 	public String toString() {
 		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-		return "table=" + tableName + ", index=" + indexName + " (" + dateFormat.format(day) + "), buffered=" + queueCount;
+		return "table=" + tableName + ", index=" + indexName + " (" + dateFormat.format(day) + "), buffered=" + queueCount
+				+ ", terms=" + termCount + ", postings=" + postingCount + ", heap=" + heapUsage + "/" + heapLimit;
 	}
 
 }
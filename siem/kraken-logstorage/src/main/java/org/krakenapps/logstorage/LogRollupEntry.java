@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Aggregated logs of a rollup bucket and group field values
+ */
+public class LogRollupEntry {
+	private Date bucket;
+
+	// string value of each group field, null if field is absent
+	private String[] groups;
+	private long count;
+
+	// long if all values are integral, double otherwise
+	private Number[] sums;
+
+	// non-null values of each sum field
+	private long[] valueCounts;
+
+	public LogRollupEntry(Date bucket, String[] groups, long count, Number[] sums, long[] valueCounts) {
+		this.bucket = bucket;
+		this.groups = groups;
+		this.count = count;
+		this.sums = sums;
+		this.valueCounts = valueCounts;
+	}
+
+	public Date getBucket() {
+		return bucket;
+	}
+
+	public String[] getGroups() {
+		return groups;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public Number[] getSums() {
+		return sums;
+	}
+
+	public long[] getValueCounts() {
+		return valueCounts;
+	}
+
+	@Override
+	public String toString() {
+		return "bucket=" + bucket + ", groups=" + Arrays.toString(groups) + ", count=" + count + ", sums="
+				+ Arrays.toString(sums) + ", value counts=" + Arrays.toString(valueCounts);
+	}
+}
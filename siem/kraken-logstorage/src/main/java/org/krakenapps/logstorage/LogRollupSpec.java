@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Rollup of table declared by "rollup_span", "rollup_by" and "rollup_sum"
+ * table metadata. Log count, and sum and value count of each sum field are
+ * maintained per span bucket and group field values at write time.
+ */
+public class LogRollupSpec {
+	// bucket length in milliseconds, divides an hour
+	private long span;
+	private List<String> groupFields;
+	private List<String> sumFields;
+
+	// logs before this time are not aggregated
+	private Date since;
+
+	public LogRollupSpec(long span, List<String> groupFields, List<String> sumFields, Date since) {
+		this.span = span;
+		this.groupFields = groupFields;
+		this.sumFields = sumFields;
+		this.since = since;
+	}
+
+	public long getSpan() {
+		return span;
+	}
+
+	public List<String> getGroupFields() {
+		return groupFields;
+	}
+
+	public List<String> getSumFields() {
+		return sumFields;
+	}
+
+	public Date getSince() {
+		return since;
+	}
+
+	@Override
+	public String toString() {
+		return "span=" + span + "ms, by=" + groupFields + ", sum=" + sumFields + ", since=" + since;
+	}
+}
@@ -22,6 +22,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import org.krakenapps.logstorage.file.LogBlockFilter;
+
 public interface LogStorage {
 	/**
 	 * @return the storage directory
@@ -86,6 +88,23 @@ public interface LogStorage {
 
 	Log getLog(String tableName, Date date, int id);
 
+	/**
+	 * @return log count of the table day including logs waiting for flush,
+	 *         or -1 if the count is not known
+	 */
+	long getLogCount(String tableName, Date day);
+
+	/**
+	 * @return rollup of the table, or null if rollup is not declared
+	 */
+	LogRollupSpec getRollupSpec(String tableName);
+
+	/**
+	 * @return rollup entries of the table day including logs waiting for
+	 *         flush. entries of same bucket and groups can be repeated.
+	 */
+	List<LogRollupEntry> getRollupEntries(String tableName, Date day) throws IOException;
+
 	LogCursor openCursor(String tableName, Date day, boolean ascending) throws IOException;
 
 	int search(Date from, Date to, int limit, LogSearchCallback callback) throws InterruptedException;
@@ -97,9 +116,25 @@ public interface LogStorage {
 	int search(String tableName, Date from, Date to, int offset, int limit, LogSearchCallback callback)
 			throws InterruptedException;
 
+	/**
+	 * @param filter
+	 *            skip data blocks using zone map of "zonemap_fields" table
+	 *            metadata. filter only prunes blocks, so callback should still
+	 *            check each log. offset and limit count logs of unskipped
+	 *            blocks. if filter is {@link LogFilter},
+	 *            logs are also checked and projected before callback.
+	 */
+	int search(String tableName, Date from, Date to, int offset, int limit, LogBlockFilter filter,
+			LogSearchCallback callback) throws InterruptedException;
+
 	void addLogListener(LogCallback callback);
 
 	void removeLogListener(LogCallback callback);
 
 	List<LogWriterStatus> getWriterStatuses();
+
+	/**
+	 * @return hit, miss and eviction counters of reader and block cache
+	 */
+	List<LogCacheStatus> getCacheStatuses();
 }
@@ -17,15 +17,12 @@ package org.krakenapps.logstorage.engine;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
 import org.krakenapps.codec.EncodingRule;
 import org.krakenapps.logstorage.CachedRandomSeeker;
 import org.krakenapps.logstorage.Log;
-import org.krakenapps.logstorage.LogTableRegistry;
-import org.krakenapps.logstorage.file.LogFileReader;
+import org.krakenapps.logstorage.engine.TabletReaderCache.CachedReader;
 import org.krakenapps.logstorage.file.LogRecord;
 
 /**
@@ -36,17 +33,12 @@ import org.krakenapps.logstorage.file.LogRecord;
  */
 public class CachedRandomSeekerImpl implements CachedRandomSeeker {
 	private boolean closed;
-	private LogTableRegistry tableRegistry;
-	private LogFileFetcher fetcher;
+	private TabletReaderCache readerCache;
 	private ConcurrentMap<OnlineWriterKey, OnlineWriter> onlineWriters;
-	private Map<TabletKey, LogFileReader> cachedReaders;
 
-	public CachedRandomSeekerImpl(LogTableRegistry tableRegistry, LogFileFetcher fetcher,
-			ConcurrentMap<OnlineWriterKey, OnlineWriter> onlineWriters) {
-		this.tableRegistry = tableRegistry;
-		this.fetcher = fetcher;
+	public CachedRandomSeekerImpl(TabletReaderCache readerCache, ConcurrentMap<OnlineWriterKey, OnlineWriter> onlineWriters) {
+		this.readerCache = readerCache;
 		this.onlineWriters = onlineWriters;
-		this.cachedReaders = new HashMap<TabletKey, LogFileReader>();
 	}
 
 	@Override
@@ -54,40 +46,31 @@ public class CachedRandomSeekerImpl implements CachedRandomSeeker {
 		if (closed)
 			throw new IllegalStateException("already closed");
 
-		int tableId = tableRegistry.getTableId(tableName);
-
 		// check memory buffer (flush waiting)
 		OnlineWriter writer = onlineWriters.get(new OnlineWriterKey(tableName, day));
 		if (writer != null) {
 			for (LogRecord r : writer.getBuffer())
 				if (r.getId() == id)
-					return new Log(tableName, r.getDate(), id, EncodingRule.decodeMap(r.getData().duplicate()));
+					return new Log(tableName, r.getDate(), id, EncodingRule.decodeLazyMap(r.getData().duplicate()));
 		}
 
-		TabletKey key = new TabletKey(tableId, day);
-		LogFileReader reader = cachedReaders.get(key);
-		if (reader == null) {
-			reader = fetcher.fetch(tableName, day);
-			cachedReaders.put(key, reader);
+		// readers are shared with other seekers, and closed by cache
+		CachedReader cached = readerCache.borrow(tableName, day);
+		boolean broken = true;
+		try {
+			LogRecord r = cached.getReader().find(id);
+			broken = false;
+			return LogMarshaler.convert(tableName, r);
+		} finally {
+			if (broken)
+				readerCache.discard(cached);
+			else
+				readerCache.release(cached);
 		}
-
-		return LogMarshaler.convert(tableName, reader.find(id));
 	}
 
 	@Override
 	public void close() {
-		if (closed)
-			return;
-
 		closed = true;
-
-		for (LogFileReader reader : cachedReaders.values()) {
-			try {
-				reader.close();
-			} catch (IOException e) {
-			}
-		}
-
-		cachedReaders.clear();
 	}
 }
@@ -21,6 +21,13 @@ public enum Constants {
 	LogMaxIdleTime("log_max_idle_time"), 
 	LogFlushInterval("log_flush_interval"), 
 	LogBlockSize("log_block_size"),
+	LogCompressThreads("log_compress_threads"),
+	LogMaxPendingBlocks("log_max_pending_blocks"),
+	LogReadMmap("log_read_mmap"),
+	LogReaderCacheSize("log_reader_cache_size"),
+	LogBlockCacheSize("log_block_cache_size"),
+	LogScanThreads("log_scan_threads"),
+	LogIndexBufferSize("log_index_buffer_size"),
 	MinFreeDiskSpaceType("min_free_disk_space_type", "string"),
 	MinFreeDiskSpaceValue("min_free_disk_space_value"),
 	DiskLackAction("disk_lack_action", "string");
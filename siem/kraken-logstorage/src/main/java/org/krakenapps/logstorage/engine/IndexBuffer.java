@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import java.util.Date;
+
+import org.krakenapps.logstorage.index.PostingBuffer;
+
+/**
+ * snapshot of unflushed postings of an online indexer
+ */
+class IndexBuffer {
+	public Date day;
+	public PostingBuffer postings;
+
+	public IndexBuffer(Date day, PostingBuffer postings) {
+		this.day = day;
+		this.postings = postings;
+	}
+}
@@ -23,10 +23,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+import org.krakenapps.logstorage.LogIndexCondition;
 import org.krakenapps.logstorage.LogIndexCursor;
 import org.krakenapps.logstorage.LogIndexItem;
-import org.krakenapps.logstorage.index.InvertedIndexCursor;
-import org.krakenapps.logstorage.index.InvertedIndexItem;
 import org.krakenapps.logstorage.index.InvertedIndexReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,7 +45,10 @@ class IndexCursorImpl implements LogIndexCursor {
 
 	private File indexBaseDir;
 
-	private String term;
+	// map index files of past days
+	private boolean mmap;
+
+	private LogIndexCondition condition;
 
 	// loading index (point to days)
 	private int current;
@@ -54,21 +56,30 @@ class IndexCursorImpl implements LogIndexCursor {
 
 	private Date currentDay;
 	private InvertedIndexReader currentReader;
-	private InvertedIndexCursor currentCursor;
-	private Iterator<InvertedIndexItem> buffer;
+
+	// segment of current day, from latest to oldest
+	private int currentSegment;
+	private PostingIterator currentCursor;
+
+	// unflushed postings, from latest to oldest day
+	private Iterator<IndexBuffer> buffers;
+	private IndexBuffer currentBuffer;
+	private PostingIterator bufferCursor;
+	private Long bufferPrefetch;
 
 	private Long prefetch;
 
-	public IndexCursorImpl(int indexId, int tableId, String tableName, List<Date> days, String term, File indexBaseDir,
-			Iterator<InvertedIndexItem> buffer) throws IOException {
+	public IndexCursorImpl(int indexId, int tableId, String tableName, List<Date> days, LogIndexCondition condition,
+			File indexBaseDir, List<IndexBuffer> buffers, boolean mmap) throws IOException {
 		this.indexId = indexId;
 		this.tableId = tableId;
 		this.tableName = tableName;
 		this.days = days;
 		this.dayCount = days.size();
-		this.term = term;
+		this.condition = condition;
 		this.indexBaseDir = indexBaseDir;
-		this.buffer = buffer;
+		this.buffers = buffers.iterator();
+		this.mmap = mmap;
 
 		if (days.size() > 0) {
 			try {
@@ -104,37 +115,84 @@ class IndexCursorImpl implements LogIndexCursor {
 		File dataFile = getIndexFilePath(tableId, indexId, day, ".seg");
 
 		currentDay = day;
-		currentReader = new InvertedIndexReader(indexFile, dataFile);
-		currentCursor = currentReader.openCursor(term);
+		boolean mapped = mmap && day.before(DateUtil.getDay(new Date()));
+		currentReader = new InvertedIndexReader(indexFile, dataFile, mapped);
+		currentSegment = currentReader.getSegmentCount();
+		currentCursor = null;
+	}
+
+	/**
+	 * @return next matched log id of current day, or null if no more id
+	 */
+	private Long nextId() throws IOException {
+		while (true) {
+			if (currentCursor != null) {
+				long id = currentCursor.next();
+				if (id >= 0)
+					return id;
+			}
+
+			if (currentSegment <= 0)
+				return null;
+
+			currentCursor = PostingIterator.build(condition, currentReader, --currentSegment);
+		}
+	}
+
+	/**
+	 * @return next matched log id of unflushed postings, or null if no more
+	 *         id
+	 */
+	private Long nextBufferId() throws IOException {
+		while (true) {
+			if (bufferCursor != null) {
+				long id = bufferCursor.next();
+				if (id >= 0)
+					return id;
+			}
+
+			if (!buffers.hasNext())
+				return null;
+
+			currentBuffer = buffers.next();
+			bufferCursor = PostingIterator.build(condition, currentBuffer.postings);
+		}
 	}
 
 	@Override
 	public boolean hasNext() {
-		if (buffer != null) {
-			boolean ret = buffer.hasNext();
-			if (ret)
-				return true;
-			else
-				buffer = null;
+		// postings are not flushed yet, evaluate condition on memory
+		if (buffers != null && bufferPrefetch == null) {
+			try {
+				bufferPrefetch = nextBufferId();
+			} catch (IOException e) {
+				logger.error("kraken logstorage: cannot fetch next buffered item from cursor", e);
+			}
+
+			if (bufferPrefetch == null)
+				buffers = null;
 		}
 
+		if (bufferPrefetch != null)
+			return true;
+
 		if (prefetch != null)
 			return true;
 
 		// no index files
-		if (currentCursor == null)
+		if (currentReader == null)
 			return false;
 
-		if (currentCursor.hasNext()) {
-			try {
-				prefetch = currentCursor.next();
+		try {
+			prefetch = nextId();
+			if (prefetch != null)
 				return true;
-			} catch (IOException e) {
-				logger.error("kraken logstorage: cannot fetch next index item from cursor", e);
-			}
+		} catch (IOException e) {
+			logger.error("kraken logstorage: cannot fetch next index item from cursor", e);
 		}
 
 		currentReader.close();
+		currentReader = null;
 
 		try {
 			if (loadNext())
@@ -157,9 +215,10 @@ class IndexCursorImpl implements LogIndexCursor {
 		if (!hasNext())
 			throw new NoSuchElementException("no more indexed log id");
 
-		if (buffer != null && buffer.hasNext()) {
-			InvertedIndexItem item = buffer.next();
-			return new IndexItem(item.tableName, DateUtil.getDay(new Date(item.timestamp)), item.id);
+		if (bufferPrefetch != null) {
+			long id = bufferPrefetch;
+			bufferPrefetch = null;
+			return new IndexItem(tableName, currentBuffer.day, id);
 		}
 
 		Long ret = prefetch;
@@ -178,7 +237,10 @@ class IndexCursorImpl implements LogIndexCursor {
 
 	@Override
 	public void close() {
-		buffer = null;
+		buffers = null;
+		currentBuffer = null;
+		bufferCursor = null;
+		bufferPrefetch = null;
 	}
 
 	private static class IndexItem implements LogIndexItem {
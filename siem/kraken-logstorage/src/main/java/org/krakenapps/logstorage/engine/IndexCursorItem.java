@@ -17,8 +17,6 @@ package org.krakenapps.logstorage.engine;
 
 import java.util.List;
 
-import org.krakenapps.logstorage.index.InvertedIndexItem;
-
 /**
  * @since 0.9
  * @author xeraph
@@ -28,9 +26,9 @@ class IndexCursorItem {
 	public int indexId;
 	public String tableName;
 	public String indexName;
-	public List<InvertedIndexItem> buffer;
+	public List<IndexBuffer> buffer;
 
-	public IndexCursorItem(int tableId, int indexId, String tableName, String indexName, List<InvertedIndexItem> buffer) {
+	public IndexCursorItem(int tableId, int indexId, String tableName, String indexName, List<IndexBuffer> buffer) {
 		this.tableId = tableId;
 		this.indexId = indexId;
 		this.tableName = tableName;
@@ -18,9 +18,12 @@ package org.krakenapps.logstorage.engine;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.ConcurrentMap;
 
 import org.krakenapps.logstorage.LogTableRegistry;
+import org.krakenapps.logstorage.file.LogBlockCache;
 import org.krakenapps.logstorage.file.LogFileReader;
+import org.krakenapps.logstorage.file.LogFileReaderV2;
 
 /**
  * 
@@ -29,9 +32,37 @@ import org.krakenapps.logstorage.file.LogFileReader;
  */
 class LogFileFetcher {
 	private LogTableRegistry tableRegistry;
+	private ConcurrentMap<OnlineWriterKey, OnlineWriter> onlineWriters;
 
-	public LogFileFetcher(LogTableRegistry tableRegistry) {
+	// memory-map closed tablets
+	private volatile boolean mmap;
+
+	// shared decompressed blocks for random lookups, can be null
+	private volatile LogBlockCache blockCache;
+
+	public LogFileFetcher(LogTableRegistry tableRegistry, ConcurrentMap<OnlineWriterKey, OnlineWriter> onlineWriters) {
 		this.tableRegistry = tableRegistry;
+		this.onlineWriters = onlineWriters;
+	}
+
+	public void setMmap(boolean mmap) {
+		this.mmap = mmap;
+	}
+
+	public void setBlockCache(LogBlockCache blockCache) {
+		this.blockCache = blockCache;
+	}
+
+	/**
+	 * tablet is closed if it is past day and no writer is appending to it
+	 * 
+	 * @return true if tablet files should be mapped
+	 */
+	public boolean isMapped(String tableName, Date day) {
+		if (!mmap || !day.before(DateUtil.getDay(new Date())))
+			return false;
+
+		return !onlineWriters.containsKey(new OnlineWriterKey(tableName, day));
 	}
 
 	public LogFileReader fetch(String tableName, Date day) throws IOException {
@@ -45,7 +76,11 @@ class LogFileFetcher {
 		if (!dataPath.exists())
 			throw new IllegalStateException("log table not found: " + tableName + ", " + day);
 
-		return LogFileReader.getLogFileReader(indexPath, dataPath);
+		LogFileReader reader = LogFileReader.getLogFileReader(indexPath, dataPath, isMapped(tableName, day));
+		if (blockCache != null && reader instanceof LogFileReaderV2)
+			((LogFileReaderV2) reader).setBlockCache(blockCache);
+
+		return reader;
 
 	}
 }
@@ -24,9 +24,10 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -57,6 +58,7 @@ import org.krakenapps.logstorage.IndexTokenizerRegistry;
 import org.krakenapps.logstorage.Log;
 import org.krakenapps.logstorage.LogCallback;
 import org.krakenapps.logstorage.LogCursor;
+import org.krakenapps.logstorage.LogIndexCondition;
 import org.krakenapps.logstorage.LogIndexCursor;
 import org.krakenapps.logstorage.LogIndexQuery;
 import org.krakenapps.logstorage.LogIndexSchema;
@@ -67,9 +69,9 @@ import org.krakenapps.logstorage.LogStorage;
 import org.krakenapps.logstorage.LogTableEventListener;
 import org.krakenapps.logstorage.LogTableRegistry;
 import org.krakenapps.logstorage.index.InvertedIndexFileSet;
-import org.krakenapps.logstorage.index.InvertedIndexItem;
 import org.krakenapps.logstorage.index.InvertedIndexUtil;
 import org.krakenapps.logstorage.index.InvertedIndexWriter;
+import org.krakenapps.logstorage.index.PostingBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -129,6 +131,12 @@ public class LogIndexerEngine implements LogIndexer {
 	// index id
 	private CopyOnWriteArraySet<Integer> mergeLocks;
 
+	// memory-map index files of past days
+	private boolean mmap;
+
+	// estimated heap usage of online indexer buffer which triggers flush
+	private long bufferSize;
+
 	public LogIndexerEngine() {
 		indexBaseDir = new File(System.getProperty("kraken.data.dir"), "kraken-logstorage/index");
 		queueDir = new File(System.getProperty("kraken.data.dir"), "kraken-logstorage/index/queue");
@@ -154,6 +162,14 @@ public class LogIndexerEngine implements LogIndexer {
 		onlineIndexers.clear();
 		tableNameIdMap.clear();
 
+		String readMmap = ConfigUtil.get(conf, Constants.LogReadMmap);
+		mmap = readMmap != null && Integer.valueOf(readMmap) != 0;
+
+		String indexBufferSize = ConfigUtil.get(conf, Constants.LogIndexBufferSize);
+		bufferSize = InvertedIndexWriter.DEFAULT_FLUSH_THRESHOLD;
+		if (indexBufferSize != null)
+			bufferSize = Long.parseLong(indexBufferSize);
+
 		// build threads
 		int cpuCount = Runtime.getRuntime().availableProcessors();
 		executor = Executors.newFixedThreadPool(cpuCount, new ThreadFactory() {
@@ -468,6 +484,12 @@ public class LogIndexerEngine implements LogIndexer {
 
 	@Override
 	public LogIndexCursor search(LogIndexQuery q) throws IOException {
+		LogIndexCondition condition = q.getCondition();
+		if (condition == null)
+			condition = LogIndexCondition.term(q.getTerm());
+		condition.validate();
+
+		Set<String> terms = condition.getTerms();
 		List<IndexCursorItem> cursorItems = new ArrayList<IndexCursorItem>();
 
 		for (Entry<String, Set<LogIndexSchema>> pair : tableIndexes.entrySet()) {
@@ -500,19 +522,37 @@ public class LogIndexerEngine implements LogIndexer {
 					continue;
 				}
 
-				List<InvertedIndexItem> buffer = getIndexBuffer(tableName);
+				List<IndexBuffer> buffer = getIndexBuffer(c.getId(), terms);
 				cursorItems.add(new IndexCursorItem(tableId, c.getId(), tableName, c.getIndexName(), buffer));
 			}
 		}
 
-		return new MergedIndexCursor(this, q, cursorItems, indexBaseDir);
+		return new MergedIndexCursor(this, q, condition, cursorItems, indexBaseDir, mmap);
 	}
 
-	private List<InvertedIndexItem> getIndexBuffer(String tableName) {
-		List<InvertedIndexItem> l = new LinkedList<InvertedIndexItem>();
+	/**
+	 * @return copy of unflushed postings of given terms, from latest to
+	 *         oldest day
+	 */
+	private List<IndexBuffer> getIndexBuffer(int indexId, Set<String> terms) {
+		List<IndexBuffer> l = new ArrayList<IndexBuffer>();
 		for (OnlineIndexer indexer : onlineIndexers.values()) {
-			l.addAll(indexer.queue);
+			if (indexer.id != indexId)
+				continue;
+
+			synchronized (indexer) {
+				PostingBuffer copy = indexer.buffer.copy(terms);
+				if (!copy.isEmpty())
+					l.add(new IndexBuffer(indexer.day, copy));
+			}
 		}
+
+		Collections.sort(l, new Comparator<IndexBuffer>() {
+			@Override
+			public int compare(IndexBuffer o1, IndexBuffer o2) {
+				return o2.day.compareTo(o1.day);
+			}
+		});
 		return l;
 	}
 
@@ -552,6 +592,7 @@ public class LogIndexerEngine implements LogIndexer {
 			try {
 				cursor = storage.openCursor(task.getTableName(), status.getDay(), true);
 				writer = new InvertedIndexWriter(status.getFiles());
+				writer.setFlushThreshold(bufferSize);
 
 				// prepare tokenizer
 				LogIndexSchema schema = getIndexSchema(task.getTableName(), task.getIndexName());
@@ -569,8 +610,7 @@ public class LogIndexerEngine implements LogIndexer {
 					status.addLogCount(1);
 					status.addTokenCount(tokens.size());
 
-					long timestamp = log.getDate().getTime();
-					writer.write(new InvertedIndexItem(task.getTableName(), timestamp, log.getId(), tokens.toArray(new String[0])));
+					writer.write(log.getId(), tokens.toArray(new String[0]));
 				}
 			} finally {
 				if (cursor != null)
@@ -869,8 +909,14 @@ public class LogIndexerEngine implements LogIndexer {
 			s.setTableName(indexer.tableName);
 			s.setIndexName(indexer.indexName);
 			s.setDay(indexer.day);
-			s.setQueueCount(indexer.queue.size());
 			s.setLastFlush(indexer.getLastFlush());
+			synchronized (indexer) {
+				s.setQueueCount(indexer.buffer.getLogCount());
+				s.setTermCount(indexer.buffer.getTermCount());
+				s.setPostingCount(indexer.buffer.getPostingCount());
+				s.setHeapUsage(indexer.buffer.getUsage());
+			}
+			s.setHeapLimit(bufferSize);
 			indexers.add(s);
 		}
 
@@ -1041,8 +1087,8 @@ public class LogIndexerEngine implements LogIndexer {
 
 		private boolean merging;
 
-		// waiting flush queue
-		private List<InvertedIndexItem> queue;
+		// postings waiting flush
+		private PostingBuffer buffer;
 
 		private InvertedIndexWriter writer;
 
@@ -1059,7 +1105,7 @@ public class LogIndexerEngine implements LogIndexer {
 			this.id = indexId;
 			this.day = day;
 			this.tokenizer = tokenizer;
-			this.queue = new ArrayList<InvertedIndexItem>(10000);
+			this.buffer = new PostingBuffer();
 			this.indexFile = getIndexFilePath(tableId, indexId, day, ".pos");
 			this.dataFile = getIndexFilePath(tableId, indexId, day, ".seg");
 			this.writer = new InvertedIndexWriter(indexFile, dataFile);
@@ -1099,9 +1145,8 @@ public class LogIndexerEngine implements LogIndexer {
 			if (tokens == null)
 				return;
 
-			long timestamp = log.getDate().getTime();
 			synchronized (this) {
-				queue.add(new InvertedIndexItem(log.getTableName(), timestamp, log.getId(), tokens.toArray(new String[0])));
+				buffer.add(log.getId(), tokens.toArray(new String[0]));
 				if (logger.isDebugEnabled())
 					logger.debug("kraken logstorage: queued tokens for index, {}", tokens);
 
@@ -1111,7 +1156,7 @@ public class LogIndexerEngine implements LogIndexer {
 		}
 
 		public boolean needFlush() {
-			return queue.size() > 10000;
+			return buffer.getUsage() >= bufferSize;
 		}
 
 		public void flush() throws IOException {
@@ -1126,11 +1171,8 @@ public class LogIndexerEngine implements LogIndexer {
 			}
 
 			synchronized (this) {
-				for (InvertedIndexItem item : queue)
-					writer.write(item);
-
-				queue.clear();
-				writer.flush();
+				writer.flush(buffer);
+				buffer.clear();
 				notifyAll();
 			}
 		}
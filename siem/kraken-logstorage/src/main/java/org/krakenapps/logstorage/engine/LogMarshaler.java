@@ -16,10 +16,14 @@
 package org.krakenapps.logstorage.engine;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.krakenapps.codec.EncodingRule;
 import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogFilter;
+import org.krakenapps.logstorage.file.LogBlockFilter;
 import org.krakenapps.logstorage.file.LogRecord;
 
 /**
@@ -31,10 +35,52 @@ class LogMarshaler {
 	}
 
 	public static Log convert(String tableName, LogRecord logdata) {
-		ByteBuffer bb = ByteBuffer.wrap(logdata.getData().array());
-		bb.position(logdata.getData().position());
-		bb.limit(logdata.getData().limit());
-		Map<String, Object> m = EncodingRule.decodeMap(bb);
+		// values are decoded when they are accessed
+		Map<String, Object> m = EncodingRule.decodeLazyMap(detach(logdata.getData()));
 		return new Log(tableName, logdata.getDate(), logdata.getId(), m);
 	}
+
+	/**
+	 * @return the log which has projected fields only, or null if filter
+	 *         rejects the log
+	 */
+	public static Log convert(String tableName, LogRecord logdata, LogBlockFilter filter) {
+		if (!(filter instanceof LogFilter))
+			return convert(tableName, logdata);
+
+		// rejected log is evaluated on the block slice, without copy
+		LogFilter f = (LogFilter) filter;
+		Map<String, Object> m = EncodingRule.decodeLazyMap(logdata.getData().duplicate());
+		if (!f.matches(m))
+			return null;
+
+		Set<String> fields = f.getFieldNames();
+		if (fields != null) {
+			Map<String, Object> projected = new HashMap<String, Object>(fields.size() * 2);
+			for (String field : fields) {
+				Object value = m.get(field);
+				if (value != null || m.containsKey(field))
+					projected.put(field, value);
+			}
+			m = projected;
+		} else {
+			m = EncodingRule.decodeLazyMap(detach(logdata.getData()));
+		}
+
+		return new Log(tableName, logdata.getDate(), logdata.getId(), m);
+	}
+
+	/**
+	 * Record data can be a slice of decompressed block or mapped file. Lazy
+	 * map of returned log keeps its buffer while the log is used by query, so
+	 * sliced record is copied not to pin the whole block.
+	 */
+	private static ByteBuffer detach(ByteBuffer data) {
+		if (data.hasArray() && data.arrayOffset() + data.position() == 0 && data.array().length == data.limit())
+			return data.duplicate();
+
+		byte[] b = new byte[data.remaining()];
+		data.duplicate().get(b);
+		return ByteBuffer.wrap(b);
+	}
 }
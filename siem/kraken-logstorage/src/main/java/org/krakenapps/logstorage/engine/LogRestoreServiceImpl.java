@@ -10,6 +10,7 @@ import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.krakenapps.logstorage.LogRestoreService;
 import org.krakenapps.logstorage.LogTableRegistry;
+import org.krakenapps.logstorage.file.LogZoneMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,6 +68,9 @@ public class LogRestoreServiceImpl implements LogRestoreService {
 				logger.info("kraken logstorage: remove invalid log data file [{}]", removeDatFile.getName());
 				removeDatFile.delete();
 			}
+			File removeZoneMapFile = LogZoneMap.getZoneMapFile(removeDatFile);
+			if (removeZoneMapFile.exists())
+				removeZoneMapFile.delete();
 		}
 	}
 
@@ -22,19 +22,28 @@ import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Invalidate;
@@ -49,16 +58,24 @@ import org.krakenapps.confdb.ConfigService;
 import org.krakenapps.confdb.Predicates;
 import org.krakenapps.logstorage.CachedRandomSeeker;
 import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogCacheStatus;
 import org.krakenapps.logstorage.LogCallback;
 import org.krakenapps.logstorage.LogCursor;
+import org.krakenapps.logstorage.LogFilter;
 import org.krakenapps.logstorage.LogKey;
 import org.krakenapps.logstorage.LogRestoreService;
 import org.krakenapps.logstorage.LogRetentionPolicy;
+import org.krakenapps.logstorage.LogRollupEntry;
+import org.krakenapps.logstorage.LogRollupSpec;
 import org.krakenapps.logstorage.LogSearchCallback;
 import org.krakenapps.logstorage.LogStorage;
 import org.krakenapps.logstorage.LogStorageStatus;
 import org.krakenapps.logstorage.LogTableRegistry;
 import org.krakenapps.logstorage.LogWriterStatus;
+import org.krakenapps.logstorage.engine.TabletReaderCache.CachedReader;
+import org.krakenapps.logstorage.file.InvalidLogFileHeaderException;
+import org.krakenapps.logstorage.file.LogBlockCache;
+import org.krakenapps.logstorage.file.LogBlockFilter;
 import org.krakenapps.logstorage.file.LogFileFixReport;
 import org.krakenapps.logstorage.file.LogFileReader;
 import org.krakenapps.logstorage.file.LogFileReaderV2;
@@ -66,6 +83,7 @@ import org.krakenapps.logstorage.file.LogFileRepairer;
 import org.krakenapps.logstorage.file.LogRecord;
 import org.krakenapps.logstorage.file.LogRecordCallback;
 import org.krakenapps.logstorage.file.LogRecordCursor;
+import org.krakenapps.logstorage.file.LogZoneMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -78,6 +96,17 @@ public class LogStorageEngine implements LogStorage {
 	private static final int DEFAULT_MAX_IDLE_TIME = 600000; // 10min
 	private static final int DEFAULT_LOG_FLUSH_INTERVAL = 60000; // 60sec
 	private static final int DEFAULT_BLOCK_SIZE = 640 * 1024; // 640KB
+	private static final int DEFAULT_COMPRESS_THREADS = 0; // compress in writer thread
+	private static final int DEFAULT_MAX_PENDING_BLOCKS = 4;
+	private static final int DEFAULT_READ_MMAP = 0; // disabled
+	private static final int DEFAULT_READER_CACHE_SIZE = 32;
+	private static final int DEFAULT_BLOCK_CACHE_SIZE = 64 * 1024 * 1024; // 64MB
+	private static final int DEFAULT_SCAN_THREADS = 0; // scan in caller thread
+
+	// data blocks per parallel scan unit
+	private static final int SCAN_SEGMENT_BLOCKS = 16;
+	private static final int SCAN_BATCH_SIZE = 1000;
+	private static final int SCAN_QUEUE_BATCHES = 4;
 
 	private LogStorageStatus status = LogStorageStatus.Closed;
 
@@ -95,12 +124,26 @@ public class LogStorageEngine implements LogStorage {
 
 	private CopyOnWriteArraySet<LogCallback> callbacks;
 
+	// maintains declared rollups from written logs
+	private RollupManager rollups;
+
 	// sweeping and flushing data
 	private WriterSweeper writerSweeper;
 	private Thread writerSweeperThread;
 
 	private LogFileFetcher fetcher;
 
+	// shared by random lookups
+	private TabletReaderCache readerCache;
+	private LogBlockCache blockCache;
+
+	// block compression threads, null if writers compress synchronously
+	private ExecutorService compressor;
+
+	// parallel tablet scan threads, null if search runs in caller thread
+	private ExecutorService scanner;
+	private int scanThreads;
+
 	private File logDir;
 
 	public LogStorageEngine() {
@@ -162,15 +205,47 @@ public class LogStorageEngine implements LogStorage {
 			throw new IllegalStateException("log archive already started");
 
 		status = LogStorageStatus.Starting;
-		fetcher = new LogFileFetcher(tableRegistry);
+		fetcher = new LogFileFetcher(tableRegistry, onlineWriters);
+		fetcher.setMmap(getIntParameter(Constants.LogReadMmap, DEFAULT_READ_MMAP) != 0);
+
+		blockCache = new LogBlockCache(getIntParameter(Constants.LogBlockCacheSize, DEFAULT_BLOCK_CACHE_SIZE));
+		fetcher.setBlockCache(blockCache);
+
+		int readerCacheSize = getIntParameter(Constants.LogReaderCacheSize, DEFAULT_READER_CACHE_SIZE);
+		readerCache = new TabletReaderCache(tableRegistry, fetcher, readerCacheSize);
+
+		int compressThreads = getIntParameter(Constants.LogCompressThreads, DEFAULT_COMPRESS_THREADS);
+		if (compressThreads > 0) {
+			compressor = Executors.newFixedThreadPool(compressThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "LogStorage Block Compressor");
+				}
+			});
+		}
+
+		scanThreads = getIntParameter(Constants.LogScanThreads, DEFAULT_SCAN_THREADS);
+		if (scanThreads > 0) {
+			scanner = Executors.newFixedThreadPool(scanThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "LogStorage Tablet Scanner");
+				}
+			});
+		}
 
 		// checkAllLogFiles();
 		checkLatestLogFiles();
 
+		// rollup recovery reads tablets, and service is not published yet
+		status = LogStorageStatus.Open;
+
+		rollups = new RollupManager(tableRegistry, this);
+		rollups.reload();
+		callbacks.add(rollups);
+
 		writerSweeperThread = new Thread(writerSweeper, "LogStorage LogWriter Sweeper");
 		writerSweeperThread.start();
-
-		status = LogStorageStatus.Open;
 	}
 
 	@Invalidate
@@ -204,6 +279,23 @@ public class LogStorageEngine implements LogStorage {
 
 		onlineWriters.clear();
 
+		callbacks.remove(rollups);
+		rollups.flush();
+
+		// all pending blocks are written at writer close
+		if (compressor != null) {
+			compressor.shutdown();
+			compressor = null;
+		}
+
+		if (scanner != null) {
+			scanner.shutdownNow();
+			scanner = null;
+		}
+
+		readerCache.clear();
+		blockCache.clear();
+
 		status = LogStorageStatus.Closed;
 	}
 
@@ -310,6 +402,9 @@ public class LogStorageEngine implements LogStorage {
 		int tableId = tableRegistry.getTableId(tableName);
 		Collection<Date> dates = getLogDates(tableName);
 
+		// drop rollup files and state
+		rollups.drop(tableName);
+
 		// drop retention policy
 		ConfigDatabase db = conf.ensureDatabase("kraken-logstorage");
 		Config c = db.findOne(LogRetentionPolicy.class, Predicates.field("table_name", tableName));
@@ -335,9 +430,16 @@ public class LogStorageEngine implements LogStorage {
 		if (!tableDir.exists())
 			return;
 
-		// delete all .idx and .dat files
+		// release cached file handles and blocks
+		readerCache.invalidate(tableId);
+
+		// delete all .idx, .dat and zone map files
 		for (File f : tableDir.listFiles()) {
-			if (f.isFile() && (f.getName().endsWith(".idx") || f.getName().endsWith(".dat"))) {
+			String name = f.getName();
+			if (f.isFile() && (name.endsWith(".idx") || name.endsWith(".dat") || name.endsWith(LogZoneMap.FILE_SUFFIX))) {
+				if (f.getName().endsWith(".dat"))
+					blockCache.invalidate(f);
+
 				if (!f.delete())
 					logger.error("kraken logstorage: cannot delete log data {} of table {}", f.getAbsolutePath(), tableName);
 			}
@@ -551,12 +653,15 @@ public class LogStorageEngine implements LogStorage {
 		logger.debug("kraken logstorage: try to purge log data of table [{}], range [{}~{}]",
 				new Object[] { tableName, from, to });
 
+		// release cached file handles
+		readerCache.invalidate(tableRegistry.getTableId(tableName));
+
 		for (File f : dir.listFiles()) {
 			if (!f.isFile())
 				continue;
 
 			String fileName = f.getName();
-			if (!fileName.endsWith(".idx") && !fileName.endsWith(".dat"))
+			if (!fileName.endsWith(".idx") && !fileName.endsWith(".dat") && !fileName.endsWith(LogZoneMap.FILE_SUFFIX))
 				continue;
 
 			String dayStr = fileName.substring(0, fileName.indexOf('.'));
@@ -576,8 +681,13 @@ public class LogStorageEngine implements LogStorage {
 
 			// TODO: lock and ensure delete
 			logger.debug("kraken logstorage: try to purge log data of table [{}], day [{}]", tableName, dayStr);
+			if (fileName.endsWith(".dat"))
+				blockCache.invalidate(f);
+
 			ensureDelete(f);
 		}
+
+		rollups.purge(tableName, fromDay, toDay);
 	}
 
 	private boolean ensureDelete(File f) {
@@ -602,7 +712,7 @@ public class LogStorageEngine implements LogStorage {
 	public CachedRandomSeeker openCachedRandomSeeker() {
 		verify();
 
-		return new CachedRandomSeekerImpl(tableRegistry, fetcher, onlineWriters);
+		return new CachedRandomSeekerImpl(readerCache, onlineWriters);
 	}
 
 	@Override
@@ -620,14 +730,16 @@ public class LogStorageEngine implements LogStorage {
 		if (writer != null) {
 			for (LogRecord r : writer.getBuffer())
 				if (r.getId() == id)
-					return new Log(tableName, r.getDate(), id, EncodingRule.decodeMap(r.getData().duplicate()));
+					return new Log(tableName, r.getDate(), id, EncodingRule.decodeLazyMap(r.getData().duplicate()));
 		}
 
 		// load from disk
-		LogFileReader reader = null;
+		CachedReader cached = null;
+		boolean broken = true;
 		try {
-			reader = fetcher.fetch(tableName, day);
-			LogRecord logdata = reader.find(id);
+			cached = readerCache.borrow(tableName, day);
+			LogRecord logdata = cached.getReader().find(id);
+			broken = false;
 			if (logdata == null) {
 				if (logger.isTraceEnabled()) {
 					String dayText = DateUtil.getDayText(day);
@@ -640,15 +752,65 @@ public class LogStorageEngine implements LogStorage {
 		} catch (IOException e) {
 			throw new IllegalStateException("cannot read log: " + tableName + ", " + day + ", " + id);
 		} finally {
-			if (reader != null)
-				try {
-					reader.close();
-				} catch (IOException e) {
-					logger.error("kraken logstorage: cannot close logfile reader", e);
-				}
+			if (cached != null) {
+				if (broken)
+					readerCache.discard(cached);
+				else
+					readerCache.release(cached);
+			}
+		}
+	}
+
+	@Override
+	public long getLogCount(String tableName, Date day) {
+		verify();
+
+		long count = 0;
+		OnlineWriter writer = onlineWriters.get(new OnlineWriterKey(tableName, day));
+		if (writer != null)
+			count += writer.getBuffer().size();
+
+		// not flushed yet
+		int tableId = tableRegistry.getTableId(tableName);
+		if (!DatapathUtil.getIndexFile(tableId, day).exists())
+			return count;
+
+		CachedReader cached = null;
+		boolean broken = true;
+		try {
+			cached = readerCache.borrow(tableName, day);
+			LogFileReader reader = cached.getReader();
+			broken = false;
+			if (!(reader instanceof LogFileReaderV2))
+				return -1;
+
+			return count + ((LogFileReaderV2) reader).count();
+		} catch (IOException e) {
+			logger.debug("kraken logstorage: cannot count logs of table [" + tableName + "], day ["
+					+ DateUtil.getDayText(day) + "]", e);
+			return -1;
+		} finally {
+			if (cached != null) {
+				if (broken)
+					readerCache.discard(cached);
+				else
+					readerCache.release(cached);
+			}
 		}
 	}
 
+	@Override
+	public LogRollupSpec getRollupSpec(String tableName) {
+		verify();
+		return rollups.getSpec(tableName);
+	}
+
+	@Override
+	public List<LogRollupEntry> getRollupEntries(String tableName, Date day) throws IOException {
+		verify();
+		return rollups.getEntries(tableName, day);
+	}
+
 	@Override
 	public LogCursor openCursor(String tableName, Date day, boolean ascending) throws IOException {
 		verify();
@@ -661,7 +823,8 @@ public class LogStorageEngine implements LogStorage {
 		int tableId = tableRegistry.getTableId(tableName);
 		File indexPath = DatapathUtil.getIndexFile(tableId, day);
 		File dataPath = DatapathUtil.getDataFile(tableId, day);
-		LogFileReaderV2 reader = (LogFileReaderV2) LogFileReader.getLogFileReader(indexPath, dataPath);
+		boolean mapped = fetcher.isMapped(tableName, day);
+		LogFileReaderV2 reader = (LogFileReaderV2) LogFileReader.getLogFileReader(indexPath, dataPath, mapped);
 
 		return new LogCursorImpl(tableName, day, buffer, reader, ascending);
 	}
@@ -705,6 +868,12 @@ public class LogStorageEngine implements LogStorage {
 	@Override
 	public int search(String tableName, Date from, Date to, int offset, int limit, LogSearchCallback callback)
 			throws InterruptedException {
+		return search(tableName, from, to, offset, limit, null, callback);
+	}
+
+	@Override
+	public int search(String tableName, Date from, Date to, int offset, int limit, LogBlockFilter filter,
+			LogSearchCallback callback) throws InterruptedException {
 		verify();
 
 		Collection<Date> days = getLogDates(tableName);
@@ -713,6 +882,10 @@ public class LogStorageEngine implements LogStorage {
 		List<Date> filtered = DateUtil.filt(days, from, to);
 		logger.trace("kraken logstorage: searching {} tablets of table [{}]", filtered.size(), tableName);
 
+		ExecutorService scanner = this.scanner;
+		if (scanner != null)
+			return parallelSearch(scanner, tableName, filtered, from, to, offset, limit, filter, callback);
+
 		for (Date day : filtered) {
 			if (logger.isTraceEnabled())
 				logger.trace("kraken logstorage: searching table {}, date={}", tableName, DateUtil.getDayText(day));
@@ -721,7 +894,18 @@ public class LogStorageEngine implements LogStorage {
 			if (limit != 0 && needed <= 0)
 				break;
 
-			found += searchTablet(tableName, day, from, to, offset, needed, callback);
+			TraverseCallback c = new TraverseCallback(tableName, from, to, filter, callback);
+
+			// logs rejected by filter are not counted for offset, so matched
+			// logs are skipped by callback instead of reader
+			if (filter instanceof LogFilter) {
+				c.offset = offset;
+				found += searchTablet(tableName, day, from, to, 0, needed, c);
+				offset = c.offset;
+				continue;
+			}
+
+			found += searchTablet(tableName, day, from, to, offset, needed, c);
 
 			if (offset > 0) {
 				if (found > offset) {
@@ -737,14 +921,14 @@ public class LogStorageEngine implements LogStorage {
 		return found;
 	}
 
-	private int searchTablet(String tableName, Date day, Date from, Date to, int offset, int limit,
-			final LogSearchCallback callback) throws InterruptedException {
+	private int searchTablet(String tableName, Date day, Date from, Date to, int offset, int limit, TraverseCallback c)
+			throws InterruptedException {
 		int tableId = tableRegistry.getTableId(tableName);
 
 		File indexPath = DatapathUtil.getIndexFile(tableId, day);
 		File dataPath = DatapathUtil.getDataFile(tableId, day);
 		LogFileReader reader = null;
-		TraverseCallback c = new TraverseCallback(tableName, from, to, callback);
+		LogBlockFilter filter = c.filter;
 
 		try {
 			// do NOT use getOnlineWriter() here (it loads empty writer on cache
@@ -773,8 +957,11 @@ public class LogStorageEngine implements LogStorage {
 				}
 			}
 
-			reader = LogFileReader.getLogFileReader(indexPath, dataPath);
-			reader.traverse(from, to, offset, limit, c);
+			reader = LogFileReader.getLogFileReader(indexPath, dataPath, fetcher.isMapped(tableName, day));
+			if (filter != null && reader instanceof LogFileReaderV2)
+				((LogFileReaderV2) reader).traverse(from, to, offset, limit, filter, c);
+			else
+				reader.traverse(from, to, offset, limit, c);
 		} catch (InterruptedException e) {
 			throw e;
 		} catch (Exception e) {
@@ -791,18 +978,296 @@ public class LogStorageEngine implements LogStorage {
 		return c.matched;
 	}
 
-	private class TraverseCallback implements LogRecordCallback {
+	private int parallelSearch(ExecutorService scanner, String tableName, List<Date> days, Date from, Date to, int offset,
+			int limit, LogBlockFilter filter, LogSearchCallback callback) throws InterruptedException {
+		ParallelScan scan = new ParallelScan(scanner, tableName, days, from, to, filter);
+		try {
+			return scan.run(offset, limit, callback);
+		} finally {
+			scan.cancel();
+		}
+	}
+
+	/**
+	 * Splits tablets into block ranges and decodes them on scanner threads.
+	 * Logs are delivered to search callback in caller thread, in the same order
+	 * as sequential search.
+	 */
+	private class ParallelScan {
+		private ExecutorService scanner;
+		private String tableName;
+		private LinkedList<Date> days;
+		private Date from;
+		private Date to;
+
+		// skip blocks by zone map if not null
+		private LogBlockFilter filter;
+
+		// planned but not submitted yet
+		private LinkedList<ScanSegment> planned = new LinkedList<ScanSegment>();
+
+		// submitted segments in scan order
+		private LinkedList<ScanSegment> running = new LinkedList<ScanSegment>();
+
+		private volatile boolean canceled;
+
+		public ParallelScan(ExecutorService scanner, String tableName, List<Date> days, Date from, Date to,
+				LogBlockFilter filter) {
+			this.scanner = scanner;
+			this.tableName = tableName;
+			this.days = new LinkedList<Date>(days);
+			this.from = from;
+			this.to = to;
+			this.filter = filter;
+		}
+
+		public int run(int offset, int limit, LogSearchCallback callback) throws InterruptedException {
+			int skipped = 0;
+			int delivered = 0;
+
+			while (true) {
+				// bound in-flight segments (and opened readers)
+				while (running.size() < scanThreads * 2 && plan()) {
+					scanner.execute(planned.getFirst());
+					running.add(planned.removeFirst());
+				}
+
+				if (running.isEmpty())
+					return delivered;
+
+				List<Log> batch = running.getFirst().take(callback);
+				if (batch == null) {
+					running.removeFirst();
+					continue;
+				}
+
+				for (Log log : batch) {
+					if (callback.isInterrupted())
+						throw new InterruptedException("interrupted log traverse");
+
+					if (skipped < offset) {
+						skipped++;
+						continue;
+					}
+
+					try {
+						callback.onLog(log);
+					} catch (Exception e) {
+						if (callback.isInterrupted())
+							throw new InterruptedException("interrupted log traverse");
+						else
+							throw new RuntimeException(e);
+					}
+
+					if (++delivered == limit)
+						return delivered;
+				}
+			}
+		}
+
+		/**
+		 * stop running segments, and close readers of segments not submitted
+		 */
+		public void cancel() {
+			canceled = true;
+
+			for (ScanSegment segment : planned)
+				if (segment.reader != null)
+					closeReader(segment.reader);
+
+			planned.clear();
+		}
+
+		private boolean plan() {
+			while (planned.isEmpty() && !days.isEmpty())
+				planTablet(days.removeFirst());
+
+			return !planned.isEmpty();
+		}
+
+		private void planTablet(Date day) {
+			// do NOT use getOnlineWriter() here (it loads empty writer on cache
+			// automatically if writer not found)
+			OnlineWriter onlineWriter = onlineWriters.get(new OnlineWriterKey(tableName, day));
+			if (onlineWriter != null) {
+				List<LogRecord> buffer = onlineWriter.getBuffer();
+				if (!buffer.isEmpty())
+					planned.add(new ScanSegment(day, buffer));
+			}
+
+			LogFileReader reader = null;
+			try {
+				reader = openReader(day);
+			} catch (Exception e) {
+				logger.error("kraken logstorage: search tablet failed", e);
+				return;
+			}
+
+			if (!(reader instanceof LogFileReaderV2)) {
+				planned.add(new ScanSegment(day, reader, 0, -1));
+				return;
+			}
+
+			int blockCount = ((LogFileReaderV2) reader).getBlockCount();
+			if (blockCount == 0) {
+				closeReader(reader);
+				return;
+			}
+
+			// newest segment reuses planning reader, others open own reader
+			for (int end = blockCount; end > 0; end -= SCAN_SEGMENT_BLOCKS) {
+				int begin = Math.max(0, end - SCAN_SEGMENT_BLOCKS);
+				planned.add(new ScanSegment(day, end == blockCount ? reader : null, begin, end));
+			}
+		}
+
+		private LogFileReader openReader(Date day) throws IOException, InvalidLogFileHeaderException {
+			int tableId = tableRegistry.getTableId(tableName);
+			File indexPath = DatapathUtil.getIndexFile(tableId, day);
+			File dataPath = DatapathUtil.getDataFile(tableId, day);
+			return LogFileReader.getLogFileReader(indexPath, dataPath, fetcher.isMapped(tableName, day));
+		}
+
+		private void closeReader(LogFileReader reader) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				logger.error("kraken logstorage: search tablet close failed", e);
+			}
+		}
+
+		private class ScanSegment implements Runnable, LogRecordCallback {
+			private Date day;
+
+			// scan writer buffer if not null
+			private List<LogRecord> buffer;
+
+			private LogFileReader reader;
+			private int beginBlock;
+
+			// -1 for whole tablet
+			private int endBlock;
+
+			// empty batch marks end of segment
+			private ArrayBlockingQueue<List<Log>> queue = new ArrayBlockingQueue<List<Log>>(SCAN_QUEUE_BATCHES);
+			private List<Log> batch = new ArrayList<Log>(SCAN_BATCH_SIZE);
+
+			public ScanSegment(Date day, List<LogRecord> buffer) {
+				this.day = day;
+				this.buffer = buffer;
+			}
+
+			public ScanSegment(Date day, LogFileReader reader, int beginBlock, int endBlock) {
+				this.day = day;
+				this.reader = reader;
+				this.beginBlock = beginBlock;
+				this.endBlock = endBlock;
+			}
+
+			@Override
+			public void run() {
+				try {
+					if (canceled)
+						return;
+
+					if (buffer != null) {
+						ListIterator<LogRecord> li = buffer.listIterator(buffer.size());
+						while (li.hasPrevious()) {
+							LogRecord logData = li.previous();
+							Date d = logData.getDate();
+							if ((from == null || d.after(from)) && (to == null || d.before(to)))
+								onLog(logData);
+						}
+					} else {
+						if (reader == null)
+							reader = openReader(day);
+
+						if (endBlock < 0)
+							reader.traverse(from, to, 0, 0, this);
+						else
+							((LogFileReaderV2) reader).traverseBlocks(beginBlock, endBlock, from, to, filter, this);
+					}
+
+					if (!batch.isEmpty())
+						put(batch);
+				} catch (InterruptedException e) {
+					// search is completed or canceled
+				} catch (Exception e) {
+					logger.error("kraken logstorage: search tablet failed", e);
+				} finally {
+					if (reader != null)
+						closeReader(reader);
+
+					try {
+						put(new ArrayList<Log>(0));
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+
+			@Override
+			public boolean onLog(LogRecord logData) throws InterruptedException {
+				Date d = logData.getDate();
+				if (from != null && d.before(from))
+					return false;
+				if (to != null && d.after(to))
+					return false;
+
+				Log log = LogMarshaler.convert(tableName, logData, filter);
+				if (log == null)
+					return false;
+
+				batch.add(log);
+				if (batch.size() >= SCAN_BATCH_SIZE) {
+					put(batch);
+					batch = new ArrayList<Log>(SCAN_BATCH_SIZE);
+				}
+
+				return true;
+			}
+
+			private void put(List<Log> logs) throws InterruptedException {
+				while (!canceled) {
+					if (queue.offer(logs, 100, TimeUnit.MILLISECONDS))
+						return;
+				}
+
+				throw new InterruptedException("canceled tablet scan");
+			}
+
+			/**
+			 * @return next batch, or null if segment is completed
+			 */
+			public List<Log> take(LogSearchCallback callback) throws InterruptedException {
+				while (true) {
+					List<Log> logs = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (logs != null)
+						return logs.isEmpty() ? null : logs;
+
+					if (callback.isInterrupted())
+						throw new InterruptedException("interrupted log traverse");
+				}
+			}
+		}
+	}
+
+	static class TraverseCallback implements LogRecordCallback {
 		private Logger logger = LoggerFactory.getLogger(TraverseCallback.class);
 		private String tableName;
 		private Date from;
 		private Date to;
+		private LogBlockFilter filter;
 		private LogSearchCallback callback;
-		private int matched = 0;
+		int matched = 0;
 
-		public TraverseCallback(String tableName, Date from, Date to, LogSearchCallback callback) {
+		// matched logs to skip before passing to search callback
+		int offset;
+
+		public TraverseCallback(String tableName, Date from, Date to, LogBlockFilter filter, LogSearchCallback callback) {
 			this.tableName = tableName;
 			this.from = from;
 			this.to = to;
+			this.filter = filter;
 			this.callback = callback;
 		}
 
@@ -818,9 +1283,16 @@ public class LogStorageEngine implements LogStorage {
 				throw new InterruptedException("interrupted log traverse");
 
 			try {
-				matched++;
+				Log log = LogMarshaler.convert(tableName, logData, filter);
+				if (log == null)
+					return false;
+
+				if (offset > 0) {
+					offset--;
+					return false;
+				}
 
-				Log log = LogMarshaler.convert(tableName, logData);
+				matched++;
 				logger.debug("kraken logdb: traverse log [{}]", log);
 				callback.onLog(log);
 
@@ -847,8 +1319,11 @@ public class LogStorageEngine implements LogStorage {
 
 		try {
 			int blockSize = getIntParameter(Constants.LogBlockSize, DEFAULT_BLOCK_SIZE);
+			int maxPendingBlocks = getIntParameter(Constants.LogMaxPendingBlocks, DEFAULT_MAX_PENDING_BLOCKS);
 			OnlineWriter oldWriter = onlineWriters.get(key);
 			String defaultLogVersion = tableRegistry.getTableMetadata(tableName, "logversion");
+			String compression = tableRegistry.getTableMetadata(tableName, "compression");
+			Set<String> zoneMapFields = getZoneMapFields(tableName);
 
 			if (oldWriter != null) {
 				synchronized (oldWriter) {
@@ -862,7 +1337,8 @@ public class LogStorageEngine implements LogStorage {
 						while (onlineWriters.get(key) == oldWriter) {
 							Thread.yield();
 						}
-						OnlineWriter newWriter = new OnlineWriter(tableId, day, blockSize, defaultLogVersion);
+						OnlineWriter newWriter = new OnlineWriter(tableId, day, blockSize, defaultLogVersion, compression,
+								compressor, maxPendingBlocks, zoneMapFields);
 						OnlineWriter consensus = onlineWriters.putIfAbsent(key, newWriter);
 						if (consensus == null)
 							online = newWriter;
@@ -875,7 +1351,8 @@ public class LogStorageEngine implements LogStorage {
 						while (onlineWriters.get(key) == oldWriter) {
 							Thread.yield();
 						}
-						OnlineWriter newWriter = new OnlineWriter(tableId, day, blockSize, defaultLogVersion);
+						OnlineWriter newWriter = new OnlineWriter(tableId, day, blockSize, defaultLogVersion, compression,
+								compressor, maxPendingBlocks, zoneMapFields);
 						OnlineWriter consensus = onlineWriters.putIfAbsent(key, newWriter);
 						if (consensus == null)
 							online = newWriter;
@@ -889,7 +1366,8 @@ public class LogStorageEngine implements LogStorage {
 					}
 				}
 			} else {
-				OnlineWriter newWriter = new OnlineWriter(tableId, day, blockSize, defaultLogVersion);
+				OnlineWriter newWriter = new OnlineWriter(tableId, day, blockSize, defaultLogVersion, compression,
+						compressor, maxPendingBlocks, zoneMapFields);
 				OnlineWriter consensus = onlineWriters.putIfAbsent(key, newWriter);
 				if (consensus == null)
 					online = newWriter;
@@ -906,6 +1384,25 @@ public class LogStorageEngine implements LogStorage {
 		return online;
 	}
 
+	/**
+	 * @return comma separated field names of "zonemap_fields" table
+	 *         metadata, or null if not set
+	 */
+	private Set<String> getZoneMapFields(String tableName) {
+		String s = tableRegistry.getTableMetadata(tableName, "zonemap_fields");
+		if (s == null)
+			return null;
+
+		Set<String> fields = new TreeSet<String>();
+		for (String token : s.split(",")) {
+			String field = token.trim();
+			if (!field.isEmpty())
+				fields.add(field);
+		}
+
+		return fields.isEmpty() ? null : fields;
+	}
+
 	@Override
 	public void reload() {
 		int flushInterval = getIntParameter(Constants.LogFlushInterval, DEFAULT_LOG_FLUSH_INTERVAL);
@@ -935,6 +1432,27 @@ public class LogStorageEngine implements LogStorage {
 			throw new IllegalStateException("archive not opened");
 	}
 
+	@Override
+	public List<LogCacheStatus> getCacheStatuses() {
+		LogCacheStatus readers = new LogCacheStatus();
+		readers.setName("reader");
+		readers.setUsage(readerCache.getUsage());
+		readers.setCapacity(readerCache.getCapacity());
+		readers.setHits(readerCache.getHits());
+		readers.setMisses(readerCache.getMisses());
+		readers.setEvictions(readerCache.getEvictions());
+
+		LogCacheStatus blocks = new LogCacheStatus();
+		blocks.setName("block");
+		blocks.setUsage(blockCache.getUsage());
+		blocks.setCapacity(blockCache.getCapacity());
+		blocks.setHits(blockCache.getHits());
+		blocks.setMisses(blockCache.getMisses());
+		blocks.setEvictions(blockCache.getEvictions());
+
+		return Arrays.asList(readers, blocks);
+	}
+
 	@Override
 	public List<LogWriterStatus> getWriterStatuses() {
 		List<LogWriterStatus> writers = new ArrayList<LogWriterStatus>(onlineWriters.size());
@@ -959,6 +1477,7 @@ public class LogStorageEngine implements LogStorage {
 		private volatile boolean doStop = false;
 		private volatile boolean isStopped = true;
 		private volatile boolean forceFlush = false;
+		private long lastRollupFlush;
 
 		public WriterSweeper(int checkInterval, int maxIdleTime, int flushInterval) {
 			this.checkInterval = checkInterval;
@@ -1041,6 +1560,13 @@ public class LogStorageEngine implements LogStorage {
 					onlineWriters.remove(key);
 				}
 			}
+
+			// apply rollup declarations, and flush rollup deltas with logs
+			rollups.reload();
+			if (forceFlush || now - lastRollupFlush > flushInterval) {
+				rollups.flush();
+				lastRollupFlush = now;
+			}
 		}
 	}
 
@@ -38,6 +38,7 @@ import org.krakenapps.logstorage.LogRetentionPolicy;
 import org.krakenapps.logstorage.LogStorage;
 import org.krakenapps.logstorage.LogStorageMonitor;
 import org.krakenapps.logstorage.LogTableRegistry;
+import org.krakenapps.logstorage.file.LogZoneMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -265,6 +266,7 @@ public class LogStorageMonitorEngine implements LogStorageMonitor {
 		private Date date;
 		private File index;
 		private File data;
+		private File zoneMap;
 
 		private LogFile(String tableName, Date date) {
 			SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
@@ -274,11 +276,13 @@ public class LogStorageMonitorEngine implements LogStorageMonitor {
 			this.date = date;
 			this.index = new File(tableDir, sdf.format(date) + ".idx");
 			this.data = new File(tableDir, sdf.format(date) + ".dat");
+			this.zoneMap = LogZoneMap.getZoneMapFile(data);
 		}
 
 		public void remove() {
 			index.delete();
 			data.delete();
+			zoneMap.delete();
 		}
 	}
 
@@ -21,6 +21,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+import org.krakenapps.logstorage.LogIndexCondition;
 import org.krakenapps.logstorage.LogIndexCursor;
 import org.krakenapps.logstorage.LogIndexItem;
 import org.krakenapps.logstorage.LogIndexQuery;
@@ -36,8 +37,10 @@ class MergedIndexCursor implements LogIndexCursor {
 	private final Logger logger = LoggerFactory.getLogger(MergedIndexCursor.class);
 	private LogIndexer indexer;
 	private LogIndexQuery query;
+	private LogIndexCondition condition;
 	private List<IndexCursorItem> items;
 	private File indexBaseDir;
+	private boolean mmap;
 
 	/**
 	 * from 0 to (items.size - 1)
@@ -45,12 +48,14 @@ class MergedIndexCursor implements LogIndexCursor {
 	private int currentIndex;
 	private IndexCursorImpl currentCursor;
 
-	public MergedIndexCursor(LogIndexer indexer, LogIndexQuery query, List<IndexCursorItem> items, File indexBaseDir)
-			throws IOException {
+	public MergedIndexCursor(LogIndexer indexer, LogIndexQuery query, LogIndexCondition condition, List<IndexCursorItem> items,
+			File indexBaseDir, boolean mmap) throws IOException {
 		this.indexer = indexer;
 		this.query = query;
+		this.condition = condition;
 		this.items = items;
 		this.indexBaseDir = indexBaseDir;
+		this.mmap = mmap;
 
 		if (!items.isEmpty())
 			load(0);
@@ -80,8 +85,8 @@ class MergedIndexCursor implements LogIndexCursor {
 		List<Date> filtered = DateUtil.filt(totalDays, query.getMinDay(), query.getMaxDay());
 		DateUtil.sortByDesc(filtered);
 
-		currentCursor = new IndexCursorImpl(item.indexId, item.tableId, item.tableName, filtered, query.getTerm(), indexBaseDir,
-				item.buffer.iterator());
+		currentCursor = new IndexCursorImpl(item.indexId, item.tableId, item.tableName, filtered, condition, indexBaseDir,
+				item.buffer, mmap);
 	}
 
 	@Override
@@ -22,9 +22,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.krakenapps.logstorage.file.LogFileWriter;
+import org.krakenapps.logstorage.file.LogFileWriterV2;
 import org.krakenapps.logstorage.file.LogRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +66,20 @@ public class OnlineWriter {
 	}
 
 	public OnlineWriter(int tableId, Date day, int blockSize, String defaultLogVersion) throws IOException {
+		this(tableId, day, blockSize, defaultLogVersion, null, null, LogFileWriterV2.DEFAULT_MAX_PENDING_BLOCKS, null);
+	}
+
+	/**
+	 * @param compression
+	 *            block codec name of new data file, deflater if null
+	 * @param compressor
+	 *            block compression threads. flush will hand over full block
+	 *            to compressor and return immediately if not null
+	 * @param zoneMapFields
+	 *            fields of block zone map, zone map is not written if null
+	 */
+	public OnlineWriter(int tableId, Date day, int blockSize, String defaultLogVersion, String compression,
+			Executor compressor, int maxPendingBlocks, Set<String> zoneMapFields) throws IOException {
 		this.tableId = tableId;
 		this.day = day;
 		File indexPath = DatapathUtil.getIndexFile(tableId, day);
@@ -71,7 +88,19 @@ public class OnlineWriter {
 		indexPath.getParentFile().mkdirs();
 		dataPath.getParentFile().mkdirs();
 
-		writer = LogFileWriter.getLogFileWriter(indexPath, dataPath, defaultLogVersion);
+		writer = LogFileWriter.getLogFileWriter(indexPath, dataPath, defaultLogVersion, compression, compressor,
+				maxPendingBlocks);
+
+		// v1 file does not support zone map
+		if (zoneMapFields != null && writer instanceof LogFileWriterV2) {
+			try {
+				((LogFileWriterV2) writer).setZoneMapFields(zoneMapFields);
+			} catch (IOException e) {
+				writer.close();
+				throw e;
+			}
+		}
+
 		nextId = new AtomicLong(writer.getLastKey());
 	}
 
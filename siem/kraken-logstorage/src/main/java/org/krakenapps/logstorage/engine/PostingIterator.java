@@ -0,0 +1,324 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.krakenapps.logstorage.LogIndexCondition;
+import org.krakenapps.logstorage.index.InvertedIndexReader;
+import org.krakenapps.logstorage.index.PostingBuffer;
+
+/**
+ * Iterates distinct log ids of one index segment (or unflushed posting
+ * buffer) in descending order, which satisfy the index condition. All tokens
+ * of a log are written to the same segment, so boolean operators can be
+ * evaluated per segment.
+ */
+abstract class PostingIterator {
+	// not started yet
+	protected static final long BEFORE_FIRST = Long.MAX_VALUE;
+
+	// no more postings
+	protected static final long EXHAUSTED = -1;
+
+	protected long current = BEFORE_FIRST;
+
+	public long current() {
+		return current;
+	}
+
+	/**
+	 * @return next id, or -1 if no more id
+	 */
+	public abstract long next() throws IOException;
+
+	/**
+	 * @return current id if it is less than or equal to target, otherwise
+	 *         the first following id less than or equal to target. -1 if no
+	 *         more id
+	 */
+	public abstract long advance(long target) throws IOException;
+
+	/**
+	 * @return estimated posting count
+	 */
+	public abstract long cost();
+
+	public static PostingIterator build(LogIndexCondition cond, final InvertedIndexReader reader, final int segmentIndex)
+			throws IOException {
+		return build(cond, new TermSource() {
+			@Override
+			public PostingIterator open(String term) throws IOException {
+				return new TermIterator(reader.openCursor(term, segmentIndex));
+			}
+		});
+	}
+
+	/**
+	 * @param buffer
+	 *            postings of unflushed logs
+	 */
+	public static PostingIterator build(LogIndexCondition cond, final PostingBuffer buffer) throws IOException {
+		return build(cond, new TermSource() {
+			@Override
+			public PostingIterator open(String term) {
+				long[] ids = buffer.getPostings(term);
+				return new ArrayIterator(ids != null ? ids : new long[0]);
+			}
+		});
+	}
+
+	private static PostingIterator build(LogIndexCondition cond, TermSource source) throws IOException {
+		if (cond instanceof LogIndexCondition.Term)
+			return source.open(((LogIndexCondition.Term) cond).getTerm());
+
+		if (cond instanceof LogIndexCondition.Or) {
+			List<PostingIterator> operands = new ArrayList<PostingIterator>();
+			for (LogIndexCondition c : ((LogIndexCondition.Or) cond).getOperands())
+				operands.add(build(c, source));
+			return new OrIterator(operands);
+		}
+
+		if (cond instanceof LogIndexCondition.And) {
+			List<PostingIterator> positives = new ArrayList<PostingIterator>();
+			List<PostingIterator> negatives = new ArrayList<PostingIterator>();
+			for (LogIndexCondition c : ((LogIndexCondition.And) cond).getOperands()) {
+				if (c instanceof LogIndexCondition.Not)
+					negatives.add(build(((LogIndexCondition.Not) c).getOperand(), source));
+				else
+					positives.add(build(c, source));
+			}
+			return new AndIterator(positives, negatives);
+		}
+
+		throw new IllegalArgumentException("unguarded index condition: " + cond);
+	}
+
+	private interface TermSource {
+		PostingIterator open(String term) throws IOException;
+	}
+
+	/**
+	 * iterates distinct ids sorted in descending order
+	 */
+	private static class ArrayIterator extends PostingIterator {
+		private long[] ids;
+		private int pos;
+
+		public ArrayIterator(long[] ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public long next() {
+			return current = pos < ids.length ? ids[pos++] : EXHAUSTED;
+		}
+
+		@Override
+		public long advance(long target) {
+			if (current <= target)
+				return current;
+
+			while (pos < ids.length && ids[pos] > target)
+				pos++;
+			return next();
+		}
+
+		@Override
+		public long cost() {
+			return ids.length;
+		}
+	}
+
+	private static class TermIterator extends PostingIterator {
+		private InvertedIndexReader.Cursor cursor;
+
+		public TermIterator(InvertedIndexReader.Cursor cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public long next() throws IOException {
+			// same token can be repeated in a log
+			while (cursor.hasNext()) {
+				long id = cursor.next();
+				if (id != current)
+					return current = id;
+			}
+
+			return current = EXHAUSTED;
+		}
+
+		@Override
+		public long advance(long target) throws IOException {
+			if (current <= target)
+				return current;
+
+			cursor.skipTo(target);
+			return next();
+		}
+
+		@Override
+		public long cost() {
+			return cursor.getPostingCount();
+		}
+	}
+
+	/**
+	 * leapfrog intersection from the rarest operand. other operands jump
+	 * over posting blocks using skip table.
+	 */
+	private static class AndIterator extends PostingIterator {
+		private PostingIterator[] positives;
+		private PostingIterator[] negatives;
+
+		public AndIterator(List<PostingIterator> positives, List<PostingIterator> negatives) {
+			Collections.sort(positives, new Comparator<PostingIterator>() {
+				@Override
+				public int compare(PostingIterator o1, PostingIterator o2) {
+					long diff = o1.cost() - o2.cost();
+					return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+				}
+			});
+
+			this.positives = positives.toArray(new PostingIterator[0]);
+			this.negatives = negatives.toArray(new PostingIterator[0]);
+		}
+
+		@Override
+		public long next() throws IOException {
+			return align(positives[0].next());
+		}
+
+		@Override
+		public long advance(long target) throws IOException {
+			if (current <= target)
+				return current;
+			return align(positives[0].advance(target));
+		}
+
+		private long align(long id) throws IOException {
+			while (id != EXHAUSTED) {
+				boolean matched = true;
+				for (int i = 1; i < positives.length; i++) {
+					long other = positives[i].advance(id);
+					if (other == EXHAUSTED)
+						return current = EXHAUSTED;
+
+					if (other != id) {
+						id = positives[0].advance(other);
+						matched = false;
+						break;
+					}
+				}
+
+				if (!matched)
+					continue;
+
+				for (PostingIterator negative : negatives) {
+					if (negative.advance(id) == id) {
+						matched = false;
+						break;
+					}
+				}
+
+				if (matched)
+					return current = id;
+
+				id = positives[0].next();
+			}
+
+			return current = EXHAUSTED;
+		}
+
+		@Override
+		public long cost() {
+			return positives[0].cost();
+		}
+	}
+
+	/**
+	 * union by max heap of operand ids
+	 */
+	private static class OrIterator extends PostingIterator {
+		private List<PostingIterator> operands;
+		private PriorityQueue<PostingIterator> heap;
+		private boolean started;
+
+		public OrIterator(List<PostingIterator> operands) {
+			this.operands = operands;
+			this.heap = new PriorityQueue<PostingIterator>(operands.size(), new Comparator<PostingIterator>() {
+				@Override
+				public int compare(PostingIterator o1, PostingIterator o2) {
+					long diff = o2.current() - o1.current();
+					return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+				}
+			});
+		}
+
+		@Override
+		public long next() throws IOException {
+			if (!started) {
+				started = true;
+				for (PostingIterator it : operands)
+					if (it.next() != EXHAUSTED)
+						heap.add(it);
+			} else {
+				while (!heap.isEmpty() && heap.peek().current() == current) {
+					PostingIterator it = heap.poll();
+					if (it.next() != EXHAUSTED)
+						heap.add(it);
+				}
+			}
+
+			return current = heap.isEmpty() ? EXHAUSTED : heap.peek().current();
+		}
+
+		@Override
+		public long advance(long target) throws IOException {
+			if (current <= target)
+				return current;
+
+			if (!started) {
+				started = true;
+				for (PostingIterator it : operands)
+					if (it.advance(target) != EXHAUSTED)
+						heap.add(it);
+			} else {
+				while (!heap.isEmpty() && heap.peek().current() > target) {
+					PostingIterator it = heap.poll();
+					if (it.advance(target) != EXHAUSTED)
+						heap.add(it);
+				}
+			}
+
+			return current = heap.isEmpty() ? EXHAUSTED : heap.peek().current();
+		}
+
+		@Override
+		public long cost() {
+			long sum = 0;
+			for (PostingIterator it : operands)
+				sum += it.cost();
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.logstorage.LogRollupEntry;
+
+/**
+ * Rollup entries of a table day. File is a sequence of blocks which are
+ * appended at each flush. Block is 4 byte length, 8 byte count of applied
+ * logs and encoded array of entries. Same bucket and groups can be repeated
+ * in blocks until file is compacted. Total log count of blocks is checkpoint
+ * of the day, and it is compared with tablet log count after restart.
+ */
+class RollupFile {
+	public static final String FILE_SUFFIX = ".rollup";
+
+	private RollupFile() {
+	}
+
+	public static List<LogRollupEntry> read(File f) throws IOException {
+		List<LogRollupEntry> entries = new ArrayList<LogRollupEntry>();
+		if (!f.exists())
+			return entries;
+
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			long length = raf.length();
+			long pos = 0;
+			while (pos + 4 <= length) {
+				raf.seek(pos);
+				int len = raf.readInt();
+				// ignore partially written block
+				if (len < 8 || pos + 4 + len > length)
+					break;
+
+				raf.readLong();
+				byte[] b = new byte[len - 8];
+				raf.readFully(b);
+				for (Object o : EncodingRule.decodeArray(ByteBuffer.wrap(b)))
+					entries.add(decodeEntry((Object[]) o));
+				pos += 4 + len;
+			}
+		} finally {
+			raf.close();
+		}
+
+		return entries;
+	}
+
+	/**
+	 * @return applied log count of valid blocks
+	 */
+	public static long countLogs(File f) throws IOException {
+		if (!f.exists())
+			return 0;
+
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			long count = 0;
+			long length = raf.length();
+			long pos = 0;
+			while (pos + 4 <= length) {
+				raf.seek(pos);
+				int len = raf.readInt();
+				if (len < 8 || pos + 4 + len > length)
+					break;
+				count += raf.readLong();
+				pos += 4 + len;
+			}
+			return count;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Truncates partially written block at the end
+	 * 
+	 * @return valid block count
+	 */
+	public static int countBlocks(File f) throws IOException {
+		if (!f.exists())
+			return 0;
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			int count = 0;
+			long length = raf.length();
+			long pos = 0;
+			while (pos + 4 <= length) {
+				raf.seek(pos);
+				int len = raf.readInt();
+				if (len < 8 || pos + 4 + len > length)
+					break;
+				pos += 4 + len;
+				count++;
+			}
+
+			if (pos < length)
+				raf.setLength(pos);
+			return count;
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static void append(File f, Collection<LogRollupEntry> entries, long logCount) throws IOException {
+		byte[] block = encodeBlock(entries, logCount);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.seek(raf.length());
+			raf.write(block);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Replaces file with single block
+	 */
+	public static void write(File f, Collection<LogRollupEntry> entries, long logCount) throws IOException {
+		File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(encodeBlock(entries, logCount));
+		} finally {
+			raf.close();
+		}
+
+		if (!f.delete() && f.exists())
+			throw new IOException("cannot replace rollup file " + f.getAbsolutePath());
+		if (!tmp.renameTo(f))
+			throw new IOException("cannot rename rollup file " + tmp.getAbsolutePath());
+	}
+
+	private static byte[] encodeBlock(Collection<LogRollupEntry> entries, long logCount) {
+		Object[] l = new Object[entries.size()];
+		int i = 0;
+		for (LogRollupEntry e : entries)
+			l[i++] = encodeEntry(e);
+
+		int len = EncodingRule.lengthOf(l);
+		ByteBuffer bb = ByteBuffer.allocate(12 + len);
+		bb.putInt(8 + len);
+		bb.putLong(logCount);
+		EncodingRule.encode(bb, l);
+		return bb.array();
+	}
+
+	private static Object[] encodeEntry(LogRollupEntry e) {
+		Object[] valueCounts = new Object[e.getValueCounts().length];
+		for (int i = 0; i < valueCounts.length; i++)
+			valueCounts[i] = e.getValueCounts()[i];
+
+		return new Object[] { e.getBucket().getTime(), e.getGroups(), e.getCount(), e.getSums(), valueCounts };
+	}
+
+	private static LogRollupEntry decodeEntry(Object[] l) {
+		Object[] g = (Object[]) l[1];
+		String[] groups = new String[g.length];
+		for (int i = 0; i < g.length; i++)
+			groups[i] = (String) g[i];
+
+		Object[] s = (Object[]) l[3];
+		Number[] sums = new Number[s.length];
+		for (int i = 0; i < s.length; i++)
+			sums[i] = (Number) s[i];
+
+		Object[] v = (Object[]) l[4];
+		long[] valueCounts = new long[v.length];
+		for (int i = 0; i < v.length; i++)
+			valueCounts[i] = ((Number) v[i]).longValue();
+
+		Date bucket = new Date(((Number) l[0]).longValue());
+		long count = ((Number) l[2]).longValue();
+		return new LogRollupEntry(bucket, groups, count, sums, valueCounts);
+	}
+}
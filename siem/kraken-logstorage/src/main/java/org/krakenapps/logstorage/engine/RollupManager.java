@@ -0,0 +1,661 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogCallback;
+import org.krakenapps.logstorage.LogCursor;
+import org.krakenapps.logstorage.LogRollupEntry;
+import org.krakenapps.logstorage.LogRollupSpec;
+import org.krakenapps.logstorage.LogStorage;
+import org.krakenapps.logstorage.LogTableRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains rollups of tables from written logs. Deltas are aggregated in
+ * memory, and appended to rollup file of table day at flush. Rollup files are
+ * placed next to tablets, and rollup declaration and start time are kept in
+ * state file of table directory.
+ * 
+ * Tablets and rollups are flushed independently, so each flushed block keeps
+ * count of applied logs of the day. At start, the day is rebuilt from tablet
+ * if the count differs from tablet log count.
+ */
+class RollupManager implements LogCallback {
+	private final Logger logger = LoggerFactory.getLogger(RollupManager.class);
+	private static final String STATE_FILE = "rollup.state";
+
+	// compact day file if flushed blocks exceed
+	static final int MAX_BLOCKS = 32;
+
+	private LogTableRegistry tableRegistry;
+	private LogStorage storage;
+	private ConcurrentMap<String, TableRollup> rollups = new ConcurrentHashMap<String, TableRollup>();
+
+	// invalid declaration per table, logged once
+	private Map<String, String> invalids = new ConcurrentHashMap<String, String>();
+
+	public RollupManager(LogTableRegistry tableRegistry, LogStorage storage) {
+		this.tableRegistry = tableRegistry;
+		this.storage = storage;
+	}
+
+	public LogRollupSpec getSpec(String tableName) {
+		TableRollup r = rollups.get(tableName);
+		return r != null ? r.spec : null;
+	}
+
+	/**
+	 * @return entries of flushed file and memory. same bucket and groups can
+	 *         be repeated.
+	 */
+	public List<LogRollupEntry> getEntries(String tableName, Date day) throws IOException {
+		TableRollup r = rollups.get(tableName);
+		if (r == null)
+			return new ArrayList<LogRollupEntry>();
+		return r.getEntries(DateUtil.getDay(day));
+	}
+
+	@Override
+	public void onLog(Log log) {
+		TableRollup r = rollups.get(log.getTableName());
+		if (r != null)
+			r.add(log);
+	}
+
+	/**
+	 * Applies rollup declarations of table metadata. Changed rollup is rebuilt
+	 * from next logs.
+	 */
+	public void reload() {
+		Set<String> tableNames = new HashSet<String>(tableRegistry.getTableNames());
+		for (String tableName : tableNames) {
+			try {
+				reload(tableName);
+			} catch (Exception e) {
+				logger.error("kraken logstorage: cannot load rollup of table " + tableName, e);
+			}
+		}
+
+		for (String tableName : rollups.keySet())
+			if (!tableNames.contains(tableName))
+				rollups.remove(tableName);
+	}
+
+	private void reload(String tableName) throws IOException {
+		String spanText = tableRegistry.getTableMetadata(tableName, "rollup_span");
+		TableRollup old = rollups.get(tableName);
+		if (spanText == null) {
+			if (old != null) {
+				rollups.remove(tableName);
+				old.deleteFiles();
+				logger.info("kraken logstorage: dropped rollup of table [{}]", tableName);
+			}
+			return;
+		}
+
+		List<String> groupFields = parseFields(tableRegistry.getTableMetadata(tableName, "rollup_by"));
+		List<String> sumFields = parseFields(tableRegistry.getTableMetadata(tableName, "rollup_sum"));
+		String signature = spanText + ";" + groupFields + ";" + sumFields;
+		if (old != null && old.signature.equals(signature))
+			return;
+
+		long span = parseSpan(spanText);
+		if (span <= 0) {
+			if (!spanText.equals(invalids.put(tableName, spanText)))
+				logger.error("kraken logstorage: invalid rollup span [{}] of table [{}]", spanText, tableName);
+			return;
+		}
+		invalids.remove(tableName);
+
+		File dir = storage.getTableDirectory(tableName);
+		dir.mkdirs();
+
+		// keep start time if declaration is not changed
+		Date since = loadSince(dir, signature);
+		boolean restored = since != null;
+		if (since == null) {
+			if (old != null)
+				rollups.remove(tableName);
+
+			TableRollup stale = new TableRollup(tableName, dir, null, null);
+			stale.deleteFiles();
+
+			long now = System.currentTimeMillis();
+			since = new Date(now - now % span + span);
+			saveState(dir, signature, since);
+		}
+
+		LogRollupSpec spec = new LogRollupSpec(span, groupFields, sumFields, since);
+		TableRollup r = new TableRollup(tableName, dir, spec, signature);
+		if (restored && old == null)
+			r.recover();
+
+		rollups.put(tableName, r);
+		logger.info("kraken logstorage: loaded rollup of table [{}], {}", tableName, spec);
+	}
+
+	private List<String> parseFields(String s) {
+		List<String> fields = new ArrayList<String>();
+		if (s == null)
+			return fields;
+
+		for (String token : s.split(",")) {
+			String field = token.trim();
+			if (!field.isEmpty() && !fields.contains(field))
+				fields.add(field);
+		}
+		return Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * @return span milliseconds of "30s", "1m" or "1h", or -1 if span does
+	 *         not divide an hour
+	 */
+	static long parseSpan(String s) {
+		s = s.trim();
+		if (s.isEmpty())
+			return -1;
+
+		long unit = 0;
+		char c = s.charAt(s.length() - 1);
+		if (c == 's')
+			unit = 1000L;
+		else if (c == 'm')
+			unit = 60 * 1000L;
+		else if (c == 'h')
+			unit = 60 * 60 * 1000L;
+		else
+			return -1;
+
+		long span = 0;
+		try {
+			span = Long.parseLong(s.substring(0, s.length() - 1)) * unit;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+
+		if (span <= 0 || 3600000L % span != 0)
+			return -1;
+		return span;
+	}
+
+	private Date loadSince(File dir, String signature) throws IOException {
+		File f = new File(dir, STATE_FILE);
+		if (!f.exists())
+			return null;
+
+		Properties props = new Properties();
+		FileInputStream is = new FileInputStream(f);
+		try {
+			props.load(is);
+		} finally {
+			is.close();
+		}
+
+		String since = props.getProperty("since");
+		if (!signature.equals(props.getProperty("signature")) || since == null)
+			return null;
+		return new Date(Long.parseLong(since));
+	}
+
+	private void saveState(File dir, String signature, Date since) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("signature", signature);
+		props.setProperty("since", Long.toString(since.getTime()));
+
+		FileOutputStream os = new FileOutputStream(new File(dir, STATE_FILE));
+		try {
+			props.store(os, "kraken logstorage rollup state");
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Appends in-memory deltas to rollup files
+	 */
+	public void flush() {
+		for (TableRollup r : rollups.values()) {
+			try {
+				r.flush();
+			} catch (IOException e) {
+				logger.error("kraken logstorage: cannot flush rollup of table " + r.tableName, e);
+			}
+		}
+	}
+
+	public void purge(String tableName, Date fromDay, Date toDay) {
+		TableRollup r = rollups.get(tableName);
+		if (r != null)
+			r.purge(fromDay, toDay);
+	}
+
+	public void drop(String tableName) {
+		TableRollup r = rollups.remove(tableName);
+		if (r != null)
+			r.deleteFiles();
+	}
+
+	private class TableRollup {
+		private String tableName;
+		private File dir;
+		private LogRollupSpec spec;
+		private String signature;
+
+		// logs of earlier days are not counted
+		private Date sinceDay;
+
+		// deltas per day, guarded by this
+		private Map<Date, DayDelta> pending = new HashMap<Date, DayDelta>();
+
+		// guards rollup files, acquired before this
+		private Object fileLock = new Object();
+		private Map<Date, Integer> blockCounts = new HashMap<Date, Integer>();
+
+		public TableRollup(String tableName, File dir, LogRollupSpec spec, String signature) {
+			this.tableName = tableName;
+			this.dir = dir;
+			this.spec = spec;
+			this.signature = signature;
+			if (spec != null)
+				this.sinceDay = DateUtil.getDay(spec.getSince());
+		}
+
+		public void add(Log log) {
+			Date day = DateUtil.getDay(log.getDate());
+			if (day.before(sinceDay))
+				return;
+
+			long time = log.getDate().getTime();
+			Map<String, Object> data = log.getData();
+			RollupKey key = null;
+			if (time >= spec.getSince().getTime()) {
+				List<String> groupFields = spec.getGroupFields();
+				String[] groups = new String[groupFields.size()];
+				for (int i = 0; i < groups.length; i++) {
+					Object value = data.get(groupFields.get(i));
+					groups[i] = value != null ? value.toString() : null;
+				}
+				key = new RollupKey(time - time % spec.getSpan(), groups);
+			}
+
+			synchronized (this) {
+				DayDelta delta = pending.get(day);
+				if (delta == null) {
+					delta = new DayDelta();
+					pending.put(day, delta);
+				}
+
+				// logs before start time are counted for checkpoint only
+				delta.logCount++;
+				if (key == null)
+					return;
+
+				Accumulator acc = delta.accumulators.get(key);
+				if (acc == null) {
+					acc = new Accumulator(spec.getSumFields().size());
+					delta.accumulators.put(key, acc);
+				}
+				acc.add(data, spec.getSumFields());
+			}
+		}
+
+		/**
+		 * Compares checkpoint of each day with tablet log count. Deltas which
+		 * were not flushed before crash, or flushed deltas of logs which were
+		 * lost from tablet make them differ, and the day is rebuilt from
+		 * tablet. Should be called before rollup receives logs.
+		 */
+		public void recover() throws IOException {
+			Set<Date> days = new HashSet<Date>(storage.getLogDates(tableName));
+			for (File f : listFiles()) {
+				Date day = parseDay(f);
+				if (day != null)
+					days.add(day);
+			}
+
+			for (Date day : days) {
+				if (day.before(sinceDay))
+					continue;
+
+				// unknown count of old tablet format
+				long logCount = storage.getLogCount(tableName, day);
+				if (logCount < 0)
+					continue;
+
+				long checkpoint = RollupFile.countLogs(getFile(day));
+				if (logCount == checkpoint)
+					continue;
+
+				logger.info("kraken logstorage: rebuilding rollup of table [{}], day [{}], {} logs, checkpoint {}",
+						new Object[] { tableName, DateUtil.getDayText(day), logCount, checkpoint });
+				rebuild(day, logCount);
+			}
+		}
+
+		private void rebuild(Date day, long logCount) throws IOException {
+			synchronized (fileLock) {
+				File f = getFile(day);
+				if (f.exists() && !f.delete())
+					throw new IOException("cannot delete rollup file " + f.getAbsolutePath());
+				blockCounts.remove(day);
+
+				if (logCount == 0)
+					return;
+
+				LogCursor cursor = storage.openCursor(tableName, day, true);
+				try {
+					while (cursor.hasNext())
+						add(cursor.next());
+				} finally {
+					cursor.close();
+				}
+				flush();
+			}
+		}
+
+		public List<LogRollupEntry> getEntries(Date day) throws IOException {
+			synchronized (fileLock) {
+				List<LogRollupEntry> entries = RollupFile.read(getFile(day));
+				synchronized (this) {
+					DayDelta delta = pending.get(day);
+					if (delta != null)
+						for (Map.Entry<RollupKey, Accumulator> e : delta.accumulators.entrySet())
+							entries.add(e.getValue().toEntry(e.getKey()));
+				}
+				return entries;
+			}
+		}
+
+		public void flush() throws IOException {
+			synchronized (fileLock) {
+				Map<Date, DayDelta> flushing = null;
+				synchronized (this) {
+					if (pending.isEmpty())
+						return;
+					flushing = pending;
+					pending = new HashMap<Date, DayDelta>();
+				}
+
+				for (Date day : new ArrayList<Date>(flushing.keySet())) {
+					DayDelta delta = flushing.get(day);
+					try {
+						flush(day, delta);
+						flushing.remove(day);
+					} catch (IOException e) {
+						// retry at next flush
+						restore(flushing);
+						throw e;
+					}
+				}
+			}
+		}
+
+		private void flush(Date day, DayDelta delta) throws IOException {
+			File f = getFile(day);
+			Integer blocks = blockCounts.get(day);
+			if (blocks == null)
+				blocks = RollupFile.countBlocks(f);
+
+			if (blocks < MAX_BLOCKS) {
+				RollupFile.append(f, toEntries(delta.accumulators), delta.logCount);
+				blockCounts.put(day, blocks + 1);
+				return;
+			}
+
+			// merge all blocks and deltas
+			long logCount = RollupFile.countLogs(f) + delta.logCount;
+			Map<RollupKey, Accumulator> merged = new HashMap<RollupKey, Accumulator>();
+			for (LogRollupEntry e : RollupFile.read(f)) {
+				RollupKey key = new RollupKey(e.getBucket().getTime(), e.getGroups());
+				Accumulator acc = merged.get(key);
+				if (acc == null) {
+					acc = new Accumulator(spec.getSumFields().size());
+					merged.put(key, acc);
+				}
+				acc.merge(e);
+			}
+
+			for (Map.Entry<RollupKey, Accumulator> e : delta.accumulators.entrySet()) {
+				Accumulator acc = merged.get(e.getKey());
+				if (acc == null)
+					merged.put(e.getKey(), e.getValue());
+				else
+					acc.merge(e.getValue().toEntry(e.getKey()));
+			}
+
+			RollupFile.write(f, toEntries(merged), logCount);
+			blockCounts.put(day, 1);
+			logger.debug("kraken logstorage: compacted rollup of table [{}], day [{}], {} entries",
+					new Object[] { tableName, DateUtil.getDayText(day), merged.size() });
+		}
+
+		private void restore(Map<Date, DayDelta> flushing) {
+			synchronized (this) {
+				for (Date day : flushing.keySet()) {
+					DayDelta delta = pending.get(day);
+					if (delta == null)
+						pending.put(day, flushing.get(day));
+					else
+						delta.merge(flushing.get(day));
+				}
+			}
+		}
+
+		private Collection<LogRollupEntry> toEntries(Map<RollupKey, Accumulator> m) {
+			List<LogRollupEntry> entries = new ArrayList<LogRollupEntry>(m.size());
+			for (Map.Entry<RollupKey, Accumulator> e : m.entrySet())
+				entries.add(e.getValue().toEntry(e.getKey()));
+			return entries;
+		}
+
+		public void purge(Date fromDay, Date toDay) {
+			synchronized (fileLock) {
+				synchronized (this) {
+					for (Date day : new ArrayList<Date>(pending.keySet()))
+						if (inRange(day, fromDay, toDay))
+							pending.remove(day);
+				}
+
+				for (File f : listFiles()) {
+					Date day = parseDay(f);
+					if (day != null && inRange(day, fromDay, toDay) && !f.delete())
+						logger.error("kraken logstorage: cannot delete rollup file {}", f.getAbsolutePath());
+				}
+				blockCounts.clear();
+			}
+		}
+
+		public void deleteFiles() {
+			synchronized (fileLock) {
+				synchronized (this) {
+					pending.clear();
+				}
+
+				for (File f : listFiles())
+					if (!f.delete())
+						logger.error("kraken logstorage: cannot delete rollup file {}", f.getAbsolutePath());
+				new File(dir, STATE_FILE).delete();
+				blockCounts.clear();
+			}
+		}
+
+		private boolean inRange(Date day, Date fromDay, Date toDay) {
+			return (fromDay == null || !day.before(fromDay)) && (toDay == null || !day.after(toDay));
+		}
+
+		private List<File> listFiles() {
+			List<File> files = new ArrayList<File>();
+			File[] l = dir.listFiles();
+			if (l != null)
+				for (File f : l)
+					if (f.isFile() && f.getName().endsWith(RollupFile.FILE_SUFFIX))
+						files.add(f);
+			return files;
+		}
+
+		private Date parseDay(File f) {
+			String name = f.getName();
+			try {
+				return new SimpleDateFormat("yyyy-MM-dd").parse(name.substring(0, name.indexOf('.')));
+			} catch (ParseException e) {
+				return null;
+			}
+		}
+
+		private File getFile(Date day) {
+			return new File(dir, DateUtil.getDayText(day) + RollupFile.FILE_SUFFIX);
+		}
+	}
+
+	/**
+	 * Deltas of a day and count of applied logs
+	 */
+	private static class DayDelta {
+		private long logCount;
+		private Map<RollupKey, Accumulator> accumulators = new HashMap<RollupKey, Accumulator>();
+
+		public void merge(DayDelta other) {
+			logCount += other.logCount;
+			for (Map.Entry<RollupKey, Accumulator> e : other.accumulators.entrySet()) {
+				Accumulator acc = accumulators.get(e.getKey());
+				if (acc == null)
+					accumulators.put(e.getKey(), e.getValue());
+				else
+					acc.merge(e.getValue().toEntry(e.getKey()));
+			}
+		}
+	}
+
+	private static class RollupKey {
+		private long bucket;
+		private String[] groups;
+
+		public RollupKey(long bucket, String[] groups) {
+			this.bucket = bucket;
+			this.groups = groups;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (int) (bucket ^ (bucket >>> 32)) + Arrays.hashCode(groups);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof RollupKey))
+				return false;
+			RollupKey other = (RollupKey) obj;
+			return bucket == other.bucket && Arrays.equals(groups, other.groups);
+		}
+	}
+
+	/**
+	 * Count and sums of a bucket. Values are converted like sum function of
+	 * query: integral text is summed as long, and other numbers as double.
+	 */
+	private static class Accumulator {
+		private long count;
+		private long[] longSums;
+		private double[] doubleSums;
+		private boolean[] doubles;
+		private long[] valueCounts;
+
+		public Accumulator(int fields) {
+			longSums = new long[fields];
+			doubleSums = new double[fields];
+			doubles = new boolean[fields];
+			valueCounts = new long[fields];
+		}
+
+		public void add(Map<String, Object> data, List<String> sumFields) {
+			count++;
+			for (int i = 0; i < longSums.length; i++) {
+				Object value = data.get(sumFields.get(i));
+				if (value == null)
+					continue;
+
+				valueCounts[i]++;
+				String s = value.toString();
+				try {
+					longSums[i] += Long.parseLong(s);
+					continue;
+				} catch (NumberFormatException e) {
+				}
+
+				try {
+					doubleSums[i] += Double.parseDouble(s);
+					doubles[i] = true;
+					continue;
+				} catch (NumberFormatException e) {
+				}
+
+				if (s.startsWith("0x")) {
+					try {
+						longSums[i] += Long.parseLong(s.substring(2), 16);
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+
+		public void merge(LogRollupEntry e) {
+			count += e.getCount();
+			for (int i = 0; i < longSums.length; i++) {
+				Number sum = e.getSums()[i];
+				if (sum instanceof Double) {
+					doubleSums[i] += sum.doubleValue();
+					doubles[i] = true;
+				} else {
+					longSums[i] += sum.longValue();
+				}
+				valueCounts[i] += e.getValueCounts()[i];
+			}
+		}
+
+		public LogRollupEntry toEntry(RollupKey key) {
+			Number[] sums = new Number[longSums.length];
+			for (int i = 0; i < sums.length; i++)
+				sums[i] = doubles[i] ? (Number) (longSums[i] + doubleSums[i]) : (Number) longSums[i];
+
+			return new LogRollupEntry(new Date(key.bucket), key.groups, count, sums, valueCounts.clone());
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.krakenapps.logstorage.LogTableRegistry;
+import org.krakenapps.logstorage.file.LogFileReader;
+import org.krakenapps.logstorage.file.LogFileReaderV2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared LRU cache of idle tablet readers for random lookups. Reader is not
+ * thread-safe, so it is removed from cache while borrowed and returned to
+ * cache after use.
+ */
+class TabletReaderCache {
+	private final Logger logger = LoggerFactory.getLogger(TabletReaderCache.class);
+	private final LogTableRegistry tableRegistry;
+	private final LogFileFetcher fetcher;
+	private final int capacity;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	// access ordered
+	private LinkedHashMap<TabletKey, CachedReader> readers = new LinkedHashMap<TabletKey, CachedReader>(16, 0.75f, true);
+
+	// table id to generation of last invalidate, borrowed reader of older
+	// generation is closed at release
+	private Map<Integer, Long> generations = new HashMap<Integer, Long>();
+	private long clearGeneration;
+	private long lastGeneration;
+
+	public TabletReaderCache(LogTableRegistry tableRegistry, LogFileFetcher fetcher, int capacity) {
+		this.tableRegistry = tableRegistry;
+		this.fetcher = fetcher;
+		this.capacity = capacity;
+	}
+
+	public CachedReader borrow(String tableName, Date day) throws IOException {
+		int tableId = tableRegistry.getTableId(tableName);
+		TabletKey key = new TabletKey(tableId, day);
+
+		CachedReader cached = null;
+		long generation = 0;
+		synchronized (this) {
+			cached = readers.remove(key);
+			generation = getGeneration(tableId);
+		}
+
+		// load blocks appended after open, or reopen if reader cannot
+		long dataLength = DatapathUtil.getDataFile(tableId, day).length();
+		if (cached != null && cached.dataLength != dataLength && !refresh(cached, dataLength)) {
+			close(cached);
+			cached = null;
+		}
+
+		synchronized (this) {
+			if (cached != null)
+				hits++;
+			else
+				misses++;
+		}
+
+		if (cached != null)
+			return cached;
+
+		return new CachedReader(key, fetcher.fetch(tableName, day), dataLength, generation);
+	}
+
+	private boolean refresh(CachedReader cached, long dataLength) {
+		if (!(cached.reader instanceof LogFileReaderV2))
+			return false;
+
+		try {
+			if (!((LogFileReaderV2) cached.reader).refresh())
+				return false;
+
+			cached.dataLength = dataLength;
+			return true;
+		} catch (IOException e) {
+			logger.warn("kraken logstorage: cannot refresh cached reader of " + cached.key, e);
+			return false;
+		}
+	}
+
+	public void release(CachedReader cached) {
+		List<CachedReader> evicted = new ArrayList<CachedReader>();
+		synchronized (this) {
+			// tablet is purged or dropped while borrowed
+			if (cached.generation != getGeneration(cached.key.getTableId())) {
+				evicted.add(cached);
+			} else {
+				CachedReader old = readers.put(cached.key, cached);
+				if (old != null)
+					evicted.add(old);
+			}
+
+			Iterator<CachedReader> it = readers.values().iterator();
+			while (readers.size() > capacity && it.hasNext()) {
+				evicted.add(it.next());
+				it.remove();
+				evictions++;
+			}
+		}
+
+		for (CachedReader r : evicted)
+			close(r);
+	}
+
+	/**
+	 * close reader instead of returning it to cache, e.g. after read failure
+	 */
+	public void discard(CachedReader cached) {
+		close(cached);
+	}
+
+	/**
+	 * close all idle readers of the table, should be called before tablet
+	 * files are deleted. borrowed readers are closed when released.
+	 */
+	public void invalidate(int tableId) {
+		List<CachedReader> removed = new ArrayList<CachedReader>();
+		synchronized (this) {
+			generations.put(tableId, ++lastGeneration);
+			Iterator<CachedReader> it = readers.values().iterator();
+			while (it.hasNext()) {
+				CachedReader r = it.next();
+				if (r.key.getTableId() == tableId) {
+					removed.add(r);
+					it.remove();
+				}
+			}
+		}
+
+		for (CachedReader r : removed)
+			close(r);
+	}
+
+	public void clear() {
+		List<CachedReader> removed = null;
+		synchronized (this) {
+			removed = new ArrayList<CachedReader>(readers.values());
+			readers.clear();
+			generations.clear();
+			clearGeneration = ++lastGeneration;
+		}
+
+		for (CachedReader r : removed)
+			close(r);
+	}
+
+	private long getGeneration(int tableId) {
+		Long generation = generations.get(tableId);
+		if (generation == null || generation < clearGeneration)
+			return clearGeneration;
+		return generation;
+	}
+
+	private void close(CachedReader cached) {
+		try {
+			cached.reader.close();
+		} catch (IOException e) {
+			logger.error("kraken logstorage: cannot close cached reader of " + cached.key, e);
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int getUsage() {
+		return readers.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public static class CachedReader {
+		private TabletKey key;
+		private LogFileReader reader;
+
+		// data file length at open or last refresh
+		private long dataLength;
+
+		// table generation at open time
+		private long generation;
+
+		private CachedReader(TabletKey key, LogFileReader reader, long dataLength, long generation) {
+			this.key = key;
+			this.reader = reader;
+			this.dataLength = dataLength;
+			this.generation = generation;
+		}
+
+		public LogFileReader getReader() {
+			return reader;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compatible block codec. it is the default codec and compatible with
+ * all v2 data files written before block codec support.
+ */
+public class DeflaterBlockCodec implements LogBlockCodec {
+	public static final String NAME = "deflater";
+
+	private int level;
+	private Deflater compresser;
+	private Inflater decompresser;
+
+	public DeflaterBlockCodec(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		// same as zlib compressBound()
+		return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+	}
+
+	@Override
+	public int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException {
+		if (compresser == null)
+			compresser = new Deflater(level);
+
+		try {
+			compresser.setInput(input, inputOffset, inputLength);
+			compresser.finish();
+			int compressedSize = compresser.deflate(output, outputOffset, output.length - outputOffset);
+			if (!compresser.finished())
+				throw new IOException("insufficient deflate output buffer: " + (output.length - outputOffset));
+
+			return compressedSize;
+		} finally {
+			compresser.reset();
+		}
+	}
+
+	@Override
+	public void decompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset,
+			int originalLength) throws IOException {
+		if (decompresser == null)
+			decompresser = new Inflater();
+
+		try {
+			decompresser.setInput(input, inputOffset, inputLength);
+			decompresser.inflate(output, outputOffset, originalLength);
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			decompresser.reset();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (compresser != null)
+			compresser.end();
+		if (decompresser != null)
+			decompresser.end();
+	}
+
+	public static class Factory implements LogBlockCodecFactory {
+		@Override
+		public String getName() {
+			return NAME;
+		}
+
+		@Override
+		public LogBlockCodec newCodec(int level) {
+			return new DeflaterBlockCodec(level);
+		}
+	}
+}
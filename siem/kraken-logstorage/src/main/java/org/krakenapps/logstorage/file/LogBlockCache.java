@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Thread-safe LRU cache of decompressed data blocks, keyed by data file path
+ * and block offset. Cached arrays are shared between readers and should never
+ * be modified.
+ */
+public class LogBlockCache {
+	private final long capacity;
+	private long usage;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	// access ordered
+	private LinkedHashMap<BlockKey, byte[]> blocks = new LinkedHashMap<BlockKey, byte[]>(16, 0.75f, true);
+
+	/**
+	 * @param capacity
+	 *            max total bytes of cached blocks
+	 */
+	public LogBlockCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public synchronized byte[] get(File dataPath, long fp) {
+		byte[] block = blocks.get(new BlockKey(dataPath.getAbsolutePath(), fp));
+		if (block != null)
+			hits++;
+		else
+			misses++;
+
+		return block;
+	}
+
+	public synchronized void put(File dataPath, long fp, byte[] block) {
+		if (block.length > capacity)
+			return;
+
+		byte[] old = blocks.put(new BlockKey(dataPath.getAbsolutePath(), fp), block);
+		if (old != null)
+			usage -= old.length;
+		usage += block.length;
+
+		Iterator<byte[]> it = blocks.values().iterator();
+		while (usage > capacity && it.hasNext()) {
+			usage -= it.next().length;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * drop all blocks of the data file, should be called before file is
+	 * deleted or rewritten
+	 */
+	public synchronized void invalidate(File dataPath) {
+		String path = dataPath.getAbsolutePath();
+		Iterator<Entry<BlockKey, byte[]>> it = blocks.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<BlockKey, byte[]> e = it.next();
+			if (e.getKey().path.equals(path)) {
+				usage -= e.getValue().length;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		blocks.clear();
+		usage = 0;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getUsage() {
+		return usage;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private static class BlockKey {
+		private String path;
+		private long fp;
+
+		private BlockKey(String path, long fp) {
+			this.path = path;
+			this.fp = fp;
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() * 31 + (int) (fp ^ (fp >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof BlockKey))
+				return false;
+			BlockKey other = (BlockKey) obj;
+			return fp == other.fp && path.equals(other.path);
+		}
+	}
+}
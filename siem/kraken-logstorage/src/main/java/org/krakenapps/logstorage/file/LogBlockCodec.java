@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses whole data blocks of v2 log file. Codec name is
+ * recorded in data file header, so codec instance should be obtained from
+ * {@link LogBlockCodecRegistry} by name. Codec instance is NOT thread-safe.
+ */
+public interface LogBlockCodec {
+	String getName();
+
+	/**
+	 * @return the worst case compressed size of given input length
+	 */
+	int maxCompressedLength(int length);
+
+	/**
+	 * @return the compressed length
+	 */
+	int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException;
+
+	void decompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset, int originalLength)
+			throws IOException;
+
+	/**
+	 * release native resources
+	 */
+	void close();
+}
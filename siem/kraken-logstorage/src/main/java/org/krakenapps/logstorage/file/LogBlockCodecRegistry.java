@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps block codec name in data file header to codec implementation.
+ * deflater and lz4 codecs are always available.
+ */
+public class LogBlockCodecRegistry {
+	public static final String DEFAULT_CODEC = DeflaterBlockCodec.NAME;
+
+	private static ConcurrentMap<String, LogBlockCodecFactory> factories = new ConcurrentHashMap<String, LogBlockCodecFactory>();
+
+	static {
+		register(new DeflaterBlockCodec.Factory());
+		register(new Lz4BlockCodec.Factory());
+	}
+
+	private LogBlockCodecRegistry() {
+	}
+
+	public static Collection<String> getCodecNames() {
+		return factories.keySet();
+	}
+
+	public static void register(LogBlockCodecFactory factory) {
+		// codec name should fit into data file header
+		if (factory.getName().length() > 16)
+			throw new IllegalArgumentException("too long codec name: " + factory.getName());
+
+		factories.put(factory.getName(), factory);
+	}
+
+	public static void unregister(LogBlockCodecFactory factory) {
+		factories.remove(factory.getName(), factory);
+	}
+
+	public static LogBlockCodec newCodec(String name, int level) throws IOException {
+		LogBlockCodecFactory factory = factories.get(name);
+		if (factory == null)
+			throw new IOException("unsupported block codec: " + name);
+
+		return factory.newCodec(level);
+	}
+
+	/**
+	 * @param ext
+	 *            the extra data of v2 data file header
+	 * @return the block codec name, or null if data file is not compressed
+	 *         explicitly
+	 */
+	public static String getCodecName(byte[] ext) {
+		if (ext == null || ext.length <= 4)
+			return null;
+
+		String name = new String(ext, 4, ext.length - 4).trim();
+		if (name.isEmpty())
+			return null;
+
+		return name;
+	}
+}
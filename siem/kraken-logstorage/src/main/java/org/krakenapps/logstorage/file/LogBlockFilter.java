@@ -0,0 +1,27 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+/**
+ * Decides whether a data block should be read, using the block zone written
+ * by log file writer. Blocks without zone are always read.
+ */
+public interface LogBlockFilter {
+	/**
+	 * @return false only if no log of the block can match
+	 */
+	boolean mayMatch(LogBlockZone zone);
+}
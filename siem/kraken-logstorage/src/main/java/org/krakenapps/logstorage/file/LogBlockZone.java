@@ -0,0 +1,354 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.krakenapps.codec.EncodingRule;
+
+/**
+ * Summary of selected fields in one data block. Keeps min/max of integer and
+ * IPv4 values, and a small bloom filter of all values. Every check returns
+ * true if the block may contain a matching log, so false positive is
+ * possible but false negative is not.
+ */
+public class LogBlockZone {
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	public static final byte TYPE_NONE = 0;
+	public static final byte TYPE_INTEGER = 1;
+	public static final byte TYPE_IPV4 = 2;
+
+	private static final int BLOOM_HASHES = 3;
+	private static final int BLOOM_BITS_PER_VALUE = 8;
+	private static final int MIN_BLOOM_BITS = 64;
+	private static final int MAX_BLOOM_BITS = 65536;
+
+	private long fp;
+	private long startDate;
+	private long endDate;
+	private int compressedLength;
+	private Map<String, FieldZone> fields;
+
+	private LogBlockZone(Map<String, FieldZone> fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * @return the zone of given fields, or null if any record cannot be
+	 *         decoded
+	 */
+	public static LogBlockZone build(List<LogRecord> records, Set<String> fieldNames) {
+		Map<String, FieldZone> fields = new HashMap<String, FieldZone>();
+		Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+		for (String name : fieldNames) {
+			fields.put(name, new FieldZone());
+			values.put(name, new HashSet<String>());
+		}
+
+		for (LogRecord record : records) {
+			for (String name : fieldNames) {
+				// decode zone fields only
+				Object value = null;
+				try {
+					value = EncodingRule.decodeMapValue(record.getData(), name);
+				} catch (Throwable t) {
+					return null;
+				}
+
+				if (value == null)
+					continue;
+
+				fields.get(name).add(value);
+				values.get(name).add(toKey(value));
+			}
+		}
+
+		for (String name : fieldNames)
+			fields.get(name).buildBloom(values.get(name));
+
+		return new LogBlockZone(fields);
+	}
+
+	public long getFp() {
+		return fp;
+	}
+
+	public long getStartDate() {
+		return startDate;
+	}
+
+	public long getEndDate() {
+		return endDate;
+	}
+
+	public int getCompressedLength() {
+		return compressedLength;
+	}
+
+	public Set<String> getFieldNames() {
+		return Collections.unmodifiableSet(fields.keySet());
+	}
+
+	/**
+	 * @return false if no log of the block has the field value. string,
+	 *         number and ip address are compared by text form, so "80" and 80
+	 *         are same value.
+	 */
+	public boolean mayContain(String field, Object value) {
+		FieldZone z = fields.get(field);
+		if (z == null)
+			return true;
+
+		if (z.count == 0)
+			return false;
+
+		if (value == null)
+			return true;
+
+		byte type = typeOf(value);
+		if (type != TYPE_NONE && type == z.type) {
+			long l = toLong(value);
+			if (l < z.min || l > z.max)
+				return false;
+		}
+
+		return z.mayContain(toKey(value));
+	}
+
+	/**
+	 * @param min
+	 *            inclusive lower bound, integer or ipv4 address. null if
+	 *            unbounded
+	 * @param max
+	 *            inclusive upper bound, integer or ipv4 address. null if
+	 *            unbounded
+	 * @return false if no log of the block has the field value in range
+	 */
+	public boolean mayOverlap(String field, Object min, Object max) {
+		FieldZone z = fields.get(field);
+		if (z == null)
+			return true;
+
+		if (z.count == 0)
+			return false;
+
+		if (z.type == TYPE_NONE)
+			return true;
+
+		if (min != null) {
+			if (typeOf(min) != z.type)
+				return true;
+			if (z.max < toLong(min))
+				return false;
+		}
+
+		if (max != null) {
+			if (typeOf(max) != z.type)
+				return true;
+			if (z.min > toLong(max))
+				return false;
+		}
+
+		return true;
+	}
+
+	private static byte typeOf(Object value) {
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+			return TYPE_INTEGER;
+		if (value instanceof Inet4Address)
+			return TYPE_IPV4;
+		return TYPE_NONE;
+	}
+
+	private static long toLong(Object value) {
+		if (value instanceof Inet4Address) {
+			byte[] b = ((Inet4Address) value).getAddress();
+			return ((b[0] & 0xffL) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+		}
+
+		return ((Number) value).longValue();
+	}
+
+	private static String toKey(Object value) {
+		if (value instanceof String)
+			return (String) value;
+		if (value instanceof InetAddress)
+			return ((InetAddress) value).getHostAddress();
+		if (typeOf(value) == TYPE_INTEGER)
+			return Long.toString(((Number) value).longValue());
+		if (value instanceof Float || value instanceof Double)
+			return Double.toString(((Number) value).doubleValue());
+		return value.toString();
+	}
+
+	public int serializedLength() {
+		int length = 30;
+		for (String name : fields.keySet())
+			length += 2 + name.getBytes(UTF8).length + fields.get(name).serializedLength();
+		return length;
+	}
+
+	/**
+	 * write block position, block header values and field zones
+	 */
+	public void serialize(ByteBuffer bb, long fp, long startDate, long endDate, int compressedLength) {
+		this.fp = fp;
+		this.startDate = startDate;
+		this.endDate = endDate;
+		this.compressedLength = compressedLength;
+
+		bb.putLong(fp);
+		bb.putLong(startDate);
+		bb.putLong(endDate);
+		bb.putInt(compressedLength);
+		bb.putShort((short) fields.size());
+
+		for (String name : fields.keySet()) {
+			byte[] b = name.getBytes(UTF8);
+			bb.putShort((short) b.length);
+			bb.put(b);
+			fields.get(name).serialize(bb);
+		}
+	}
+
+	public static LogBlockZone parse(ByteBuffer bb) {
+		long fp = bb.getLong();
+		long startDate = bb.getLong();
+		long endDate = bb.getLong();
+		int compressedLength = bb.getInt();
+		int fieldCount = bb.getShort();
+
+		Map<String, FieldZone> fields = new HashMap<String, FieldZone>();
+		for (int i = 0; i < fieldCount; i++) {
+			byte[] b = new byte[bb.getShort()];
+			bb.get(b);
+			fields.put(new String(b, UTF8), FieldZone.parse(bb));
+		}
+
+		LogBlockZone zone = new LogBlockZone(fields);
+		zone.fp = fp;
+		zone.startDate = startDate;
+		zone.endDate = endDate;
+		zone.compressedLength = compressedLength;
+		return zone;
+	}
+
+	private static class FieldZone {
+		private int count;
+		private byte type = TYPE_NONE;
+		private long min;
+		private long max;
+		private long[] bloom;
+
+		private void add(Object value) {
+			byte t = typeOf(value);
+			if (count++ == 0) {
+				type = t;
+				if (t != TYPE_NONE)
+					min = max = toLong(value);
+				return;
+			}
+
+			// mixed types, only bloom filter is available
+			if (type != t) {
+				type = TYPE_NONE;
+				return;
+			}
+
+			if (t != TYPE_NONE) {
+				long l = toLong(value);
+				min = Math.min(min, l);
+				max = Math.max(max, l);
+			}
+		}
+
+		private void buildBloom(Set<String> keys) {
+			int bits = MIN_BLOOM_BITS;
+			while (bits < keys.size() * BLOOM_BITS_PER_VALUE && bits < MAX_BLOOM_BITS)
+				bits <<= 1;
+
+			bloom = new long[bits >> 6];
+			for (String key : keys) {
+				long h = hash(key);
+				int h1 = (int) h;
+				int h2 = (int) (h >>> 32) | 1;
+				for (int i = 0; i < BLOOM_HASHES; i++) {
+					int bit = (h1 + i * h2) & (bits - 1);
+					bloom[bit >> 6] |= 1L << (bit & 63);
+				}
+			}
+		}
+
+		private boolean mayContain(String key) {
+			int bits = bloom.length << 6;
+			long h = hash(key);
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++) {
+				int bit = (h1 + i * h2) & (bits - 1);
+				if ((bloom[bit >> 6] & (1L << (bit & 63))) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		// 64bit FNV-1a
+		private static long hash(String s) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < s.length(); i++) {
+				h ^= s.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			return h;
+		}
+
+		private int serializedLength() {
+			return 23 + bloom.length * 8;
+		}
+
+		private void serialize(ByteBuffer bb) {
+			bb.putInt(count);
+			bb.put(type);
+			bb.putLong(min);
+			bb.putLong(max);
+			bb.putShort((short) bloom.length);
+			for (long l : bloom)
+				bb.putLong(l);
+		}
+
+		private static FieldZone parse(ByteBuffer bb) {
+			FieldZone z = new FieldZone();
+			z.count = bb.getInt();
+			z.type = bb.get();
+			z.min = bb.getLong();
+			z.max = bb.getLong();
+			z.bloom = new long[bb.getShort() & 0xffff];
+			for (int i = 0; i < z.bloom.length; i++)
+				z.bloom[i] = bb.getLong();
+			return z;
+		}
+	}
+}
@@ -26,6 +26,7 @@ import java.util.Arrays;
 public class LogFileHeader {
 	public static final String MAGIC_STRING_DATA = "NCHOVY_BEAST_DAT";
 	public static final String MAGIC_STRING_INDEX = "NCHOVY_BEAST_IDX";
+	public static final String MAGIC_STRING_ZONEMAP = "NCHOVY_BEAST_ZMP";
 	public static final short ALIGNED_HEADER_SIZE_BASE = 22;
 	public static final short ALIGNED_HEADER_SIZE_POS = 20;
 
@@ -156,7 +157,8 @@ public class LogFileHeader {
 	}
 
 	private static void validate(LogFileHeader hdr) throws InvalidLogFileHeaderException {
-		if (!MAGIC_STRING_DATA.equals(hdr.magicString) && !MAGIC_STRING_INDEX.equals(hdr.magicString))
+		if (!MAGIC_STRING_DATA.equals(hdr.magicString) && !MAGIC_STRING_INDEX.equals(hdr.magicString)
+				&& !MAGIC_STRING_ZONEMAP.equals(hdr.magicString))
 			throw new InvalidLogFileHeaderException("File starts with invalid magic string.");
 	}
 }
\ No newline at end of file
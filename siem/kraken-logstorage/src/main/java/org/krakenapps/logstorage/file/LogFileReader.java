@@ -22,6 +22,15 @@ import java.util.Date;
 
 public abstract class LogFileReader {
 	public static LogFileReader getLogFileReader(File indexPath, File dataPath) throws InvalidLogFileHeaderException, IOException {
+		return getLogFileReader(indexPath, dataPath, false);
+	}
+
+	/**
+	 * @param mapped
+	 *            memory-map closed tablet files, ignored by version 1 reader
+	 */
+	public static LogFileReader getLogFileReader(File indexPath, File dataPath, boolean mapped)
+			throws InvalidLogFileHeaderException, IOException {
 		LogFileReader reader = null;
 		RandomAccessFile indexHeaderReader = null;
 		RandomAccessFile dataHeaderReader = null;
@@ -38,7 +47,7 @@ public abstract class LogFileReader {
 			if (indexHeader.version() == 1)
 				reader = new LogFileReaderV1(indexPath, dataPath);
 			else if (indexHeader.version() == 2)
-				reader = new LogFileReaderV2(indexPath, dataPath);
+				reader = new LogFileReaderV2(indexPath, dataPath, mapped);
 			else
 				throw new InvalidLogFileHeaderException("unsupported log version");
 		} finally {
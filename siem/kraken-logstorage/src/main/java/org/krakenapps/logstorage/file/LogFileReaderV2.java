@@ -20,11 +20,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,18 +38,52 @@ public class LogFileReaderV2 extends LogFileReader {
 	private RandomAccessFile indexFile;
 	private RandomAccessFile dataFile;
 
+	// read-only mappings, null if not mapped
+	private MappedByteBuffer indexMap;
+	private MappedByteBuffer dataMap;
+
 	private List<IndexBlockHeader> indexBlockHeaders = new ArrayList<IndexBlockHeader>();
 	private List<DataBlockHeader> dataBlockHeaders = new ArrayList<DataBlockHeader>();
 
 	private byte[] buf;
 	private DataBlockHeader nowDataBlock;
+
+	// current block, points reusable block buffer, mapped or cached block
 	private ByteBuffer dataBuffer;
+	private ByteBuffer blockBuffer;
+
+	// true if current block is not reused by next block load
+	private boolean immutableBlock;
+
+	// shared decompressed blocks, can be null
+	private LogBlockCache blockCache;
+
+	// loaded at first filtered traverse, null if zone map file not exists
+	private LogZoneMap zoneMap;
+	private boolean zoneMapLoaded;
 
-	private Inflater decompresser = new Inflater();
+	private LogBlockCodec codec;
 	private long totalCount;
-	private boolean useDeflater;
+
+	// file positions of next block to load
+	private long indexPos;
+	private long dataPos;
+
+	// false if codec is not specified in data file header
+	private boolean useCodec;
 
 	public LogFileReaderV2(File indexPath, File dataPath) throws IOException, InvalidLogFileHeaderException {
+		this(indexPath, dataPath, false);
+	}
+
+	/**
+	 * @param mapped
+	 *            map index and data file to memory and read blocks from the
+	 *            mapping. use only for closed tablets, because mapping is not
+	 *            released until it is garbage collected and appended logs are
+	 *            not visible.
+	 */
+	public LogFileReaderV2(File indexPath, File dataPath, boolean mapped) throws IOException, InvalidLogFileHeaderException {
 		this.indexPath = indexPath;
 		this.dataPath = dataPath;
 		this.indexFile = new RandomAccessFile(indexPath, "r");
@@ -57,24 +91,11 @@ public class LogFileReaderV2 extends LogFileReader {
 		if (indexFileHeader.version() != 2)
 			throw new InvalidLogFileHeaderException("version not match, index file " + indexPath.getAbsolutePath());
 
-		long length = indexFile.length() - 4;
-		long pos = indexFileHeader.size();
-		while (pos < length) {
-			indexFile.seek(pos);
-			IndexBlockHeader header = new IndexBlockHeader(indexFile);
-			header.fp = pos;
-			header.ascLogCount = totalCount;
-			totalCount += header.logCount;
-			indexBlockHeaders.add(header);
-			pos += 4 + header.logCount * INDEX_ITEM_SIZE;
-		}
+		if (mapped)
+			indexMap = map(indexFile, indexPath);
 
-		long t = 0;
-		for (int i = indexBlockHeaders.size() - 1; i >= 0; i--) {
-			IndexBlockHeader h = indexBlockHeaders.get(i);
-			h.dscLogCount = t;
-			t += h.logCount;
-		}
+		indexPos = indexFileHeader.size();
+		loadIndexBlocks(Integer.MAX_VALUE);
 
 		logger.trace("kraken logstorage: {} has {} blocks, {} logs.",
 				new Object[] { indexPath.getName(), indexBlockHeaders.size(), totalCount });
@@ -84,36 +105,175 @@ public class LogFileReaderV2 extends LogFileReader {
 		if (dataFileHeader.version() != 2)
 			throw new InvalidLogFileHeaderException("version not match");
 
+		if (mapped)
+			dataMap = map(dataFile, dataPath);
+
 		byte[] ext = dataFileHeader.getExtraData();
 		int dataBlockSize = getInt(dataFileHeader.getExtraData());
-		dataBuffer = ByteBuffer.allocate(dataBlockSize);
+		blockBuffer = ByteBuffer.allocate(dataBlockSize);
+		dataBuffer = blockBuffer;
 		buf = new byte[dataBlockSize];
 
-		if (new String(ext, 4, ext.length - 4).trim().equals("deflater"))
-			useDeflater = true;
+		// data file without codec name may contain deflated blocks
+		String codecName = LogBlockCodecRegistry.getCodecName(ext);
+		if (codecName != null) {
+			codec = LogBlockCodecRegistry.newCodec(codecName, 0);
+			useCodec = true;
+		} else {
+			codec = LogBlockCodecRegistry.newCodec(DeflaterBlockCodec.NAME, 0);
+		}
+
+		dataPos = dataFileHeader.size();
+		loadDataBlocks();
 
-		length = dataFile.length();
-		pos = dataFileHeader.size();
-		while (pos < length) {
-			if (pos < 0)
-				throw new IOException("negative seek offset " + pos + ", index file: " + indexPath.getAbsolutePath()
+		if (indexBlockHeaders.size() > dataBlockHeaders.size())
+			throw new IOException("invalid log file, index file: " + indexPath + ", data file: " + dataPath);
+	}
+
+	/**
+	 * Load blocks which are appended after open or last refresh, so that
+	 * reader of online tablet can be reused. Mapped reader cannot see
+	 * appended blocks.
+	 * 
+	 * @return false if reader is mapped and should be reopened
+	 */
+	public boolean refresh() throws IOException {
+		if (indexMap != null || dataMap != null)
+			return false;
+
+		// index block is written after its data block
+		int dataBlocks = dataBlockHeaders.size();
+		loadDataBlocks();
+		loadIndexBlocks(dataBlockHeaders.size());
+
+		// zone map is appended with blocks
+		if (dataBlockHeaders.size() > dataBlocks) {
+			zoneMap = null;
+			zoneMapLoaded = false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * load complete index blocks from indexPos, partially written block at
+	 * the end is loaded at next refresh
+	 */
+	private void loadIndexBlocks(int maxBlocks) throws IOException {
+		long fileLength = indexMap != null ? indexMap.capacity() : indexFile.length();
+		long length = fileLength - 4;
+		int loaded = indexBlockHeaders.size();
+		while (indexPos < length && indexBlockHeaders.size() < maxBlocks) {
+			int logCount = 0;
+			try {
+				logCount = readIndexInt(indexPos);
+			} catch (IOException e) {
+				logger.error("kraken logstorage: broken index file - " + indexPath.getAbsolutePath());
+				throw e;
+			}
+
+			if (indexPos + 4 + (long) logCount * INDEX_ITEM_SIZE > fileLength)
+				break;
+
+			IndexBlockHeader header = new IndexBlockHeader(logCount);
+			header.fp = indexPos;
+			header.ascLogCount = totalCount;
+			totalCount += header.logCount;
+			indexBlockHeaders.add(header);
+			indexPos += 4 + header.logCount * INDEX_ITEM_SIZE;
+		}
+
+		if (indexBlockHeaders.size() == loaded)
+			return;
+
+		long t = 0;
+		for (int i = indexBlockHeaders.size() - 1; i >= 0; i--) {
+			IndexBlockHeader h = indexBlockHeaders.get(i);
+			h.dscLogCount = t;
+			t += h.logCount;
+		}
+	}
+
+	/**
+	 * load complete data block headers from dataPos
+	 */
+	private void loadDataBlocks() throws IOException {
+		long length = dataMap != null ? dataMap.capacity() : dataFile.length();
+		while (dataPos < length) {
+			if (dataPos < 0)
+				throw new IOException("negative seek offset " + dataPos + ", index file: " + indexPath.getAbsolutePath()
 						+ ", data file: " + dataPath.getAbsolutePath());
 
+			if (length - dataPos < 24)
+				break;
+
 			try {
-				dataFile.seek(pos);
-				DataBlockHeader header = new DataBlockHeader(dataFile);
-				header.fp = pos;
+				DataBlockHeader header = new DataBlockHeader(readDataBlockHeader(dataPos));
+				if (dataPos + 24 + header.compressedLength > length)
+					break;
+
+				header.fp = dataPos;
 				dataBlockHeaders.add(header);
-				pos += 24 + header.compressedLength;
+				dataPos += 24 + header.compressedLength;
 			} catch (BufferUnderflowException e) {
-				logger.error("kraken logstorage: buffer underflow at position {}, data file [{}]", pos,
+				logger.error("kraken logstorage: buffer underflow at position {}, data file [{}]", dataPos,
 						dataPath.getAbsolutePath());
 				throw e;
 			}
 		}
+	}
 
-		if (indexBlockHeaders.size() > dataBlockHeaders.size())
-			throw new IOException("invalid log file, index file: " + indexPath + ", data file: " + dataPath);
+	private MappedByteBuffer map(RandomAccessFile f, File path) throws IOException {
+		long length = f.length();
+		if (length > Integer.MAX_VALUE) {
+			logger.debug("kraken logstorage: cannot map file larger than 2GB, [{}]", path.getAbsolutePath());
+			return null;
+		}
+
+		return f.getChannel().map(MapMode.READ_ONLY, 0, length);
+	}
+
+	private int readIndexInt(long pos) throws IOException {
+		if (indexMap != null)
+			return indexMap.getInt((int) pos);
+
+		indexFile.seek(pos);
+		return indexFile.readInt();
+	}
+
+	/**
+	 * @return log data offsets of index block, starting from position 0
+	 */
+	private ByteBuffer readIndexBlock(IndexBlockHeader index) throws IOException {
+		if (indexMap != null) {
+			ByteBuffer bb = indexMap.duplicate();
+			bb.position((int) index.fp + 4);
+			bb.limit(bb.position() + index.logCount * INDEX_ITEM_SIZE);
+			return bb.slice();
+		}
+
+		ByteBuffer indexBuffer = ByteBuffer.allocate(index.logCount * INDEX_ITEM_SIZE);
+		indexFile.seek(index.fp + 4);
+		indexFile.read(indexBuffer.array());
+		return indexBuffer;
+	}
+
+	private ByteBuffer readDataBlockHeader(long pos) throws IOException {
+		if (dataMap != null) {
+			dataMap.position((int) pos);
+			return dataMap;
+		}
+
+		try {
+			dataFile.seek(pos);
+			dataFile.readFully(dataBlockHeader.array());
+		} catch (IOException e) {
+			logger.error("kraken logstorage: broken data file - " + dataPath.getAbsolutePath());
+			throw e;
+		}
+
+		dataBlockHeader.position(0);
+		return dataBlockHeader;
 	}
 
 	private int getInt(byte[] extraData) {
@@ -125,6 +285,14 @@ public class LogFileReaderV2 extends LogFileReader {
 		return value;
 	}
 
+	/**
+	 * share decompressed blocks with other readers. use for random lookups
+	 * only, full scan will evict all other blocks.
+	 */
+	public void setBlockCache(LogBlockCache blockCache) {
+		this.blockCache = blockCache;
+	}
+
 	public long count() {
 		return totalCount;
 	}
@@ -145,8 +313,7 @@ public class LogFileReaderV2 extends LogFileReader {
 			else if (header.firstId + header.logCount <= id)
 				l = m + 1;
 			else {
-				indexFile.seek(header.fp + (id - header.firstId + 1) * INDEX_ITEM_SIZE);
-				int offset = indexFile.readInt();
+				int offset = readIndexInt(header.fp + (id - header.firstId + 1) * INDEX_ITEM_SIZE);
 				return getLogRecord(dataBlockHeaders.get(m), offset);
 			}
 		}
@@ -172,8 +339,26 @@ public class LogFileReaderV2 extends LogFileReader {
 	@Override
 	public void traverse(Date from, Date to, long offset, long limit, LogRecordCallback callback) throws IOException,
 			InterruptedException {
+		traverse(from, to, offset, limit, null, callback);
+	}
+
+	/**
+	 * @param offset
+	 *            logs in time range to skip before callback. callback which
+	 *            rejects logs should be given zero offset, and skip accepted
+	 *            logs by itself.
+	 * @param filter
+	 *            skip blocks which cannot contain matching logs. skipped
+	 *            blocks are not counted for offset, so callback should apply
+	 *            the same condition to the logs of other blocks.
+	 */
+	public void traverse(Date from, Date to, long offset, long limit, LogBlockFilter filter, LogRecordCallback callback)
+			throws IOException, InterruptedException {
 		for (int i = indexBlockHeaders.size() - 1; i >= 0; i--) {
 			IndexBlockHeader index = indexBlockHeaders.get(i);
+			if (filter != null && !mayMatch(dataBlockHeaders.get(i), filter))
+				continue;
+
 			if (index.logCount <= offset) {
 				offset -= index.logCount;
 				continue;
@@ -184,34 +369,83 @@ public class LogFileReaderV2 extends LogFileReader {
 			Long toTime = (to == null) ? null : to.getTime();
 			if ((fromTime == null || data.endDate >= fromTime) && (toTime == null || data.startDate <= toTime)) {
 				long matched = readBlock(index, data, fromTime, toTime, offset, limit, callback);
-				if (matched < offset)
+				if (matched < offset) {
 					offset -= matched;
-				else {
-					matched -= offset;
-					offset = 0;
+					continue;
+				}
+
+				matched -= offset;
+				offset = 0;
+
+				// zero or negative limit means no limit, and block without
+				// matched log should not stop traverse
+				if (limit > 0) {
 					limit -= matched;
+					if (limit == 0)
+						return;
 				}
+			}
+		}
+	}
+
+	public int getBlockCount() {
+		return indexBlockHeaders.size();
+	}
+
+	/**
+	 * traverse blocks in [begin, end) range in descending order, used for
+	 * splitting tablet scan
+	 */
+	public void traverseBlocks(int begin, int end, Date from, Date to, LogRecordCallback callback) throws IOException,
+			InterruptedException {
+		traverseBlocks(begin, end, from, to, null, callback);
+	}
+
+	public void traverseBlocks(int begin, int end, Date from, Date to, LogBlockFilter filter, LogRecordCallback callback)
+			throws IOException, InterruptedException {
+		Long fromTime = (from == null) ? null : from.getTime();
+		Long toTime = (to == null) ? null : to.getTime();
+
+		for (int i = end - 1; i >= begin; i--) {
+			IndexBlockHeader index = indexBlockHeaders.get(i);
+			DataBlockHeader data = dataBlockHeaders.get(i);
+			if (filter != null && !mayMatch(data, filter))
+				continue;
 
-				if (limit == 0)
-					return;
+			if ((fromTime == null || data.endDate >= fromTime) && (toTime == null || data.startDate <= toTime))
+				readBlock(index, data, fromTime, toTime, 0, Long.MAX_VALUE, callback);
+		}
+	}
+
+	private boolean mayMatch(DataBlockHeader data, LogBlockFilter filter) {
+		if (!zoneMapLoaded) {
+			zoneMapLoaded = true;
+			File zoneMapPath = LogZoneMap.getZoneMapFile(dataPath);
+			if (zoneMapPath.exists()) {
+				try {
+					zoneMap = new LogZoneMap(zoneMapPath);
+				} catch (Exception e) {
+					logger.warn("kraken logstorage: cannot load zone map [" + zoneMapPath.getAbsolutePath() + "]", e);
+				}
 			}
 		}
+
+		if (zoneMap == null)
+			return true;
+
+		LogBlockZone zone = zoneMap.getZone(data.fp, data.startDate, data.endDate, data.compressedLength);
+		return zone == null || filter.mayMatch(zone);
 	}
 
 	private long readBlock(IndexBlockHeader index, DataBlockHeader data, Long from, Long to, long offset, long limit,
 			LogRecordCallback callback) throws IOException, InterruptedException {
-		List<Integer> offsets = new ArrayList<Integer>();
+		ByteBuffer offsets = readIndexBlock(index);
 		long matched = 0;
 
-		indexFile.seek(index.fp + 4);
-		ByteBuffer indexBuffer = ByteBuffer.allocate(index.logCount * 4);
-		indexFile.read(indexBuffer.array());
-		for (int i = 0; i < index.logCount; i++)
-			offsets.add(indexBuffer.getInt());
-
 		// reverse order
-		for (int i = offsets.size() - 1; i >= 0; i--) {
-			long date = getLogRecordDate(data, offsets.get(i));
+		for (int i = index.logCount - 1; i >= 0; i--) {
+			int logOffset = offsets.getInt(i * INDEX_ITEM_SIZE);
+			long date = getLogRecordDate(data, logOffset);
 			if (from != null && date < from)
 				return matched;
 			if (to != null && date > to)
@@ -222,7 +456,7 @@ public class LogFileReaderV2 extends LogFileReader {
 				continue;
 			}
 
-			if (callback.onLog(getLogRecord(data, offsets.get(i)))) {
+			if (callback.onLog(getLogRecord(data, logOffset))) {
 				if (++matched == offset + limit)
 					return matched;
 			}
@@ -244,7 +478,16 @@ public class LogFileReaderV2 extends LogFileReader {
 		dataBuffer.position(offset);
 		long id = dataBuffer.getLong();
 		Date date = new Date(dataBuffer.getLong());
-		byte[] b = new byte[dataBuffer.getInt()];
+		int length = dataBuffer.getInt();
+
+		// block is never overwritten, slice it
+		if (immutableBlock) {
+			ByteBuffer slice = dataBuffer.slice();
+			slice.limit(length);
+			return new LogRecord(date, id, slice);
+		}
+
+		byte[] b = new byte[length];
 		dataBuffer.get(b);
 
 		return new LogRecord(date, id, ByteBuffer.wrap(b));
@@ -254,30 +497,71 @@ public class LogFileReaderV2 extends LogFileReader {
 		if (!header.equals(nowDataBlock)) {
 			nowDataBlock = header;
 
-			dataBuffer.clear();
-			dataFile.seek(header.fp + 24L);
-
 			// assume deflate if original length != compress length for backward
 			// compatibility
-			if (useDeflater || header.origLength != header.compressedLength) {
-				dataFile.readFully(buf, 0, header.compressedLength);
-				decompresser.setInput(buf, 0, header.compressedLength);
-				try {
-					dataBuffer.limit(header.origLength);
-					decompresser.inflate(dataBuffer.array());
-					decompresser.reset();
-				} catch (DataFormatException e) {
-					throw new IOException(e);
+			if (!useCodec && header.origLength == header.compressedLength) {
+				if (dataMap != null) {
+					int fp = (int) header.fp + 24;
+					ByteBuffer bb = dataMap.duplicate();
+					bb.position(fp);
+					bb.limit(fp + header.origLength);
+					dataBuffer = bb.slice();
+					immutableBlock = true;
+				} else {
+					dataBuffer = blockBuffer;
+					dataBuffer.clear();
+					dataFile.seek(header.fp + 24L);
+					dataFile.readFully(dataBuffer.array(), 0, header.origLength);
+					immutableBlock = false;
 				}
+				return;
+			}
+
+			if (blockCache != null) {
+				byte[] block = blockCache.get(dataPath, header.fp);
+				if (block == null) {
+					block = new byte[header.origLength];
+					decompressBlock(header, block);
+					blockCache.put(dataPath, header.fp, block);
+				}
+
+				dataBuffer = ByteBuffer.wrap(block);
+				immutableBlock = true;
+			} else if (dataMap != null) {
+				// decompress to new array, records are sliced from it
+				byte[] block = new byte[header.origLength];
+				decompressBlock(header, block);
+				dataBuffer = ByteBuffer.wrap(block);
+				immutableBlock = true;
 			} else {
-				dataFile.readFully(dataBuffer.array(), 0, header.origLength);
+				dataBuffer = blockBuffer;
+				dataBuffer.clear();
+				dataBuffer.limit(header.origLength);
+				decompressBlock(header, dataBuffer.array());
+				immutableBlock = false;
 			}
 		}
 	}
 
+	private void decompressBlock(DataBlockHeader header, byte[] block) throws IOException {
+		// compressed block can be larger than block size
+		if (buf.length < header.compressedLength)
+			buf = new byte[header.compressedLength];
+
+		if (dataMap != null) {
+			dataMap.position((int) header.fp + 24);
+			dataMap.get(buf, 0, header.compressedLength);
+		} else {
+			dataFile.seek(header.fp + 24L);
+			dataFile.readFully(buf, 0, header.compressedLength);
+		}
+
+		codec.decompress(buf, 0, header.compressedLength, block, 0, header.origLength);
+	}
+
 	@Override
 	public void close() throws IOException {
-		decompresser.end();
+		codec.close();
 		indexFile.close();
 		dataFile.close();
 	}
@@ -293,13 +577,8 @@ public class LogFileReaderV2 extends LogFileReader {
 		private long ascLogCount;
 		private long dscLogCount;
 
-		private IndexBlockHeader(RandomAccessFile f) throws IOException {
-			try {
-				this.logCount = f.readInt();
-			} catch (IOException e) {
-				logger.error("kraken logstorage: broken index file - " + indexPath.getAbsolutePath());
-				throw e;
-			}
+		private IndexBlockHeader(int logCount) {
+			this.logCount = logCount;
 			this.firstId = indexBlockNextId;
 			indexBlockNextId += logCount;
 		}
@@ -320,18 +599,11 @@ public class LogFileReaderV2 extends LogFileReader {
 		private int origLength;
 		private int compressedLength;
 
-		private DataBlockHeader(RandomAccessFile f) throws IOException {
-			try {
-				f.readFully(dataBlockHeader.array());
-			} catch (IOException e) {
-				logger.error("kraken logstorage: broken data file - " + dataPath.getAbsolutePath());
-				throw e;
-			}
-			dataBlockHeader.position(0);
-			this.startDate = dataBlockHeader.getLong();
-			this.endDate = dataBlockHeader.getLong();
-			this.origLength = dataBlockHeader.getInt();
-			this.compressedLength = dataBlockHeader.getInt();
+		private DataBlockHeader(ByteBuffer bb) {
+			this.startDate = bb.getLong();
+			this.endDate = bb.getLong();
+			this.origLength = bb.getInt();
+			this.compressedLength = bb.getInt();
 		}
 	}
 
@@ -355,7 +627,7 @@ public class LogFileReaderV2 extends LogFileReader {
 		private IndexBlockHeader currentIndexHeader;
 		private int currentIndexBlockNo;
 		private DataBlockHeader currentDataHeader;
-		private ArrayList<Integer> currentOffsets = new ArrayList<Integer>();
+		private ByteBuffer currentOffsets;
 
 		private final boolean ascending;
 
@@ -403,12 +675,7 @@ public class LogFileReaderV2 extends LogFileReader {
 
 			// read log data offsets from index block
 			try {
-				ByteBuffer indexBuffer = ByteBuffer.allocate(currentIndexHeader.logCount * 4);
-				indexFile.seek(currentIndexHeader.fp + 4);
-				indexFile.read(indexBuffer.array());
-				currentOffsets = new ArrayList<Integer>(currentIndexHeader.logCount + 2);
-				for (int i = 0; i < currentIndexHeader.logCount; i++)
-					currentOffsets.add(indexBuffer.getInt());
+				currentOffsets = readIndexBlock(currentIndexHeader);
 			} catch (IOException e) {
 				throw new IllegalStateException("cannot load data offsets from index file", e);
 			}
@@ -466,7 +733,7 @@ public class LogFileReaderV2 extends LogFileReader {
 				if (n < 0)
 					throw new IllegalStateException("n " + n + ", current index no: " + currentIndexBlockNo
 							+ ", current index count " + currentIndexHeader.logCount + ", relative " + relative);
-				LogRecord record = getLogRecord(currentDataHeader, currentOffsets.get(n));
+				LogRecord record = getLogRecord(currentDataHeader, currentOffsets.getInt(n * INDEX_ITEM_SIZE));
 				pos++;
 				return record;
 			} catch (IOException e) {
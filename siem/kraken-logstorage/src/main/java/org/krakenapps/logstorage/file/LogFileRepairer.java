@@ -23,8 +23,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,7 +46,7 @@ public class LogFileRepairer {
 			dataFile = new RandomAccessFile(dataPath, "rw");
 
 			LogFileHeader indexFileHeader = LogFileHeader.extractHeader(indexFile, indexPath);
-			LogFileHeader.extractHeader(dataFile, dataPath);
+			LogFileHeader dataFileHeader = LogFileHeader.extractHeader(dataFile, dataPath);
 
 			indexFile.seek(indexFileHeader.size());
 
@@ -63,7 +61,7 @@ public class LogFileRepairer {
 			}
 
 			if (indexBlocks.size() < dataBlockHeaders.size())
-				return generate(indexPath, dataPath, indexFile, dataFile, indexBlocks, dataBlockHeaders);
+				return generate(indexPath, dataPath, dataFileHeader, indexFile, dataFile, indexBlocks, dataBlockHeaders);
 			else
 				return truncate(indexPath, dataPath, indexFile, dataFile, indexBlocks, dataBlockHeaders);
 		} finally {
@@ -89,8 +87,9 @@ public class LogFileRepairer {
 		}
 	}
 
-	private LogFileFixReport generate(File indexPath, File dataPath, RandomAccessFile indexFile, RandomAccessFile dataFile,
-			List<LogIndexBlock> indexBlocks, List<LogDataBlockHeader> dataBlockHeaders) throws IOException {
+	private LogFileFixReport generate(File indexPath, File dataPath, LogFileHeader dataFileHeader, RandomAccessFile indexFile,
+			RandomAccessFile dataFile, List<LogIndexBlock> indexBlocks, List<LogDataBlockHeader> dataBlockHeaders)
+			throws IOException {
 		logger.trace("kraken logstorage: checking incomplete index block, file [{}]", indexPath);
 
 		// truncate data file
@@ -119,7 +118,12 @@ public class LogFileRepairer {
 					lastIndexBlockSize);
 		}
 
-		Inflater decompresser = new Inflater();
+		// old data file without codec name has deflated blocks
+		String codecName = LogBlockCodecRegistry.getCodecName(dataFileHeader.getExtraData());
+		if (codecName == null)
+			codecName = DeflaterBlockCodec.NAME;
+
+		LogBlockCodec codec = LogBlockCodecRegistry.newCodec(codecName, 0);
 		int addedLogs = 0;
 		try {
 			// generate index block (support only v2 block recovery)
@@ -131,7 +135,7 @@ public class LogFileRepairer {
 
 			for (int i = 0; i < missingBlockCount; i++) {
 				LogDataBlockHeader blockHeader = dataBlockHeaders.get(offset + i);
-				ByteBuffer bb = readDataBlockV2(decompresser, dataFile, blockHeader);
+				ByteBuffer bb = readDataBlockV2(codec, dataFile, blockHeader);
 				List<Integer> logOffsets = readLogOffsets(bb);
 
 				// write index block
@@ -156,7 +160,7 @@ public class LogFileRepairer {
 			report.setAddedIndexBlocks(missingBlockCount);
 			return report;
 		} finally {
-			decompresser.end();
+			codec.close();
 		}
 	}
 
@@ -181,21 +185,15 @@ public class LogFileRepairer {
 			b[i] = (byte) ((l >> ((3 - i) * 8)) & 0xff);
 	}
 
-	private ByteBuffer readDataBlockV2(Inflater decompresser, RandomAccessFile dataFile, LogDataBlockHeader blockHeader)
+	private ByteBuffer readDataBlockV2(LogBlockCodec codec, RandomAccessFile dataFile, LogDataBlockHeader blockHeader)
 			throws IOException {
 		ByteBuffer output = ByteBuffer.allocate(blockHeader.getOriginalLength());
 		ByteBuffer input = ByteBuffer.allocate(blockHeader.getCompressedLength());
 
 		dataFile.seek(blockHeader.getFilePointer() + 24L);
 		dataFile.readFully(input.array(), 0, blockHeader.getCompressedLength());
-		decompresser.setInput(input.array(), 0, blockHeader.getCompressedLength());
-		try {
-			output.limit(blockHeader.getOriginalLength());
-			decompresser.inflate(output.array());
-			decompresser.reset();
-		} catch (DataFormatException e) {
-			throw new IOException(e);
-		}
+		codec.decompress(input.array(), 0, blockHeader.getCompressedLength(), output.array(), 0,
+				blockHeader.getOriginalLength());
 
 		return output;
 	}
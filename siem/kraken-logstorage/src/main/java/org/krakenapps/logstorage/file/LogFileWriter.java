@@ -21,10 +21,24 @@ import java.io.RandomAccessFile;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public abstract class LogFileWriter {
 	public static LogFileWriter getLogFileWriter(File indexPath, File dataPath, String defaultLogVersion)
 			throws InvalidLogFileHeaderException, IOException {
+		return getLogFileWriter(indexPath, dataPath, defaultLogVersion, null, null, LogFileWriterV2.DEFAULT_MAX_PENDING_BLOCKS);
+	}
+
+	/**
+	 * @param codecName
+	 *            block codec name of new v2 data file, deflater if null
+	 * @param compressor
+	 *            compress and write v2 blocks asynchronously if not null
+	 * @param maxPendingBlocks
+	 *            max in-flight blocks before flush blocks the caller
+	 */
+	public static LogFileWriter getLogFileWriter(File indexPath, File dataPath, String defaultLogVersion, String codecName,
+			Executor compressor, int maxPendingBlocks) throws InvalidLogFileHeaderException, IOException {
 		LogFileWriter writer = null;
 
 		if (indexPath.exists() && dataPath.exists()) {
@@ -35,7 +49,7 @@ public abstract class LogFileWriter {
 			if (header.version() == 1)
 				writer = new LogFileWriterV1(indexPath, dataPath);
 			else if (header.version() == 2)
-				writer = new LogFileWriterV2(indexPath, dataPath);
+				writer = new LogFileWriterV2(indexPath, dataPath, codecName, compressor, maxPendingBlocks);
 		} else if (!indexPath.exists() && dataPath.exists())
 			throw new IOException("index file not exists");
 		else if (indexPath.exists() && !dataPath.exists())
@@ -47,7 +61,7 @@ public abstract class LogFileWriter {
 			if (defaultLogVersion.equals("v1"))
 				writer = new LogFileWriterV1(indexPath, dataPath);
 			else if (defaultLogVersion.equals("v2"))
-				writer = new LogFileWriterV2(indexPath, dataPath);
+				writer = new LogFileWriterV2(indexPath, dataPath, codecName, compressor, maxPendingBlocks);
 			else
 				throw new IOException("unknown default log version: " + defaultLogVersion);
 		}
@@ -17,19 +17,25 @@ package org.krakenapps.logstorage.file;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.Deflater;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * NOT thread-safe
+ * NOT thread-safe. If compressor executor is given, full blocks are
+ * compressed and written by the executor threads in block order while
+ * the caller continues to fill a fresh buffer.
  * 
  * @author xeraph
  * 
@@ -40,6 +46,7 @@ public class LogFileWriterV2 extends LogFileWriter {
 	private static final int INDEX_ITEM_SIZE = 4;
 	public static final int DEFAULT_BLOCK_SIZE = 640 * 1024; // 640KB
 	public static final int DEFAULT_LEVEL = 3;
+	public static final int DEFAULT_MAX_PENDING_BLOCKS = 4;
 
 	private RandomAccessFile indexFile;
 	private RandomAccessFile dataFile;
@@ -56,7 +63,12 @@ public class LogFileWriterV2 extends LogFileWriter {
 	private ByteBuffer indexBuffer;
 	private ByteBuffer dataBuffer;
 	private byte[] compressed;
-	private Deflater compresser;
+
+	/**
+	 * block codec of data file, null if blocks are not compressed
+	 */
+	private LogBlockCodec codec;
+	private String codecName;
 	private int compressLevel;
 
 	private File indexPath;
@@ -65,23 +77,61 @@ public class LogFileWriterV2 extends LogFileWriter {
 
 	private List<LogRecord> buffer = new ArrayList<LogRecord>();
 
+	/**
+	 * compress and write blocks asynchronously if not null
+	 */
+	private Executor compressor;
+	private int maxPendingBlocks;
+
+	/**
+	 * blocks handed to compressor but not written yet, in block order
+	 */
+	private LinkedList<PendingBlock> pendingBlocks = new LinkedList<PendingBlock>();
+	private LinkedList<PendingBlock> freeBlocks = new LinkedList<PendingBlock>();
+	private Object writeLock = new Object();
+	private volatile IOException writeError;
+	private ByteBuffer blockHeaderBuffer = ByteBuffer.allocate(24);
+
+	/**
+	 * write block zones of these fields if not null
+	 */
+	private volatile Set<String> zoneMapFields;
+	private LogZoneMapWriter zoneMapWriter;
+
 	public LogFileWriterV2(File indexPath, File dataPath) throws IOException, InvalidLogFileHeaderException {
-		this(indexPath, dataPath, DEFAULT_BLOCK_SIZE);
+		this(indexPath, dataPath, null, null, DEFAULT_MAX_PENDING_BLOCKS);
 	}
 
-	// TODO: block size modification does not work
-	private LogFileWriterV2(File indexPath, File dataPath, int blockSize) throws IOException, InvalidLogFileHeaderException {
-		this(indexPath, dataPath, blockSize, DEFAULT_LEVEL);
-		this.indexPath = indexPath;
-		this.dataPath = dataPath;
+	/**
+	 * @param codecName
+	 *            block codec name for new data file. existing data file
+	 *            always keeps the codec in its header. deflater if null
+	 */
+	public LogFileWriterV2(File indexPath, File dataPath, String codecName, Executor compressor, int maxPendingBlocks)
+			throws IOException, InvalidLogFileHeaderException {
+		// TODO: block size modification does not work
+		this(indexPath, dataPath, DEFAULT_BLOCK_SIZE, DEFAULT_LEVEL, codecName, compressor, maxPendingBlocks);
 	}
 
 	public LogFileWriterV2(File indexPath, File dataPath, int blockSize, int level) throws IOException,
 			InvalidLogFileHeaderException {
+		this(indexPath, dataPath, blockSize, level, null, null, DEFAULT_MAX_PENDING_BLOCKS);
+	}
+
+	public LogFileWriterV2(File indexPath, File dataPath, int blockSize, int level, String codecName, Executor compressor,
+			int maxPendingBlocks) throws IOException, InvalidLogFileHeaderException {
 		// level 0 will not use compression (no zip metadata overhead)
 		if (level < 0 || level > 9)
 			throw new IllegalArgumentException("compression level should be between 0 and 9");
 
+		if (compressor != null && maxPendingBlocks < 1)
+			throw new IllegalArgumentException("max pending blocks should be positive");
+
+		this.indexPath = indexPath;
+		this.dataPath = dataPath;
+		this.compressor = compressor;
+		this.maxPendingBlocks = maxPendingBlocks;
+
 		boolean indexExists = indexPath.exists();
 		boolean dataExists = dataPath.exists();
 		this.indexFile = new RandomAccessFile(indexPath, "rw");
@@ -91,8 +141,6 @@ public class LogFileWriterV2 extends LogFileWriter {
 		this.indexBuffer = ByteBuffer.allocate(blockSize >> 6);
 		this.dataBuffer = ByteBuffer.allocate(blockSize);
 
-		this.compressed = new byte[blockSize];
-		this.compresser = new Deflater(level);
 		this.compressLevel = level;
 
 		// get index file header
@@ -108,21 +156,40 @@ public class LogFileWriterV2 extends LogFileWriter {
 		LogFileHeader dataFileHeader = null;
 		if (dataExists && dataFile.length() > 0) {
 			dataFileHeader = LogFileHeader.extractHeader(dataFile, dataPath);
+
+			// blocks of old data file without codec name are deflated
+			this.codecName = LogBlockCodecRegistry.getCodecName(dataFileHeader.getExtraData());
+			if (this.codecName == null && level > 0)
+				this.codecName = DeflaterBlockCodec.NAME;
 		} else {
+			if (level > 0)
+				this.codecName = (codecName != null) ? codecName : LogBlockCodecRegistry.DEFAULT_CODEC;
+
+			// validate codec name before writing header
+			if (this.codecName != null)
+				LogBlockCodecRegistry.newCodec(this.codecName, level).close();
+
 			dataFileHeader = new LogFileHeader((short) 2, LogFileHeader.MAGIC_STRING_DATA);
 			byte[] ext = new byte[4];
 			prepareInt(blockSize, ext);
-			if (level > 0) {
-				ext = new byte[12];
+			if (this.codecName != null) {
+				byte[] name = this.codecName.getBytes();
+				ext = new byte[4 + name.length];
 				prepareInt(blockSize, ext);
-				ByteBuffer bb = ByteBuffer.wrap(ext, 4, 8);
-				bb.put("deflater".getBytes());
+				ByteBuffer bb = ByteBuffer.wrap(ext, 4, name.length);
+				bb.put(name);
 			}
 
 			dataFileHeader.setExtraData(ext);
 			dataFile.write(dataFileHeader.serialize());
 		}
 
+		// pending blocks have their own codec and buffer
+		if (this.codecName != null && compressor == null) {
+			this.codec = LogBlockCodecRegistry.newCodec(this.codecName, level);
+			this.compressed = new byte[codec.maxCompressedLength(blockSize)];
+		}
+
 		// read last key
 		long length = indexFile.length();
 		long pos = indexFileHeader.size();
@@ -152,6 +219,22 @@ public class LogFileWriterV2 extends LogFileWriter {
 		dataFile.seek(dataFile.length());
 	}
 
+	/**
+	 * write min/max and bloom filter of given fields per block to zone map
+	 * file. should be called before first write.
+	 */
+	public void setZoneMapFields(Set<String> fields) throws IOException {
+		if (zoneMapWriter != null)
+			throw new IllegalStateException("zone map fields are already set: " + dataPath.getAbsolutePath());
+
+		try {
+			zoneMapWriter = new LogZoneMapWriter(LogZoneMap.getZoneMapFile(dataPath));
+			zoneMapFields = fields;
+		} catch (InvalidLogFileHeaderException e) {
+			throw new IOException("invalid zone map file of " + dataPath.getAbsolutePath(), e);
+		}
+	}
+
 	@Override
 	public long getLastKey() {
 		return lastKey;
@@ -233,7 +316,23 @@ public class LogFileWriterV2 extends LogFileWriter {
 
 	@Override
 	public List<LogRecord> getBuffer() {
-		return buffer;
+		if (compressor == null)
+			return buffer;
+
+		// logs in pending blocks are not readable from file yet. block being
+		// written is still pending, so wait until it is removed
+		synchronized (writeLock) {
+			synchronized (pendingBlocks) {
+				if (pendingBlocks.isEmpty())
+					return buffer;
+
+				List<LogRecord> logs = new ArrayList<LogRecord>();
+				for (PendingBlock block : pendingBlocks)
+					logs.addAll(block.records);
+				logs.addAll(buffer);
+				return logs;
+			}
+		}
 	}
 
 	@Override
@@ -242,6 +341,8 @@ public class LogFileWriterV2 extends LogFileWriter {
 		if (indexFile == null || dataFile == null)
 			return;
 
+		checkWriteError();
+
 		if (indexBuffer.position() == 0)
 			return;
 
@@ -251,68 +352,246 @@ public class LogFileWriterV2 extends LogFileWriter {
 		// mark last flush
 		lastFlush = new Date();
 
-		// write start date
-		prepareLong(blockStartLogTime, longbuf);
-		dataFile.write(longbuf);
-
-		// write end date
-		prepareLong(blockEndLogTime, longbuf);
-		dataFile.write(longbuf);
-
-		// write original size
-		dataBuffer.flip();
-		prepareInt(dataBuffer.limit(), intbuf);
-		dataFile.write(intbuf);
+		if (compressor != null) {
+			submitBlock();
+			return;
+		}
 
 		// compress data
+		dataBuffer.flip();
 		byte[] output = null;
 		int outputSize = 0;
 
-		if (compressLevel > 0) {
-			compresser.setInput(dataBuffer.array(), 0, dataBuffer.limit());
-			compresser.finish();
-			int compressedSize = compresser.deflate(compressed);
-
+		if (codec != null) {
 			output = compressed;
-			outputSize = compressedSize;
+			outputSize = codec.compress(dataBuffer.array(), 0, dataBuffer.limit(), compressed, 0);
 		} else {
 			output = dataBuffer.array();
 			outputSize = dataBuffer.limit();
 		}
 
-		// write compressed size
-		prepareInt(outputSize, intbuf);
-		dataFile.write(intbuf);
+		indexBuffer.flip();
+		LogBlockZone zone = buildZone(buffer);
+		writeBlock(blockStartLogTime, blockEndLogTime, dataBuffer.limit(), output, outputSize, blockLogCount, indexBuffer,
+				zone);
+
+		dataBuffer.clear();
+		indexBuffer.clear();
+
+		blockStartLogTime = null;
+		blockEndLogTime = null;
+		blockLogCount = 0;
+		buffer.clear();
+	}
+
+	private LogBlockZone buildZone(List<LogRecord> records) {
+		Set<String> fields = zoneMapFields;
+		if (fields == null)
+			return null;
+
+		LogBlockZone zone = LogBlockZone.build(records, fields);
+		if (zone == null)
+			logger.warn("kraken logstorage: cannot build block zone of {}, undecodable log", dataPath.getAbsolutePath());
+		return zone;
+	}
+
+	private void writeBlock(long startTime, long endTime, int origSize, byte[] output, int outputSize, int logCount,
+			ByteBuffer index, LogBlockZone zone) throws IOException {
+		long fp = dataFile.getFilePointer();
+
+		// do not share intbuf and longbuf, compressor threads write blocks
+		// while caller thread is writing logs to next block
+		blockHeaderBuffer.clear();
+		blockHeaderBuffer.putLong(startTime);
+		blockHeaderBuffer.putLong(endTime);
+		blockHeaderBuffer.putInt(origSize);
+		blockHeaderBuffer.putInt(outputSize);
+
+		// write start date, end date, original size, and compressed size
+		dataFile.write(blockHeaderBuffer.array(), 0, 24);
 
 		// write compressed logs
 		dataFile.write(output, 0, outputSize);
-
-		dataBuffer.clear();
-		compresser.reset();
 		// dataFile.getFD().sync();
 
 		// write log count
-		prepareInt(blockLogCount, intbuf);
-		indexFile.write(intbuf);
+		blockHeaderBuffer.clear();
+		blockHeaderBuffer.putInt(logCount);
+		indexFile.write(blockHeaderBuffer.array(), 0, 4);
 
 		// write log indexes
-		indexBuffer.flip();
-		indexFile.write(indexBuffer.array(), 0, indexBuffer.limit());
-		indexBuffer.clear();
+		indexFile.write(index.array(), 0, index.limit());
 		// indexFile.getFD().sync();
 
+		// zone is written last, missing zone only disables block skip
+		if (zone != null && zoneMapWriter != null) {
+			try {
+				zoneMapWriter.write(zone, fp, startTime, endTime, outputSize);
+			} catch (IOException e) {
+				logger.error("kraken logstorage: cannot write block zone, zone map disabled for " + dataPath.getAbsolutePath(),
+						e);
+				zoneMapFields = null;
+			}
+		}
+	}
+
+	/**
+	 * hand over current block to compressor and continue with fresh buffers.
+	 * blocks caller if too many blocks are in flight.
+	 */
+	private void submitBlock() throws IOException {
+		PendingBlock block = null;
+		synchronized (pendingBlocks) {
+			try {
+				while (pendingBlocks.size() >= maxPendingBlocks && writeError == null)
+					pendingBlocks.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting pending block, " + dataPath.getAbsolutePath());
+			}
+
+			checkWriteError();
+
+			if (freeBlocks.isEmpty())
+				block = new PendingBlock(dataBuffer.capacity(), indexBuffer.capacity(), newCodec());
+			else
+				block = freeBlocks.removeFirst();
+
+			// swap buffers
+			ByteBuffer b = block.dataBuffer;
+			block.dataBuffer = dataBuffer;
+			dataBuffer = b;
+
+			b = block.indexBuffer;
+			block.indexBuffer = indexBuffer;
+			indexBuffer = b;
+
+			block.records = buffer;
+			block.startTime = blockStartLogTime;
+			block.endTime = blockEndLogTime;
+			block.logCount = blockLogCount;
+			block.compressed = false;
+
+			pendingBlocks.add(block);
+		}
+
+		buffer = new ArrayList<LogRecord>();
 		blockStartLogTime = null;
 		blockEndLogTime = null;
 		blockLogCount = 0;
-		buffer.clear();
+
+		CompressTask task = new CompressTask(block);
+		try {
+			compressor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// compressor is shutting down
+			task.run();
+		}
+	}
+
+	/**
+	 * write all leading compressed blocks. any thread which completes
+	 * compression can drain, but file writes are always in block order.
+	 * written block is removed from pending list before write lock is
+	 * released, so getBuffer() never returns logs which are readable from
+	 * file. pending list is not locked during file write, and caller thread
+	 * can submit next block meanwhile.
+	 */
+	private void writeCompressedBlocks() {
+		synchronized (writeLock) {
+			while (true) {
+				// only write lock owner removes head of pending list
+				PendingBlock block = null;
+				synchronized (pendingBlocks) {
+					block = pendingBlocks.peek();
+					if (block == null || !block.compressed)
+						return;
+				}
+
+				try {
+					if (writeError == null)
+						writeBlock(block.startTime, block.endTime, block.dataBuffer.limit(), block.output, block.outputSize,
+								block.logCount, block.indexBuffer, block.zone);
+				} catch (IOException e) {
+					logger.error("kraken logstorage: cannot write block to " + dataPath.getAbsolutePath(), e);
+					writeError = e;
+				}
+
+				synchronized (pendingBlocks) {
+					pendingBlocks.removeFirst();
+					block.dataBuffer.clear();
+					block.indexBuffer.clear();
+					block.records = null;
+					block.zone = null;
+					freeBlocks.add(block);
+					pendingBlocks.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void waitPendingBlocks() throws IOException {
+		if (compressor == null)
+			return;
+
+		synchronized (pendingBlocks) {
+			try {
+				while (!pendingBlocks.isEmpty())
+					pendingBlocks.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting pending blocks, " + dataPath.getAbsolutePath());
+			}
+		}
+
+		checkWriteError();
+	}
+
+	/**
+	 * compress tasks own pending blocks until written, so files and codecs
+	 * cannot be closed before. interrupt is restored after wait.
+	 */
+	private void waitPendingBlocksUninterruptibly() {
+		if (compressor == null)
+			return;
+
+		boolean interrupted = false;
+		synchronized (pendingBlocks) {
+			while (!pendingBlocks.isEmpty()) {
+				try {
+					pendingBlocks.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private LogBlockCodec newCodec() throws IOException {
+		if (codecName == null)
+			return null;
+		return LogBlockCodecRegistry.newCodec(codecName, compressLevel);
+	}
+
+	private void checkWriteError() throws IOException {
+		IOException e = writeError;
+		if (e != null)
+			throw new IOException("previous block write failed, " + dataPath.getAbsolutePath(), e);
 	}
 
 	public void sync() throws IOException {
 		if (indexFile == null || dataFile == null)
 			return;
 
+		waitPendingBlocks();
+
 		dataFile.getFD().sync();
 		indexFile.getFD().sync();
+		if (zoneMapWriter != null)
+			zoneMapWriter.sync();
 	}
 
 	private void prepareInt(int l, byte[] b) {
@@ -331,15 +610,98 @@ public class LogFileWriterV2 extends LogFileWriter {
 
 	@Override
 	public void close() throws IOException {
-		flush();
+		try {
+			flush();
+			waitPendingBlocks();
+		} finally {
+			// flush or wait can be interrupted while blocks are in flight
+			waitPendingBlocksUninterruptibly();
+
+			if (codec != null)
+				codec.close();
+
+			synchronized (pendingBlocks) {
+				for (PendingBlock block : freeBlocks)
+					if (block.codec != null)
+						block.codec.close();
+				freeBlocks.clear();
+			}
+
+			if (indexFile != null) {
+				indexFile.close();
+				indexFile = null;
+			}
+			if (dataFile != null) {
+				dataFile.close();
+				dataFile = null;
+			}
+			if (zoneMapWriter != null) {
+				zoneMapWriter.close();
+				zoneMapWriter = null;
+			}
+		}
+	}
+
+	private class PendingBlock {
+		private ByteBuffer dataBuffer;
+		private ByteBuffer indexBuffer;
+		private List<LogRecord> records;
+		private long startTime;
+		private long endTime;
+		private int logCount;
+		private LogBlockZone zone;
+
+		private LogBlockCodec codec;
+		private byte[] compressedBuffer;
+		private byte[] output;
+		private int outputSize;
+		private boolean compressed;
+
+		private PendingBlock(int blockSize, int indexSize, LogBlockCodec codec) {
+			this.dataBuffer = ByteBuffer.allocate(blockSize);
+			this.indexBuffer = ByteBuffer.allocate(indexSize);
+			this.codec = codec;
+			if (codec != null)
+				this.compressedBuffer = new byte[codec.maxCompressedLength(blockSize)];
+		}
+
+		private void compress() throws IOException {
+			dataBuffer.flip();
+			indexBuffer.flip();
+
+			zone = buildZone(records);
+
+			if (codec != null) {
+				outputSize = codec.compress(dataBuffer.array(), 0, dataBuffer.limit(), compressedBuffer, 0);
+				output = compressedBuffer;
+			} else {
+				output = dataBuffer.array();
+				outputSize = dataBuffer.limit();
+			}
+		}
+	}
 
-		if (indexFile != null) {
-			indexFile.close();
-			indexFile = null;
+	private class CompressTask implements Runnable {
+		private PendingBlock block;
+
+		private CompressTask(PendingBlock block) {
+			this.block = block;
 		}
-		if (dataFile != null) {
-			dataFile.close();
-			dataFile = null;
+
+		@Override
+		public void run() {
+			try {
+				block.compress();
+			} catch (Throwable t) {
+				logger.error("kraken logstorage: cannot compress block of " + dataPath.getAbsolutePath(), t);
+				writeError = new IOException("cannot compress block", t);
+			}
+
+			synchronized (pendingBlocks) {
+				block.compressed = true;
+			}
+
+			writeCompressedBlocks();
 		}
 	}
 }
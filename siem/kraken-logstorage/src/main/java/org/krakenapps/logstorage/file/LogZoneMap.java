@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Block zones of a data file, loaded from zone map sidecar file (.zmp). Zone
+ * map file has v2 log file header and length prefixed zone entries in block
+ * write order.
+ */
+public class LogZoneMap {
+	public static final String FILE_SUFFIX = ".zmp";
+
+	private Map<Long, LogBlockZone> zones = new HashMap<Long, LogBlockZone>();
+
+	/**
+	 * @return the zone map file path of the data file
+	 */
+	public static File getZoneMapFile(File dataPath) {
+		String name = dataPath.getName();
+		int p = name.lastIndexOf('.');
+		if (p >= 0)
+			name = name.substring(0, p);
+		return new File(dataPath.getParentFile(), name + FILE_SUFFIX);
+	}
+
+	public LogZoneMap(File path) throws IOException, InvalidLogFileHeaderException {
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			LogFileHeader header = LogFileHeader.extractHeader(f, path);
+			long length = f.length();
+			long pos = header.size();
+
+			// ignore partially written entry at the end
+			while (pos + 4 <= length) {
+				f.seek(pos);
+				int entryLength = f.readInt();
+				if (pos + 4 + entryLength > length)
+					break;
+
+				byte[] b = new byte[entryLength];
+				f.readFully(b);
+
+				// later entry wins if data file was truncated and rewritten
+				LogBlockZone zone = LogBlockZone.parse(ByteBuffer.wrap(b));
+				zones.put(zone.getFp(), zone);
+				pos += 4 + entryLength;
+			}
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * @return the zone of data block, or null if zone is not written or does
+	 *         not match with block header
+	 */
+	public LogBlockZone getZone(long fp, long startDate, long endDate, int compressedLength) {
+		LogBlockZone zone = zones.get(fp);
+		if (zone == null)
+			return null;
+
+		if (zone.getStartDate() != startDate || zone.getEndDate() != endDate
+				|| zone.getCompressedLength() != compressedLength)
+			return null;
+
+		return zone;
+	}
+
+	public int size() {
+		return zones.size();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Appends block zones to zone map sidecar file. NOT thread-safe, caller
+ * should write zones in block write order.
+ */
+public class LogZoneMapWriter {
+	private File path;
+	private RandomAccessFile file;
+	private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+	public LogZoneMapWriter(File path) throws IOException, InvalidLogFileHeaderException {
+		this.path = path;
+		boolean exists = path.exists();
+		this.file = new RandomAccessFile(path, "rw");
+
+		LogFileHeader header = null;
+		if (exists && file.length() > 0) {
+			header = LogFileHeader.extractHeader(file, path);
+		} else {
+			header = new LogFileHeader((short) 2, LogFileHeader.MAGIC_STRING_ZONEMAP);
+			file.write(header.serialize());
+		}
+
+		// cut partially written entry
+		long length = file.length();
+		long pos = header.size();
+		while (pos + 4 <= length) {
+			file.seek(pos);
+			int entryLength = file.readInt();
+			if (pos + 4 + entryLength > length)
+				break;
+			pos += 4 + entryLength;
+		}
+
+		if (pos < length)
+			file.setLength(pos);
+
+		file.seek(pos);
+	}
+
+	public File getPath() {
+		return path;
+	}
+
+	/**
+	 * @param fp
+	 *            the data block position in data file
+	 */
+	public void write(LogBlockZone zone, long fp, long startDate, long endDate, int compressedLength) throws IOException {
+		int length = zone.serializedLength();
+		if (buffer.capacity() < 4 + length)
+			buffer = ByteBuffer.allocate(4 + length);
+
+		buffer.clear();
+		buffer.putInt(length);
+		zone.serialize(buffer, fp, startDate, endDate, compressedLength);
+		file.write(buffer.array(), 0, buffer.position());
+	}
+
+	public void sync() throws IOException {
+		file.getFD().sync();
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pure java implementation of LZ4 block format. It compresses worse than
+ * deflater, but decompression is several times faster. Compression level is
+ * ignored.
+ */
+public class Lz4BlockCodec implements LogBlockCodec {
+	public static final String NAME = "lz4";
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int HASH_LOG = 16;
+	private static final int SKIP_STRENGTH = 6;
+
+	private int[] hashTable;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	public int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) throws IOException {
+		if (output.length - outputOffset < maxCompressedLength(inputLength))
+			throw new IOException("insufficient lz4 output buffer: " + (output.length - outputOffset));
+
+		if (hashTable == null)
+			hashTable = new int[1 << HASH_LOG];
+
+		Arrays.fill(hashTable, -1);
+
+		int end = inputOffset + inputLength;
+		int matchLimit = end - LAST_LITERALS;
+		int mfLimit = end - MF_LIMIT;
+
+		int sp = inputOffset;
+		int anchor = inputOffset;
+		int dp = outputOffset;
+
+		while (sp < mfLimit) {
+			int seq = readInt(input, sp);
+			int h = hash(seq);
+			int ref = hashTable[h];
+			hashTable[h] = sp;
+
+			if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(input, ref) != seq) {
+				sp += 1 + ((sp - anchor) >>> SKIP_STRENGTH);
+				continue;
+			}
+
+			// extend match backward
+			while (sp > anchor && ref > inputOffset && input[sp - 1] == input[ref - 1]) {
+				sp--;
+				ref--;
+			}
+
+			// extend match forward
+			int matchLength = MIN_MATCH;
+			while (sp + matchLength < matchLimit && input[sp + matchLength] == input[ref + matchLength])
+				matchLength++;
+
+			dp = writeSequence(input, anchor, sp - anchor, sp - ref, matchLength, output, dp);
+
+			sp += matchLength;
+			anchor = sp;
+
+			if (sp < mfLimit)
+				hashTable[hash(readInt(input, sp - 2))] = sp - 2;
+		}
+
+		dp = writeLastLiterals(input, anchor, end - anchor, output, dp);
+		return dp - outputOffset;
+	}
+
+	private int writeSequence(byte[] input, int literalOffset, int literalLength, int matchOffset, int matchLength,
+			byte[] output, int dp) {
+		int tokenPos = dp++;
+		int token = 0;
+
+		if (literalLength >= 15) {
+			token = 15 << 4;
+			dp = writeLength(literalLength - 15, output, dp);
+		} else {
+			token = literalLength << 4;
+		}
+
+		System.arraycopy(input, literalOffset, output, dp, literalLength);
+		dp += literalLength;
+
+		// little endian match offset
+		output[dp++] = (byte) matchOffset;
+		output[dp++] = (byte) (matchOffset >>> 8);
+
+		int length = matchLength - MIN_MATCH;
+		if (length >= 15) {
+			token |= 15;
+			dp = writeLength(length - 15, output, dp);
+		} else {
+			token |= length;
+		}
+
+		output[tokenPos] = (byte) token;
+		return dp;
+	}
+
+	private int writeLastLiterals(byte[] input, int offset, int length, byte[] output, int dp) {
+		if (length >= 15) {
+			output[dp++] = (byte) (15 << 4);
+			dp = writeLength(length - 15, output, dp);
+		} else {
+			output[dp++] = (byte) (length << 4);
+		}
+
+		System.arraycopy(input, offset, output, dp, length);
+		return dp + length;
+	}
+
+	private int writeLength(int length, byte[] output, int dp) {
+		while (length >= 255) {
+			output[dp++] = (byte) 255;
+			length -= 255;
+		}
+		output[dp++] = (byte) length;
+		return dp;
+	}
+
+	@Override
+	public void decompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset,
+			int originalLength) throws IOException {
+		int sp = inputOffset;
+		int end = inputOffset + inputLength;
+		int dp = outputOffset;
+		int outputEnd = outputOffset + originalLength;
+
+		if (outputEnd > output.length)
+			throw new IOException("insufficient lz4 output buffer: " + (output.length - outputOffset));
+
+		while (sp < end) {
+			int token = input[sp++] & 0xff;
+
+			// copy literals
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int b = 0;
+				do {
+					if (sp >= end)
+						throw new IOException("corrupted lz4 block, literal length overrun");
+					b = input[sp++] & 0xff;
+					literalLength += b;
+				} while (b == 255);
+			}
+
+			if (sp + literalLength > end || dp + literalLength > outputEnd)
+				throw new IOException("corrupted lz4 block, literal overrun");
+
+			System.arraycopy(input, sp, output, dp, literalLength);
+			sp += literalLength;
+			dp += literalLength;
+
+			// last sequence has literals only
+			if (sp == end)
+				break;
+
+			if (sp + 2 > end)
+				throw new IOException("corrupted lz4 block, match offset overrun");
+
+			int matchOffset = (input[sp] & 0xff) | ((input[sp + 1] & 0xff) << 8);
+			sp += 2;
+
+			int ref = dp - matchOffset;
+			if (matchOffset == 0 || ref < outputOffset)
+				throw new IOException("corrupted lz4 block, invalid match offset " + matchOffset);
+
+			int matchLength = token & 0x0f;
+			if (matchLength == 15) {
+				int b = 0;
+				do {
+					if (sp >= end)
+						throw new IOException("corrupted lz4 block, match length overrun");
+					b = input[sp++] & 0xff;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+
+			if (dp + matchLength > outputEnd)
+				throw new IOException("corrupted lz4 block, match overrun");
+
+			if (matchOffset >= matchLength) {
+				System.arraycopy(output, ref, output, dp, matchLength);
+				dp += matchLength;
+			} else {
+				// overlapped copy (repeating pattern)
+				for (int i = 0; i < matchLength; i++)
+					output[dp++] = output[ref++];
+			}
+		}
+
+		if (dp != outputEnd)
+			throw new IOException("corrupted lz4 block, expected " + originalLength + " bytes but " + (dp - outputOffset));
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8) | ((b[offset + 2] & 0xff) << 16)
+				| ((b[offset + 3] & 0xff) << 24);
+	}
+
+	private static int hash(int seq) {
+		return (seq * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	@Override
+	public void close() {
+		hashTable = null;
+	}
+
+	public static class Factory implements LogBlockCodecFactory {
+		@Override
+		public String getName() {
+			return NAME;
+		}
+
+		@Override
+		public LogBlockCodec newCodec(int level) {
+			return new Lz4BlockCodec();
+		}
+	}
+}
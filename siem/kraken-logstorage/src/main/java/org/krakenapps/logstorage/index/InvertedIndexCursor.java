@@ -25,4 +25,9 @@ public interface InvertedIndexCursor {
 	boolean hasNext();
 
 	long next() throws IOException;
+
+	/**
+	 * skip postings until next id is less than or equal to given id
+	 */
+	void skipTo(long id) throws IOException;
 }
@@ -17,7 +17,14 @@ package org.krakenapps.logstorage.index;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.krakenapps.logstorage.file.BufferedRandomAccessFileReader;
 import org.slf4j.Logger;
@@ -36,20 +43,77 @@ public class InvertedIndexReader {
 	private BufferedRandomAccessFileReader indexReader;
 	private BufferedRandomAccessFileReader dataReader;
 
+	// read-only mappings, null if not mapped
+	private MappedByteBuffer indexMap;
+	private MappedByteBuffer dataMap;
+
+	// cursor which moved the shared data reader last, other cursors should
+	// seek to their own position before reading
+	private Cursor dataReaderOwner;
+
 	private int posBodyOffset;
 
+	// term index of version 2 segments, by segment index
+	private Map<Long, TermDictionary> dictionaries = new ConcurrentHashMap<Long, TermDictionary>();
+
 	public InvertedIndexReader(InvertedIndexFileSet files) throws IOException {
 		this(files.getIndexFile(), files.getDataFile());
 	}
 
 	public InvertedIndexReader(File indexFile, File dataFile) throws IOException {
+		this(indexFile, dataFile, false);
+	}
+
+	/**
+	 * @param mapped
+	 *            map index files to memory and parse term blocks and postings
+	 *            from the mapping. use only for index of past days, because
+	 *            mapping is not released until it is garbage collected.
+	 */
+	public InvertedIndexReader(File indexFile, File dataFile, boolean mapped) throws IOException {
 		// validate index file headers
 		posBodyOffset = InvertedIndexUtil.readHeader(indexFile).getBodyOffset();
 		InvertedIndexUtil.readHeader(dataFile);
 
 		this.files = new InvertedIndexFileSet(indexFile, dataFile);
-		this.indexReader = new BufferedRandomAccessFileReader(files.getIndexFile());
-		this.dataReader = new BufferedRandomAccessFileReader(files.getDataFile());
+		if (mapped) {
+			indexMap = map(indexFile);
+			dataMap = map(dataFile);
+		}
+
+		if (indexMap == null)
+			this.indexReader = new BufferedRandomAccessFileReader(files.getIndexFile());
+		if (dataMap == null)
+			this.dataReader = new BufferedRandomAccessFileReader(files.getDataFile());
+	}
+
+	private MappedByteBuffer map(File f) throws IOException {
+		if (f.length() > Integer.MAX_VALUE) {
+			logger.debug("kraken logstorage: cannot map file larger than 2GB, [{}]", f.getAbsolutePath());
+			return null;
+		}
+
+		// mapping is still valid after file is closed
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			return raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private long getIndexLength() {
+		if (indexMap != null)
+			return indexMap.capacity();
+		return files.getIndexFile().length();
+	}
+
+	private long readIndexLong(long pos) throws IOException {
+		if (indexMap != null)
+			return indexMap.getLong((int) pos);
+
+		indexReader.seek(pos);
+		return indexReader.readLong();
 	}
 
 	public File getIndexFile() {
@@ -64,6 +128,153 @@ public class InvertedIndexReader {
 		return new Cursor(term);
 	}
 
+	/**
+	 * @return the number of flushed segments. all tokens of a log are
+	 *         written to the same segment.
+	 */
+	public int getSegmentCount() {
+		return (int) ((getIndexLength() - posBodyOffset) >> 3);
+	}
+
+	/**
+	 * @param segmentIndex
+	 *            segment number from 0 (oldest) to segment count - 1
+	 * @return the cursor which iterates postings of given segment only
+	 */
+	public Cursor openCursor(String term, int segmentIndex) throws IOException {
+		return new Cursor(term, segmentIndex);
+	}
+
+	private void readData(long pos, byte[] b) throws IOException {
+		if (dataMap != null) {
+			ByteBuffer bb = dataMap.duplicate();
+			bb.position((int) pos);
+			bb.get(b);
+		} else {
+			dataReaderOwner = null;
+			dataReader.seek(pos);
+			dataReader.readFully(b);
+		}
+	}
+
+	private TermDictionary getDictionary(long segmentIndex, long dataEndOffset) throws IOException {
+		TermDictionary dict = dictionaries.get(segmentIndex);
+		if (dict == null) {
+			dict = new TermDictionary(dataEndOffset);
+			dictionaries.put(segmentIndex, dict);
+		}
+		return dict;
+	}
+
+	/**
+	 * sparse in-memory index of sorted term dictionary in a segment
+	 */
+	private class TermDictionary {
+		private final Charset utf8 = Charset.forName("utf-8");
+
+		// absolute position of segment begin
+		private long segmentOffset;
+
+		// relative position of term dictionary and term index
+		private long dictOffset;
+		private long termIndexOffset;
+
+		// every TERM_INDEX_INTERVAL-th term and its dictionary entry position
+		private String[] indexTerms;
+		private long[] indexOffsets;
+
+		private TermDictionary(long dataEndOffset) throws IOException {
+			ByteBuffer footer = ByteBuffer.allocate(InvertedIndexWriter.SEGMENT_FOOTER_SIZE);
+			readData(dataEndOffset - InvertedIndexWriter.SEGMENT_FOOTER_SIZE, footer.array());
+
+			long segmentLength = footer.getLong();
+			dictOffset = footer.getLong();
+			termIndexOffset = footer.getLong();
+			footer.getInt();
+			int termIndexCount = footer.getInt();
+			segmentOffset = dataEndOffset + 1 - segmentLength;
+
+			byte[] b = new byte[(int) (segmentLength - 1 - InvertedIndexWriter.SEGMENT_FOOTER_SIZE - termIndexOffset)];
+			readData(segmentOffset + termIndexOffset, b);
+
+			ByteBuffer bb = ByteBuffer.wrap(b);
+			indexTerms = new String[termIndexCount];
+			indexOffsets = new long[termIndexCount];
+			for (int i = 0; i < termIndexCount; i++) {
+				byte[] token = new byte[(int) readVarint(bb)];
+				bb.get(token);
+				indexTerms[i] = new String(token, utf8);
+				indexOffsets[i] = readVarint(bb);
+			}
+		}
+
+		/**
+		 * @return posting count and absolute posting position, or null if
+		 *         term not found
+		 */
+		private long[] find(String term) throws IOException {
+			// find last index term less than or equal to term
+			int l = 0;
+			int r = indexTerms.length - 1;
+			int found = -1;
+			while (l <= r) {
+				int m = (l + r) >>> 1;
+				int diff = indexTerms[m].compareTo(term);
+				if (diff == 0) {
+					found = m;
+					break;
+				} else if (diff < 0) {
+					found = m;
+					l = m + 1;
+				} else {
+					r = m - 1;
+				}
+			}
+
+			if (found < 0)
+				return null;
+
+			long begin = indexOffsets[found];
+			long end = found + 1 < indexOffsets.length ? indexOffsets[found + 1] : termIndexOffset;
+			byte[] b = new byte[(int) (end - begin)];
+			readData(segmentOffset + begin, b);
+
+			ByteBuffer bb = ByteBuffer.wrap(b);
+			byte[] token = new byte[0];
+			while (bb.hasRemaining()) {
+				int shared = (int) readVarint(bb);
+				int suffix = (int) readVarint(bb);
+				byte[] t = new byte[shared + suffix];
+				System.arraycopy(token, 0, t, 0, shared);
+				bb.get(t, shared, suffix);
+				token = t;
+
+				long count = readVarint(bb);
+				long offset = readVarint(bb);
+
+				int diff = new String(token, utf8).compareTo(term);
+				if (diff == 0)
+					return new long[] { count, segmentOffset + offset };
+				if (diff > 0)
+					return null;
+			}
+
+			return null;
+		}
+
+		private long readVarint(ByteBuffer bb) {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = bb.get();
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+
 	public class Cursor implements InvertedIndexCursor {
 		// end position of segment, also recorded in index file
 		private long dataEndOffset;
@@ -89,11 +300,45 @@ public class InvertedIndexReader {
 		// search target term
 		private String term;
 
+		// cursor own view of mapped data file, null if not mapped
+		private ByteBuffer data;
+
+		// version of current loaded segment
+		private int segmentVersion;
+
+		// block of version 2 postings, -1 before first block
+		private int blockIndex;
+		private int blockRemaining;
+
+		// first id and absolute position of posting blocks, null if single
+		// block
+		private long[] skipIds;
+		private long[] skipOffsets;
+
+		// do not move to older segments if true
+		private boolean singleSegment;
+
+		public Cursor(String term, int segmentIndex) throws IOException {
+			this.term = term;
+			this.singleSegment = true;
+			if (dataMap != null)
+				data = dataMap.duplicate();
+
+			currentSegmentIndex = segmentIndex;
+			Long postingCount = loadSegment(segmentIndex);
+			if (postingCount != null) {
+				currentPostingCount = postingCount;
+				remaining = postingCount;
+			}
+		}
+
 		public Cursor(String term) throws IOException {
 			this.term = term;
+			if (dataMap != null)
+				data = dataMap.duplicate();
 
 			// align
-			currentSegmentIndex = ((files.getIndexFile().length() - posBodyOffset) >> 3) - 1;
+			currentSegmentIndex = ((getIndexLength() - posBodyOffset) >> 3) - 1;
 			// backward segment traverse until term matches
 			Long postingCount = null;
 			while (currentSegmentIndex >= 0) {
@@ -108,7 +353,18 @@ public class InvertedIndexReader {
 			}
 		}
 
+		/**
+		 * @return the posting count of current segment, not including
+		 *         postings of older segments
+		 */
+		public long getPostingCount() {
+			return currentPostingCount;
+		}
+
 		private boolean loadNextSegment() throws IOException {
+			if (singleSegment)
+				return false;
+
 			Long postingCount = null;
 			while (currentSegmentIndex > 0) {
 				postingCount = loadSegment(--currentSegmentIndex);
@@ -137,7 +393,9 @@ public class InvertedIndexReader {
 						return false;
 				}
 
-				if (remaining == currentPostingCount) {
+				if (segmentVersion == InvertedIndexWriter.SEGMENT_VERSION) {
+					prefetch = nextPosting();
+				} else if (remaining == currentPostingCount) {
 					prefetch = nextId();
 				} else {
 					prefetch = last - nextId();
@@ -152,13 +410,48 @@ public class InvertedIndexReader {
 			}
 		}
 
+		/**
+		 * skip all postings greater than given id, using skip table of
+		 * posting blocks if available. next() will return the id less than or
+		 * equal to given id.
+		 */
+		@Override
+		public void skipTo(long id) throws IOException {
+			while (hasNext()) {
+				if (prefetch <= id)
+					return;
+
+				prefetch = null;
+
+				if (skipIds == null || blockIndex + 1 >= skipIds.length || skipIds[blockIndex + 1] < id)
+					continue;
+
+				// all remaining ids of current block are greater than id
+				int next = blockIndex + 1;
+				while (next + 1 < skipIds.length && skipIds[next + 1] >= id)
+					next++;
+
+				remaining -= blockRemaining + (long) (next - blockIndex - 1) * InvertedIndexWriter.POSTING_BLOCK_SIZE;
+				blockIndex = next - 1;
+				blockRemaining = 0;
+				dataPos = skipOffsets[next];
+				seekData(dataPos);
+			}
+		}
+
 		private Long loadSegment(long segmentIndex) throws IOException {
-			indexReader.seek(posBodyOffset + (segmentIndex << 3));
-			dataEndOffset = indexReader.readLong();
+			dataEndOffset = readIndexLong(posBodyOffset + (segmentIndex << 3));
 			dataPos = dataEndOffset;
 			logger.debug("kraken logstorage: index data end offset [{}]", dataEndOffset);
-			dataReader.seek(dataEndOffset);
+			seekData(dataEndOffset);
+
+			skipIds = null;
+			skipOffsets = null;
+			segmentVersion = readDataByte();
+			if (segmentVersion == InvertedIndexWriter.SEGMENT_VERSION)
+				return loadSegmentV2(segmentIndex);
 
+			seekData(dataEndOffset);
 			long version = nextLong();
 			if (version != 1)
 				throw new IllegalStateException("block version is not supported " + version);
@@ -205,10 +498,67 @@ public class InvertedIndexReader {
 			logger.debug("kraken logstorage: data [{}~{}] term [{}] posting block length [{}] posting offset [{}]", new Object[] {
 					dataPos, dataEndOffset, termBlockLength, postingBlockLength, postingOffset });
 
-			dataReader.seek(dataPos);
+			seekData(dataPos);
+			return postingCount;
+		}
+
+		private Long loadSegmentV2(long segmentIndex) throws IOException {
+			long[] posting = getDictionary(segmentIndex, dataEndOffset).find(term);
+			if (posting == null)
+				return null;
+
+			long postingCount = posting[0];
+			dataPos = posting[1];
+			seekData(dataPos);
+
+			blockIndex = -1;
+			blockRemaining = 0;
+
+			int blockSize = InvertedIndexWriter.POSTING_BLOCK_SIZE;
+			int blockCount = (int) ((postingCount + blockSize - 1) / blockSize);
+			if (blockCount > 1) {
+				skipIds = new long[blockCount];
+				skipOffsets = new long[blockCount];
+				long[] lengths = new long[blockCount];
+				for (int i = 0; i < blockCount; i++) {
+					skipIds[i] = nextVarint();
+					lengths[i] = nextVarint();
+				}
+
+				long offset = dataPos;
+				for (int i = 0; i < blockCount; i++) {
+					skipOffsets[i] = offset;
+					offset += lengths[i];
+				}
+			}
+
 			return postingCount;
 		}
 
+		private long nextPosting() throws IOException {
+			if (blockRemaining == 0) {
+				blockIndex++;
+				blockRemaining = (int) Math.min(InvertedIndexWriter.POSTING_BLOCK_SIZE, remaining) - 1;
+				return nextVarint();
+			}
+
+			blockRemaining--;
+			return last - nextVarint();
+		}
+
+		private long nextVarint() throws IOException {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = readDataByte();
+				dataPos++;
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
 		@Override
 		public long next() throws IOException {
 			if (closed) {
@@ -231,7 +581,8 @@ public class InvertedIndexReader {
 			byte b;
 			do {
 				value = value << 7;
-				b = dataReader.readByte();
+				b = readDataByte();
+				dataPos++;
 				value |= b & 0x7F;
 			} while ((b & 0x80) == 0x80);
 			return value;
@@ -241,9 +592,9 @@ public class InvertedIndexReader {
 			long l = 0;
 			byte b;
 			do {
-				dataReader.seek(dataPos);
+				seekData(dataPos);
 				l <<= 7;
-				b = dataReader.readByte();
+				b = readDataByte();
 				dataPos--;
 				l |= b & 0x7f;
 			} while ((b & 0x80) != 0);
@@ -252,13 +603,35 @@ public class InvertedIndexReader {
 
 		private String nextString(long len) throws IOException {
 			dataPos -= len - 1;
-			dataReader.seek(dataPos);
+			seekData(dataPos);
 			byte[] b = new byte[(int) len];
-			dataReader.readFully(b);
-			dataReader.seek(dataPos);
+			if (data != null)
+				data.get(b);
+			else
+				dataReader.readFully(b);
+			seekData(dataPos);
 			dataPos--;
 			return new String(b, "utf-8");
 		}
+
+		private void seekData(long pos) throws IOException {
+			if (data != null) {
+				data.position((int) pos);
+			} else {
+				dataReaderOwner = this;
+				dataReader.seek(pos);
+			}
+		}
+
+		private byte readDataByte() throws IOException {
+			if (data != null)
+				return data.get();
+
+			// restore position if other cursor has moved shared reader
+			if (dataReaderOwner != this)
+				seekData(dataPos);
+			return dataReader.readByte();
+		}
 	}
 
 	public void close() {
@@ -268,12 +641,14 @@ public class InvertedIndexReader {
 		closed = true;
 
 		try {
-			indexReader.close();
+			if (indexReader != null)
+				indexReader.close();
 		} catch (IOException e) {
 		}
 
 		try {
-			dataReader.close();
+			if (dataReader != null)
+				dataReader.close();
 		} catch (IOException e) {
 		}
 	}
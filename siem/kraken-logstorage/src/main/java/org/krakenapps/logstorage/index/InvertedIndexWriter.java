@@ -16,19 +16,16 @@
 package org.krakenapps.logstorage.index;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,13 +35,26 @@ import org.slf4j.LoggerFactory;
  * @author xeraph
  */
 public class InvertedIndexWriter {
+	/**
+	 * segment format with sorted term dictionary and block encoded postings.
+	 * segments of version 1 are still readable.
+	 */
+	public static final int SEGMENT_VERSION = 2;
+	public static final int SEGMENT_FOOTER_SIZE = 32;
+	public static final int POSTING_BLOCK_SIZE = 128;
+	public static final int TERM_INDEX_INTERVAL = 16;
+
+	/**
+	 * default estimated heap usage of posting buffer which triggers flush
+	 */
+	public static final long DEFAULT_FLUSH_THRESHOLD = 8 * 1024 * 1024;
+
 	private final Logger logger = LoggerFactory.getLogger(InvertedIndexWriter.class.getName());
-	private final int FLUSH_THRESHOLD = 10000;
 	private final Charset utf8 = Charset.forName("utf-8");
-	private int queueCount;
+	private long flushThreshold = DEFAULT_FLUSH_THRESHOLD;
 
 	// term -> log id postings (no key)
-	private Map<String, List<InvertedIndexItem>> postings;
+	private PostingBuffer postings;
 
 	private boolean closed;
 
@@ -64,7 +74,8 @@ public class InvertedIndexWriter {
 	}
 
 	public InvertedIndexWriter(InvertedIndexFileSet files) throws IOException {
-		this.postings = new HashMap<String, List<InvertedIndexItem>>();
+		this.files = files;
+		this.postings = new PostingBuffer();
 
 		if (isEmptyFile(files.getIndexFile()) && isEmptyFile(files.getDataFile())) {
 			// write file header if empty
@@ -106,125 +117,168 @@ public class InvertedIndexWriter {
 	}
 
 	public void write(InvertedIndexItem item) throws IOException {
+		write(item.id, item.tokens);
+	}
+
+	public void write(long id, String[] tokens) throws IOException {
+		checkClosed();
+
+		postings.add(id, tokens);
+
+		if (postings.getUsage() >= flushThreshold)
+			flush();
+	}
+
+	private void checkClosed() {
 		if (closed) {
 			String msg = "inverted index writer is closed: index=" + files.getIndexFile().getAbsolutePath() + ", data="
 					+ files.getDataFile().getAbsolutePath();
 			throw new IllegalStateException(msg);
 		}
+	}
 
-		if (item.tokens != null) {
-			for (String t : item.tokens) {
-				if (t == null)
-					continue;
-
-				List<InvertedIndexItem> items = postings.get(t);
-				if (items == null) {
-					items = new ArrayList<InvertedIndexItem>();
-					postings.put(t, items);
-				}
-
-				items.add(item);
-			}
-		}
+	public long getFlushThreshold() {
+		return flushThreshold;
+	}
 
-		if (queueCount >= FLUSH_THRESHOLD)
-			flush();
+	/**
+	 * @param flushThreshold
+	 *            estimated heap usage of buffered postings in bytes
+	 */
+	public void setFlushThreshold(long flushThreshold) {
+		this.flushThreshold = flushThreshold;
+	}
 
-		queueCount++;
+	/**
+	 * @return the posting buffer which is not flushed yet
+	 */
+	public PostingBuffer getBuffer() {
+		return postings;
 	}
 
 	public void flush() throws IOException {
-		if (postings.isEmpty())
+		flush(postings);
+		postings.clear();
+	}
+
+	/**
+	 * write all postings of given buffer as a new segment. buffer is not
+	 * cleared.
+	 */
+	public void flush(PostingBuffer buffer) throws IOException {
+		if (buffer.isEmpty())
 			return;
 
 		// mark last flush time
 		lastFlush = new Date();
 
-		Map<String, Term> terms = new TreeMap<String, Term>();
-
-		// posting block length
-		long pblen = 0;
+		String[] terms = buffer.getSortedTerms();
 
-		// postings block for specific term
-		for (Entry<String, List<InvertedIndexItem>> e : postings.entrySet()) {
-			long plen = 0;
-			List<InvertedIndexItem> v = e.getValue();
+		ByteArrayOutputStream segment = new ByteArrayOutputStream();
 
-			Collections.reverse(v);
-			Collections.sort(v);
-
-			// mark postings block begin position
-			terms.put(e.getKey(), new Term(v.size(), pblen));
+		// posting lists in term order
+		long[] postingOffsets = new long[terms.length];
+		int[] postingCounts = new int[terms.length];
+		for (int i = 0; i < terms.length; i++) {
+			long[] ids = buffer.getPostings(terms[i]);
+			postingOffsets[i] = segment.size();
+			postingCounts[i] = ids.length;
+			writePostings(segment, ids);
+		}
 
-			// write postings
-			Long last = null;
-			for (InvertedIndexItem item : v) {
-				if (last == null) {
-					plen += writeBeNumber(long.class, item.id);
-				} else {
-					plen += writeBeNumber(long.class, last - item.id);
-				}
-				last = item.id;
+		// term dictionary, prefix compressed except sparse index entries
+		long dictOffset = segment.size();
+		ByteArrayOutputStream termIndex = new ByteArrayOutputStream();
+		int termIndexCount = 0;
+		byte[] prev = null;
+		for (int i = 0; i < terms.length; i++) {
+			byte[] token = terms[i].getBytes(utf8);
+			int shared = 0;
+			if (i % TERM_INDEX_INTERVAL == 0) {
+				writeVarint(termIndex, token.length);
+				termIndex.write(token);
+				writeVarint(termIndex, segment.size());
+				termIndexCount++;
+			} else {
+				int max = Math.min(prev.length, token.length);
+				while (shared < max && prev[shared] == token[shared])
+					shared++;
 			}
 
-			pblen += plen;
+			writeVarint(segment, shared);
+			writeVarint(segment, token.length - shared);
+			segment.write(token, shared, token.length - shared);
+			writeVarint(segment, postingCounts[i]);
+			writeVarint(segment, postingOffsets[i]);
+			prev = token;
 		}
 
-		// term block length
-		long tblen = 0;
-
-		// write term block
-		for (Entry<String, Term> e : terms.entrySet()) {
-			tblen += writeLeNumber(long.class, e.getValue().offset);
-			tblen += writeLeNumber(long.class, e.getValue().count);
-			byte[] token = e.getKey().getBytes(utf8);
-			dataStream.write(token);
-			tblen += token.length;
-			tblen += writeLeNumber(int.class, token.length);
-		}
-
-		// write posting block length
-		int plen = writeLeNumber(long.class, pblen);
-
-		// write term block length
-		logger.debug("kraken logstorage: writing term block length {}", tblen);
-		int tlen = writeLeNumber(long.class, tblen);
-
-		// last version mark
-		dataStream.write(1);
+		long termIndexOffset = segment.size();
+		termIndex.writeTo(segment);
+
+		// fixed length footer and version mark
+		ByteBuffer footer = ByteBuffer.allocate(SEGMENT_FOOTER_SIZE + 1);
+		footer.putLong(segment.size() + SEGMENT_FOOTER_SIZE + 1);
+		footer.putLong(dictOffset);
+		footer.putLong(termIndexOffset);
+		footer.putInt(terms.length);
+		footer.putInt(termIndexCount);
+		footer.put((byte) SEGMENT_VERSION);
+		segment.write(footer.array());
+
+		logger.debug("kraken logstorage: writing index segment, {} terms, {} bytes", terms.length, segment.size());
+		segment.writeTo(dataStream);
 		dataStream.flush();
 
-		dataLength += plen + tlen + tblen + pblen + 1;
+		dataLength += segment.size();
 
 		// write end offset of block to index
 		InvertedIndexUtil.prepareLong(dataLength - 1, longbuf);
 		logger.debug("kraken logstorage: writing index data offset [{}]", (dataLength - 1));
 		indexStream.write(longbuf);
+	}
 
-		queueCount = 0;
-		postings.clear();
+	/**
+	 * write descending ids in blocks of delta encoded varints. if there are
+	 * two or more blocks, skip table (first id and length of each block)
+	 * precedes blocks.
+	 */
+	private void writePostings(ByteArrayOutputStream out, long[] ids) {
+		int blockCount = (ids.length + POSTING_BLOCK_SIZE - 1) / POSTING_BLOCK_SIZE;
+		if (blockCount == 1) {
+			writePostingBlock(out, ids, 0, ids.length);
+			return;
+		}
+
+		ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+		for (int i = 0; i < blockCount; i++) {
+			int begin = blocks.size();
+			int from = i * POSTING_BLOCK_SIZE;
+			writePostingBlock(blocks, ids, from, Math.min(ids.length, from + POSTING_BLOCK_SIZE));
+
+			writeVarint(out, ids[from]);
+			writeVarint(out, blocks.size() - begin);
+		}
+
+		byte[] b = blocks.toByteArray();
+		out.write(b, 0, b.length);
 	}
 
-	private int writeBeNumber(Class<?> clazz, long value) throws IOException {
-		int len = lengthOfRawNumber(clazz, value);
-		for (int i = 0; i < len; i++) {
-			byte signalBit = (byte) (i != len - 1 ? 0x80 : 0);
-			byte data = (byte) (signalBit | (byte) (value >> (7 * (len - i - 1)) & 0x7F));
-			dataStream.write(data);
+	private void writePostingBlock(ByteArrayOutputStream out, long[] ids, int from, int to) {
+		long last = 0;
+		for (int i = from; i < to; i++) {
+			writeVarint(out, i == from ? ids[i] : last - ids[i]);
+			last = ids[i];
 		}
-		return len;
 	}
 
-	// little endian writing
-	private int writeLeNumber(Class<?> clazz, long value) throws IOException {
-		int len = lengthOfRawNumber(clazz, value);
-		for (int i = 0; i < len; i++) {
-			byte signalBit = (byte) (i == 0 ? 0 : 0x80);
-			byte data = (byte) (signalBit | (byte) (value & 0x7F));
-			value >>= 7;
-			dataStream.write(data);
+	// unsigned, least significant group first
+	private void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
 		}
-		return len;
+		out.write((int) value);
 	}
 
 	public static <T> int lengthOfRawNumber(Class<T> clazz, long value) {
@@ -272,17 +326,4 @@ public class InvertedIndexWriter {
 		} catch (IOException e) {
 		}
 	}
-
-	private static class Term {
-		// term count
-		public long count;
-
-		// posting offset
-		public long offset;
-
-		public Term(long count, long offset) {
-			this.count = count;
-			this.offset = offset;
-		}
-	}
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.index;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * In-memory postings of unflushed logs. Terms are interned in an open
+ * addressing hash table, and log ids of each term are appended to growable
+ * long array, so no object is allocated per posting. Not thread-safe.
+ */
+public class PostingBuffer {
+	private static final int INITIAL_TABLE_SIZE = 1024;
+	private static final int INITIAL_POSTING_SIZE = 4;
+
+	// rough heap usage of string (object, char array) and long array headers
+	private static final int TERM_OVERHEAD = 64;
+	private static final int ARRAY_OVERHEAD = 16;
+
+	private String[] terms;
+	private long[][] postings;
+	private int[] counts;
+
+	private int termCount;
+	private long postingCount;
+	private long logCount;
+
+	// estimated heap usage of terms and postings, excluding table
+	private long usage;
+
+	public PostingBuffer() {
+		init(INITIAL_TABLE_SIZE);
+	}
+
+	private void init(int tableSize) {
+		terms = new String[tableSize];
+		postings = new long[tableSize][];
+		counts = new int[tableSize];
+		termCount = 0;
+		postingCount = 0;
+		logCount = 0;
+		usage = 0;
+	}
+
+	/**
+	 * add postings of all tokens of a log. repeated token is added only once
+	 * if tokens of a log are added at once.
+	 */
+	public void add(long id, String[] tokens) {
+		if (tokens == null)
+			return;
+
+		for (String token : tokens) {
+			if (token == null)
+				continue;
+
+			int slot = findSlot(token);
+			if (terms[slot] == null) {
+				terms[slot] = token;
+				postings[slot] = new long[INITIAL_POSTING_SIZE];
+				usage += TERM_OVERHEAD + token.length() * 2 + ARRAY_OVERHEAD + INITIAL_POSTING_SIZE * 8;
+				if (++termCount * 2 > terms.length) {
+					rehash();
+					slot = findSlot(token);
+				}
+			}
+
+			long[] ids = postings[slot];
+			int count = counts[slot];
+			if (count > 0 && ids[count - 1] == id)
+				continue;
+
+			if (count == ids.length) {
+				ids = Arrays.copyOf(ids, count * 2);
+				postings[slot] = ids;
+				usage += count * 8;
+			}
+
+			ids[count] = id;
+			counts[slot] = count + 1;
+			postingCount++;
+		}
+
+		logCount++;
+	}
+
+	/**
+	 * @return distinct log ids in descending order, or null if term is not
+	 *         found
+	 */
+	public long[] getPostings(String term) {
+		int slot = findSlot(term);
+		if (terms[slot] == null)
+			return null;
+
+		long[] ids = Arrays.copyOf(postings[slot], counts[slot]);
+		Arrays.sort(ids);
+
+		for (int i = 0, j = ids.length - 1; i < j; i++, j--) {
+			long t = ids[i];
+			ids[i] = ids[j];
+			ids[j] = t;
+		}
+
+		// same log id can be added again by separate add() calls
+		int n = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (n == 0 || ids[n - 1] != ids[i])
+				ids[n++] = ids[i];
+		}
+
+		return n == ids.length ? ids : Arrays.copyOf(ids, n);
+	}
+
+	/**
+	 * @return all terms in ascending order
+	 */
+	public String[] getSortedTerms() {
+		String[] sorted = new String[termCount];
+		int n = 0;
+		for (String t : terms)
+			if (t != null)
+				sorted[n++] = t;
+
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return the copy of postings of given terms only
+	 */
+	public PostingBuffer copy(Collection<String> terms) {
+		PostingBuffer b = new PostingBuffer();
+		for (String term : terms) {
+			int slot = findSlot(term);
+			if (this.terms[slot] == null)
+				continue;
+
+			int count = counts[slot];
+			int copySlot = b.findSlot(term);
+			b.terms[copySlot] = term;
+			b.postings[copySlot] = Arrays.copyOf(postings[slot], count);
+			b.counts[copySlot] = count;
+			b.postingCount += count;
+			b.usage += TERM_OVERHEAD + term.length() * 2 + ARRAY_OVERHEAD + count * 8;
+			if (++b.termCount * 2 > b.terms.length)
+				b.rehash();
+		}
+
+		b.logCount = logCount;
+		return b;
+	}
+
+	public boolean isEmpty() {
+		return termCount == 0;
+	}
+
+	public int getTermCount() {
+		return termCount;
+	}
+
+	public long getPostingCount() {
+		return postingCount;
+	}
+
+	public long getLogCount() {
+		return logCount;
+	}
+
+	/**
+	 * @return estimated heap usage in bytes
+	 */
+	public long getUsage() {
+		return usage + (long) terms.length * 16 + ARRAY_OVERHEAD * 3;
+	}
+
+	/**
+	 * release all postings and shrink hash table
+	 */
+	public void clear() {
+		init(INITIAL_TABLE_SIZE);
+	}
+
+	private int findSlot(String term) {
+		int mask = terms.length - 1;
+		int h = term.hashCode();
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (terms[slot] != null && !terms[slot].equals(term))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void rehash() {
+		String[] oldTerms = terms;
+		long[][] oldPostings = postings;
+		int[] oldCounts = counts;
+
+		terms = new String[oldTerms.length * 2];
+		postings = new long[terms.length][];
+		counts = new int[terms.length];
+
+		for (int i = 0; i < oldTerms.length; i++) {
+			if (oldTerms[i] == null)
+				continue;
+
+			int slot = findSlot(oldTerms[i]);
+			terms[slot] = oldTerms[i];
+			postings[slot] = oldPostings[i];
+			counts[slot] = oldCounts[i];
+		}
+	}
+}
@@ -52,6 +52,8 @@ import org.krakenapps.logstorage.IndexConfigSpec;
 import org.krakenapps.logstorage.IndexTokenizerFactory;
 import org.krakenapps.logstorage.IndexTokenizerRegistry;
 import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogCacheStatus;
+import org.krakenapps.logstorage.LogIndexCondition;
 import org.krakenapps.logstorage.LogIndexCursor;
 import org.krakenapps.logstorage.LogIndexItem;
 import org.krakenapps.logstorage.LogIndexQuery;
@@ -260,7 +262,7 @@ public class LogStorageScript implements Script {
 	@ScriptUsage(description = "search index", arguments = {
 			@ScriptArgument(name = "table name", type = "string", description = "table name"),
 			@ScriptArgument(name = "index name", type = "string", description = "index name"),
-			@ScriptArgument(name = "term", type = "string", description = "search term") })
+			@ScriptArgument(name = "term", type = "string", description = "search term, or quoted boolean condition of terms") })
 	public void searchIndex(String[] args) {
 		String tableName = args[0];
 		String indexName = args[1];
@@ -271,7 +273,10 @@ public class LogStorageScript implements Script {
 			LogIndexQuery q = new LogIndexQuery();
 			q.setTableName(tableName);
 			q.setIndexName(indexName);
-			q.setTerm(term);
+			if (term.trim().indexOf(' ') < 0)
+				q.setTerm(term);
+			else
+				q.setCondition(LogIndexCondition.parse(term));
 
 			long count = 0;
 			int tableId = tableRegistry.getTableId(tableName);
@@ -289,6 +294,8 @@ public class LogStorageScript implements Script {
 			context.println("total " + count + " logs, elapsed " + elapsed + "ms");
 		} catch (IOException e) {
 			context.println("search failed, " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			context.println("invalid condition, " + e.getMessage());
 		} finally {
 			if (c != null)
 				c.close();
@@ -806,6 +813,15 @@ public class LogStorageScript implements Script {
 		}
 	}
 
+	@ScriptUsage(description = "print reader and block cache statuses")
+	public void caches(String[] args) {
+		context.println("Read Caches");
+		context.println("-------------");
+		for (LogCacheStatus s : storage.getCacheStatuses()) {
+			context.println(s);
+		}
+	}
+
 	@ScriptUsage(description = "print all online indexer statuses")
 	public void indexers(String[] args) {
 		context.println("Online Indexers");
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogFilter;
+import org.krakenapps.logstorage.LogSearchCallback;
+import org.krakenapps.logstorage.engine.LogStorageEngine.TraverseCallback;
+import org.krakenapps.logstorage.file.LogBlockZone;
+import org.krakenapps.logstorage.file.LogFileReaderV2;
+import org.krakenapps.logstorage.file.LogFileWriterV2;
+import org.krakenapps.logstorage.file.LogRecord;
+
+/**
+ * Traverses tablets with filter and offset like sequential table search, and
+ * compares with filtering all logs of table
+ */
+public class FilterOffsetTest {
+	private static final int TABLETS = 3;
+	private static final int LOGS = 1000;
+
+	private File dir;
+
+	// newest tablet first, like search
+	private List<LogFileReaderV2> readers;
+
+	// ids of logs matched by filter, in scan order
+	private List<Long> matched;
+
+	private LogFilter filter;
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("filter", "");
+		dir.delete();
+		dir.mkdirs();
+
+		filter = new LogFilter() {
+			@Override
+			public boolean mayMatch(LogBlockZone zone) {
+				return true;
+			}
+
+			@Override
+			public Set<String> getFieldNames() {
+				return null;
+			}
+
+			@Override
+			public boolean matches(Map<String, Object> data) {
+				return (Integer) data.get("n") % 3 == 0;
+			}
+		};
+
+		readers = new ArrayList<LogFileReaderV2>();
+		matched = new ArrayList<Long>();
+		for (int t = TABLETS - 1; t >= 0; t--) {
+			File indexPath = new File(dir, t + ".idx");
+			File dataPath = new File(dir, t + ".dat");
+
+			// small blocks, so offset spans several blocks
+			LogFileWriterV2 writer = new LogFileWriterV2(indexPath, dataPath, 4096, 0);
+			for (int i = 0; i < LOGS; i++) {
+				Map<String, Object> m = new HashMap<String, Object>();
+				m.put("n", i);
+				ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(m));
+				EncodingRule.encode(bb, m);
+				bb.flip();
+				writer.write(new LogRecord(new Date(t * 86400000L + i * 1000L), t * LOGS + i + 1, bb));
+			}
+			writer.close();
+
+			readers.add(new LogFileReaderV2(indexPath, dataPath));
+			for (int i = LOGS - 1; i >= 0; i--)
+				if (i % 3 == 0)
+					matched.add((long) (t * LOGS + i + 1));
+		}
+	}
+
+	@After
+	public void teardown() throws IOException {
+		for (LogFileReaderV2 reader : readers)
+			reader.close();
+
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testOffset() throws Exception {
+		int[][] cases = new int[][] { { 0, 0 }, { 1, 10 }, { 200, 0 }, { 333, 1 }, { 334, 5 }, { 500, 200 },
+				{ 999, 10 }, { 1000, 10 } };
+
+		for (int[] c : cases) {
+			int offset = c[0];
+			int limit = c[1];
+
+			int to = limit == 0 ? matched.size() : Math.min(offset + limit, matched.size());
+			List<Long> expected = matched.subList(Math.min(offset, matched.size()), to);
+			assertEquals("offset " + offset + ", limit " + limit, expected, search(offset, limit));
+		}
+	}
+
+	/**
+	 * same as sequential search of storage with log filter
+	 */
+	private List<Long> search(int offset, int limit) throws Exception {
+		Collector collector = new Collector();
+		int found = 0;
+		for (LogFileReaderV2 reader : readers) {
+			int needed = limit - found;
+			if (limit != 0 && needed <= 0)
+				break;
+
+			TraverseCallback c = new TraverseCallback("t", null, null, filter, collector);
+			c.offset = offset;
+			reader.traverse(null, null, 0, needed, filter, c);
+			offset = c.offset;
+			found += c.matched;
+		}
+		return collector.ids;
+	}
+
+	private static class Collector implements LogSearchCallback {
+		private List<Long> ids = new ArrayList<Long>();
+
+		@Override
+		public void onLog(Log log) {
+			ids.add(log.getId());
+		}
+
+		@Override
+		public void interrupt() {
+		}
+
+		@Override
+		public boolean isInterrupted() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.krakenapps.codec.EncodingRule;
+import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogFilter;
+import org.krakenapps.logstorage.file.LogBlockZone;
+import org.krakenapps.logstorage.file.LogRecord;
+
+/**
+ * Converts records sliced from a block, and checks that returned logs do not
+ * refer to the block
+ */
+public class LogMarshalerTest {
+	@Test
+	public void testSlice() {
+		ByteBuffer block = block();
+		Log log = LogMarshaler.convert("t", record(block, 1));
+		clear(block);
+
+		assertEquals("host1", log.getData().get("host"));
+		assertEquals(1, log.getData().get("n"));
+	}
+
+	@Test
+	public void testFilter() {
+		ByteBuffer block = block();
+		Log log = LogMarshaler.convert("t", record(block, 1), new Filter(null));
+		Log projected = LogMarshaler.convert("t", record(block, 2), new Filter(new HashSet<String>(Arrays.asList("n"))));
+		assertNull(LogMarshaler.convert("t", record(block, 0), new Filter(null)));
+		clear(block);
+
+		assertEquals("host1", log.getData().get("host"));
+		assertEquals(1, log.getData().get("n"));
+		assertEquals(2, projected.getData().get("n"));
+		assertEquals(1, projected.getData().size());
+	}
+
+	@Test
+	public void testOwnBuffer() {
+		// record which owns whole buffer, e.g. log of writer buffer
+		byte[] b = encode(doc(3));
+		Log log = LogMarshaler.convert("t", new LogRecord(new Date(), 3, ByteBuffer.wrap(b)));
+		assertEquals("host3", log.getData().get("host"));
+	}
+
+	private ByteBuffer block() {
+		ByteBuffer bb = ByteBuffer.allocate(4096);
+		for (int i = 0; i < 3; i++) {
+			byte[] b = encode(doc(i));
+			bb.putInt(b.length);
+			bb.put(b);
+		}
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * @return i-th record of block as reader slices it
+	 */
+	private LogRecord record(ByteBuffer block, int i) {
+		ByteBuffer bb = block.duplicate();
+		for (int j = 0; j < i; j++)
+			bb.position(bb.position() + 4 + bb.getInt(bb.position()));
+
+		int length = bb.getInt();
+		ByteBuffer slice = bb.slice();
+		slice.limit(length);
+		return new LogRecord(new Date(), i, slice);
+	}
+
+	private void clear(ByteBuffer block) {
+		Arrays.fill(block.array(), (byte) 0);
+	}
+
+	private Map<String, Object> doc(int n) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		m.put("host", "host" + n);
+		m.put("n", n);
+		return m;
+	}
+
+	private byte[] encode(Map<String, Object> m) {
+		ByteBuffer bb = ByteBuffer.allocate(EncodingRule.lengthOf(m));
+		EncodingRule.encode(bb, m);
+		return bb.array();
+	}
+
+	private static class Filter implements LogFilter {
+		private Set<String> fields;
+
+		public Filter(Set<String> fields) {
+			this.fields = fields;
+		}
+
+		@Override
+		public boolean mayMatch(LogBlockZone zone) {
+			return true;
+		}
+
+		@Override
+		public Set<String> getFieldNames() {
+			return fields;
+		}
+
+		@Override
+		public boolean matches(Map<String, Object> data) {
+			return !data.get("n").equals(0);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logstorage.LogIndexCondition;
+import org.krakenapps.logstorage.index.InvertedIndexReader;
+import org.krakenapps.logstorage.index.InvertedIndexWriter;
+import org.krakenapps.logstorage.index.PostingBuffer;
+
+public class PostingIteratorTest {
+	private static final String[] TERMS = { "a", "b", "c", "d", "e", "rare1", "rare2" };
+
+	private File indexFile;
+	private File dataFile;
+	private InvertedIndexReader reader;
+	private PostingBuffer buffer;
+
+	// term to ids, all ids
+	private Map<String, TreeSet<Long>> termIds = new HashMap<String, TreeSet<Long>>();
+	private TreeSet<Long> allIds = new TreeSet<Long>();
+
+	// last id of each flushed segment
+	private List<Long> segmentLastIds = new ArrayList<Long>();
+
+	@Before
+	public void setup() throws IOException {
+		indexFile = File.createTempFile("posting", ".pos");
+		dataFile = File.createTempFile("posting", ".seg");
+		indexFile.delete();
+		dataFile.delete();
+
+		for (String term : TERMS)
+			termIds.put(term, new TreeSet<Long>());
+
+		// several segments with postings longer than a posting block, and
+		// unflushed tail in buffer
+		InvertedIndexWriter writer = new InvertedIndexWriter(indexFile, dataFile);
+		Random r = new Random(1);
+		long id = 0;
+		for (int segment = 0; segment < 4; segment++) {
+			for (int i = 0; i < 700; i++) {
+				id += 1 + r.nextInt(3);
+				writer.write(id, tokens(r, id));
+			}
+			writer.flush();
+			segmentLastIds.add(id);
+		}
+
+		buffer = new PostingBuffer();
+		for (int i = 0; i < 300; i++) {
+			id += 1 + r.nextInt(3);
+			buffer.add(id, tokens(r, id));
+		}
+		writer.close();
+
+		reader = new InvertedIndexReader(indexFile, dataFile);
+		assertEquals(4, reader.getSegmentCount());
+	}
+
+	@After
+	public void teardown() {
+		if (reader != null)
+			reader.close();
+		indexFile.delete();
+		dataFile.delete();
+	}
+
+	private String[] tokens(Random r, long id) {
+		List<String> tokens = new ArrayList<String>();
+		if (r.nextInt(2) == 0)
+			tokens.add("a");
+		if (r.nextInt(3) == 0)
+			tokens.add("b");
+		if (r.nextInt(5) == 0)
+			tokens.add("c");
+		if (r.nextInt(10) == 0)
+			tokens.add("d");
+		if (r.nextInt(4) != 0)
+			tokens.add("e");
+		if (r.nextInt(200) == 0)
+			tokens.add("rare1");
+		if (r.nextInt(300) == 0)
+			tokens.add("rare2");
+
+		// repeated token in a log
+		if (r.nextInt(7) == 0 && !tokens.isEmpty())
+			tokens.add(tokens.get(0));
+
+		for (String t : tokens)
+			termIds.get(t).add(id);
+		allIds.add(id);
+		return tokens.toArray(new String[0]);
+	}
+
+	@Test
+	public void testTerm() throws IOException {
+		check("a");
+		check("rare1");
+		check("missing");
+	}
+
+	@Test
+	public void testAnd() throws IOException {
+		check("a b");
+		check("a b c");
+		check("e rare1");
+		check("rare1 rare2");
+		check("a missing");
+	}
+
+	@Test
+	public void testOr() throws IOException {
+		check("a or b");
+		check("rare1 or rare2 or d");
+		check("missing or rare2");
+	}
+
+	@Test
+	public void testNot() throws IOException {
+		check("a not b");
+		check("e not a not c");
+		check("b not rare1");
+		check("a not missing");
+	}
+
+	@Test
+	public void testNested() throws IOException {
+		check("(a or d) (b or c) not e");
+		check("(a not b) or (c not d) or rare1");
+		check("e not (a or b) not (c d)");
+		check("(rare1 or rare2) a not b");
+	}
+
+	@Test
+	public void testAdvance() throws IOException {
+		LogIndexCondition cond = LogIndexCondition.parse("(a or c) not b");
+		Random r = new Random(2);
+		for (int segment = 0; segment < reader.getSegmentCount(); segment++) {
+			long first = segment == 0 ? 0 : segmentLastIds.get(segment - 1) + 1;
+			long last = segmentLastIds.get(segment);
+			TreeSet<Long> expected = new TreeSet<Long>(eval(cond).subSet(first, true, last, true));
+
+			PostingIterator it = PostingIterator.build(cond, reader, segment);
+			long target = last;
+			while (true) {
+				target -= r.nextInt(40);
+				long id = it.advance(target);
+				Long e = expected.floor(target);
+				if (e == null) {
+					assertEquals(-1, id);
+					break;
+				}
+
+				assertEquals(e.longValue(), id);
+
+				// advance to greater target keeps current
+				assertEquals(id, it.advance(id + 10));
+				target = id - 1;
+			}
+		}
+	}
+
+	private void check(String s) throws IOException {
+		LogIndexCondition cond = LogIndexCondition.parse(s);
+		TreeSet<Long> expected = eval(cond);
+
+		List<Long> actual = new ArrayList<Long>();
+		for (int segment = reader.getSegmentCount() - 1; segment >= 0; segment--) {
+			PostingIterator it = PostingIterator.build(cond, reader, segment);
+			long prev = Long.MAX_VALUE;
+			for (long id = it.next(); id != -1; id = it.next()) {
+				assertTrue("descending " + s, id < prev);
+				actual.add(id);
+				prev = id;
+			}
+		}
+
+		PostingIterator it = PostingIterator.build(cond, buffer);
+		for (long id = it.next(); id != -1; id = it.next())
+			actual.add(id);
+
+		assertEquals(s, expected, new TreeSet<Long>(actual));
+		assertEquals(s, expected.size(), actual.size());
+	}
+
+	private TreeSet<Long> eval(LogIndexCondition cond) {
+		if (cond instanceof LogIndexCondition.Term) {
+			TreeSet<Long> ids = termIds.get(((LogIndexCondition.Term) cond).getTerm());
+			return ids == null ? new TreeSet<Long>() : new TreeSet<Long>(ids);
+		}
+
+		if (cond instanceof LogIndexCondition.Not) {
+			TreeSet<Long> ids = new TreeSet<Long>(allIds);
+			ids.removeAll(eval(((LogIndexCondition.Not) cond).getOperand()));
+			return ids;
+		}
+
+		if (cond instanceof LogIndexCondition.Or) {
+			TreeSet<Long> ids = new TreeSet<Long>();
+			for (LogIndexCondition c : ((LogIndexCondition.Or) cond).getOperands())
+				ids.addAll(eval(c));
+			return ids;
+		}
+
+		TreeSet<Long> ids = new TreeSet<Long>(allIds);
+		for (LogIndexCondition c : ((LogIndexCondition.And) cond).getOperands())
+			ids.retainAll(eval(c));
+		return ids;
+	}
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.krakenapps.logstorage.Log;
+import org.krakenapps.logstorage.LogCursor;
+import org.krakenapps.logstorage.LogRollupEntry;
+import org.krakenapps.logstorage.LogRollupSpec;
+import org.krakenapps.logstorage.LogStorage;
+import org.krakenapps.logstorage.LogTableRegistry;
+
+public class RollupManagerTest {
+	private static final long DAY = 86400000L;
+
+	private File dir;
+	private Map<String, String> metadata;
+
+	// logs of table day, written before rollup callback like storage
+	private Map<Date, List<Log>> tablets;
+
+	private LogTableRegistry tableRegistry;
+	private LogStorage storage;
+	private RollupManager rollups;
+
+	@Before
+	public void setup() throws IOException {
+		dir = File.createTempFile("rollup", "");
+		dir.delete();
+		dir.mkdirs();
+
+		metadata = new HashMap<String, String>();
+		metadata.put("rollup_span", "1m");
+		metadata.put("rollup_by", "host");
+		metadata.put("rollup_sum", "bytes");
+
+		tablets = new HashMap<Date, List<Log>>();
+		tableRegistry = (LogTableRegistry) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { LogTableRegistry.class }, new TableRegistryHandler());
+		storage = (LogStorage) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LogStorage.class },
+				new StorageHandler());
+
+		rollups = new RollupManager(tableRegistry, storage);
+		rollups.reload();
+	}
+
+	@After
+	public void teardown() {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testFileBlocks() throws IOException {
+		File f = new File(dir, "2013-01-01" + RollupFile.FILE_SUFFIX);
+		LogRollupEntry e1 = new LogRollupEntry(new Date(60000), new String[] { "a" }, 3, new Number[] { 10L },
+				new long[] { 2 });
+		LogRollupEntry e2 = new LogRollupEntry(new Date(120000), new String[] { null }, 1, new Number[] { 1.5 },
+				new long[] { 1 });
+
+		RollupFile.append(f, Arrays.asList(e1), 5);
+		RollupFile.append(f, Arrays.asList(e1, e2), 2);
+		assertEquals(7, RollupFile.countLogs(f));
+
+		// partially written block is ignored, and truncated before append
+		long length = f.length();
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.seek(length);
+			raf.writeInt(100);
+			raf.writeLong(9);
+		} finally {
+			raf.close();
+		}
+
+		List<LogRollupEntry> entries = RollupFile.read(f);
+		assertEquals(3, entries.size());
+		assertEquals(7, RollupFile.countLogs(f));
+		assertEquals(2, RollupFile.countBlocks(f));
+		assertEquals(length, f.length());
+
+		LogRollupEntry read = entries.get(2);
+		assertEquals(new Date(120000), read.getBucket());
+		assertNull(read.getGroups()[0]);
+		assertEquals(1, read.getCount());
+		assertEquals(1.5, read.getSums()[0]);
+		assertEquals(1, read.getValueCounts()[0]);
+
+		RollupFile.write(f, Arrays.asList(e2), 7);
+		assertEquals(1, RollupFile.countBlocks(f));
+		assertEquals(7, RollupFile.countLogs(f));
+		assertEquals(1, RollupFile.read(f).size());
+	}
+
+	@Test
+	public void testEntries() throws IOException {
+		long since = getSince();
+		for (int i = 0; i < 1000; i++)
+			write(since + i * 7000L, i);
+
+		// entries in memory before flush
+		Date day = DateUtil.getDay(new Date(since));
+		assertEquals(aggregate(day), merge(rollups.getEntries("t", day)));
+
+		rollups.flush();
+		for (int i = 1000; i < 1500; i++)
+			write(since + i * 7000L, i);
+
+		assertEquals(aggregate(day), merge(rollups.getEntries("t", day)));
+		rollups.flush();
+		assertEquals(aggregate(day), merge(rollups.getEntries("t", day)));
+		assertEquals(tablets.get(day).size(), RollupFile.countLogs(getFile(day)));
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		long since = getSince();
+		Date day = DateUtil.getDay(new Date(since));
+		int flushes = RollupManager.MAX_BLOCKS + 5;
+		for (int i = 0; i < flushes; i++) {
+			write(since + i * 20000L, i);
+			write(since + i * 20000L + 1000, i + 1);
+			rollups.flush();
+		}
+
+		// blocks are merged at the flush after MAX_BLOCKS
+		assertEquals(5, RollupFile.countBlocks(getFile(day)));
+		assertEquals(flushes * 2, RollupFile.countLogs(getFile(day)));
+		assertEquals(aggregate(day), merge(rollups.getEntries("t", day)));
+		assertEquals(aggregate(day), merge(RollupFile.read(getFile(day))));
+	}
+
+	@Test
+	public void testPurgeAndDrop() throws IOException {
+		long since = getSince();
+		for (int d = 0; d < 3; d++)
+			for (int i = 0; i < 100; i++)
+				write(since + d * DAY + i * 30000L, i);
+		rollups.flush();
+
+		// pending deltas of purged day are dropped too
+		Date day0 = DateUtil.getDay(new Date(since));
+		Date day1 = new Date(day0.getTime() + DAY);
+		Date day2 = new Date(day0.getTime() + 2 * DAY);
+		write(day1.getTime() + DAY - 1000, 7);
+
+		rollups.purge("t", day1, day1);
+		assertTrue(rollups.getEntries("t", day1).isEmpty());
+		assertFalse(getFile(day1).exists());
+		assertEquals(aggregate(day0), merge(rollups.getEntries("t", day0)));
+		assertEquals(aggregate(day2), merge(rollups.getEntries("t", day2)));
+
+		rollups.drop("t");
+		assertNull(rollups.getSpec("t"));
+		assertTrue(rollups.getEntries("t", day0).isEmpty());
+		assertFalse(getFile(day0).exists());
+		assertFalse(getFile(day2).exists());
+		assertFalse(new File(dir, "rollup.state").exists());
+	}
+
+	@Test
+	public void testDeclarationChange() throws IOException {
+		LogRollupSpec spec = rollups.getSpec("t");
+		assertNotNull(spec);
+
+		long since = getSince();
+		for (int i = 0; i < 100; i++)
+			write(since + i * 30000L, i);
+		rollups.flush();
+
+		// same declaration keeps rollup
+		rollups.reload();
+		assertTrue(spec == rollups.getSpec("t"));
+
+		Date day = DateUtil.getDay(new Date(since));
+		assertTrue(getFile(day).exists());
+
+		// changed declaration restarts rollup from next logs
+		metadata.put("rollup_by", "host, port");
+		rollups.reload();
+		LogRollupSpec changed = rollups.getSpec("t");
+		assertEquals(Arrays.asList("host", "port"), changed.getGroupFields());
+		assertFalse(changed.getSince().before(spec.getSince()));
+		assertFalse(getFile(day).exists());
+		assertTrue(rollups.getEntries("t", day).isEmpty());
+
+		// invalid span is ignored, and removed declaration drops rollup
+		metadata.put("rollup_span", "7m");
+		rollups.reload();
+		assertTrue(changed == rollups.getSpec("t"));
+
+		metadata.remove("rollup_span");
+		rollups.reload();
+		assertNull(rollups.getSpec("t"));
+	}
+
+	@Test
+	public void testRecover() throws IOException {
+		long since = getSince();
+		Date day0 = DateUtil.getDay(new Date(since));
+		Date day1 = new Date(day0.getTime() + DAY);
+
+		// logs before rollup start are not delivered to rollup
+		if (since - 1000 >= day0.getTime())
+			store(new Log("t", new Date(since - 1000), 0, newData(0)));
+
+		for (int i = 0; i < 300; i++)
+			write(since + i * 10000L, i);
+		rollups.flush();
+
+		// crash before rollup flush
+		for (int i = 0; i < 200; i++)
+			write(day1.getTime() + i * 10000L, i);
+
+		restart();
+		assertEquals(aggregate(day0), merge(rollups.getEntries("t", day0)));
+		assertEquals(aggregate(day1), merge(rollups.getEntries("t", day1)));
+		assertEquals(tablets.get(day0).size(), RollupFile.countLogs(getFile(day0)));
+		assertEquals(tablets.get(day1).size(), RollupFile.countLogs(getFile(day1)));
+
+		// flushed rollup of logs which are lost from tablet
+		for (int i = 300; i < 350; i++)
+			write(since + i * 10000L, i);
+		for (int i = 200; i < 250; i++)
+			write(day1.getTime() + i * 10000L, i);
+		rollups.flush();
+		assertEquals(2, RollupFile.countBlocks(getFile(day0)));
+		assertEquals(2, RollupFile.countBlocks(getFile(day1)));
+
+		List<Log> logs = tablets.get(day1);
+		logs.subList(180, logs.size()).clear();
+		restart();
+		assertEquals(aggregate(day1), merge(rollups.getEntries("t", day1)));
+		assertEquals(180, RollupFile.countLogs(getFile(day1)));
+		assertEquals(1, RollupFile.countBlocks(getFile(day1)));
+
+		// consistent day is not rebuilt
+		assertEquals(aggregate(day0), merge(rollups.getEntries("t", day0)));
+		assertEquals(2, RollupFile.countBlocks(getFile(day0)));
+	}
+
+	private void restart() {
+		rollups = new RollupManager(tableRegistry, storage);
+		rollups.reload();
+	}
+
+	private long getSince() {
+		return rollups.getSpec("t").getSince().getTime();
+	}
+
+	private File getFile(Date day) {
+		return new File(dir, DateUtil.getDayText(day) + RollupFile.FILE_SUFFIX);
+	}
+
+	private Map<String, Object> newData(int i) {
+		Map<String, Object> data = new HashMap<String, Object>();
+		if (i % 7 != 0)
+			data.put("host", "host" + (i % 3));
+		if (i % 5 != 0)
+			data.put("bytes", (long) i);
+		return data;
+	}
+
+	private void write(long time, int i) {
+		Log log = new Log("t", new Date(time), 0, newData(i));
+		store(log);
+		rollups.onLog(log);
+	}
+
+	private void store(Log log) {
+		Date day = DateUtil.getDay(log.getDate());
+		List<Log> logs = tablets.get(day);
+		if (logs == null) {
+			logs = new ArrayList<Log>();
+			tablets.put(day, logs);
+		}
+		logs.add(log);
+		log.setId(logs.size());
+	}
+
+	/**
+	 * @return count, sum and value count per bucket and host of tablet logs
+	 *         after rollup start
+	 */
+	private Map<String, List<Long>> aggregate(Date day) {
+		long since = getSince();
+		Map<String, List<Long>> m = new TreeMap<String, List<Long>>();
+		List<Log> logs = tablets.get(day);
+		if (logs == null)
+			return m;
+
+		for (Log log : logs) {
+			long time = log.getDate().getTime();
+			if (time < since)
+				continue;
+
+			String key = (time - time % 60000) + "/" + log.getData().get("host");
+			Long bytes = (Long) log.getData().get("bytes");
+			add(m, key, 1, bytes != null ? bytes : 0, bytes != null ? 1 : 0);
+		}
+		return m;
+	}
+
+	private Map<String, List<Long>> merge(List<LogRollupEntry> entries) {
+		Map<String, List<Long>> m = new TreeMap<String, List<Long>>();
+		for (LogRollupEntry e : entries) {
+			String key = e.getBucket().getTime() + "/" + e.getGroups()[0];
+			add(m, key, e.getCount(), e.getSums()[0].longValue(), e.getValueCounts()[0]);
+		}
+		return m;
+	}
+
+	private void add(Map<String, List<Long>> m, String key, long count, long sum, long valueCount) {
+		List<Long> l = m.get(key);
+		if (l == null)
+			l = Arrays.asList(0L, 0L, 0L);
+		m.put(key, Arrays.asList(l.get(0) + count, l.get(1) + sum, l.get(2) + valueCount));
+	}
+
+	private class TableRegistryHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getTableNames"))
+				return Arrays.asList("t");
+			if (name.equals("exists"))
+				return args[0].equals("t");
+			if (name.equals("getTableMetadata") && args.length == 2)
+				return metadata.get(args[1]);
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private class StorageHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getTableDirectory"))
+				return dir;
+
+			if (name.equals("getLogDates")) {
+				List<Date> days = new ArrayList<Date>(tablets.keySet());
+				Collections.sort(days, Collections.reverseOrder());
+				return days;
+			}
+
+			if (name.equals("getLogCount")) {
+				List<Log> logs = tablets.get(args[1]);
+				return logs != null ? (long) logs.size() : 0L;
+			}
+
+			if (name.equals("openCursor")) {
+				List<Log> logs = tablets.get(args[1]);
+				final Iterator<Log> it = new ArrayList<Log>(logs).iterator();
+				return new LogCursor() {
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Log next() {
+						return it.next();
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+
+					@Override
+					public void close() {
+					}
+				};
+			}
+
+			throw new UnsupportedOperationException(name);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Lz4BlockCodecTest {
+	private Lz4BlockCodec codec;
+
+	@Before
+	public void setup() {
+		codec = new Lz4BlockCodec();
+	}
+
+	@After
+	public void teardown() {
+		codec.close();
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		roundTrip(new byte[0]);
+	}
+
+	@Test
+	public void testTiny() throws IOException {
+		for (int len = 1; len < 32; len++) {
+			byte[] b = new byte[len];
+			Arrays.fill(b, (byte) 'a');
+			roundTrip(b);
+		}
+	}
+
+	@Test
+	public void testIncompressible() throws IOException {
+		byte[] b = new byte[64 * 1024];
+		new Random(1).nextBytes(b);
+
+		int compressed = roundTrip(b);
+		assertTrue(compressed <= codec.maxCompressedLength(b.length));
+	}
+
+	@Test
+	public void testRepetitive() throws IOException {
+		byte[] b = new byte[256 * 1024];
+		Arrays.fill(b, (byte) 'x');
+
+		int compressed = roundTrip(b);
+		assertTrue("compressed " + compressed, compressed < b.length / 100);
+	}
+
+	@Test
+	public void testBlockSize() throws IOException {
+		// log like text with matches near and beyond the max distance
+		byte[] b = new byte[LogFileWriterV2.DEFAULT_BLOCK_SIZE];
+		Random r = new Random(2);
+		int pos = 0;
+		while (pos < b.length) {
+			byte[] line = ("2013-01-01 00:00:00 src=10.0.0." + r.nextInt(256) + " dst=192.168.0." + r.nextInt(256)
+					+ " action=" + (r.nextBoolean() ? "pass" : "drop") + " bytes=" + r.nextInt(100000) + "\n").getBytes();
+			int len = Math.min(line.length, b.length - pos);
+			System.arraycopy(line, 0, b, pos, len);
+			pos += len;
+		}
+
+		int compressed = roundTrip(b);
+		assertTrue("compressed " + compressed, compressed < b.length / 2);
+
+		// codec instance is reused for next block
+		new Random(3).nextBytes(b);
+		roundTrip(b);
+	}
+
+	@Test
+	public void testOffset() throws IOException {
+		byte[] input = new byte[10000];
+		for (int i = 0; i < input.length; i++)
+			input[i] = (byte) (i % 97);
+
+		int offset = 123;
+		int length = 5000;
+		byte[] compressed = new byte[7 + codec.maxCompressedLength(length)];
+		int compressedLength = codec.compress(input, offset, length, compressed, 7);
+
+		byte[] output = new byte[length + 11];
+		codec.decompress(compressed, 7, compressedLength, output, 11, length);
+		assertArrayEquals(Arrays.copyOfRange(input, offset, offset + length), Arrays.copyOfRange(output, 11, 11 + length));
+	}
+
+	@Test
+	public void testRegistry() throws IOException {
+		LogBlockCodec c = LogBlockCodecRegistry.newCodec(Lz4BlockCodec.NAME, 0);
+		try {
+			assertEquals(Lz4BlockCodec.NAME, c.getName());
+		} finally {
+			c.close();
+		}
+	}
+
+	private int roundTrip(byte[] input) throws IOException {
+		byte[] compressed = new byte[codec.maxCompressedLength(input.length)];
+		int compressedLength = codec.compress(input, 0, input.length, compressed, 0);
+
+		byte[] output = new byte[input.length];
+		codec.decompress(compressed, 0, compressedLength, output, 0, input.length);
+		assertArrayEquals(input, output);
+		return compressedLength;
+	}
+}
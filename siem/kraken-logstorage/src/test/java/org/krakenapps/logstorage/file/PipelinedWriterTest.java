@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes blocks by compressor threads, and checks block order, pending logs
+ * and write failure
+ */
+public class PipelinedWriterTest {
+	// 16 logs per block, limited by index buffer
+	private static final int BLOCK_SIZE = 4096;
+	private static final int LOGS_PER_BLOCK = 16;
+
+	private File dir;
+	private File indexPath;
+	private File dataPath;
+
+	@Before
+	public void setup() throws IOException {
+		dir = File.createTempFile("writer", "");
+		dir.delete();
+		dir.mkdirs();
+		indexPath = new File(dir, "t.idx");
+		dataPath = new File(dir, "t.dat");
+	}
+
+	@After
+	public void teardown() {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testBlockOrder() throws Exception {
+		ManualExecutor compressor = new ManualExecutor();
+		LogFileWriterV2 writer = newWriter(LogBlockCodecRegistry.DEFAULT_CODEC, compressor, 64);
+		int count = LOGS_PER_BLOCK * 20 + 5;
+		write(writer, 1, count);
+		assertEquals(20, compressor.tasks.size());
+
+		// logs of pending blocks are returned with buffer
+		assertEquals(range(1, count), getIds(writer.getBuffer()));
+
+		// later blocks wait for first block
+		compressor.runAllExceptFirst();
+		assertEquals(range(1, count), getIds(writer.getBuffer()));
+		assertEquals(0, read().size());
+
+		compressor.run(0);
+		assertEquals(range(LOGS_PER_BLOCK * 20 + 1, count), getIds(writer.getBuffer()));
+		assertEquals(reverse(range(1, LOGS_PER_BLOCK * 20)), read());
+
+		compressor.direct = true;
+		writer.close();
+		assertEquals(reverse(range(1, count)), read());
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		ExecutorService compressor = Executors.newFixedThreadPool(4);
+		try {
+			LogFileWriterV2 writer = newWriter(Lz4BlockCodec.NAME, compressor, 4);
+			int count = 20000;
+			for (int i = 1; i <= count; i += 1000) {
+				write(writer, i, i + 999);
+
+				// pending and buffered logs are never lost or duplicated
+				List<LogRecord> buffer = writer.getBuffer();
+				List<Long> ids = getIds(buffer);
+				if (!ids.isEmpty())
+					assertEquals(range(ids.get(0).intValue(), i + 999), ids);
+			}
+			writer.close();
+
+			assertEquals(reverse(range(1, count)), read());
+		} finally {
+			compressor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCloseDrain() throws Exception {
+		ManualExecutor compressor = new ManualExecutor();
+		final LogFileWriterV2 writer = newWriter(null, compressor, 64);
+		write(writer, 1, 100);
+		writer.flush();
+		assertEquals(7, compressor.tasks.size());
+
+		// close waits for pending blocks
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.close();
+				} catch (Throwable t) {
+					errors.add(t);
+				}
+			}
+		};
+		t.start();
+		t.join(200);
+		assertTrue(t.isAlive());
+
+		compressor.runAllExceptFirst();
+		t.join(200);
+		assertTrue(t.isAlive());
+
+		compressor.run(0);
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertTrue(errors.isEmpty());
+		assertEquals(reverse(range(1, 100)), read());
+	}
+
+	@Test
+	public void testWriteError() throws Exception {
+		LogBlockCodecFactory factory = new FailingCodecFactory();
+		LogBlockCodecRegistry.register(factory);
+		try {
+			ManualExecutor compressor = new ManualExecutor();
+			compressor.direct = true;
+			LogFileWriterV2 writer = newWriter(factory.getName(), compressor, 4);
+
+			// failure of first block is thrown at next flush
+			write(writer, 1, LOGS_PER_BLOCK + 1);
+			try {
+				writer.flush();
+				fail();
+			} catch (IOException e) {
+			}
+
+			try {
+				write(writer, LOGS_PER_BLOCK + 2, LOGS_PER_BLOCK * 3);
+				fail();
+			} catch (IOException e) {
+			}
+
+			// failure is thrown, and files are closed
+			try {
+				writer.close();
+				fail();
+			} catch (IOException e) {
+			}
+			writer.flush();
+		} finally {
+			LogBlockCodecRegistry.unregister(factory);
+		}
+	}
+
+	private LogFileWriterV2 newWriter(String codecName, Executor compressor, int maxPendingBlocks) throws Exception {
+		return new LogFileWriterV2(indexPath, dataPath, BLOCK_SIZE, 3, codecName, compressor, maxPendingBlocks);
+	}
+
+	private void write(LogFileWriterV2 writer, int begin, int end) throws IOException {
+		for (int i = begin; i <= end; i++)
+			writer.write(new LogRecord(new Date(1356966000000L + i), i, ByteBuffer.wrap(("log " + i).getBytes())));
+	}
+
+	private List<Long> read() throws Exception {
+		final List<Long> ids = new ArrayList<Long>();
+		LogFileReaderV2 reader = new LogFileReaderV2(indexPath, dataPath);
+		try {
+			reader.traverse(0, new LogRecordCallback() {
+				@Override
+				public boolean onLog(LogRecord log) {
+					ByteBuffer b = log.getData();
+					byte[] data = new byte[b.remaining()];
+					b.get(data);
+					assertEquals("log " + log.getId(), new String(data));
+					ids.add(log.getId());
+					return true;
+				}
+			});
+		} finally {
+			reader.close();
+		}
+		return ids;
+	}
+
+	private List<Long> getIds(List<LogRecord> logs) {
+		List<Long> ids = new ArrayList<Long>();
+		for (LogRecord log : logs)
+			ids.add(log.getId());
+		return ids;
+	}
+
+	private List<Long> range(int begin, int end) {
+		List<Long> l = new ArrayList<Long>();
+		for (long i = begin; i <= end; i++)
+			l.add(i);
+		return l;
+	}
+
+	private List<Long> reverse(List<Long> l) {
+		Collections.reverse(l);
+		return l;
+	}
+
+	/**
+	 * Runs compress tasks when test asks, or at once if direct
+	 */
+	private static class ManualExecutor implements Executor {
+		private LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		private volatile boolean direct;
+
+		@Override
+		public synchronized void execute(Runnable task) {
+			if (direct)
+				task.run();
+			else
+				tasks.add(task);
+		}
+
+		public void run(int i) {
+			Runnable task;
+			synchronized (this) {
+				task = tasks.remove(i);
+			}
+			task.run();
+		}
+
+		public void runAllExceptFirst() {
+			while (true) {
+				Runnable task;
+				synchronized (this) {
+					if (tasks.size() <= 1)
+						return;
+					task = tasks.removeLast();
+				}
+				task.run();
+			}
+		}
+	}
+
+	private static class FailingCodecFactory implements LogBlockCodecFactory {
+		@Override
+		public String getName() {
+			return "failing";
+		}
+
+		@Override
+		public LogBlockCodec newCodec(int level) {
+			return new LogBlockCodec() {
+				@Override
+				public String getName() {
+					return "failing";
+				}
+
+				@Override
+				public int maxCompressedLength(int length) {
+					return length;
+				}
+
+				@Override
+				public int compress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset)
+						throws IOException {
+					throw new IOException("compress failure");
+				}
+
+				@Override
+				public void decompress(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset,
+						int originalLength) throws IOException {
+					throw new IOException("decompress failure");
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+}
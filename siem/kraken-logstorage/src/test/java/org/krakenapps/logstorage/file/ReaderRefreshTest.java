@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Appends blocks to open tablet, and checks blocks loaded by reader refresh
+ */
+public class ReaderRefreshTest {
+	private File dir;
+	private File indexPath;
+	private File dataPath;
+	private LogFileWriterV2 writer;
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("reader", "");
+		dir.delete();
+		dir.mkdirs();
+		indexPath = new File(dir, "t.idx");
+		dataPath = new File(dir, "t.dat");
+		writer = new LogFileWriterV2(indexPath, dataPath, 4096, 3);
+	}
+
+	@After
+	public void teardown() throws IOException {
+		writer.close();
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+		write(1, 100);
+		LogFileReaderV2 reader = new LogFileReaderV2(indexPath, dataPath);
+		try {
+			assertEquals(100, reader.count());
+			assertNull(reader.find(101));
+
+			// nothing appended
+			assertTrue(reader.refresh());
+			assertEquals(100, reader.count());
+
+			write(101, 250);
+			assertNull(reader.find(101));
+			assertTrue(reader.refresh());
+			assertEquals(250, reader.count());
+			for (int id = 1; id <= 250; id++)
+				assertEquals(id, reader.find(id).getId());
+
+			// descending traverse from appended blocks
+			final long[] next = new long[] { 250 };
+			reader.traverse(0, new LogRecordCallback() {
+				@Override
+				public boolean onLog(LogRecord log) {
+					assertEquals(next[0]--, log.getId());
+					return true;
+				}
+			});
+			assertEquals(0, next[0]);
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testPartialBlock() throws Exception {
+		// 16 logs per block, limited by index buffer
+		write(1, 100);
+		LogFileReaderV2 reader = new LogFileReaderV2(indexPath, dataPath);
+		try {
+			// data blocks of next flush are written, but index blocks are not
+			long indexLength = indexPath.length();
+			write(101, 150);
+			byte[] index = readFile(indexPath);
+			truncate(indexPath, indexLength);
+			assertTrue(reader.refresh());
+			assertEquals(100, reader.count());
+
+			// partial index block
+			append(indexPath, index, (int) indexLength, index.length - (int) indexLength - 2);
+			assertTrue(reader.refresh());
+			assertEquals(148, reader.count());
+
+			// partial data block header
+			append(indexPath, index, index.length - 2, 2);
+			append(dataPath, new byte[10], 0, 10);
+			assertTrue(reader.refresh());
+			assertEquals(150, reader.count());
+			assertEquals(150, reader.find(150).getId());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testMapped() throws Exception {
+		write(1, 100);
+		LogFileReaderV2 reader = new LogFileReaderV2(indexPath, dataPath, true);
+		try {
+			// mapping cannot see appended blocks
+			write(101, 150);
+			assertFalse(reader.refresh());
+			assertEquals(100, reader.count());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void write(int begin, int end) throws IOException {
+		for (int i = begin; i <= end; i++)
+			writer.write(new LogRecord(new Date(1356966000000L + i), i, ByteBuffer.wrap(("log " + i).getBytes())));
+		writer.flush();
+	}
+
+	private byte[] readFile(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			byte[] b = new byte[(int) raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void truncate(File f, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void append(File f, byte[] b, int offset, int length) throws IOException {
+		FileOutputStream os = new FileOutputStream(f, true);
+		try {
+			os.write(b, offset, length);
+		} finally {
+			os.close();
+		}
+	}
+}
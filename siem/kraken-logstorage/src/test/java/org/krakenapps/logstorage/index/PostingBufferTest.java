@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.logstorage.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PostingBufferTest {
+	@Test
+	public void testSortOrder() {
+		PostingBuffer buffer = new PostingBuffer();
+		buffer.add(3, new String[] { "b", "a" });
+		buffer.add(1, new String[] { "c", "a" });
+		buffer.add(7, new String[] { "a" });
+		buffer.add(5, new String[] { "b" });
+
+		assertArrayEquals(new String[] { "a", "b", "c" }, buffer.getSortedTerms());
+		assertArrayEquals(new long[] { 7, 3, 1 }, buffer.getPostings("a"));
+		assertArrayEquals(new long[] { 5, 3 }, buffer.getPostings("b"));
+		assertArrayEquals(new long[] { 1 }, buffer.getPostings("c"));
+		assertNull(buffer.getPostings("d"));
+		assertEquals(4, buffer.getLogCount());
+	}
+
+	@Test
+	public void testDedup() {
+		PostingBuffer buffer = new PostingBuffer();
+
+		// repeated token in a log
+		buffer.add(1, new String[] { "a", "a", null, "b", "a" });
+		assertEquals(2, buffer.getPostingCount());
+
+		// same log added again by separate call
+		buffer.add(2, new String[] { "a" });
+		buffer.add(1, new String[] { "a" });
+		assertArrayEquals(new long[] { 2, 1 }, buffer.getPostings("a"));
+		assertArrayEquals(new long[] { 1 }, buffer.getPostings("b"));
+	}
+
+	@Test
+	public void testRehash() {
+		PostingBuffer buffer = new PostingBuffer();
+		for (int i = 0; i < 5000; i++)
+			buffer.add(i, new String[] { "term" + i, "common" });
+
+		assertEquals(5001, buffer.getTermCount());
+		assertEquals(10000, buffer.getPostingCount());
+		assertArrayEquals(new long[] { 1234 }, buffer.getPostings("term1234"));
+		assertEquals(5000, buffer.getPostings("common").length);
+		assertEquals(4999, buffer.getPostings("common")[0]);
+
+		String[] terms = buffer.getSortedTerms();
+		String[] sorted = terms.clone();
+		Arrays.sort(sorted);
+		assertArrayEquals(sorted, terms);
+
+		buffer.clear();
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.getPostingCount());
+	}
+
+	@Test
+	public void testUsageGrows() {
+		PostingBuffer buffer = new PostingBuffer();
+		long empty = buffer.getUsage();
+
+		buffer.add(1, new String[] { "a" });
+		long one = buffer.getUsage();
+		assertTrue(one > empty);
+
+		// posting array grows
+		for (int i = 2; i < 100; i++)
+			buffer.add(i, new String[] { "a" });
+		assertTrue(buffer.getUsage() > one);
+	}
+
+	@Test
+	public void testFlushOnUsage() throws IOException {
+		File indexFile = File.createTempFile("buffer", ".pos");
+		File dataFile = File.createTempFile("buffer", ".seg");
+		indexFile.delete();
+		dataFile.delete();
+
+		InvertedIndexWriter writer = new InvertedIndexWriter(indexFile, dataFile);
+		InvertedIndexReader reader = null;
+		try {
+			writer.setFlushThreshold(64 * 1024);
+
+			int segments = 0;
+			long id = 0;
+			while (segments < 3) {
+				id++;
+				writer.write(id, new String[] { "t" + (id % 500), "all" });
+				if (writer.getBuffer().isEmpty())
+					segments++;
+				else
+					assertTrue(writer.getBuffer().getUsage() < writer.getFlushThreshold());
+			}
+
+			writer.write(++id, new String[] { "all" });
+			writer.close();
+
+			// last log is flushed by close
+			reader = new InvertedIndexReader(indexFile, dataFile);
+			assertEquals(4, reader.getSegmentCount());
+
+			long count = 0;
+			InvertedIndexCursor cursor = reader.openCursor("all");
+			while (cursor.hasNext()) {
+				cursor.next();
+				count++;
+			}
+			assertEquals(id, count);
+		} finally {
+			if (reader != null)
+				reader.close();
+			indexFile.delete();
+			dataFile.delete();
+		}
+	}
+}